@@ -91,6 +91,9 @@ public class Main
             return;
         }
 
+        // Warm up the libraries while the UI comes up.
+        AppData.preload ();
+
         // Create the main frame.
         EventQueue.invokeLater (new Runnable ()
         {
@@ -51,6 +51,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.NavigableSet;
@@ -76,6 +77,7 @@ public class JobC extends Thread
     public boolean during;
     public boolean after;
     public boolean with_profiling;
+    public boolean usesZlib;  // Some output is compressed, so link with a runtime built for zlib. Set during code generation.
     
     // These values are unique across the whole simulation, so they go here rather than BackendDataC.
     // Where possible, the key is a String. Otherwise, it is an Operator which is specific to one expression.
@@ -226,22 +228,30 @@ public class JobC extends Thread
         sources.add ("io");
         sources.add ("profiling");
         if (T.equals ("int")) sources.add ("fixedpoint");
-        for (String stem : sources)
-        {
-            Path object = runtimeDir.resolve (stem + "_" + T + ".o");
-            if (Files.exists (object)) continue;
-            Path source = runtimeDir.resolve (stem + ".cc");
-            Path out = runCommand
-            (
-                gcc.toString (), "-c", "-O3", "-std=c++11",
-                "-ffunction-sections", "-fdata-sections",
-                "-I" + runtimeDir,
-                "-Dn2a_T=" + T,
-                (T.equals ("int") ? "-Dn2a_FP" : ""),
-                "-o", env.quote (object), env.quote (source)
-            );
-            Files.delete (out);
-        }
+        for (String stem : sources) buildRuntimeObject (stem, stem, "");
+    }
+
+    /**
+        Compiles one runtime source file, unless its object file already exists.
+        @param name Stem of the object file. Differs from stem when the same source is built in several variants.
+        @param define An extra compiler flag which distinguishes the variant, or empty string if none.
+    **/
+    public void buildRuntimeObject (String stem, String name, String define) throws Exception
+    {
+        Path object = runtimeDir.resolve (name + "_" + T + ".o");
+        if (Files.exists (object)) return;
+        Path source = runtimeDir.resolve (stem + ".cc");
+        Path out = runCommand
+        (
+            gcc.toString (), "-c", "-O3", "-std=c++11",
+            "-ffunction-sections", "-fdata-sections",
+            "-I" + runtimeDir,
+            "-Dn2a_T=" + T,
+            (T.equals ("int") ? "-Dn2a_FP" : ""),
+            define,
+            "-o", env.quote (object), env.quote (source)
+        );
+        Files.delete (out);
     }
 
     public boolean unpackRuntime (Class<?> from, Path runtimeDir, String... names) throws Exception
@@ -268,6 +278,15 @@ public class JobC extends Thread
         String stem = source.getFileName ().toString ().split ("\\.", 2)[0];
         Path binary = source.getParent ().resolve (stem + ".bin");
 
+        // Compressed output needs a variant of the I/O object that includes OutputCompressor.
+        // It is built on demand, so that hosts without zlib can still run models that don't compress.
+        String io = "io";
+        if (usesZlib)
+        {
+            io = "io_zlib";
+            buildRuntimeObject ("io", io, "-Dn2a_ZLIB");
+        }
+
         Path out = runCommand
         (
             gcc.toString (), "-O3", "-std=c++11",
@@ -275,11 +294,14 @@ public class JobC extends Thread
             "-I" + env.quote (runtimeDir),
             "-Dn2a_T=" + T,
             (T.equals ("int") ? "-Dn2a_FP" : ""),
+            (usesZlib ? "-Dn2a_ZLIB" : ""),
+            (usesZlib ? "-pthread"   : ""),
             env.quote (runtimeDir.resolve ("runtime_" + T + ".o")),
-            env.quote (runtimeDir.resolve ("io_"      + T + ".o")),
+            env.quote (runtimeDir.resolve (io + "_"   + T + ".o")),
             env.quote (runtimeDir.resolve ("profiling_"      + T + ".o")),
             (T.equals ("int") ? env.quote (runtimeDir.resolve ("fixedpoint_" + T + ".o")) : ""),
-            "-o", env.quote (binary), env.quote (source)
+            "-o", env.quote (binary), env.quote (source),
+            (usesZlib ? "-lz" : "")
         );
         Files.delete (out);
 
@@ -3796,6 +3818,34 @@ public class JobC extends Thread
         result.append (";\n");
     }
 
+    /**
+        Emits code to set the mode flags of an OutputHolder which must be known before it writes anything.
+        Rather than actually calculate a mode string, just scan for any component which contains the flag.
+        Only a very pathological case would not have this. IE: "r" + "a" + "w"
+    **/
+    public void setOutputFlags (Output o, RendererC context, String pad)
+    {
+        if (o.operands.length <= 3) return;
+        List<Operator> pieces;
+        Operator mode = o.operands[3];
+        if      (mode instanceof Constant) pieces = Arrays.asList (mode);
+        else if (mode instanceof Add)      pieces = flattenAdd ((Add) mode);
+        else return;
+
+        for (String flag : new String[] {"raw", "binary", "gzip"})
+        {
+            for (Operator p : pieces)
+            {
+                if (p.getString ().contains (flag))
+                {
+                    context.result.append (pad + o.name + "->" + flag + " = true;\n");
+                    if (flag.equals ("gzip")) usesZlib = true;
+                    break;
+                }
+            }
+        }
+    }
+
     public void prepareStaticObjects (Operator op, final RendererC context, final String pad) throws Exception
     {
         final BackendDataC bed = context.bed;
@@ -3819,30 +3869,7 @@ public class JobC extends Thread
                             context.result.append (pad + o.columnName + " = \"" + o.variableName + "\";\n");
                         }
                     }
-                    if (o.operands[0] instanceof Constant  &&  o.operands.length > 3)  // Apply "raw" attribute now, if set.
-                    {
-                        if (o.operands[3] instanceof Constant)
-                        {
-                            if (o.operands[3].getString ().contains ("raw"))
-                            {
-                                context.result.append (pad + o.name + "->raw = true;\n");
-                            }
-                        }
-                        else if (o.operands[3] instanceof Add)  // calculated string
-                        {
-                            // Rather than actually calculate the string, just scan for any component which contains "raw".
-                            // Only a very pathological case would not have this. IE: "r" + "a" + "w"
-                            Add a = (Add) o.operands[3];
-                            for (Operator fa : flattenAdd (a))
-                            {
-                                if (fa.getString ().contains ("raw"))
-                                {
-                                    context.result.append (pad + o.name + "->raw = true;\n");
-                                    break;
-                                }
-                            }
-                        }
-                    }
+                    if (o.operands[0] instanceof Constant) setOutputFlags (o, context, pad);  // Apply "raw" and "binary" attributes now, if set.
                     return true;  // Continue to drill down, because I/O functions can be nested.
                 }
                 if (op instanceof Input)
@@ -3981,29 +4008,7 @@ public class JobC extends Thread
                     if (! (o.operands[0] instanceof Constant))
                     {
                         context.result.append (pad + "OutputHolder<" + T + "> * " + o.name + " = outputHelper<" + T + "> (" + o.fileName + ");\n");
-                        if (o.operands.length > 3)
-                        {
-                            if (o.operands[3] instanceof Constant)
-                            {
-                                if (o.operands[3].getString ().contains ("raw"))
-                                {
-                                    context.result.append (pad + o.name + "->raw = true;\n");
-                                }
-                            }
-                            else if (o.operands[3] instanceof Add)
-                            {
-                                // Even though we could check the assembled string in generated code, it's cleaner to check for a constant substring now.
-                                Add a = (Add) o.operands[3];
-                                for (Operator fa : flattenAdd (a))
-                                {
-                                    if (fa.getString ().contains ("raw"))
-                                    {
-                                        context.result.append (pad + o.name + "->raw = true;\n");
-                                        break;
-                                    }
-                                }
-                            }
-                        }
+                        setOutputFlags (o, context, pad);
                     }
                     return true;
                 }
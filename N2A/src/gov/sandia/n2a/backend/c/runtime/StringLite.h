@@ -41,6 +41,14 @@ public:
         if (value) assign (value, strlen (value));
     }
 
+    String (const char * value, size_t n)
+    {
+        memory   = 0;
+        top      = 0;
+        capacity = 0;
+        assign (value, n);
+    }
+
     String (const String & that)
     {
         memory   = 0;
@@ -14,6 +14,7 @@ template ostream & operator << (ostream & stream, const MatrixAbstract<n2a_T> &
 template class IteratorNonzero<n2a_T>;
 template class IteratorSkip<n2a_T>;
 template class IteratorSparse<n2a_T>;
+template class IteratorMapped<n2a_T>;
 template class MatrixInput<n2a_T>;
 template class InputHolder<n2a_T>;
 template class OutputHolder<n2a_T>;
@@ -44,3 +45,142 @@ outputClose ()
     for (auto it : outputMap) delete it;
     // No need to clear collection, because this function is only called during shutdown.
 }
+
+
+// class OutputCompressor ----------------------------------------------------
+
+#ifdef n2a_ZLIB
+
+size_t OutputCompressor::threshold = 1 << 18;
+int    OutputCompressor::interval  = 1000;
+size_t OutputCompressor::depth     = 4;
+
+OutputCompressor::OutputCompressor (ostream * sink, bool ownSink)
+:   sink    (sink),
+    ownSink (ownSink)
+{
+    done      = false;
+    committed = chrono::steady_clock::now () - chrono::milliseconds (interval);  // Hand off the first row immediately, so even a short run leaves a flush point.
+
+    z.zalloc = Z_NULL;
+    z.zfree  = Z_NULL;
+    z.opaque = Z_NULL;
+    deflateInit2 (&z, Z_DEFAULT_COMPRESSION, Z_DEFLATED, 15 + 16, 8, Z_DEFAULT_STRATEGY);  // 15+16 selects maximum window size with gzip wrapper
+
+    current.resize (threshold + 4096);  // Slack to finish the row that crosses threshold.
+    setp (current.data (), current.data () + current.size ());
+
+    worker = thread (&OutputCompressor::run, this);
+}
+
+OutputCompressor::~OutputCompressor ()
+{
+    handOff ();
+    {
+        lock_guard<mutex> lock (guard);
+        done = true;
+    }
+    changed.notify_all ();
+    worker.join ();
+
+    compress (vector<char> (), Z_FINISH);
+    deflateEnd (&z);
+    sink->flush ();
+    if (ownSink) delete sink;
+}
+
+void
+OutputCompressor::commit ()
+{
+    size_t count = pptr () - pbase ();
+    if (count == 0) return;
+    chrono::steady_clock::time_point now = chrono::steady_clock::now ();
+    if (count < threshold  &&  now - committed < chrono::milliseconds (interval)) return;
+    handOff ();
+    committed = now;
+}
+
+void
+OutputCompressor::handOff ()
+{
+    size_t count = pptr () - pbase ();
+    if (count == 0) return;
+    current.resize (count);
+    {
+        unique_lock<mutex> lock (guard);
+        while (queue.size () >= depth) changed.wait (lock);
+        queue.push_back (move (current));
+        if (spare.empty ())
+        {
+            current = vector<char> ();
+        }
+        else
+        {
+            current = move (spare.back ());
+            spare.pop_back ();
+        }
+    }
+    changed.notify_all ();
+
+    current.resize (threshold + 4096);
+    setp (current.data (), current.data () + current.size ());
+}
+
+void
+OutputCompressor::run ()
+{
+    while (true)
+    {
+        vector<char> buffer;
+        {
+            unique_lock<mutex> lock (guard);
+            while (queue.empty ()  &&  ! done) changed.wait (lock);
+            if (queue.empty ()) break;  // and done
+            buffer = move (queue.front ());
+            queue.pop_front ();
+        }
+        changed.notify_all ();  // The producer may be waiting for space in queue.
+
+        compress (buffer, Z_FULL_FLUSH);
+        sink->flush ();
+
+        lock_guard<mutex> lock (guard);
+        if (spare.size () < depth) spare.push_back (move (buffer));
+    }
+}
+
+void
+OutputCompressor::compress (const vector<char> & buffer, int flush)
+{
+    char output[1 << 16];
+    z.next_in  = (Bytef *) buffer.data ();
+    z.avail_in = buffer.size ();
+    do
+    {
+        z.next_out  = (Bytef *) output;
+        z.avail_out = sizeof (output);
+        deflate (&z, flush);
+        sink->write (output, sizeof (output) - z.avail_out);
+    }
+    while (z.avail_out == 0);
+}
+
+OutputCompressor::int_type
+OutputCompressor::overflow (int_type c)
+{
+    // A single row has outgrown the buffer, so enlarge it. Output is only handed off at row boundaries.
+    size_t count = pptr () - pbase ();
+    current.resize (current.size () * 2);
+    setp (current.data (), current.data () + current.size ());
+    pbump (count);
+    if (c != traits_type::eof ()) sputc (c);
+    return traits_type::not_eof (c);
+}
+
+int
+OutputCompressor::sync ()
+{
+    return 0;  // Don't hand off on every endl. commit() decides when.
+}
+
+#endif
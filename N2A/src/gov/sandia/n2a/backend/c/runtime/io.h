@@ -8,6 +8,16 @@
 
 #include <vector>
 #include <unordered_map>
+#ifdef n2a_ZLIB
+# include <zlib.h>
+# include <deque>
+# include <thread>
+# include <mutex>
+# include <condition_variable>
+# include <chrono>
+# include <streambuf>
+# include <ostream>
+#endif
 
 
 // Holder and its utility functions are declared in each platform's io.h, but only defined once in runtime.cc
@@ -59,15 +69,40 @@ public:
     virtual bool next ();
 };
 
+/**
+    Reads a matrix file. Text files are parsed into A. A binary file (starting with the magic "N2AM")
+    is memory-mapped instead, so it may be larger than available memory, and is read in place.
+    See MatrixMapped.java for a description of the binary format. It is little-endian, which we
+    assume matches the host.
+**/
 template<class T>
 class MatrixInput : public Holder
 {
 public:
-    MatrixAbstract<T> * A;  // Will be either Matrix or MatrixSparse, determined by matrixHelper when reading the file.
+    MatrixAbstract<T> * A;  // Will be either Matrix or MatrixSparse, determined by matrixHelper when reading the file. Null if the file is memory-mapped.
+
+    // Memory-mapped binary file
+    const char *    mapped;      ///< Start of file contents, or null if not mapped.
+    size_t          mappedSize;
+    int             layout;      ///< 0=column major, 1=row major, 2=sparse
+    int             rows_;
+    int             columns_;
+    const int64_t * start;       ///< For sparse layout, index of first entry in each column.
+    const char *    entries;     ///< For sparse layout, the first 16-byte entry.
+#   ifdef n2a_FP
+    int             exponent;    ///< Of the stored values, after conversion to fixed-point.
+#   endif
+#   ifdef _WIN32
+    void *          fileHandle;
+    void *          mapHandle;
+#   endif
 
     MatrixInput (const String & fileName);
     virtual ~MatrixInput ();
 
+    bool map ();  ///< Attempts to memory-map the file. Returns false if the file is not in binary format, in which case it should be read as text.
+
+    T   element (int row, int column);  ///< Direct access to either A or the mapped file. row and column must be in range.
     T   get     (T row, T column);
     T   getRaw  (T row, T column);
     int rows    ();
@@ -75,17 +110,46 @@ public:
 
     IteratorNonzero<T> * getIterator ();  // Returns an object that iterates over nonzero elements of A.
 };
+
+template<class T>
+class IteratorMapped : public IteratorNonzero<T>
+{
+public:
+    MatrixInput<T> * A;
+    int64_t          index;       // of next sparse entry
+    int64_t          end;         // of current sparse column
+    int              nextColumn;  // for sparse
+
+    IteratorMapped (MatrixInput<T> * A);
+    virtual bool next ();
+};
 #ifdef n2a_FP
 template<class T> extern MatrixInput<T> * matrixHelper (const String & fileName, int exponent, MatrixInput<T> * oldHandle = 0);
 #else
 template<class T> extern MatrixInput<T> * matrixHelper (const String & fileName,               MatrixInput<T> * oldHandle = 0);
 #endif
 
+/**
+    Reads columns of numbers for input(). The format is determined automatically from the first few bytes.
+    Text format has one row per line, with columns separated by single tabs or spaces. A line that
+    starts with something other than a number is a list of column headers.
+    Binary format starts with the 4-byte magic "N2AB" followed by a 32-bit version number.
+    After that is a sequence of records. Each record starts with a 32-bit count n. If n >= 0, then n 32-bit
+    floats follow, forming one row. If n < 0, then -n column headers follow, each as a 32-bit byte count
+    followed by UTF-8 text. All numbers are little-endian. An empty cell is stored as NaN.
+**/
 template<class T>
 class InputHolder : public Holder
 {
 public:
     std::istream *                 in;
+    char *                         buffer;    ///< Raw bytes from in, read a large chunk at a time.
+    int                            capacity;  ///< Allocated size of buffer.
+    int                            position;  ///< Start of unconsumed bytes in buffer.
+    int                            limit;     ///< End of valid bytes in buffer.
+    bool                           started;   ///< Indicates that the file format has been determined.
+    bool                           binary;    ///< File is in the binary format written by OutputHolder.
+    bool                           eof;
     T                              currentLine;
     T *                            currentValues;
     int                            currentCount;
@@ -105,6 +169,12 @@ public:
     InputHolder (const String & fileName);
     virtual ~InputHolder ();
 
+    bool fill       ();      ///< Moves unconsumed bytes to the start of buffer, then reads more. Returns false if nothing more is available.
+    bool ensure     (int n); ///< Makes at least n unconsumed bytes available. Returns false if the stream ends first.
+    int  readText   ();      ///< Subroutine of getRow(). Returns 0 if no more rows, 1 for a header row, or 2 for a value row, which is stored in nextValues.
+    int  readBinary ();      ///< Like readText(), but for binary format.
+    void resize     (int count); ///< Ensures that nextValues can hold count columns.
+    T    parseValue (const char * start, const char * end, int index); ///< Converts one text field, given its column index.
     void getRow     (T row); ///< subroutine of get() and getRaw()
     int  getColumns ();      ///< Returns number of columns seen so far.
     T    get        (T row, const String & column);
@@ -117,11 +187,58 @@ template<class T> extern InputHolder<T> * inputHelper (const String & fileName,
 template<class T> extern InputHolder<T> * inputHelper (const String & fileName,               InputHolder<T> * oldHandle = 0);
 #endif
 
+#ifdef n2a_ZLIB
+/**
+    Compresses output on a separate thread, producing a gzip stream as described in ColumnCompression.java.
+    An OutputHolder writes into this buffer through an ordinary ostream. At the end of each row it calls commit().
+    Once enough bytes have accumulated, or enough time has passed, the buffer goes to the worker thread.
+    The worker deflates it and ends with a full flush, so readers can decode everything up to that point
+    while the simulation continues. At most depth buffers wait for the worker, which bounds memory use.
+    Only available when the runtime is built with n2a_ZLIB, which also requires linking with zlib.
+**/
+class OutputCompressor : public std::streambuf
+{
+public:
+    std::ostream *                        sink;
+    bool                                  ownSink;    ///< Indicates that sink should be deleted when done.
+    std::vector<char>                     current;    ///< Buffer currently receiving output.
+    std::deque<std::vector<char>>         queue;      ///< Buffers waiting for the worker.
+    std::vector<std::vector<char>>        spare;      ///< Buffers returned by the worker for reuse.
+    std::mutex                            guard;      ///< Protects queue, spare and done.
+    std::condition_variable               changed;
+    std::thread                           worker;
+    bool                                  done;
+    std::chrono::steady_clock::time_point committed;  ///< When current was last handed off.
+    z_stream                              z;
+
+    static size_t threshold;  ///< Bytes to accumulate before handing off a buffer.
+    static int    interval;   ///< Milliseconds after which a partly-filled buffer is handed off anyway.
+    static size_t depth;      ///< Maximum number of buffers waiting for the worker.
+
+    OutputCompressor (std::ostream * sink, bool ownSink);
+    virtual ~OutputCompressor ();  ///< Compresses all remaining output, ends the stream, then waits for worker to finish.
+
+    void commit ();                                      ///< Marks a row boundary. The only place where current may be handed off.
+    void handOff ();                                     ///< Subroutine of commit() and destructor.
+    void run ();                                         ///< Body of worker thread.
+    void compress (const std::vector<char> & buffer, int flush);  ///< Deflates one buffer and writes the result to sink.
+
+protected:
+    virtual int_type overflow (int_type c);
+    virtual int      sync     ();
+};
+#else
+class OutputCompressor;
+#endif
+
 template<class T>
 class OutputHolder : public Holder
 {
 public:
     bool                                   raw;             ///< Indicates that column is an exact index.
+    bool                                   binary;          ///< Write rows in binary format rather than text. See InputHolder for a description.
+    bool                                   gzip;            ///< Compress the file. Requires a runtime built with n2a_ZLIB.
+    OutputCompressor *                     compressor;      ///< Non-null if output is actually being compressed.
     std::ostream *                         out;
     String                                 columnFileName;
     std::unordered_map<String,int>         columnMap;
@@ -145,8 +262,9 @@ public:
     void trace (T now, const String & column, const Matrix<T> & A,                   const char * mode = 0);
     void trace (T now, T              column, T                 value,               const char * mode = 0);
 #   endif
-    void writeTrace ();
-    void writeModes ();
+    void writeTrace   ();
+    void writeHeaders (const std::vector<String> & headers);
+    void writeModes   ();
 };
 template<class T> extern OutputHolder<T> * outputHelper (const String & fileName, OutputHolder<T> * oldHandle = 0);
 extern void outputClose ();  ///< Close all OutputHolders
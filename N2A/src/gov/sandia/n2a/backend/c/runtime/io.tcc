@@ -7,6 +7,17 @@
 #include <fstream>
 #include <cmath>
 #include <stdlib.h>
+#include <string.h>
+#ifdef _WIN32
+# define WIN32_LEAN_AND_MEAN
+# define NOMINMAX
+# include <windows.h>
+#else
+# include <sys/mman.h>
+# include <sys/stat.h>
+# include <fcntl.h>
+# include <unistd.h>
+#endif
 #ifdef n2a_FP
 #include "runtime.h"   // For Event::exponent
 #include "fixedpoint.h"
@@ -91,19 +102,61 @@ IteratorSparse<T>::next ()
 }
 
 
+#ifdef n2a_FP
+
+inline int
+convert (double d, int exponent)
+{
+    if (d == 0) return 0;
+    if (std::isnan (d)) return NAN;
+    bool negate = d < 0;
+    if (std::isinf (d))
+    {
+        if (negate) return -INFINITY;
+        return              INFINITY;
+    }
+
+    int64_t bits = *(int64_t *) &d;
+    int e = (int) ((bits >> 52) & 0x7FF) - 1023;
+    bits |= 0x10000000000000l;  // set implied msb of mantissa (bit 52) to 1
+    bits &= 0x1FFFFFFFFFFFFFl;  // clear sign and exponent bits
+    if (negate) bits = -bits;
+    return bits >> 52 - FP_MSB + exponent - e;
+}
+
+inline int
+convert (String input, int exponent)
+{
+    return convert (atof (input.c_str ()), exponent);
+}
+
+#endif
+
+
 // MatrixInput ---------------------------------------------------------------
 
 template<class T>
 MatrixInput<T>::MatrixInput (const String & fileName)
 :   Holder (fileName)
 {
-    A = 0;
+    A      = 0;
+    mapped = 0;
 }
 
 template<class T>
 MatrixInput<T>::~MatrixInput ()
 {
     if (A) delete A;
+    if (mapped)
+    {
+#       ifdef _WIN32
+        UnmapViewOfFile (mapped);
+        CloseHandle (mapHandle);
+        CloseHandle (fileHandle);
+#       else
+        munmap ((void *) mapped, mappedSize);
+#       endif
+    }
 }
 
 template<class T>
@@ -111,43 +164,43 @@ T
 MatrixInput<T>::get (T row, T column)
 {
     // Just assume handle is good.
-    int lastRow    = A->rows ()    - 1;
-    int lastColumn = A->columns () - 1;
+    int lastRow    = rows ()    - 1;
+    int lastColumn = columns () - 1;
     row    *= lastRow;
     column *= lastColumn;
     int r = (int) floor (row);
     int c = (int) floor (column);
     if (r < 0)
     {
-        if      (c <  0         ) return (*A)(0,0         );
-        else if (c >= lastColumn) return (*A)(0,lastColumn);
+        if      (c <  0         ) return element (0,0         );
+        else if (c >= lastColumn) return element (0,lastColumn);
         else
         {
             T b = column - c;
-            return (1 - b) * (*A)(0,c) + b * (*A)(0,c+1);
+            return (1 - b) * element (0,c) + b * element (0,c+1);
         }
     }
     else if (r >= lastRow)
     {
-        if      (c <  0         ) return (*A)(lastRow,0         );
-        else if (c >= lastColumn) return (*A)(lastRow,lastColumn);
+        if      (c <  0         ) return element (lastRow,0         );
+        else if (c >= lastColumn) return element (lastRow,lastColumn);
         else
         {
             T b = column - c;
-            return (1 - b) * (*A)(lastRow,c) + b * (*A)(lastRow,c+1);
+            return (1 - b) * element (lastRow,c) + b * element (lastRow,c+1);
         }
     }
     else
     {
         T a = row - r;
         T a1 = 1 - a;
-        if      (c <  0         ) return a1 * (*A)(r,0         ) + a * (*A)(r+1,0         );
-        else if (c >= lastColumn) return a1 * (*A)(r,lastColumn) + a * (*A)(r+1,lastColumn);
+        if      (c <  0         ) return a1 * element (r,0         ) + a * element (r+1,0         );
+        else if (c >= lastColumn) return a1 * element (r,lastColumn) + a * element (r+1,lastColumn);
         else
         {
             T b = column - c;
-            return   (1 - b) * (a1 * (*A)(r,c  ) + a * (*A)(r+1,c  ))
-                   +      b  * (a1 * (*A)(r,c+1) + a * (*A)(r+1,c+1));
+            return   (1 - b) * (a1 * element (r,c  ) + a * element (r+1,c  ))
+                   +      b  * (a1 * element (r,c+1) + a * element (r+1,c+1));
         }
     }
 }
@@ -159,46 +212,46 @@ int
 MatrixInput<int>::get (int row, int column)  // row and column have exponent=0
 {
     // Just assume handle is good.
-    int lastRow    = A->rows ()    - 1;  // exponent=MSB
-    int lastColumn = A->columns () - 1;
+    int lastRow    = rows ()    - 1;  // exponent=MSB
+    int lastColumn = columns () - 1;
     int64_t scaledRow    = row    * lastRow;   // raw exponent = 0+MSB-MSB = 0
     int64_t scaledColumn = column * lastColumn;
     int r = scaledRow    >> FP_MSB;  // to turn raw result into integer, shift = 0-MSB = -MSB
     int c = scaledColumn >> FP_MSB;
     if (r < 0)
     {
-        if      (c <  0         ) return (*A)(0,0         );
-        else if (c >= lastColumn) return (*A)(0,lastColumn);
+        if      (c <  0         ) return element (0,0         );
+        else if (c >= lastColumn) return element (0,lastColumn);
         else
         {
             int b = scaledColumn & 0x3FFFFFFF;  // fractional part, with exponent = 0 (same as raw exponent)
             int b1 = (1 << FP_MSB) - b;
-            return (int64_t) b1 * (*A)(0,c) + (int64_t) b * (*A)(0,c+1) >> FP_MSB;
+            return (int64_t) b1 * element (0,c) + (int64_t) b * element (0,c+1) >> FP_MSB;
         }
     }
     else if (r >= lastRow)
     {
-        if      (c <  0         ) return (*A)(lastRow,0         );
-        else if (c >= lastColumn) return (*A)(lastRow,lastColumn);
+        if      (c <  0         ) return element (lastRow,0         );
+        else if (c >= lastColumn) return element (lastRow,lastColumn);
         else
         {
             int b = scaledColumn & 0x3FFFFFFF;
             int b1 = (1 << FP_MSB) - b;
-            return (int64_t) b1 * (*A)(lastRow,c) + (int64_t) b * (*A)(lastRow,c+1) >> FP_MSB;
+            return (int64_t) b1 * element (lastRow,c) + (int64_t) b * element (lastRow,c+1) >> FP_MSB;
         }
     }
     else
     {
         int a = scaledRow & 0x3FFFFFFF;
         int a1 = (1 << FP_MSB) - a;
-        if      (c <  0         ) return (int64_t) a1 * (*A)(r,0         ) + (int64_t) a * (*A)(r+1,0         ) >> FP_MSB;
-        else if (c >= lastColumn) return (int64_t) a1 * (*A)(r,lastColumn) + (int64_t) a * (*A)(r+1,lastColumn) >> FP_MSB;
+        if      (c <  0         ) return (int64_t) a1 * element (r,0         ) + (int64_t) a * element (r+1,0         ) >> FP_MSB;
+        else if (c >= lastColumn) return (int64_t) a1 * element (r,lastColumn) + (int64_t) a * element (r+1,lastColumn) >> FP_MSB;
         else
         {
             int b = scaledColumn & 0x3FFFFFFF;
             int b1 = (1 << FP_MSB) - b;
-            return   b1 * ((int64_t) a1 * (*A)(r,c  ) + (int64_t) a * (*A)(r+1,c  ) >> FP_MSB)
-                   + b  * ((int64_t) a1 * (*A)(r,c+1) + (int64_t) a * (*A)(r+1,c+1) >> FP_MSB) >> FP_MSB;
+            return   b1 * ((int64_t) a1 * element (r,c  ) + (int64_t) a * element (r+1,c  ) >> FP_MSB)
+                   + b  * ((int64_t) a1 * element (r,c+1) + (int64_t) a * element (r+1,c+1) >> FP_MSB) >> FP_MSB;
         }
     }
 }
@@ -209,21 +262,22 @@ template<class T>
 T
 MatrixInput<T>::getRaw (T row, T column)
 {
-    int rows = A->rows ();
-    int cols = A->columns ();
+    int rows = this->rows ();
+    int cols = columns ();
     int r = (int) row;
     int c = (int) column;
     if      (r <  0   ) r = 0;
     else if (r >= rows) r = rows - 1;
     if      (c <  0   ) c = 0;
     else if (c >= cols) c = cols - 1;
-    return (*A)(r,c);
+    return element (r,c);
 }
 
 template<class T>
 int
 MatrixInput<T>::rows ()
 {
+    if (mapped) return rows_;
     return A->rows ();
 }
 
@@ -231,6 +285,7 @@ template<class T>
 int
 MatrixInput<T>::columns ()
 {
+    if (mapped) return columns_;
     return A->columns ();
 }
 
@@ -238,34 +293,150 @@ template<class T>
 IteratorNonzero<T> *
 MatrixInput<T>::getIterator ()
 {
+    if (mapped) return new IteratorMapped<T> (this);
     if (A->classID () & MatrixSparseID) return new IteratorSparse<T> ((MatrixSparse<T> *) A);
     return new IteratorSkip<T> ((Matrix<T> *) A);
 }
 
-#ifdef n2a_FP
+template<class T>
+bool
+MatrixInput<T>::map ()
+{
+    // Check magic before committing to a mapping.
+    {
+        std::ifstream ifs (fileName.c_str (), std::ios::binary);
+        char magic[4];
+        ifs.read (magic, 4);
+        if (ifs.gcount () < 4  ||  memcmp (magic, "N2AM", 4)) return false;
+    }
 
-inline int
-convert (String input, int exponent)
+#   ifdef _WIN32
+    fileHandle = CreateFileA (fileName.c_str (), GENERIC_READ, FILE_SHARE_READ, 0, OPEN_EXISTING, FILE_ATTRIBUTE_NORMAL, 0);
+    if (fileHandle == INVALID_HANDLE_VALUE) return false;
+    LARGE_INTEGER size;
+    GetFileSizeEx (fileHandle, &size);
+    mappedSize = size.QuadPart;
+    mapHandle = CreateFileMappingA (fileHandle, 0, PAGE_READONLY, 0, 0, 0);
+    if (mapHandle) mapped = (const char *) MapViewOfFile (mapHandle, FILE_MAP_READ, 0, 0, 0);
+    if (! mapped)
+    {
+        if (mapHandle) CloseHandle (mapHandle);
+        CloseHandle (fileHandle);
+        return false;
+    }
+#   else
+    int fd = ::open (fileName.c_str (), O_RDONLY);
+    if (fd < 0) return false;
+    struct stat info;
+    fstat (fd, &info);
+    mappedSize = info.st_size;
+    void * address = mmap (0, mappedSize, PROT_READ, MAP_SHARED, fd, 0);
+    ::close (fd);  // The mapping remains valid after the descriptor is closed.
+    if (address == MAP_FAILED) return false;
+    mapped = (const char *) address;
+#   endif
+
+    layout   = *(const int32_t *) (mapped +  8);
+    rows_    = *(const int32_t *) (mapped + 12);
+    columns_ = *(const int32_t *) (mapped + 16);
+    start    =  (const int64_t *) (mapped + 32);
+    entries  = mapped + 32 + 8 * ((int64_t) columns_ + 1);
+    return true;
+}
+
+template<class T>
+T
+MatrixInput<T>::element (int row, int column)
 {
-    const double d = atof (input.c_str ());
-    if (d == 0) return 0;
-    if (std::isnan (d)) return NAN;
-    bool negate = d < 0;
-    if (std::isinf (d))
+    if (! mapped) return (*A)(row,column);
+
+    double value;
+    if (layout == 0)
     {
-        if (negate) return -INFINITY;
-        return              INFINITY;
+        value = ((const double *) (mapped + 32))[(int64_t) column * rows_ + row];
+    }
+    else if (layout == 1)
+    {
+        value = ((const double *) (mapped + 32))[(int64_t) row * columns_ + column];
+    }
+    else  // Binary search for row within column. Entries are 16 bytes: int32 row, int32 reserved, double value.
+    {
+        value = 0;
+        int64_t lo = start[column];
+        int64_t hi = start[column+1] - 1;
+        while (lo <= hi)
+        {
+            int64_t mid = (lo + hi) / 2;
+            const char * e = entries + mid * 16;
+            int r = *(const int32_t *) e;
+            if      (r < row) lo = mid + 1;
+            else if (r > row) hi = mid - 1;
+            else
+            {
+                value = *(const double *) (e + 8);
+                break;
+            }
+        }
     }
+#   ifdef n2a_FP
+    return convert (value, exponent);
+#   else
+    return (T) value;
+#   endif
+}
 
-    int64_t bits = *(int64_t *) &d;
-    int e = (int) ((bits >> 52) & 0x7FF) - 1023;
-    bits |= 0x10000000000000l;  // set implied msb of mantissa (bit 52) to 1
-    bits &= 0x1FFFFFFFFFFFFFl;  // clear sign and exponent bits
-    if (negate) bits = -bits;
-    return bits >> 52 - FP_MSB + exponent - e;
+
+// class IteratorMapped ------------------------------------------------------
+
+template<class T>
+IteratorMapped<T>::IteratorMapped (MatrixInput<T> * A)
+:   A (A)
+{
+    this->row    = -1;
+    this->column = 0;
+    this->value  = 0;
+
+    index      = 0;
+    end        = 0;
+    nextColumn = 0;
 }
 
-#endif
+template<class T>
+bool
+IteratorMapped<T>::next ()
+{
+    if (A->layout == 2)
+    {
+        while (index >= end)
+        {
+            if (nextColumn >= A->columns_) return false;
+            end = A->start[++nextColumn];
+        }
+        this->column = nextColumn - 1;
+        const char * e = A->entries + index++ * 16;
+        this->row = *(const int32_t *) e;
+        double v  = *(const double *) (e + 8);
+#       ifdef n2a_FP
+        this->value = convert (v, A->exponent);
+#       else
+        this->value = (T) v;
+#       endif
+        return true;
+    }
+
+    // Dense, so skip zeros.
+    while (this->column < A->columns_)
+    {
+        while (++this->row < A->rows_)
+        {
+            this->value = A->element (this->row, this->column);
+            if (this->value != 0) return true;
+        }
+        this->row = -1;
+        this->column++;
+    }
+    return false;
+}
 
 std::vector<Holder *> matrixMap;
 
@@ -282,6 +453,10 @@ matrixHelper (const String & fileName,               MatrixInput<T> * oldHandle)
     {
         handle = new MatrixInput<T> (fileName);
         matrixMap.push_back (handle);
+#       ifdef n2a_FP
+        handle->exponent = exponent;
+#       endif
+        if (handle->map ()) return handle;
 
         std::ifstream ifs (fileName.c_str ());
         if (! ifs.good ()) std::cerr << "Failed to open matrix file: " << fileName << std::endl;
@@ -442,10 +617,107 @@ matrixHelper (const String & fileName,               MatrixInput<T> * oldHandle)
 
 // InputHolder ---------------------------------------------------------------
 
+/**
+    Converts a decimal number directly from a range of characters.
+    Handles the common forms with a single exact multiply or divide, which gives a correctly rounded result.
+    Anything else, including numbers which can't be converted exactly that way, goes through strtod().
+**/
+inline double
+parseDouble (const char * start, const char * end)
+{
+    static const double powers[] = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    const char * i = start;
+    bool negative = false;
+    if      (*i == '-') {negative = true; i++;}
+    else if (*i == '+') i++;
+
+    int64_t mantissa = 0;
+    int     digits   = 0;  // significant digits in mantissa
+    int     exponent = 0;
+    bool    found    = false;
+    bool    exact    = true;
+    for (; i < end; i++)
+    {
+        int d = *i - '0';
+        if (d < 0  ||  d > 9) break;
+        found = true;
+        if (digits < 18)
+        {
+            mantissa = mantissa * 10 + d;
+            if (mantissa) digits++;
+        }
+        else
+        {
+            exponent++;
+            if (d) exact = false;
+        }
+    }
+    if (i < end  &&  *i == '.')
+    {
+        for (i++; i < end; i++)
+        {
+            int d = *i - '0';
+            if (d < 0  ||  d > 9) break;
+            found = true;
+            if (digits < 18)
+            {
+                mantissa = mantissa * 10 + d;
+                if (mantissa) digits++;
+                exponent--;
+            }
+            else if (d) exact = false;
+        }
+    }
+    if (found  &&  i < end  &&  (*i == 'e'  ||  *i == 'E'))
+    {
+        i++;
+        bool negativeExponent = false;
+        if (i < end)
+        {
+            if      (*i == '-') {negativeExponent = true; i++;}
+            else if (*i == '+') i++;
+        }
+        int e = 0;
+        bool foundExponent = false;
+        for (; i < end; i++)
+        {
+            int d = *i - '0';
+            if (d < 0  ||  d > 9) break;
+            foundExponent = true;
+            if (e < 100000) e = e * 10 + d;
+        }
+        if (! foundExponent) found = false;
+        if (negativeExponent) exponent -= e;
+        else                  exponent += e;
+    }
+
+    if (found  &&  i == end  &&  exact)
+    {
+        double result;
+        if (mantissa == 0) result = 0;
+        else if (mantissa < (int64_t) 1 << 53  &&  exponent >= -22  &&  exponent <= 22)
+        {
+            if (exponent < 0) result = mantissa / powers[-exponent];
+            else              result = mantissa * powers[exponent];
+        }
+        else return atof (String (start, end - start).c_str ());
+        return negative ? -result : result;
+    }
+    return atof (String (start, end - start).c_str ());
+}
+
 template<class T>
 InputHolder<T>::InputHolder (const String & fileName)
 :   Holder (fileName)
 {
+    capacity         = 1 << 20;
+    buffer           = (char *) malloc (capacity);
+    position         = 0;
+    limit            = 0;
+    started          = false;
+    binary           = false;
+    eof              = false;
     currentLine      = -1;
     currentValues    = new T[1];
     currentValues[0] = (T) 0;
@@ -464,105 +736,271 @@ InputHolder<T>::InputHolder (const String & fileName)
 #   endif
 
     if (fileName.empty ()) in = &std::cin;
-    else                   in = new std::ifstream (fileName.c_str ());
+    else                   in = new std::ifstream (fileName.c_str (), std::ios::binary);  // Line endings are handled by readText().
 }
 
 template<class T>
 InputHolder<T>::~InputHolder ()
 {
     if (in  &&  in != &std::cin) delete in;
+    if (buffer       ) free (buffer);
     if (currentValues) delete[] currentValues;
     if (nextValues   ) delete[] nextValues;
 }
 
+template<class T>
+bool
+InputHolder<T>::fill ()
+{
+    if (eof) return false;
+
+    int leftover = limit - position;
+    if (position > 0)
+    {
+        memmove (buffer, buffer + position, leftover);
+        position = 0;
+        limit    = leftover;
+    }
+    if (limit == capacity)  // Unusually long row, so grow buffer.
+    {
+        capacity *= 2;
+        buffer = (char *) realloc (buffer, capacity);
+    }
+
+    if (in == &std::cin)  // Interactive stream, so only wait for one line at a time.
+    {
+        String line;
+        getline (*in, line);
+        if (! in->good ()  &&  line.empty ())
+        {
+            eof = true;
+            return false;
+        }
+        int needed = line.size () + 1;
+        while (limit + needed > capacity)
+        {
+            capacity *= 2;
+            buffer = (char *) realloc (buffer, capacity);
+        }
+        memcpy (buffer + limit, line.c_str (), line.size ());
+        limit += needed;
+        buffer[limit-1] = '\n';
+        return true;
+    }
+
+    in->read (buffer + limit, capacity - limit);
+    int received = in->gcount ();
+    limit += received;
+    if (received == 0)
+    {
+        eof = true;
+        return false;
+    }
+    return true;
+}
+
+template<class T>
+bool
+InputHolder<T>::ensure (int n)
+{
+    while (limit - position < n) if (! fill ()) return false;
+    return true;
+}
+
 template<class T>
 void
-InputHolder<T>::getRow (T row)
+InputHolder<T>::resize (int count)
+{
+    columnCount = std::max (columnCount, count);
+    if (nextCount < columnCount)
+    {
+        if (nextValues) delete[] nextValues;
+        nextValues = new T[columnCount];
+        nextCount = columnCount;
+    }
+}
+
+template<class T>
+T
+InputHolder<T>::parseValue (const char * start, const char * end, int index)
+{
+    if (end == start) return 0;
+#   ifdef n2a_FP
+    if (time  &&  timeColumnSet  &&  index == timeColumn) return ::convert (parseDouble (start, end), Event<T>::exponent);
+    return ::convert (parseDouble (start, end), exponent);
+#   else
+    return (T) parseDouble (start, end);
+#   endif
+}
+
+template<class T>
+int
+InputHolder<T>::readText ()
 {
     while (true)
     {
-        // Read and process next line
-        if (nextLine < 0  &&  in->good ())
+        // Find end of line
+        int end = position;
+        while (true)
         {
-            String line;
-            getline (*in, line);
-            if (! line.empty ())
+            char * found = (char *) memchr (buffer + end, '\n', limit - end);
+            if (found)
+            {
+                end = found - buffer;
+                break;
+            }
+            int scanned = limit - position;
+            if (! fill ())
             {
-                int tempCount = 1;
-                for (auto it : line) if (it == ' '  ||  it == '\t') tempCount++;
-                columnCount = std::max (columnCount, tempCount);
+                if (position == limit) return 0;
+                end = limit;  // The final line of the file has no newline.
+                break;
+            }
+            end = position + scanned;  // fill() may have moved the data.
+        }
+        int start = position;
+        position = std::min (end + 1, limit);
+        if (end > start  &&  buffer[end-1] == '\r') end--;
+        if (end == start) continue;  // Skip blank line.
 
-                // Decide whether this is a header row or a value row
-                char firstCharacter = line[0];
-                if (firstCharacter < '-'  ||  firstCharacter == '/'  ||  firstCharacter > '9')  // not a number, so must be column header
-                {
-                    // Add any column headers. Generally, these will only be new headers as of this cycle.
-                    int index = 0;
-                    int i = 0;
-                    int end = line.size ();
-                    while (i < end)
-                    {
-                        int j = line.find_first_of (" \t", i);
-                        if (j == String::npos) j = end;
-                        if (j > i) columnMap.emplace (line.substr (i, j - i), index);
-                        i = j + 1;
-                        index++;
-                    }
+        int tempCount = 1;
+        for (int i = start; i < end; i++) if (buffer[i] == ' '  ||  buffer[i] == '\t') tempCount++;
 
-                    // Select time column
-                    if (time  &&  ! timeColumnSet)
-                    {
-                        int timeMatch = 0;
-                        for (auto it : columnMap)
-                        {
-                            int potentialMatch = 0;
-                            if      (it.first == "t"   ) potentialMatch = 1;
-                            else if (it.first == "TIME") potentialMatch = 2;
-                            else if (it.first == "$t"  ) potentialMatch = 3;
-                            if (potentialMatch > timeMatch)
-                            {
-                                timeMatch = potentialMatch;
-                                timeColumn = it.second;
-                            }
-                        }
-                        timeColumnSet = true;
-                    }
+        // Decide whether this is a header row or a value row
+        char firstCharacter = buffer[start];
+        if (firstCharacter < '-'  ||  firstCharacter == '/'  ||  firstCharacter > '9')  // not a number, so must be column header
+        {
+            columnCount = std::max (columnCount, tempCount);
 
-                    continue;  // back to top of outer while loop, skipping any other processing below
-                }
+            // Add any column headers. Generally, these will only be new headers as of this cycle.
+            int index = 0;
+            int i = start;
+            for (int j = start; j <= end; j++)
+            {
+                if (j < end  &&  buffer[j] != ' '  &&  buffer[j] != '\t') continue;
+                if (j > i) columnMap.emplace (String (buffer + i, j - i), index);
+                i = j + 1;
+                index++;
+            }
+            return 1;
+        }
+
+        resize (tempCount);
+        int index = 0;
+        int i = start;
+        for (int j = start; j <= end; j++)
+        {
+            if (j < end  &&  buffer[j] != ' '  &&  buffer[j] != '\t') continue;
+            nextValues[index] = parseValue (buffer + i, buffer + j, index);
+            i = j + 1;
+            index++;
+        }
+        for (; index < columnCount; index++) nextValues[index] = 0;
+        return 2;
+    }
+}
+
+template<class T>
+int
+InputHolder<T>::readBinary ()
+{
+    // Assumes a little-endian host, which covers every platform we currently target.
+    if (! ensure (4)) return 0;
+    int32_t n;
+    memcpy (&n, buffer + position, 4);
+    if (n >= 0)
+    {
+        if (! ensure (4 + 4 * n)) return 0;
+        resize (n);
+        float * values = (float *) (buffer + position + 4);
+        int index = 0;
+        for (; index < n; index++)
+        {
+            float value;
+            memcpy (&value, values + index, 4);
+            if (std::isnan (value)) nextValues[index] = 0;
+#           ifdef n2a_FP
+            else if (time  &&  timeColumnSet  &&  index == timeColumn) nextValues[index] = ::convert (value, Event<T>::exponent);
+            else                                                       nextValues[index] = ::convert (value, exponent);
+#           else
+            else nextValues[index] = (T) value;
+#           endif
+        }
+        for (; index < columnCount; index++) nextValues[index] = 0;
+        position += 4 + 4 * n;
+        return 2;
+    }
 
-                if (nextCount < columnCount)
+    // Headers are variable length, so make sure the whole record is present before consuming anything.
+    n = -n;
+    int length = 4;
+    for (int c = 0; c < n; c++)
+    {
+        if (! ensure (length + 4)) return 0;
+        int32_t size;
+        memcpy (&size, buffer + position + length, 4);
+        length += 4 + size;
+        if (! ensure (length)) return 0;
+    }
+    columnCount = std::max (columnCount, (int) n);
+    int p = position + 4;
+    for (int c = 0; c < n; c++)
+    {
+        int32_t size;
+        memcpy (&size, buffer + p, 4);
+        if (size > 0) columnMap.emplace (String (buffer + p + 4, size), c);
+        p += 4 + size;
+    }
+    position = p;
+    return 1;
+}
+
+template<class T>
+void
+InputHolder<T>::getRow (T row)
+{
+    while (true)
+    {
+        // Read and process next row
+        if (nextLine < 0)
+        {
+            if (! started  &&  (ensure (4)  ||  eof))
+            {
+                started = true;
+                binary = limit - position >= 4  &&  memcmp (buffer + position, "N2AB", 4) == 0;
+                if (binary)
                 {
-                    if (nextValues) delete[] nextValues;
-                    nextValues = new T[columnCount];
-                    nextCount = columnCount;
+                    if (ensure (8)) position += 8;  // We only know one version, so no need to check it.
+                    else            position = limit;
                 }
-                int index = 0;
-                int i = 0;
-                for (; index < tempCount; index++)
+            }
+
+            int type = 0;
+            if (started) type = binary ? readBinary () : readText ();
+            if (type == 1)
+            {
+                // Select time column
+                if (time  &&  ! timeColumnSet)
                 {
-                    int j = line.find_first_of (" \t", i);
-                    if (j == String::npos) j = line.size ();
-#                   ifdef n2a_FP
-                    if (j > i)
+                    int timeMatch = 0;
+                    for (auto it : columnMap)
                     {
-                        if (time  &&  timeColumnSet  &&  index == timeColumn)
+                        int potentialMatch = 0;
+                        if      (it.first == "t"   ) potentialMatch = 1;
+                        else if (it.first == "TIME") potentialMatch = 2;
+                        else if (it.first == "$t"  ) potentialMatch = 3;
+                        if (potentialMatch > timeMatch)
                         {
-                            nextValues[index] = convert (line.substr (i, j - i), Event<T>::exponent);
-                        }
-                        else
-                        {
-                            nextValues[index] = convert (line.substr (i, j - i), exponent);
+                            timeMatch = potentialMatch;
+                            timeColumn = it.second;
                         }
                     }
-#                   else
-                    if (j > i) nextValues[index] = (T) atof (line.substr (i, j - i).c_str ());
-#                   endif
-                    else       nextValues[index] = 0;
-                    i = j + 1;
+                    timeColumnSet = true;
                 }
-                for (; index < columnCount; index++) nextValues[index] = 0;
-
+                continue;  // back to top of outer while loop, skipping any other processing below
+            }
+            if (type == 2)
+            {
                 if (time) nextLine = nextValues[timeColumn];
                 else      nextLine = currentLine + 1;
             }
@@ -712,6 +1150,9 @@ OutputHolder<T>::OutputHolder (const String & fileName)
     traceReceived   = false;
     t               = 0;
     raw             = false;
+    binary          = false;
+    gzip            = false;
+    compressor      = 0;
 
     if (fileName.empty ())
     {
@@ -732,6 +1173,14 @@ OutputHolder<T>::~OutputHolder ()
     {
         writeTrace ();
         out->flush ();
+#       ifdef n2a_ZLIB
+        if (compressor)
+        {
+            delete out;  // Only the ostream wrapper. compressor owns the actual stream.
+            delete compressor;
+        }
+        else
+#       endif
         if (out != &std::cout) delete out;
 
         writeModes ();
@@ -941,6 +1390,38 @@ OutputHolder<T>::writeTrace ()
     const int count = columnValues.size ();
     const int last  = count - 1;
 
+    if (columnsPrevious == 0)  // First write, so start the file.
+    {
+        // Nothing has been written yet, so safe to reopen without text-mode translation.
+        if (gzip)
+        {
+#           ifdef n2a_ZLIB
+            std::ostream * sink = out;
+            if (out != &std::cout)
+            {
+                delete out;
+                sink = new std::ofstream (fileName.c_str (), std::ios::binary);
+            }
+            compressor = new OutputCompressor (sink, sink != &std::cout);
+            out = new std::ostream (compressor);
+#           else
+            std::cerr << "WARNING: Runtime built without zlib, so output is not compressed." << std::endl;
+            gzip = false;
+#           endif
+        }
+        if (binary  &&  ! compressor  &&  out != &std::cout)
+        {
+            delete out;
+            out = new std::ofstream (fileName.c_str (), std::ios::binary);
+        }
+        if (binary)
+        {
+            int32_t version = 1;
+            out->write ("N2AB", 4);
+            out->write ((char *) &version, 4);
+        }
+    }
+
     // Write headers if new columns have been added
     if (count > columnsPrevious)
     {
@@ -949,38 +1430,74 @@ OutputHolder<T>::writeTrace ()
             std::vector<String> headers (count);
             for (auto it : columnMap) headers[it.second] = it.first;
 
-            (*out) << headers[0];  // Should be $t
-            int i = 1;
-            for (; i < columnsPrevious; i++)
+            if (binary)
             {
-                (*out) << "\t";
+                writeHeaders (headers);
             }
-            for (; i < count; i++)
+            else
             {
-                (*out) << "\t";
-                String header (headers[i]);  // deep copy
-                header.replace_all (' ', '_');
-                (*out) << header;
+                (*out) << headers[0];  // Should be $t
+                int i = 1;
+                for (; i < columnsPrevious; i++)
+                {
+                    (*out) << "\t";
+                }
+                for (; i < count; i++)
+                {
+                    (*out) << "\t";
+                    String header (headers[i]);  // deep copy
+                    header.replace_all (' ', '_');
+                    (*out) << header;
+                }
+                (*out) << std::endl;
             }
-            (*out) << std::endl;
         }
         columnsPrevious = count;
         writeModes ();
     }
 
     // Write values
-    for (int i = 0; i <= last; i++)
+    if (binary)
+    {
+        // Assumes a little-endian host, the same as InputHolder::readBinary().
+        int32_t n = count;
+        out->write ((char *) &n, 4);
+        out->write ((char *) columnValues.data (), 4 * count);
+        for (auto & c : columnValues) c = NAN;
+    }
+    else
     {
-        float & c = columnValues[i];
-        if (! std::isnan (c)) (*out) << c;
-        if (i < last) (*out) << "\t";
-        c = NAN;
+        for (int i = 0; i <= last; i++)
+        {
+            float & c = columnValues[i];
+            if (! std::isnan (c)) (*out) << c;
+            if (i < last) (*out) << "\t";
+            c = NAN;
+        }
+        (*out) << std::endl;
     }
-    (*out) << std::endl;
 
+#   ifdef n2a_ZLIB
+    if (compressor) compressor->commit ();
+#   endif
     traceReceived = false;
 }
 
+template<class T>
+void
+OutputHolder<T>::writeHeaders (const std::vector<String> & headers)
+{
+    int32_t n = -(int32_t) headers.size ();
+    out->write ((char *) &n, 4);
+    for (auto h : headers)  // copy, so we can modify it
+    {
+        h.replace_all (' ', '_');
+        int32_t size = h.size ();
+        out->write ((char *) &size, 4);
+        if (size) out->write (h.c_str (), size);
+    }
+}
+
 template<class T>
 void
 OutputHolder<T>::writeModes ()
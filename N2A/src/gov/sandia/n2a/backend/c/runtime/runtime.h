@@ -586,21 +586,29 @@ public:
     virtual void visit (std::function<void (Visitor<T> * visitor)> f);
 };
 
-// TODO: This implementation using std::map is quite inefficient in both memory and time.
-// If we can assume constant delay and constant dt, then a fixed-size ring buffer would be best.
-// Maybe we can have two implementations: one general and one efficient. The code generator
-// could choose between them based on whether the above conditions are met.
+/**
+    Holds values in flight for delay(). In the common case, where the delay is constant and a whole number
+    of time steps, values are kept in a ring that holds exactly one value per step. If either condition
+    is ever violated, the buffer switches permanently to a map keyed by release time, which can handle
+    any pattern of delays and step sizes.
+**/
 template<class T>
 class DelayBuffer
 {
 public:
-    T             value;
-    std::map<T,T> buffer;
+    T              value;
+    std::vector<T> ring;    ///< Values in flight, oldest at head once full. While filling, values are simply appended.
+    int            head;
+    int            steps;   ///< Delay as a count of time steps. -1 before first call. -2 if using map.
+    T              delay;   ///< Value used to compute steps.
+    T              dt;      ///< Step size used to compute steps.
+    T              last;    ///< Time of most recent call.
+    std::map<T,T>  buffer;  ///< General case, keyed by release time.
 
     DelayBuffer ();
 
-    T step (T now, T delay, T value, T initialValue);
+    T    step  (T now, T delay, T value, T initialValue);
+    void toMap ();  ///< Moves contents of ring into buffer.
 };
 
-
 #endif
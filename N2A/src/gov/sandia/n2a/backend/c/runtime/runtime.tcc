@@ -1731,6 +1731,11 @@ template<class T>
 DelayBuffer<T>::DelayBuffer ()
 {
     value = NAN;
+    head  = 0;
+    steps = -1;
+    delay = 0;
+    dt    = 0;
+    last  = 0;
 }
 
 template<class T>
@@ -1738,17 +1743,87 @@ T
 DelayBuffer<T>::step (T now, T delay, T futureValue, T initialValue)
 {
     if (n2a::isnan (value)) value = initialValue;
-    buffer.emplace (now + delay, futureValue);
-    while (true)
+
+    if (steps == -1)  // first call
+    {
+        steps = -2;
+        Event<T> * event = Simulator<T>::instance.currentEvent;
+        if (event->isStep ())
+        {
+            T dt = ((EventStep<T> *) event)->dt;
+            if (dt > 0  &&  delay >= 0)
+            {
+#               ifdef n2a_FP
+                // delay and dt have the same exponent, so their ratio is a pure integer.
+                int k = delay / dt;
+                if (k * dt == delay) steps = k;
+#               else
+                T k = round (delay / dt);
+                if (k < INT_MAX  &&  fabs (k * dt - delay) <= dt * (T) 1e-6) steps = (int) k;
+#               endif
+                this->delay = delay;
+                this->dt    = dt;
+            }
+        }
+    }
+    else if (steps >= 0)
     {
-        typename std::map<T,T>::iterator it = buffer.begin ();
-        if (it->first > now) break;
-        value = it->second;
-        buffer.erase (it);
-        if (buffer.empty ()) break;
+#       ifdef n2a_FP
+        bool regular = now == last  ||  now - last == dt;
+#       else
+        bool regular = now == last  ||  fabs (now - last - dt) <= dt * (T) 1e-6;
+#       endif
+        if (delay != this->delay  ||  ! regular) toMap ();
+    }
+
+    if (steps < 0)
+    {
+        buffer[now + delay] = futureValue;
+        while (true)
+        {
+            typename std::map<T,T>::iterator it = buffer.begin ();
+            if (it->first > now) break;
+            value = it->second;
+            buffer.erase (it);
+            if (buffer.empty ()) break;
+        }
     }
+    else if (steps == 0)
+    {
+        value = futureValue;
+    }
+    else if (now == last  &&  ! ring.empty ())  // Called again in the same cycle, so replace the newest value, the same as the map would.
+    {
+        if ((int) ring.size () < steps) ring.back () = futureValue;
+        else                            ring[(head + steps - 1) % steps] = futureValue;
+    }
+    else if ((int) ring.size () < steps)
+    {
+        ring.push_back (futureValue);
+    }
+    else
+    {
+        value = ring[head];
+        ring[head] = futureValue;
+        if (++head == steps) head = 0;
+    }
+    last = now;
     return value;
 }
 
+template<class T>
+void
+DelayBuffer<T>::toMap ()
+{
+    int count = ring.size ();
+    for (int i = 0; i < count; i++)
+    {
+        int age = count - 1 - i;  // steps since value was stored
+        buffer[last - age * dt + delay] = ring[(head + i) % count];
+    }
+    ring.clear ();
+    ring.shrink_to_fit ();
+    steps = -2;
+}
 
 #endif
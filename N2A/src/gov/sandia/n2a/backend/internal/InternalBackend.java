@@ -15,6 +15,7 @@ import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
 
 public class InternalBackend extends Backend
 {
@@ -32,10 +33,25 @@ public class InternalBackend extends Backend
         simulationThread.start ();
     }
 
+    @Override
+    public Sweep prepareSweep (MNode job, List<String[]> keyPaths)
+    {
+        try
+        {
+            return new InternalSweep (job, keyPaths);
+        }
+        catch (Exception e)
+        {
+            return null;  // Not eligible, so each sample will be digested separately.
+        }
+    }
+
     @SuppressWarnings("deprecation")
     @Override
     public void kill (MNode job, boolean force)
     {
+        if (InternalSweep.kill (job)) return;
+
         Thread[] threads = new Thread[Thread.activeCount ()];
         int count = Thread.enumerate (threads);
         for (int i = 0; i < count; i++)
@@ -52,6 +68,33 @@ public class InternalBackend extends Backend
         }
     }
 
+    @Override
+    public void kill (List<MNode> jobs, boolean force)
+    {
+        for (MNode job : jobs) kill (job, force);
+    }
+
+    /**
+        Applies the event-ordering option in the job metadata.
+    **/
+    public static void configureEvents (Simulator simulator, MNode job)
+    {
+        String e = job.get ("$metadata", "backend", "all", "event");
+        switch (e)
+        {
+            case "before":
+                simulator.during    = false;
+                simulator.sortEvent = -1;
+                break;
+            case "after":
+                simulator.during    = false;
+                simulator.sortEvent = 1;
+            default:  // during
+                simulator.during    = true;  // Use latch-type spike events.
+                simulator.sortEvent = -1;  // Spike events come before step events, so that latches can be set before update() is called.
+        }
+    }
+
     public class SimulationThread extends Thread
     {
         MNode job;
@@ -90,24 +133,10 @@ public class InternalBackend extends Backend
                 }
 
                 simulator = new Simulator (new Wrapper (digestedModel), seed, jobDir);
-                String e = job.get ("$metadata", "backend", "all", "event");
-                switch (e)
-                {
-                    case "before":
-                        simulator.during    = false;
-                        simulator.sortEvent = -1;
-                        break;
-                    case "after":
-                        simulator.during    = false;
-                        simulator.sortEvent = 1;
-                    default:  // during
-                        simulator.during    = true;  // Use latch-type spike events.
-                        simulator.sortEvent = -1;  // Spike events come before step events, so that latches can be set before update() is called.
-                }
+                configureEvents (simulator, job);
 
                 elapsedTime = System.nanoTime ();
-                simulator.init ();
-                simulator.run ();  // Does not return until simulation is finished.
+                simulator.simulate ();
                 elapsedTime = System.nanoTime () - elapsedTime;
                 if (simulator.stop) Files.copy (new ByteArrayInputStream ("killed" .getBytes ("UTF-8")), jobDir.resolve ("finished"));
                 else                Files.copy (new ByteArrayInputStream ("success".getBytes ("UTF-8")), jobDir.resolve ("finished"));
@@ -132,6 +161,12 @@ public class InternalBackend extends Backend
         }
     }
 
+    @Override
+    public String progressFile (MNode job)
+    {
+        return null;  // Progress comes directly from the simulation thread. See currentSimTime(MNode).
+    }
+
     @Override
     public double currentSimTime (MNode job)
     {
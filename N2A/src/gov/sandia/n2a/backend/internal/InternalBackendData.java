@@ -758,11 +758,8 @@ public class InternalBackendData
                         if (op instanceof Output)
                         {
                             Output o = (Output) op;
-                            if (! o.hasColumnName)
-                            {
-                                o.index = countGlobalObject++;
-                                namesGlobalObject.add ("columnName" + o.index);
-                            }
+                            o.index = countGlobalObject++;
+                            namesGlobalObject.add ("columnName" + o.index);
                             return true;  // Continue descent, because parameters of output() may contain variable references
                         }
                         return true;
@@ -814,11 +811,8 @@ public class InternalBackendData
                         if (op instanceof Output)
                         {
                             Output o = (Output) op;
-                            if (! o.hasColumnName)
-                            {
-                                o.index = countLocalObject++;
-                                namesLocalObject.add ("columnName" + o.index);
-                            }
+                            o.index = countLocalObject++;
+                            namesLocalObject.add ("columnName" + o.index);
                             return true;  // Continue descent, because parameters of output() may contain variable references
                         }
                         return true;
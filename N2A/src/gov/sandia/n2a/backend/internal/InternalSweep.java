@@ -0,0 +1,241 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.backend.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.eqset.EquationEntry;
+import gov.sandia.n2a.eqset.EquationSet;
+import gov.sandia.n2a.eqset.Variable;
+import gov.sandia.n2a.language.Constant;
+import gov.sandia.n2a.language.Operator;
+import gov.sandia.n2a.language.type.Scalar;
+import gov.sandia.n2a.plugins.extpoints.Backend;
+
+/**
+    Runs the samples of a sweep in this JVM, all sharing a single digested model.
+    Each varied variable must be a plain scalar constant. Before digestion, its expression is
+    replaced by a SweepParameter, which prevents the value from being folded into other expressions.
+    Each sample then runs on its own Simulator, which supplies that sample's values.
+    Samples execute on a pool of threads, one per processor. Outputs go to each job's own directory,
+    exactly as if the job had been started individually. Each job's model.flat shows the values for
+    that sample in place of the sweep placeholders.
+**/
+public class InternalSweep implements Backend.Sweep
+{
+    protected EquationSet     digestedModel;
+    protected String          flat;          // Dump of digested model. Placeholders are replaced by sample values before writing to each job dir.
+    protected String[]        placeholders;  // How each SweepParameter appears in flat.
+    protected String          duration;
+    protected List<String[]>  keyPaths;
+    protected ExecutorService pool;
+
+    protected static Map<String,Simulator> running   = new HashMap<String,Simulator> ();  // Samples currently executing, by job key.
+    protected static Set<String>           queued    = new HashSet<String> ();            // Samples handed to some pool but not yet started. Guarded by running.
+    protected static Set<String>           cancelled = new HashSet<String> ();            // Subset of queued which were killed before they got a thread. Guarded by running.
+
+    /**
+        Digests the model in the given job, with each of the given variables left open.
+        @throws Exception if the model can't be digested, or if any of the variables is not a simple constant.
+    **/
+    public InternalSweep (MNode job, List<String[]> keyPaths) throws Exception
+    {
+        this.keyPaths = keyPaths;
+        digestedModel = new EquationSet (job);
+        placeholders  = new String[keyPaths.size ()];
+        for (int i = 0; i < placeholders.length; i++)
+        {
+            String[] keyPath = keyPaths.get (i);
+            Variable v = findVariable (digestedModel, keyPath);
+            if (v == null  ||  v.equations.size () != 1) throw new Exception ("Not a simple variable");
+            EquationEntry e = v.equations.first ();
+            if (e.condition != null  ||  ! (e.expression instanceof Constant)  ||  ! e.expression.isScalar ()) throw new Exception ("Not a scalar constant");
+            e.expression = new SweepParameter (i, String.join (".", keyPath), e.expression.getDouble (), e.expression.unit);
+            placeholders[i] = e.expression.toString ();
+        }
+        InternalBackend.digestModel (digestedModel);
+        flat     = digestedModel.dump (false);
+        duration = digestedModel.metadata.get ("duration");
+
+        pool = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors (), new ThreadFactory ()
+        {
+            public Thread newThread (Runnable r)
+            {
+                Thread t = new Thread (r, "Internal Sweep");
+                t.setDaemon (true);
+                return t;
+            }
+        });
+    }
+
+    /**
+        Locates the variable addressed by the given key path. Every key but the last must name a part.
+    **/
+    public static Variable findVariable (EquationSet s, String[] keyPath)
+    {
+        int last = keyPath.length - 1;
+        for (int i = 0; i < last; i++)
+        {
+            if (keyPath[i].startsWith ("$")) return null;  // metadata or other special block
+            s = s.findPart (keyPath[i]);
+            if (s == null) return null;
+        }
+        if (keyPath[last].startsWith ("$")) return null;  // Special variables such as $n can change the structure of the simulation.
+        return s.find (new Variable (keyPath[last], 0));
+    }
+
+    public boolean start (final MNode job)
+    {
+        // Collect values for this sample.
+        final double[] parameters = new double[keyPaths.size ()];
+        for (int i = 0; i < parameters.length; i++)
+        {
+            try
+            {
+                Operator op = Operator.parse (job.get (keyPaths.get (i)));
+                if (! (op instanceof Constant)  ||  ! op.isScalar ()) return false;
+                parameters[i] = ((Scalar) ((Constant) op).value).value;
+            }
+            catch (Exception e)
+            {
+                return false;
+            }
+        }
+
+        synchronized (running) {queued.add (job.key ());}
+        pool.execute (new Runnable ()
+        {
+            public void run ()
+            {
+                InternalSweep.this.run (job, parameters);
+            }
+        });
+        return true;
+    }
+
+    /**
+        Must be called however the study ends, including halt or pause, so the pool threads can exit.
+    **/
+    public void finish ()
+    {
+        pool.shutdown ();  // Lets queued samples finish, then releases the threads.
+    }
+
+    /**
+        @return The dump of the digested model, with the values of one sample filled in.
+    **/
+    public String flat (double[] parameters)
+    {
+        String result = flat;
+        for (int i = 0; i < parameters.length; i++) result = result.replace (placeholders[i], new Scalar (parameters[i]).toString ());
+        return result;
+    }
+
+    /**
+        Stops a sample that belongs to some sweep.
+        @return true if the job was found. false if it is not part of a sweep, so the caller should look elsewhere.
+    **/
+    public static boolean kill (MNode job)
+    {
+        String key = job.key ();
+        synchronized (running)
+        {
+            Simulator simulator = running.get (key);
+            if (simulator != null)
+            {
+                simulator.stop = true;  // Pool threads can't be stopped forcibly, but the event loop checks this flag often.
+                return true;
+            }
+            if (queued.contains (key))  // Still waiting for a thread. run() will see the flag and skip the simulation.
+            {
+                cancelled.add (key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+        Executes one sample. Follows the same sequence as InternalBackend.SimulationThread,
+        minus the work of digesting the model.
+    **/
+    public void run (MNode job, double[] parameters)
+    {
+        String key    = job.key ();
+        Path   jobDir = Paths.get (job.get ()).getParent ();
+        try {Backend.err.set (new PrintStream (new FileOutputStream (jobDir.resolve ("err").toFile (), true), false, "UTF-8"));}
+        catch (Exception e) {}
+
+        long elapsedTime = System.nanoTime ();
+        try
+        {
+            Files.createFile (jobDir.resolve ("started"));
+            Files.copy (new ByteArrayInputStream (flat (parameters).getBytes ("UTF-8")), jobDir.resolve ("model.flat"));
+            if (! duration.isEmpty ()) job.set (duration, "$metadata", "duration");
+
+            long seed = job.getOrDefault (-1l, "$metadata", "seed");
+            if (seed < 0)
+            {
+                seed = System.currentTimeMillis ();
+                job.set (seed, "$metadata", "seed");
+            }
+
+            Simulator simulator = new Simulator (new Wrapper (digestedModel), seed, jobDir);
+            simulator.parameters = parameters;
+            InternalBackend.configureEvents (simulator, job);
+            synchronized (running)
+            {
+                queued.remove (key);
+                if (cancelled.remove (key)) simulator.stop = true;
+                running.put (key, simulator);
+            }
+
+            elapsedTime = System.nanoTime ();
+            if (! simulator.stop) simulator.simulate ();
+            elapsedTime = System.nanoTime () - elapsedTime;
+            if (simulator.stop) Files.copy (new ByteArrayInputStream ("killed" .getBytes ("UTF-8")), jobDir.resolve ("finished"));
+            else                Files.copy (new ByteArrayInputStream ("success".getBytes ("UTF-8")), jobDir.resolve ("finished"));
+        }
+        catch (Exception e)
+        {
+            elapsedTime = System.nanoTime () - elapsedTime;
+            if (! (e instanceof Backend.AbortRun)) e.printStackTrace (Backend.err.get ());
+
+            try {Files.copy (new ByteArrayInputStream ("failure".getBytes ("UTF-8")), jobDir.resolve ("finished"));}
+            catch (Exception f) {}
+        }
+        synchronized (running)
+        {
+            running.remove (key);
+            queued   .remove (key);  // In case we failed before reaching the simulator.
+            cancelled.remove (key);
+        }
+
+        PrintStream e = Backend.err.get ();
+        e.println ("Execution time: " + elapsedTime / 1e9 + " seconds");
+        if (e != System.err)
+        {
+            e.close ();
+            Backend.err.remove ();
+        }
+        Simulator.instance.remove ();
+    }
+}
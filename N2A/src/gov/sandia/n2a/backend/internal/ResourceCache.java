@@ -0,0 +1,190 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.backend.internal;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+    JVM-wide cache of read-only data loaded from files, such as matrices and input indices.
+    When several simulations run in the same process (as during a study), they share a single copy
+    of each file rather than loading it separately.
+
+    Entries are keyed by the real path of the file, its modification time and size, so a changed file
+    is loaded fresh. Each simulation that acquires an entry must release it when done, typically from
+    Holder.close(). An entry that is no longer referenced stays in memory for the benefit of later runs,
+    until the total size of unreferenced entries exceeds limit. Then the least-recently used ones are dropped.
+
+    Objects in the cache must never be modified by their users.
+**/
+public class ResourceCache
+{
+    public static long limit = Runtime.getRuntime ().maxMemory () / 4;  // Maximum bytes held by unreferenced entries.
+
+    protected static Map<String,Entry> entries = new HashMap<String,Entry> ();
+    protected static Map<Object,Entry> values  = new IdentityHashMap<Object,Entry> ();  // Reverse lookup for release().
+    protected static long              idle;                                           // Total size of unreferenced entries.
+    protected static long              clock;                                          // For LRU ordering.
+
+    public interface Loader<T>
+    {
+        public T    load (Path path) throws Exception;
+        public long size (T value);  ///< Estimated heap bytes used by the loaded object.
+    }
+
+    protected static class Entry
+    {
+        String             key;
+        FutureTask<Object> task;
+        Object             value;
+        long               size;
+        int                references;
+        long               lastUsed;
+    }
+
+    /**
+        Returns the shared copy of the given file, loading it if necessary.
+        Loading happens outside the lock, so other threads can use the cache meanwhile.
+        If several threads request the same file at once, only one does the work.
+    **/
+    @SuppressWarnings("unchecked")
+    public static <T> T acquire (Path path, Class<T> type, final Loader<T> loader) throws Exception
+    {
+        final Path real = path.toRealPath ();
+        String key = type.getName () + "|" + real + "|" + Files.getLastModifiedTime (real).toMillis () + "|" + Files.size (real);
+
+        Entry e;
+        synchronized (ResourceCache.class)
+        {
+            e = entries.get (key);
+            if (e == null)
+            {
+                e = new Entry ();
+                e.key  = key;
+                e.task = new FutureTask<Object> (new Callable<Object> ()
+                {
+                    public Object call () throws Exception
+                    {
+                        return loader.load (real);
+                    }
+                });
+                entries.put (key, e);
+            }
+            else if (e.references == 0  &&  e.value != null)
+            {
+                idle -= e.size;
+            }
+            e.references++;
+            e.lastUsed = ++clock;
+        }
+
+        e.task.run ();  // Does nothing if another thread already ran it.
+        Object value;
+        try
+        {
+            value = e.task.get ();
+        }
+        catch (ExecutionException x)
+        {
+            synchronized (ResourceCache.class)
+            {
+                e.references--;
+                if (entries.get (key) == e) entries.remove (key);  // Let a later attempt try again.
+            }
+            Throwable cause = x.getCause ();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw x;
+        }
+
+        synchronized (ResourceCache.class)
+        {
+            if (e.value == null)  // First thread to get here records the result.
+            {
+                e.value = value;
+                e.size  = loader.size ((T) value);
+                values.put (value, e);
+            }
+        }
+        return (T) value;
+    }
+
+    /**
+        Indicates that the caller no longer needs the given object, which must have come from acquire().
+    **/
+    public static synchronized void release (Object value)
+    {
+        Entry e = values.get (value);
+        if (e == null) return;
+        if (--e.references > 0) return;
+        e.lastUsed = ++clock;
+        idle += e.size;
+        trim ();
+    }
+
+    /**
+        Drops least-recently used idle entries until their total size is within limit.
+    **/
+    protected static void trim ()
+    {
+        if (idle <= limit) return;
+        List<Entry> candidates = new ArrayList<Entry> ();
+        for (Entry e : entries.values ()) if (e.references == 0  &&  e.value != null) candidates.add (e);
+        candidates.sort (new Comparator<Entry> ()
+        {
+            public int compare (Entry a, Entry b)
+            {
+                return Long.compare (a.lastUsed, b.lastUsed);
+            }
+        });
+        for (Entry e : candidates)
+        {
+            if (idle <= limit) break;
+            entries.remove (e.key);
+            values.remove (e.value);
+            idle -= e.size;
+        }
+    }
+
+    /**
+        Drops all idle entries. Entries still in use are kept.
+    **/
+    public static synchronized void clear ()
+    {
+        long saved = limit;
+        limit = 0;
+        trim ();
+        limit = saved;
+    }
+
+    /**
+        A simulation-specific handle on a shared object, suitable for storing in Simulator.holders.
+        Releases the object when the simulation closes its streams.
+    **/
+    public static class Reference implements Holder
+    {
+        public Object value;
+
+        public Reference (Object value)
+        {
+            this.value = value;
+        }
+
+        public void close ()
+        {
+            release (value);
+        }
+    }
+}
@@ -7,6 +7,8 @@ the U.S. Government retains certain rights in this software.
 package gov.sandia.n2a.backend.internal;
 
 import gov.sandia.n2a.language.type.Instance;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
@@ -51,6 +53,7 @@ public class Simulator implements Iterable<Part>
     public Path               jobDir;
     public Map<String,Holder> holders = new HashMap<String,Holder> ();
     public PrintStream        out;
+    public double[]           parameters;  // Values of SweepParameter for this sample, when running as part of a sweep.
     // Note: System.in will get bound into an Input.Holder if used at all.
 
     public boolean during    = true; // Indicates that events should set a flag that gets processed during the regular update cycle. If false, then events are processed in their own mini-update.
@@ -86,7 +89,7 @@ public class Simulator implements Iterable<Part>
         this.wrapper = wrapper;
 
         this.jobDir = jobDir;
-        try {out = new PrintStream (jobDir.resolve ("out").toFile (), "UTF-8");}      // put in current working dir, which should be the job directory
+        try {out = new PrintStream (new BufferedOutputStream (new FileOutputStream (jobDir.resolve ("out").toFile ()), 1 << 16), false, "UTF-8");}  // put in current working dir, which should be the job directory
         catch (Exception e) {out = System.out;}  // if that fails, just use the default stdout
 
         random = new Random (seed);
@@ -128,9 +131,31 @@ public class Simulator implements Iterable<Part>
         closeStreams ();
     }
 
+    /**
+        Performs init() and run() as a complete job.
+        Streams are closed even if the simulation throws, so all output is on disk before the caller marks the job finished.
+    **/
+    public void simulate ()
+    {
+        try
+        {
+            init ();
+            run ();  // Does not return until simulation is finished.
+        }
+        finally
+        {
+            closeStreams ();  // run() already does this, unless the simulation threw.
+        }
+    }
+
+    /**
+        Closes all files. For output, this waits until each writer thread has drained its queue.
+        Safe to call more than once.
+    **/
     public void closeStreams ()
     {
         for (Holder h : holders.values ()) h.close ();
+        holders.clear ();
     }
 
     public void integrate (Instance i)
@@ -0,0 +1,58 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.backend.internal;
+
+import javax.measure.Unit;
+
+import gov.sandia.n2a.language.Operator;
+import gov.sandia.n2a.language.Renderer;
+import gov.sandia.n2a.language.Type;
+import gov.sandia.n2a.language.type.Instance;
+import gov.sandia.n2a.language.type.Scalar;
+
+/**
+    Stands in for the constant value of a variable that changes between samples of a sweep.
+    Because this is not a Constant, the digested model keeps a reference to it rather than
+    folding the value into other expressions. Each simulator supplies its own value.
+**/
+public class SweepParameter extends Operator
+{
+    public int    index;  // Position in Simulator.parameters
+    public String name;   // Path to the variable, for display.
+    public double value;  // Value in the model used to digest the sweep. Returned when no simulator is running, such as during analysis.
+
+    public SweepParameter (int index, String name, double value, Unit<?> unit)
+    {
+        this.index = index;
+        this.name  = name;
+        this.value = value;
+        this.unit  = unit;
+    }
+
+    public void render (Renderer renderer)
+    {
+        if (renderer.render (this)) return;
+        renderer.result.append (toString ());
+    }
+
+    public Type getType ()
+    {
+        return new Scalar (value);
+    }
+
+    public Type eval (Instance context)
+    {
+        Simulator simulator = Simulator.instance.get ();
+        if (simulator == null  ||  simulator.parameters == null) return new Scalar (value);
+        return new Scalar (simulator.parameters[index]);
+    }
+
+    public String toString ()
+    {
+        return "sweep(\"" + name + "\")";
+    }
+}
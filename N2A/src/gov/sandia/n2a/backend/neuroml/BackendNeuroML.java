@@ -166,4 +166,12 @@ public class BackendNeuroML extends Backend
         if (defaultOutput.isEmpty ()) return 0;
         return InternalBackend.getSimTimeFromOutput (job, defaultOutput, 0);
     }
+
+    @Override
+    public String progressFile (MNode job)
+    {
+        String defaultOutput = job.get ("$metadata", "defaultOutput");
+        if (defaultOutput.isEmpty ()) return null;
+        return defaultOutput;
+    }
 }
@@ -49,6 +49,7 @@ import gov.sandia.n2a.db.MVolatile;
 import gov.sandia.n2a.eqset.EquationEntry;
 import gov.sandia.n2a.eqset.EquationSet;
 import gov.sandia.n2a.eqset.MPart;
+import gov.sandia.n2a.eqset.MPartCache;
 import gov.sandia.n2a.eqset.Variable;
 import gov.sandia.n2a.eqset.VariableReference;
 import gov.sandia.n2a.eqset.EquationSet.ConnectionBinding;
@@ -121,7 +122,7 @@ public class ExportJob extends XMLutility
 
         try
         {
-            MPart mpart = new MPart (source);
+            MPart mpart = MPartCache.get (source);
             modelName = source.key ();
             equations = new EquationSet (mpart);
             makeExecutable (equations, true);
@@ -2991,7 +2992,7 @@ public class ExportJob extends XMLutility
                 {
                     // Do a complete build of the model, including inheritance resolution.
                     // This makes it indistinguishable from an embedded LEMS model.
-                    source = new MPart (source);
+                    source = MPartCache.get (source);
                     equations = new EquationSet (source);
                     makeExecutable (equations, false);
                 }
@@ -3545,7 +3546,7 @@ public class ExportJob extends XMLutility
                                 {
                                     MNode doc = AppData.models.child (a.partName);
                                     if (doc == null) continue;
-                                    MPart part = new MPart (doc);
+                                    MPart part = MPartCache.get (doc);
                                     MNode node = part.child (query);
                                     if (node == null) continue;
                                     NameMap nameMap = partMap.exportMap (a.partName);
@@ -11,6 +11,7 @@ import gov.sandia.n2a.db.AppData;
 import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.db.MVolatile;
 import gov.sandia.n2a.eqset.MPart;
+import gov.sandia.n2a.eqset.MPartCache;
 import gov.sandia.n2a.eqset.Variable;
 import gov.sandia.n2a.eqset.Variable.ParsedValue;
 import gov.sandia.n2a.language.AccessElement;
@@ -3957,7 +3958,7 @@ public class ImportJob extends XMLutility
             MNode parent = findBasePart (part);
             if (parent != null)
             {
-                MPart mparent = new MPart (parent);
+                MPart mparent = MPartCache.get (parent);
 
                 NameMap nameMap = partMap.outward.get (parent.key ());
                 if (nameMap == null)
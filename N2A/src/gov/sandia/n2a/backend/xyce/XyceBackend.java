@@ -111,6 +111,12 @@ class XyceBackend extends Backend
         return getSimTimeFromOutput (job, "out", 1);
     }
 
+    @Override
+    public double currentSimTime (MNode job, String tail)
+    {
+        return getSimTimeFromTail (tail, 1);
+    }
+
     public void analyze (EquationSet s)
     {
         for (EquationSet p : s.parts) analyze (p);
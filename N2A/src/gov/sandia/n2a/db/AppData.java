@@ -14,6 +14,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -29,6 +33,7 @@ public class AppData
     public static MNode  properties;
     public static MDoc   state;
     public static MDir   runs;
+    public static MDoc   runIndex;  ///< Summary of each job in runs, so the Runs panel can start without loading every job.
     public static MDir   studies;
     public static MDir   repos;
     public static MCombo models;
@@ -47,6 +52,7 @@ public class AppData
 
         state   = new MDoc (root.resolve ("state"));
         runs    = new MDir (root.resolve ("jobs"), "model");  // "model" is our internal housekeeping data, in MNode serialization form. Backend output generally goes into a simulator-specific file.
+        runIndex = new MDoc (root.resolve ("jobs.index"));
         studies = new MDir (root.resolve ("studies"), "study");  // "study" contains general metadata. A separate MDoc called "model" holds a snapshot of the model being studied.
         Path reposDir = root.resolve ("repos");
         repos   = new MDir (reposDir, "state");
@@ -85,8 +91,12 @@ public class AppData
             MNode repo = repos.child (repoName);
             if (repo == null  ||  repo.getInt ("visible") == 0  &&  ! repoName.equals (primary)) continue;
             Path repoDir = reposDir.resolve (repoName);
-            modelContainers    .add (new MDir (repoName, repoDir.resolve ("models")));
-            referenceContainers.add (new MDir (repoName, repoDir.resolve ("references")));
+            MDir modelDir     = new MDir (repoName, repoDir.resolve ("models"));
+            MDir referenceDir = new MDir (repoName, repoDir.resolve ("references"));
+            modelDir    .watch ();
+            referenceDir.watch ();
+            modelContainers    .add (modelDir);
+            referenceContainers.add (referenceDir);
         }
         models     = new MCombo ("models",     modelContainers);
         references = new MCombo ("references", referenceContainers);
@@ -135,6 +145,11 @@ public class AppData
         MDir localModels     = new MDir (localDir.resolve ("models"));
         MDir localReferences = new MDir (localDir.resolve ("references"));
 
+        baseModels     .watch ();
+        baseReferences .watch ();
+        localModels    .watch ();
+        localReferences.watch ();
+
         List<MNode> modelContainers     = new ArrayList<MNode> ();
         List<MNode> referenceContainers = new ArrayList<MNode> ();
         modelContainers.add (localModels);
@@ -176,6 +191,83 @@ public class AppData
         }
     }
 
+    /**
+        Reads every model and reference document in the background, so that later scans
+        (search, connector index, reference panel) find them already parsed. All directories
+        are listed in parallel, then documents are parsed on a bounded pool of threads.
+        Returns immediately. The rest of the app may proceed as usual, since any document not
+        yet reached simply loads itself on demand.
+    **/
+    public static void preload ()
+    {
+        final List<MDir> dirs = new ArrayList<MDir> ();
+        for (MCombo combo : new MCombo[] {models, references})
+        {
+            synchronized (combo)
+            {
+                for (MNode c : combo.containers) if (c instanceof MDir) dirs.add ((MDir) c);
+            }
+        }
+
+        // Reading is mostly bound by file-system latency rather than CPU, so allow a few more threads than cores.
+        int threadCount = Math.min (16, Runtime.getRuntime ().availableProcessors () * 2);
+        final ExecutorService pool = Executors.newFixedThreadPool (threadCount, new ThreadFactory ()
+        {
+            int count;
+            public Thread newThread (Runnable r)
+            {
+                Thread result = new Thread (r, "Preload AppData " + count++);
+                result.setDaemon (true);
+                result.setPriority (Thread.MIN_PRIORITY);  // Yield to the UI and to any on-demand loads.
+                return result;
+            }
+        });
+
+        Thread thread = new Thread ("Preload AppData")
+        {
+            public void run ()
+            {
+                // List directories. Each is an independent scan, so let them overlap.
+                List<Future<?>> listings = new ArrayList<Future<?>> ();
+                for (final MDir dir : dirs)
+                {
+                    listings.add (pool.submit (new Runnable ()
+                    {
+                        public void run ()
+                        {
+                            dir.load ();
+                        }
+                    }));
+                }
+                for (Future<?> f : listings)
+                {
+                    try {f.get ();}
+                    catch (Exception e) {}
+                }
+
+                // Parse documents.
+                for (MDir dir : dirs)
+                {
+                    for (MNode n : dir)
+                    {
+                        if (! (n instanceof MDoc)) continue;  // could be null if deleted while we iterate
+                        final MDoc doc = (MDoc) n;
+                        pool.execute (new Runnable ()
+                        {
+                            public void run ()
+                            {
+                                doc.load ();
+                            }
+                        });
+                    }
+                }
+                pool.shutdown ();
+            }
+        };
+        thread.setDaemon (true);
+        thread.start ();
+    }
+
     // Utility for converting documents to latest schema.
     // This simply tags them as needing to be saved. MDir always saves in the latest format.
     protected static void convert (List<MNode> containers)
@@ -217,6 +309,7 @@ public class AppData
     public synchronized static void save ()
     {
         state.save ();
+        runIndex.save ();
         runs.save ();  // The reason to save runs is if we record data in them about process status. If no data is changed, could get rid of this save.
         repos.save ();
         models.save ();
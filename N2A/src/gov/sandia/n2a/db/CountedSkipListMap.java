@@ -0,0 +1,79 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.db;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+    Children collection for the lock-free nodes. ConcurrentSkipListMap.size() walks the entire map,
+    which is far too slow for MNode.size(), so we keep a running count instead.
+    The count is only maintained by put(), putIfAbsent(), remove() and clear(). Don't modify the
+    map through its views or iterators.
+**/
+@SuppressWarnings("serial")
+public class CountedSkipListMap<V> extends ConcurrentSkipListMap<String,V>
+{
+    protected AtomicInteger count = new AtomicInteger ();
+
+    public CountedSkipListMap ()
+    {
+    }
+
+    public CountedSkipListMap (Comparator<? super String> comparator)
+    {
+        super (comparator);
+    }
+
+    public int size ()
+    {
+        return count.get ();
+    }
+
+    public boolean isEmpty ()
+    {
+        return count.get () == 0;
+    }
+
+    public V put (String key, V value)
+    {
+        V result = super.put (key, value);
+        if (result == null) count.incrementAndGet ();
+        return result;
+    }
+
+    public V putIfAbsent (String key, V value)
+    {
+        V result = super.putIfAbsent (key, value);
+        if (result == null) count.incrementAndGet ();
+        return result;
+    }
+
+    public V remove (Object key)
+    {
+        V result = super.remove (key);
+        if (result != null) count.decrementAndGet ();
+        return result;
+    }
+
+    public boolean remove (Object key, Object value)
+    {
+        boolean result = super.remove (key, value);
+        if (result) count.decrementAndGet ();
+        return result;
+    }
+
+    /**
+        Writers are serialized by the node that owns this map, so nothing can be added while we clear.
+    **/
+    public void clear ()
+    {
+        super.clear ();
+        count.set (0);
+    }
+}
@@ -6,21 +6,31 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.db;
 
+import java.awt.EventQueue;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import gov.sandia.n2a.execenvs.Host;
 
@@ -30,17 +40,28 @@ import gov.sandia.n2a.execenvs.Host;
     be a direct child of this directory. Instead, some additional pathing may be added.
     This allows the direct children of this directory to be subdirectories, and each document
     file may be a specifically-named entry in a subdirectory.
+
+    Lookups and iteration are lock-free, so that many threads can read a large dir (such as the
+    jobs dir) without contending for it. Structural changes remain synchronized on the dir,
+    while changes to the content of a document only lock that document.
 **/
 public class MDir extends MNode
 {
     protected String  name;    // MDirs could be held in a collection, so this provides a way to reference them.
     protected Path    root;    // The directory containing the files or subdirs that constitute the children of this node
     protected String  suffix;  // Relative path to document file, or null if documents are directly under root
-    protected boolean loaded;  // Indicates that an initial read of the dir has been done. After that, it is not necessary to monitor the dir, only keep track of documents internally.
+    protected volatile boolean loaded;  // Indicates that an initial read of the dir has been done. After that, it is not necessary to monitor the dir, only keep track of documents internally.
+    protected WatchKey watchKey;  // Non-null when we are subscribed to changes made to the dir by other processes.
+
+    protected volatile NavigableMap<String,SoftReference<MDoc>> children   = new CountedSkipListMap<SoftReference<MDoc>> ();
+    protected          Set<MDoc>                                writeQueue = ConcurrentHashMap.newKeySet ();  // By storing strong references to docs that need to be saved, we prevent them from being garbage collected until that is done.
+    protected          List<MNodeListener>                      listeners  = new CopyOnWriteArrayList<MNodeListener> ();  // Lets fire*() run without holding our lock.
 
-    protected NavigableMap<String,SoftReference<MDoc>> children   = new TreeMap<String,SoftReference<MDoc>> ();
-    protected Set<MDoc>                                writeQueue = new HashSet<MDoc> ();  // By storing strong references to docs that need to be saved, we prevent them from being garbage collected until that is done.
-    protected List<MNodeListener>                      listeners  = new ArrayList<MNodeListener> ();
+    /**
+        Placeholder in children for a document that is known to exist on disk but has not yet been instantiated.
+        Needed because the concurrent map does not accept null values.
+    **/
+    protected static final SoftReference<MDoc> unloaded = new SoftReference<MDoc> (null);
 
     public MDir (Path root)
     {
@@ -99,9 +120,24 @@ public class MDir extends MNode
         return name;
     }
 
-    protected synchronized MNode getChild (String key)
+    protected MNode getChild (String key)
     {
         if (key.isEmpty ()) return null;  // The file-existence code below can be fooled by an empty string, so explicitly guard against it.
+        SoftReference<MDoc> reference = children.get (key);
+        if (reference != null)
+        {
+            MDoc result = reference.get ();
+            if (result != null) return result;
+        }
+        return getChildSynchronized (key);
+    }
+
+    /**
+        Slow path for getChild(), which instantiates the document.
+        Synchronized so that only one MDoc is ever created for a given key.
+    **/
+    protected synchronized MNode getChildSynchronized (String key)
+    {
         MDoc result = null;
         SoftReference<MDoc> reference = children.get (key);
         if (reference != null) result = reference.get ();
@@ -140,14 +176,18 @@ public class MDir extends MNode
     protected synchronized void clearChild (String key)
     {
         SoftReference<MDoc> ref = children.remove (key);
-        if (ref != null) writeQueue.remove (ref.get ());
+        if (ref != null)
+        {
+            MDoc doc = ref.get ();
+            if (doc != null) writeQueue.remove (doc);
+        }
         Host.deleteTree (root.resolve (key).toAbsolutePath (), true);
         fireChildDeleted (key);
     }
 
-    public synchronized int size ()
+    public int size ()
 	{
-        load ();
+        if (! loaded) load ();
         return children.size ();
 	}
 
@@ -159,10 +199,12 @@ public class MDir extends MNode
     /**
         Point to a new location on disk.
         Must be called before actually moving the dir, since we need to flush the write queue.
+        Any watch on the old location is dropped. Call watch() again once the move is complete.
     **/
     public synchronized void set (Path value)
     {
         save ();
+        unwatch ();
         root = value;
     }
 
@@ -211,7 +253,7 @@ public class MDir extends MNode
         SoftReference<MDoc> toReference   = children.get (toKey);
         children.remove (fromKey);
         children.remove (toKey);
-        if (fromReference == null)
+        if (fromReference == null)  // Source did not exist.
         {
             if (toReference != null) fireChildDeleted (toKey);  // Because we overwrote an existing node with a non-existing node, causing the destination to cease to exist.
         }
@@ -224,32 +266,32 @@ public class MDir extends MNode
         }
     }
 
-    public synchronized void addListener (MNodeListener listener)
+    public void addListener (MNodeListener listener)
     {
         listeners.add (listener);
     }
 
-    public synchronized void removeListener (MNodeListener listener)
+    public void removeListener (MNodeListener listener)
     {
         listeners.remove (listener);
     }
 
-    public synchronized void fireChanged ()
+    public void fireChanged ()
     {
         for (MNodeListener l : listeners) l.changed ();
     }
 
-    public synchronized void fireChildAdded (String key)
+    public void fireChildAdded (String key)
     {
         for (MNodeListener l : listeners) l.childAdded (key);
     }
 
-    public synchronized void fireChildDeleted (String key)
+    public void fireChildDeleted (String key)
     {
         for (MNodeListener l : listeners) l.childDeleted (key);
     }
 
-    public synchronized void fireChildChanged (String oldKey, String newKey)
+    public void fireChildChanged (String oldKey, String newKey)
     {
         for (MNodeListener l : listeners) l.childChanged (oldKey, newKey);
     }
@@ -287,6 +329,7 @@ public class MDir extends MNode
                 // All old children are invalid, and listeners should completely reload data.
                 child.needsWrite = false;
                 child.children = null;
+                child.version++;
             }
             fireChildChanged (key, key);
         }
@@ -313,21 +356,225 @@ public class MDir extends MNode
             if (child == null) continue;
             child.needsWrite = false;
             child.children = null;
+            child.version++;
         }
         fireChanged ();
     }
 
-    public synchronized Iterator<MNode> iterator ()
+    /**
+        Subscribe to changes made on disk by other processes, such as an external editor or git.
+        Each file event is applied to our children individually and forwarded to listeners,
+        so there is no need to call reload() afterward.
+        When suffix is defined, only the creation and deletion of document subdirectories
+        is reliably detected, since the watch does not descend into them.
+    **/
+    public synchronized void watch ()
     {
-        load ();
-        return new IteratorWrapper (new ArrayList<String> (children.keySet ()));  // Duplicate the keys, to avoid concurrent modification
+        if (watchKey != null) return;
+        try
+        {
+            watchKey = Watcher.register (this);
+        }
+        catch (IOException e) {}  // Fall back on explicit nodeChanged() and reload() calls.
+    }
+
+    public synchronized void unwatch ()
+    {
+        if (watchKey == null) return;
+        Watcher.unregister (watchKey);
+        watchKey = null;
+    }
+
+    public synchronized boolean isWatched ()
+    {
+        return watchKey != null;
+    }
+
+    /**
+        Applies a change reported by the watch service.
+        Unlike nodeChanged(), this ignores the effects of our own writes and deletes,
+        and it never discards unsaved edits.
+        Listeners are notified afterward on the EDT, without holding our lock, since most of
+        them update Swing components and may call back into this directory.
+    **/
+    protected void fileChanged (final String key)
+    {
+        final int change = applyFileChange (key);
+        if (change == UNCHANGED) return;
+        EventQueue.invokeLater (new Runnable ()
+        {
+            public void run ()
+            {
+                switch (change)
+                {
+                    case ADDED:   fireChildAdded   (key);      break;
+                    case DELETED: fireChildDeleted (key);      break;
+                    case CHANGED: fireChildChanged (key, key); break;
+                }
+            }
+        });
+    }
+
+    protected static final int UNCHANGED = 0;
+    protected static final int ADDED     = 1;
+    protected static final int DELETED   = 2;
+    protected static final int CHANGED   = 3;
+
+    /**
+        Updates our children to match the state of the given file on disk.
+        @return The kind of change listeners should hear about.
+    **/
+    protected synchronized int applyFileChange (String key)
+    {
+        if (key.startsWith (".")) return UNCHANGED;
+        Path childDir = root.resolve (key);
+        boolean known = children.containsKey (key);
+        SoftReference<MDoc> reference = children.get (key);
+        MDoc child = null;
+        if (reference != null) child = reference.get ();
+
+        if (! Files.exists (childDir))
+        {
+            if (! known) return UNCHANGED;  // For example, we deleted it ourselves.
+            if (child != null  &&  writeQueue.contains (child)) return UNCHANGED;  // New document that has not yet been flushed to disk.
+            children.remove (key);
+            return DELETED;
+        }
+        if (suffix != null  &&  ! Files.isDirectory (childDir)) return UNCHANGED;
+
+        if (! known)
+        {
+            if (! loaded) return UNCHANGED;  // The next load() will pick it up.
+            children.put (key, unloaded);
+            return ADDED;
+        }
+
+        if (reference == unloaded) return UNCHANGED;  // No one has looked at this document yet, so no one needs to hear about the change.
+        if (child != null)
+        {
+            synchronized (child)
+            {
+                if (child.children == null) return UNCHANGED;  // Not loaded, so nothing stale in memory. Listeners only care about content they have actually seen.
+                if (child.needsWrite) return UNCHANGED;  // Our pending edits take precedence. They will overwrite the file on next save.
+                if (MDoc.lastModified (pathForChild (key)) == child.lastModified) return UNCHANGED;  // Our own write, or no real change.
+                child.children = null;
+                child.version++;
+            }
+        }
+        return CHANGED;
+    }
+
+    /**
+        Rescans the directory listing without discarding any loaded documents.
+        Used when the watch service has lost events.
+    **/
+    protected void rescan ()
+    {
+        synchronized (this)
+        {
+            loaded = false;
+            load ();
+        }
+        EventQueue.invokeLater (new Runnable ()
+        {
+            public void run ()
+            {
+                fireChanged ();
+            }
+        });
+    }
+
+    /**
+        Routes events from a single WatchService to the MDirs that are subscribed to it.
+        Only created on first use.
+    **/
+    protected static class Watcher extends Thread
+    {
+        protected static Watcher instance;
+
+        protected WatchService       service;
+        protected Map<WatchKey,MDir> dirs = new HashMap<WatchKey,MDir> ();
+
+        protected Watcher () throws IOException
+        {
+            super ("MDir Watcher");
+            setDaemon (true);
+            service = FileSystems.getDefault ().newWatchService ();
+        }
+
+        public static synchronized WatchKey register (MDir dir) throws IOException
+        {
+            if (instance == null)
+            {
+                instance = new Watcher ();
+                instance.start ();
+            }
+            WatchKey result = dir.root.register (instance.service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            synchronized (instance.dirs)
+            {
+                instance.dirs.put (result, dir);
+            }
+            return result;
+        }
+
+        public static synchronized void unregister (WatchKey key)
+        {
+            key.cancel ();
+            if (instance == null) return;
+            synchronized (instance.dirs)
+            {
+                instance.dirs.remove (key);
+            }
+        }
+
+        public void run ()
+        {
+            while (true)
+            {
+                WatchKey key;
+                try
+                {
+                    key = service.take ();
+                }
+                catch (InterruptedException | ClosedWatchServiceException e)
+                {
+                    return;
+                }
+
+                MDir dir;
+                synchronized (dirs)
+                {
+                    dir = dirs.get (key);
+                }
+                List<WatchEvent<?>> events = key.pollEvents ();
+                key.reset ();
+                if (dir == null) continue;
+
+                for (WatchEvent<?> e : events)
+                {
+                    if (e.kind () == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        dir.rescan ();
+                        continue;
+                    }
+                    Path path = (Path) e.context ();
+                    dir.fileChanged (path.toString ());
+                }
+            }
+        }
+    }
+
+    public Iterator<MNode> iterator ()
+    {
+        if (! loaded) load ();
+        return new IteratorWrapper (new ArrayList<String> (children.keySet ()));  // Duplicate the keys, so the iterator is stable even if docs are added or removed.
     }
 
     public synchronized void load ()
     {
         if (loaded) return;
 
-        NavigableMap<String,SoftReference<MDoc>> newChildren = new TreeMap<String,SoftReference<MDoc>> ();
+        NavigableMap<String,SoftReference<MDoc>> newChildren = new CountedSkipListMap<SoftReference<MDoc>> ();
         // Scan directory.
         // This may cost a lot of time in some cases. However, N2A should never have more than about 10,000 models in a dir.
         try (DirectoryStream<Path> stream = Files.newDirectoryStream (root))
@@ -337,7 +584,7 @@ public class MDir extends MNode
                 String key = path.getFileName ().toString ();
                 if (key.startsWith (".")) continue; // Filter out special files. This allows, for example, a git repo to share the models dir.
                 if (suffix != null  &&  ! Files.isDirectory (path)) continue;  // Only permit directories when suffix is defined.
-                newChildren.put (key, children.get (key));  // Some children could get orphaned, if they were deleted from disk by another process. In that case the UI should be rebuilt.
+                newChildren.put (key, children.getOrDefault (key, unloaded));  // Some children could get orphaned, if they were deleted from disk by another process. In that case the UI should be rebuilt.
             }
         }
         catch (IOException e) {}
@@ -345,7 +592,7 @@ public class MDir extends MNode
         for (MDoc doc : writeQueue)
         {
             String key = doc.key ();
-            newChildren.put (key, children.get (key));
+            newChildren.put (key, children.getOrDefault (key, unloaded));
         }
         children = newChildren;
 
@@ -354,7 +601,12 @@ public class MDir extends MNode
 
     public synchronized void save ()
     {
-        for (MDoc doc: writeQueue) doc.save ();
-        writeQueue.clear ();  // This releases the strong references, so these docs can be garbage collected if needed.
+        // Remove each doc before saving it. If it changes again while being saved, markChanged() will put it back.
+        // Removing releases the strong reference, so the doc can be garbage collected if needed.
+        for (MDoc doc : writeQueue)
+        {
+            writeQueue.remove (doc);
+            doc.save ();
+        }
     }
 }
@@ -14,7 +14,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
-import java.util.TreeMap;
+import java.util.NavigableMap;
 
 /**
     Stores a document in memory and coordinates with its persistent form on disk.
@@ -31,6 +31,10 @@ import java.util.TreeMap;
 **/
 public class MDoc extends MPersistent
 {
+    protected volatile long    version;       // Incremented whenever the document goes from saved to modified, or is reloaded from disk. Lets caches of derived data detect staleness cheaply.
+    protected          long    lastModified;  // Time stamp of file on disk when we last read or wrote it. Allows a directory watcher to distinguish our own writes from outside changes.
+    protected volatile boolean loading;       // children is non-null but still being filled from disk. Lock-free readers must wait for load() to finish.
+
     /**
         Constructs a document as a child of an MDir.
         In this case, the key contains the file name in the dir, and the full path is constructed
@@ -62,31 +66,39 @@ public class MDoc extends MPersistent
         For a stand-alone document the key is arbitrary, and the document may be stored
         in another MNode with arbitrary other objects.
     **/
-    public synchronized String getOrDefault (String defaultValue)
+    public String getOrDefault (String defaultValue)
     {
         if (parent instanceof MDir) return ((MDir) parent).pathForChild (name).toAbsolutePath ().toString ();
-        if (value == null) return defaultValue;
-        return value.toString ();
+        Object v = value;
+        if (v == null) return defaultValue;
+        return v.toString ();
     }
 
     public synchronized void markChanged ()
     {
         if (! needsWrite)
         {
+            version++;  // Must come before needsWrite is set. See version().
             // If this is a new document, then treat it as if it were already loaded.
             // If there is content on disk, it will be blown away.
-            if (children == null) children = new TreeMap<String,MNode> (comparator);
+            if (children == null) children = new CountedSkipListMap<MNode> (comparator);
             needsWrite = true;
-            if (parent instanceof MDir)
-            {
-                synchronized (parent)
-                {
-                    ((MDir) parent).writeQueue.add (this);
-                }
-            }
+            if (parent instanceof MDir) ((MDir) parent).writeQueue.add (this);  // Concurrent set, so no need to lock the whole dir.
         }
     }
 
+    /**
+        @return A stamp which identifies the current content of this document, or -1 if the document
+        has unsaved changes. Further edits to a modified document do not advance the stamp, so it can't
+        distinguish them. Only meaningful for comparison with an earlier value from the same object.
+    **/
+    public long version ()
+    {
+        long result = version;  // Must read before needsWrite, the reverse of the order in markChanged().
+        if (needsWrite) return -1;
+        return result;
+    }
+
     /**
         Removes this document from persistent storage, but retains its contents in memory.
     **/
@@ -106,10 +118,21 @@ public class MDoc extends MPersistent
         else parent.clear (name);
     }
 
-    protected synchronized MNode getChild (String key)
+    /**
+        @return Our children collection, after loading it if necessary.
+        Does not lock once the document is fully in memory.
+    **/
+    protected NavigableMap<String,MNode> loaded ()
+    {
+        NavigableMap<String,MNode> result = children;  // Must read children before loading. See load().
+        if (result != null  &&  ! loading) return result;
+        load ();  // Blocks until any load in progress on another thread is finished.
+        return children;
+    }
+
+    protected MNode getChild (String key)
     {
-        if (children == null) load ();  // redundant with the guard in load(), but should save time in the common case that file is already loaded
-        return children.get (key);
+        return loaded ().get (key);
     }
 
     protected synchronized void clearChild (String key)
@@ -118,10 +141,9 @@ public class MDoc extends MPersistent
         super.clearChild (key);
     }
 
-    public synchronized int size ()
+    public int size ()
     {
-        if (children == null) load ();
-        return children.size ();
+        return loaded ().size ();
     }
 
     /**
@@ -157,9 +179,9 @@ public class MDoc extends MPersistent
         super.move (fromKey, toKey);
     }
 
-    public synchronized Iterator<MNode> iterator ()
+    public Iterator<MNode> iterator ()
     {
-        if (children == null) load ();
+        loaded ();
         return super.iterator ();
     }
 
@@ -175,7 +197,8 @@ public class MDoc extends MPersistent
 	public synchronized void load ()
 	{
 	    if (children != null) return;  // already loaded
-	    children = new TreeMap<String,MNode> (comparator);
+	    loading = true;  // Must be set before children is published, so lock-free readers know to wait.
+	    children = new CountedSkipListMap<MNode> (comparator);
         Path file = path ();
         needsWrite = true;  // lie to ourselves, to prevent being put onto the MDir write queue
         try (BufferedReader br = Files.newBufferedReader (file))
@@ -183,7 +206,9 @@ public class MDoc extends MPersistent
             Schema.readAll (this, br);
         }
         catch (IOException e) {}  // This exception is common for a newly created doc that has not yet been flushed to disk.
+        lastModified = lastModified (file);
         clearChanged ();  // After load(), clear the slate so we can detect any changes and save the document.
+        loading = false;
 	}
 
 	public synchronized void save ()
@@ -198,6 +223,7 @@ public class MDoc extends MPersistent
 	            Schema.latest ().writeAll (this, writer);
 	            clearChanged ();
 	        }
+	        lastModified = lastModified (file);
 	    }
 	    catch (IOException e)
 	    {
@@ -205,4 +231,16 @@ public class MDoc extends MPersistent
             e.printStackTrace ();
 	    }
 	}
+
+    public static long lastModified (Path file)
+    {
+        try
+        {
+            return Files.getLastModifiedTime (file).toMillis ();
+        }
+        catch (IOException e)
+        {
+            return 0;
+        }
+    }
 }
@@ -23,6 +23,8 @@ import java.util.List;
     For example, if an operation is implemented in terms of several other operations, and the state
     of the tree should not be modified between those operations, then the method is synchronized.
     If the method is naturally atomic, then it is not synchronized. Such choices may not hold for derived implementations.
+    In particular, pure lookups such as child() are not synchronized here, so that subclasses with lock-free
+    collections (MVolatile, MDoc, MDir) can serve readers without blocking them behind writers.
 **/
 public class MNode implements Iterable<MNode>, Comparable<MNode>
 {
@@ -80,7 +82,7 @@ public class MNode implements Iterable<MNode>, Comparable<MNode>
     /**
         Returns a child node from arbitrary depth, or null if any part of the path doesn't exist.
     **/
-    public synchronized MNode child (String... keys)
+    public MNode child (String... keys)
     {
         MNode result = this;
         for (int i = 0; i < keys.length; i++)
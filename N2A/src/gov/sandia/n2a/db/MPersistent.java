@@ -6,11 +6,9 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.db;
 
-import java.util.TreeMap;
-
 public class MPersistent extends MVolatile
 {
-    protected boolean needsWrite; // indicates that this node is new or has changed since it was last read from disk (and therefore should be written out)
+    protected volatile boolean needsWrite; // indicates that this node is new or has changed since it was last read from disk (and therefore should be written out)
 
     public MPersistent (MNode parent)
 	{
@@ -29,13 +27,11 @@ public class MPersistent extends MVolatile
         this.parent = parent;
     }
 
-	public synchronized void markChanged ()
+	public void markChanged ()
 	{
-	    if (! needsWrite)
-	    {
-	        if (parent instanceof MPersistent) ((MPersistent) parent).markChanged ();
-	        needsWrite = true;
-	    }
+	    if (needsWrite) return;
+	    if (parent instanceof MPersistent) ((MPersistent) parent).markChanged ();
+	    needsWrite = true;
 	}
 
 	public synchronized void clearChanged ()
@@ -81,7 +77,7 @@ public class MPersistent extends MVolatile
 
     public synchronized MNode set (String value, String key)
     {
-        if (children == null) children = new TreeMap<String,MNode> (comparator);
+        if (children == null) children = new CountedSkipListMap<MNode> (comparator);
         MNode result = children.get (key);
         if (result == null)
         {
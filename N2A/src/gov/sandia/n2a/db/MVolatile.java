@@ -9,14 +9,18 @@ package gov.sandia.n2a.db;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NavigableMap;
-import java.util.TreeMap;
 
+/**
+    Reads are lock-free. The children collection is a concurrent map, and both it and the value
+    are published through volatile fields, so a reader never blocks behind a writer.
+    Writes remain synchronized on the node being modified.
+**/
 public class MVolatile extends MNode
 {
-    protected String                     name;
-    protected Object                     value;
-    protected MNode                      parent;
-    protected NavigableMap<String,MNode> children;
+    protected          String                     name;
+    protected volatile Object                     value;
+    protected          MNode                      parent;
+    protected volatile NavigableMap<String,MNode> children;
 
     public MVolatile ()
     {
@@ -61,10 +65,11 @@ public class MVolatile extends MNode
         return result;
     }
 
-    protected synchronized MNode getChild (String key)
+    protected MNode getChild (String key)
     {
-        if (children == null) return null;
-        return children.get (key);
+        NavigableMap<String,MNode> c = children;
+        if (c == null) return null;
+        return c.get (key);
     }
 
     public synchronized void clear ()
@@ -78,10 +83,11 @@ public class MVolatile extends MNode
         children.remove (key);
     }
 
-    public synchronized int size ()
+    public int size ()
     {
-        if (children == null) return 0;
-        return children.size ();
+        NavigableMap<String,MNode> c = children;
+        if (c == null) return 0;
+        return c.size ();
     }
 
     public boolean data ()
@@ -89,10 +95,11 @@ public class MVolatile extends MNode
         return value != null;
     }
 
-    public synchronized String getOrDefault (String defaultValue)
+    public String getOrDefault (String defaultValue)
     {
-        if (value == null) return defaultValue;
-        String result = value.toString ();
+        Object v = value;
+        if (v == null) return defaultValue;
+        String result = v.toString ();
         if (result.isEmpty ()) return defaultValue;
         return result;
     }
@@ -118,7 +125,7 @@ public class MVolatile extends MNode
 
     public synchronized MNode set (String value, String key)
     {
-        if (children == null) children = new TreeMap<String,MNode> (comparator);
+        if (children == null) children = new CountedSkipListMap<MNode> (comparator);
         MNode result = children.get (key);
         if (result == null)
         {
@@ -160,9 +167,10 @@ public class MVolatile extends MNode
         }
     }
 
-    public synchronized Iterator<MNode> iterator ()
+    public Iterator<MNode> iterator ()
     {
-        if (children == null) return super.iterator ();
-        return new IteratorWrapper (new ArrayList<String> (children.keySet ()));  // Duplicate the keys, to avoid concurrent modification
+        NavigableMap<String,MNode> c = children;
+        if (c == null) return super.iterator ();
+        return new IteratorWrapper (new ArrayList<String> (c.keySet ()));  // Snapshot the keys, so the iterator is stable even if children are added or removed.
     }
 }
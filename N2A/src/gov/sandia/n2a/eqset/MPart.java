@@ -155,6 +155,7 @@ public class MPart extends MNode
                 }
             }
 
+            dependsOn (parentName, parentSource);
             if (parentSource != null  &&  ! visited.contains (parentSource))
             {
                 underrideChildren (root, parentSource);
@@ -184,6 +185,18 @@ public class MPart extends MNode
         }
     }
 
+    /**
+        Reports a parent document requested during collation to the root of this tree.
+        The base implementation simply forwards to our container. MPartCache overrides
+        this at the root to learn which documents a collated tree depends on.
+        @param parentName The name as it appears in the $inherit line.
+        @param parentSource The document actually retrieved, or null if none was found.
+    **/
+    protected void dependsOn (String parentName, MNode parentSource)
+    {
+        if (container != null) container.dependsOn (parentName, parentSource);
+    }
+
     /**
         Injects inherited equations at this node.
         Handles recursion down our containment hierarchy.
@@ -0,0 +1,324 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.eqset;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import gov.sandia.n2a.db.AppData;
+import gov.sandia.n2a.db.MDoc;
+import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.db.MNodeListener;
+
+/**
+    Retains fully-collated models, so that repeated requests for the same model
+    do not re-expand the entire $inherit hierarchy.
+
+    Each entry records the version of every document that contributed to it, as well as every
+    name it tried to look up. An entry is reused only if all the documents are unchanged.
+    A document with unsaved edits has no usable version, so any entry that depends on it
+    is rebuilt on each request until the document is saved.
+    Changes to the models database as a whole (adds, deletes, renames, changes on disk) arrive
+    through MNodeListener and drop any entries that depend on the affected keys.
+
+    The trees returned by get() are shared, so callers must treat them as read-only.
+    A caller that needs to make local changes should use view() instead, which gives
+    a private copy-on-write layer over the shared tree. Code that edits a model
+    (as opposed to merely reading it) should continue to construct its own MPart.
+**/
+public class MPartCache
+{
+    public static int capacity = 100;  ///< Maximum number of collated models to retain. Each entry pins its source documents in memory.
+
+    protected static Map<MNode,Collated> cache = new LinkedHashMap<MNode,Collated> (16, 0.75f, true)  // access order, so least-recently-used is eldest
+    {
+        protected boolean removeEldestEntry (Entry<MNode,Collated> eldest)
+        {
+            return size () > capacity;
+        }
+    };
+    protected static boolean listening;
+
+    /**
+        Returns a collated tree for the given document.
+        The result may be shared with other callers, so it must not be modified.
+    **/
+    public static MPart get (MNode doc)
+    {
+        if (! (doc instanceof MDoc)) return new MPart (doc);  // Can't track versions, so don't cache.
+        listen ();
+
+        Collated result;
+        synchronized (cache)
+        {
+            result = cache.get (doc);
+        }
+        if (result != null  &&  result.current ()) return result;
+
+        // Collate outside the lock. Collation touches other documents, and those may fire
+        // events back into our listener while holding their own locks.
+        result = new Collated (doc);
+        synchronized (cache)
+        {
+            cache.put (doc, result);
+        }
+        return result;
+    }
+
+    /**
+        Returns a private copy-on-write view of the collated tree for the given document.
+        Changes made to the view are held in memory and never reach the shared tree or
+        any source document.
+    **/
+    public static MNode view (MNode doc)
+    {
+        return new View (null, get (doc), doc.key ());
+    }
+
+    public static void clear ()
+    {
+        synchronized (cache)
+        {
+            cache.clear ();
+        }
+    }
+
+    /**
+        Removes any entries which depend on the given model name.
+    **/
+    public static void clear (String key)
+    {
+        synchronized (cache)
+        {
+            Iterator<Collated> it = cache.values ().iterator ();
+            while (it.hasNext ()) if (it.next ().names.contains (key)) it.remove ();
+        }
+    }
+
+    protected static synchronized void listen ()
+    {
+        if (listening) return;
+        listening = true;
+        AppData.models.addListener (new MNodeListener ()
+        {
+            public void changed ()
+            {
+                clear ();
+            }
+
+            public void childAdded (String key)
+            {
+                clear (key);  // Could resolve a previously missing parent, or hide an existing one.
+            }
+
+            public void childDeleted (String key)
+            {
+                clear (key);
+            }
+
+            public void childChanged (String oldKey, String newKey)
+            {
+                clear (oldKey);
+                clear (newKey);
+            }
+        });
+    }
+
+    /**
+        Root of a collated tree which tracks the documents it was built from.
+        Every node below the root is a plain MPart.
+    **/
+    public static class Collated extends MPart
+    {
+        protected Set<String>    names    = new HashSet<String> ();
+        protected Map<MDoc,Long> versions = new IdentityHashMap<MDoc,Long> ();  // Stamp of each document when first encountered. -1 if it can't be trusted.
+        protected boolean        collating;
+
+        public Collated (MNode source)
+        {
+            super (null, null, source);
+            collating = true;
+            names.add (source.key ());
+            versions.put ((MDoc) source, ((MDoc) source).version ());
+
+            underrideChildren (null, source);
+            expand ();
+            collating = false;
+
+            // If a document changed while we were reading it, our copy may hold only part of the change.
+            // This includes the top document, since resolving IDs may write to it.
+            for (Entry<MDoc,Long> e : versions.entrySet ())
+            {
+                if (e.getKey ().version () != e.getValue ()) e.setValue (-1l);
+            }
+        }
+
+        protected void dependsOn (String parentName, MNode parentSource)
+        {
+            if (! collating) return;  // Any later expansion comes from an edit, which will already have made a document dirty.
+            names.add (parentName);
+            if (parentSource == null) return;
+            names.add (parentSource.key ());  // could differ from parentName if found by ID
+            if (parentSource instanceof MDoc) versions.putIfAbsent ((MDoc) parentSource, ((MDoc) parentSource).version ());
+        }
+
+        /**
+            Determines whether every document that contributed to this tree is unchanged.
+        **/
+        public boolean current ()
+        {
+            for (Entry<MDoc,Long> e : versions.entrySet ())
+            {
+                long v = e.getValue ();
+                if (v < 0  ||  e.getKey ().version () != v) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+        Copy-on-write layer over an arbitrary read-only tree.
+        Reads pass through to the base tree until a node is changed locally.
+        A node with no base is one created entirely within the view.
+    **/
+    public static class View extends MNode
+    {
+        protected View                      container;
+        protected MNode                     base;
+        protected String                    name;
+        protected boolean                   overridden;  // value below replaces the one from base
+        protected String                    value;
+        protected NavigableMap<String,View> children;    // wrappers already handed out, along with nodes created in the view
+        protected Set<String>               deleted;     // keys in base which have been cleared in the view
+
+        public View (View container, MNode base, String name)
+        {
+            this.container = container;
+            this.base      = base;
+            this.name      = name;
+        }
+
+        public String key ()
+        {
+            return name;
+        }
+
+        public MNode parent ()
+        {
+            return container;
+        }
+
+        /**
+            @return The node in the shared tree which this node presents, or null if it only exists in the view.
+        **/
+        public MNode getBase ()
+        {
+            return base;
+        }
+
+        protected synchronized MNode getChild (String key)
+        {
+            if (children != null)
+            {
+                View result = children.get (key);
+                if (result != null) return result;
+            }
+            if (base == null) return null;
+            if (deleted != null  &&  deleted.contains (key)) return null;
+            MNode b = base.child (key);
+            if (b == null) return null;
+            View result = new View (this, b, key);
+            if (children == null) children = new TreeMap<String,View> (comparator);
+            children.put (key, result);
+            return result;
+        }
+
+        protected synchronized void clearChild (String key)
+        {
+            if (children != null) children.remove (key);
+            if (base != null  &&  base.child (key) != null)
+            {
+                if (deleted == null) deleted = new HashSet<String> ();
+                deleted.add (key);
+            }
+        }
+
+        public synchronized int size ()
+        {
+            return keys ().size ();
+        }
+
+        public synchronized boolean data ()
+        {
+            if (overridden) return value != null;
+            return base != null  &&  base.data ();
+        }
+
+        public synchronized String getOrDefault (String defaultValue)
+        {
+            if (! overridden)
+            {
+                if (base == null) return defaultValue;
+                return base.getOrDefault (defaultValue);
+            }
+            if (value == null  ||  value.isEmpty ()) return defaultValue;
+            return value;
+        }
+
+        public synchronized void set (String value)
+        {
+            overridden = true;
+            this.value = value;
+        }
+
+        public synchronized MNode set (String value, String key)
+        {
+            View result = (View) getChild (key);
+            if (result == null)
+            {
+                result = new View (this, null, key);
+                if (children == null) children = new TreeMap<String,View> (comparator);
+                children.put (key, result);
+                if (deleted != null) deleted.remove (key);
+            }
+            result.set (value);
+            return result;
+        }
+
+        /**
+            Collects the keys visible in this view, in M order.
+        **/
+        protected synchronized Set<String> keys ()
+        {
+            Set<String> result = new TreeSet<String> (comparator);
+            if (base != null)
+            {
+                for (MNode c : base)
+                {
+                    String key = c.key ();
+                    if (deleted == null  ||  ! deleted.contains (key)) result.add (key);
+                }
+            }
+            if (children != null) result.addAll (children.keySet ());
+            return result;
+        }
+
+        public synchronized Iterator<MNode> iterator ()
+        {
+            return new IteratorWrapper (new ArrayList<String> (keys ()));
+        }
+    }
+}
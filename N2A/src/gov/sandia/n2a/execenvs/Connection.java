@@ -17,7 +17,9 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -30,15 +32,35 @@ import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.execenvs.Host.AnyProcess;
 import gov.sandia.n2a.execenvs.Host.AnyProcessBuilder;
 
+/**
+    Manages a small pool of ssh sessions to one remote host, and hands out channels on them.
+    Each session can carry several channels at once, but most servers cap the number (OpenSSH
+    MaxSessions defaults to 10). Rather than failing when that cap is reached, a caller waits
+    for a channel to be released. Dead sessions are dropped and replaced on demand.
+
+    Pool limits come from host config:
+    <ul>
+    <li>maxSessions -- Number of ssh sessions to open. Default is 1, since each new session may require login.
+    <li>maxChannels -- Number of simultaneous channels per session. Default is 8.
+    <li>keepAlive -- Milliseconds between keep-alive messages. Default is 60000. 0 disables.
+    </ul>
+**/
 public class Connection implements Closeable
 {
-    protected Session        session;
-    protected FileSystem     sshfs;
-    protected ConnectionInfo passwords = new ConnectionInfo ();
-    protected String         hostname;
-    protected String         username;
-    protected int            port;
-    protected String         home;  // Path of user's home directory on remote system. Includes leading slash.
+    protected Session               session;  // The first session in the pool. Not null means we are connected.
+    protected List<Session>         sessions      = new ArrayList<Session> ();
+    protected Map<Session,Integer>  channelCounts = new HashMap<Session,Integer> ();
+    protected int                   pending;  // Number of sessions being opened outside the lock. They count against maxSessions.
+    protected FileSystem            sshfs;
+    protected ConnectionInfo        passwords = new ConnectionInfo ();
+    protected String                hostname;
+    protected String                username;
+    protected int                   port;
+    protected String                home;  // Path of user's home directory on remote system. Includes leading slash.
+    protected int                   maxSessions;
+    protected int                   maxChannels;
+    protected int                   keepAlive;
+    public    Metrics               metrics = new Metrics ();
 
     protected static JSch jsch = new JSch ();
     static
@@ -88,27 +110,229 @@ public class Connection implements Closeable
         port     = config.getOrDefault (22,                               "port");
         home     = config.getOrDefault ("/home/" + username,              "home");
 
+        maxSessions = Math.max (1, config.getOrDefault (1,     "maxSessions"));
+        maxChannels = Math.max (1, config.getOrDefault (8,     "maxChannels"));
+        keepAlive   = Math.max (0, config.getOrDefault (60000, "keepAlive"));
+
         passwords.password = config.get ("password");  // may be empty
     }
 
-    public synchronized void connect () throws JSchException
+    /**
+        Usage statistics for the pool. Times are in milliseconds.
+    **/
+    public static class Metrics
+    {
+        public int    sessions;
+        public int    openChannels;
+        public int    peakChannels;
+        public long   acquired;    // Total number of channels handed out.
+        public long   waited;      // Number of requests that had to queue for a free channel.
+        public double waitTotal;
+        public double waitMax;
+        public double rtt;         // Smoothed time to open a channel, which is one round trip to the server.
+        public int    reconnects;  // Sessions found dead and dropped from the pool.
+
+        public synchronized void updateRTT (double ms)
+        {
+            if (rtt == 0) rtt = ms;
+            else          rtt = 0.875 * rtt + 0.125 * ms;  // Same smoothing as TCP.
+        }
+
+        public synchronized String toString ()
+        {
+            StringBuilder result = new StringBuilder ();
+            result.append ("sessions      = " + sessions + "\n");
+            result.append ("open channels = " + openChannels + " (peak " + peakChannels + ")\n");
+            result.append ("acquired      = " + acquired + "\n");
+            result.append ("queued        = " + waited + "\n");
+            if (waited > 0) result.append (String.format ("queue wait    = %.1f ms average, %.1f ms max\n", waitTotal / waited, waitMax));
+            result.append (String.format ("round trip    = %.1f ms\n", rtt));
+            result.append ("reconnects    = " + reconnects + "\n");
+            return result.toString ();
+        }
+    }
+
+    /**
+        Ensures that at least one live session is in the pool.
+    **/
+    public void connect () throws JSchException
+    {
+        synchronized (this)
+        {
+            while (true)
+            {
+                prune ();
+                if (! sessions.isEmpty ()) return;
+                if (pending == 0) break;
+                // Another thread is already logging in. Wait for its outcome rather than prompting a second time.
+                try {wait (1000);}
+                catch (InterruptedException e) {throw new JSchException ("Interrupted while waiting for ssh session");}
+            }
+            pending++;
+        }
+        openSession ();
+    }
+
+    /**
+        Opens a new session and adds it to the pool. The caller must already have counted it in pending.
+        The connection handshake and any login prompts happen without holding the lock, so other threads
+        can keep using existing sessions in the meantime.
+    **/
+    protected Session openSession () throws JSchException
+    {
+        Session s = null;
+        try
+        {
+            s = jsch.getSession (username, hostname, port);
+            s.setUserInfo (passwords);
+            if (keepAlive > 0)
+            {
+                s.setServerAliveInterval (keepAlive);
+                s.setServerAliveCountMax (3);
+            }
+            s.connect (30000);
+        }
+        catch (JSchException e)
+        {
+            s = null;
+            throw e;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                pending--;
+                if (s != null)
+                {
+                    // Credentials are now known to be good, so let additional sessions use them without prompting.
+                    passwords.triedPassword   = false;
+                    passwords.triedPassphrase = false;
+
+                    sessions.add (s);
+                    channelCounts.put (s, 0);
+                    session = sessions.get (0);
+                    synchronized (metrics) {metrics.sessions = sessions.size ();}
+                }
+                notifyAll ();
+            }
+        }
+        return s;
+    }
+
+    /**
+        Health check. Drops any session that is no longer connected. Channels still open on it
+        are dead as well, so they no longer count against the limit.
+    **/
+    protected synchronized void prune ()
+    {
+        Iterator<Session> it = sessions.iterator ();
+        while (it.hasNext ())
+        {
+            Session s = it.next ();
+            if (s.isConnected ()) continue;
+            it.remove ();
+            Integer count = channelCounts.remove (s);
+            synchronized (metrics)
+            {
+                metrics.reconnects++;
+                if (count != null) metrics.openChannels -= count;
+            }
+        }
+        if (sessions.isEmpty ()) session = null;
+        else                     session = sessions.get (0);
+        synchronized (metrics) {metrics.sessions = sessions.size ();}
+    }
+
+    /**
+        Reserves a channel slot on the least-busy session, opening a new session if all are full and
+        the pool has room. Otherwise, waits for another channel to be released.
+        The caller must open exactly one channel on the returned session, and call release() when done with it.
+    **/
+    public Session acquire () throws JSchException
     {
-        if (session != null  &&  session.isConnected ()) return;
+        long start = System.nanoTime ();
+        boolean queued = false;
+        while (true)
+        {
+            boolean open = false;
+            synchronized (this)
+            {
+                prune ();
+                Session best      = null;
+                int     bestCount = maxChannels;
+                for (Session s : sessions)
+                {
+                    int count = channelCounts.get (s);
+                    if (count < bestCount)
+                    {
+                        best      = s;
+                        bestCount = count;
+                    }
+                }
+                if (best == null  &&  sessions.size () + pending < maxSessions  &&  (pending == 0  ||  ! sessions.isEmpty ()))
+                {
+                    // Only one login at a time until some session has succeeded, so the user sees at most one prompt.
+                    pending++;
+                    open = true;
+                }
+                else if (best != null)
+                {
+                    channelCounts.put (best, channelCounts.get (best) + 1);
+                    synchronized (metrics)
+                    {
+                        metrics.acquired++;
+                        metrics.openChannels++;
+                        metrics.peakChannels = Math.max (metrics.peakChannels, metrics.openChannels);
+                        if (queued)
+                        {
+                            double wait = (System.nanoTime () - start) / 1e6;
+                            metrics.waited++;
+                            metrics.waitTotal += wait;
+                            metrics.waitMax = Math.max (metrics.waitMax, wait);
+                        }
+                    }
+                    return best;
+                }
+                else
+                {
+                    queued = true;
+                    try {wait (1000);}  // Timeout lets us re-check for dead sessions.
+                    catch (InterruptedException e) {throw new JSchException ("Interrupted while waiting for ssh channel");}
+                }
+            }
 
-        session = jsch.getSession (username, hostname, port);
-        session.setUserInfo (passwords);
-        session.connect (30000);
+            // The new session goes into the pool, and the next pass claims a channel on it (or on whatever is least busy by then).
+            if (open) openSession ();
+        }
+    }
+
+    public synchronized void release (Session s)
+    {
+        Integer count = channelCounts.get (s);
+        if (count == null) return;  // Session was already pruned.
+        channelCounts.put (s, count - 1);
+        synchronized (metrics) {metrics.openChannels--;}
+        notifyAll ();
     }
 
     public synchronized void close ()
     {
-        if (session != null  &&  session.isConnected ()) session.disconnect ();
+        for (Session s : sessions) if (s.isConnected ()) s.disconnect ();
+        sessions.clear ();
+        channelCounts.clear ();
         session = null;
+        synchronized (metrics)
+        {
+            metrics.sessions     = 0;
+            metrics.openChannels = 0;
+        }
+        notifyAll ();
     }
 
     public synchronized boolean isConnected ()
     {
-        return  session != null  &&  session.isConnected ();
+        for (Session s : sessions) if (s.isConnected ()) return true;
+        return false;
     }
 
     /**
@@ -116,16 +340,19 @@ public class Connection implements Closeable
         is the user's home. Absolute paths are with respect to the usual root directory.
         @throws JSchException
     **/
-    public synchronized FileSystem getFileSystem () throws Exception
+    public FileSystem getFileSystem () throws Exception
     {
-        connect ();
-        if (sshfs == null)
+        connect ();  // outside the lock, since this may need to log in
+        synchronized (this)
         {
-            Map<String,Object> env = new HashMap<String,Object> ();
-            env.put ("connection", this);
-            sshfs = FileSystems.newFileSystem (new URI ("ssh://" + hostname + home), env);
+            if (sshfs == null)
+            {
+                Map<String,Object> env = new HashMap<String,Object> ();
+                env.put ("connection", this);
+                sshfs = FileSystems.newFileSystem (new URI ("ssh://" + hostname + home), env);
+            }
+            return sshfs;
         }
-        return sshfs;
     }
 
     public RemoteProcessBuilder build (String... command)
@@ -184,14 +411,24 @@ public class Connection implements Closeable
             // One thing that makes it confusing is that the JSch does not pair get/set methods.
             // For example, getOutputStream() and setOutputStream() do not actually connect the same stream.
             // Instead, getOutputStream() connects stdout, while setOutputStream() connects stdin.
-            if (fileIn == null)  process.stdin = process.channel.getOutputStream ();
-            else                 process.channel.setInputStream (Files.newInputStream (fileIn));
-            if (fileOut == null) process.stdout = process.channel.getInputStream ();
-            else                 process.channel.setOutputStream (Files.newOutputStream (fileOut));
-            if (fileErr == null) process.stderr = process.channel.getErrStream ();
-            else                 process.channel.setErrStream (Files.newOutputStream (fileErr));
-
-            process.channel.connect ();  // This actually starts the remote process.
+            try
+            {
+                if (fileIn == null)  process.stdin = process.channel.getOutputStream ();
+                else                 process.channel.setInputStream (Files.newInputStream (fileIn));
+                if (fileOut == null) process.stdout = process.channel.getInputStream ();
+                else                 process.channel.setOutputStream (Files.newOutputStream (fileOut));
+                if (fileErr == null) process.stderr = process.channel.getErrStream ();
+                else                 process.channel.setErrStream (Files.newOutputStream (fileErr));
+
+                long start = System.nanoTime ();
+                process.channel.connect ();  // This actually starts the remote process.
+                metrics.updateRTT ((System.nanoTime () - start) / 1e6);
+            }
+            catch (IOException | JSchException e)
+            {
+                process.close ();  // Give back the channel slot.
+                throw e;
+            }
             return process;
         }
     }
@@ -204,6 +441,7 @@ public class Connection implements Closeable
     public class RemoteProcess extends Process implements AnyProcess
     {
         protected ChannelExec channel;
+        protected Session     channelSession;  // Where our channel slot was reserved.
 
         // The following streams are named from the perspective of the remote process.
         // IE: the stdin of the remote process will receive input from us.
@@ -213,14 +451,28 @@ public class Connection implements Closeable
 
         public RemoteProcess (String command) throws JSchException
         {
-            connect ();
-            synchronized (session) {channel = (ChannelExec) session.openChannel ("exec");}
+            channelSession = acquire ();
+            try
+            {
+                synchronized (channelSession) {channel = (ChannelExec) channelSession.openChannel ("exec");}
+            }
+            catch (JSchException e)
+            {
+                release (channelSession);
+                channelSession = null;
+                throw e;
+            }
             channel.setCommand (command);
         }
 
         public void close ()
         {
             channel.disconnect ();  // OK to call disconnect() multiple times
+            synchronized (this)
+            {
+                if (channelSession != null) release (channelSession);
+                channelSession = null;
+            }
         }
 
         public OutputStream getOutputStream ()
@@ -23,18 +23,25 @@ import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.reflect.Method;
+import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -64,6 +71,7 @@ public abstract class Host
     public MNode              config;                               // Collection of attributes that describe the target, including login information, directory structure and command forms. This should be a direct reference to node in app state, so any changes are recorded.
     public ArrayList<NodeJob> running = new ArrayList<NodeJob> ();  // Jobs that we are actively monitoring because they may still be running.
     public MonitorThread      monitorThread;
+    protected JobScheduler    scheduler;
 
     public    static int                  jobCount  = 0;
     protected static Map<String,Host>     hosts     = new HashMap<String,Host> ();
@@ -191,29 +199,35 @@ public abstract class Host
 
     public static void quit ()
     {
-        Thread shutdownThread = new Thread ("Close Host connections")
+        // Close each connection on its own thread, so that one slow or unresponsive host does not hold up the rest.
+        List<Thread> threads = new ArrayList<Thread> ();
+        for (final Host h : hosts.values ())
         {
-            public void run ()
+            if (! (h instanceof Closeable)) continue;
+            Thread t = new Thread ("Close Host connection " + h.name)
             {
-                for (Host h : hosts.values ())
+                public void run ()
                 {
-                    if (h instanceof Closeable)
-                    {
-                        try {((Closeable) h).close ();}
-                        catch (IOException e) {}
-                    }
+                    try {((Closeable) h).close ();}
+                    catch (IOException e) {}
                 }
-            }
-        };
-        shutdownThread.setDaemon (true);
-        shutdownThread.start ();
+            };
+            t.setDaemon (true);
+            t.start ();
+            threads.add (t);
+        }
 
-        // 500ms is a generous amount of time to wait for graceful shutdown of one connection
-        // Limit total to 3s so that closing the program does not take an absurd amount of time.
-        int waitTime = Math.max (3000, 500 * hosts.size ());
+        // Since connections close in parallel, total wait is about the same as for one connection.
+        // Limit to 3s so that closing the program does not take an absurd amount of time.
+        long deadline = System.currentTimeMillis () + 3000;
         try
         {
-            shutdownThread.join (waitTime);
+            for (Thread t : threads)
+            {
+                long remaining = deadline - System.currentTimeMillis ();
+                if (remaining <= 0) break;
+                t.join (remaining);
+            }
         }
         catch (InterruptedException e) {}
     }
@@ -263,10 +277,19 @@ public abstract class Host
         }
     }
 
+    /**
+        Periodically refreshes the status of running jobs.
+        On a remote host, each sweep gathers status for all jobs in a single call to getJobStatus().
+        On the local host, we also watch each job directory, so a job that starts or finishes
+        is noticed immediately rather than at the next sweep.
+    **/
     public class MonitorThread extends Thread
     {
         public boolean stop;
 
+        protected WatchService          watcher;
+        protected Map<WatchKey,NodeJob> watched = new HashMap<WatchKey,NodeJob> ();
+
         public MonitorThread ()
         {
             super ("Monitor " + name);
@@ -274,41 +297,134 @@ public abstract class Host
 
         public void run ()
         {
+            if (! (Host.this instanceof Remote))
+            {
+                try {watcher = FileSystems.getDefault ().newWatchService ();}
+                catch (IOException e) {}
+            }
+
             try
             {
                 // Periodic refresh to show status of running jobs
                 while (! stop)
                 {
                     long startTime = System.currentTimeMillis ();
-                    int i = 0;
-                    while (! stop)
+                    List<NodeJob> jobs;
+                    synchronized (running) {jobs = new ArrayList<NodeJob> (running);}
+
+                    Map<String,JobStatus> status = null;
+                    try {status = getJobStatus (jobs);}
+                    catch (Exception e) {}
+
+                    for (NodeJob job : jobs)
                     {
-                        NodeJob job;
-                        synchronized (running)
+                        if (stop) break;
+                        if (status == null)
+                        {
+                            job.monitorProgress ();
+                        }
+                        else
                         {
-                            if (i >= running.size ()) break;
-                            job = running.get (i);
+                            JobStatus js = status.get (job.getKey ());
+                            if (js == null) js = new JobStatus ();
+                            job.monitorProgress (js);
                         }
-                        job.monitorProgress ();
-                        if (job.complete >= 1  &&  job.complete != 3  ||  job.deleted)
+                        if (job.isDone ()  ||  job.deleted)
                         {
-                            // If necessary, we can use a more efficient method to remove
-                            // the element (namely, overwrite the ith element with the back element).
-                            synchronized (running) {running.remove (i);}
+                            synchronized (running) {running.remove (job);}
+                            unwatch (job);
+                            if (job.deleted) jobFinished (job.getSource ());  // A deleted job is never seen to finish, so release its reservation here.
                         }
                         else
                         {
-                            i++;
+                            watch (job);
                         }
                     }
+
                     long duration = System.currentTimeMillis () - startTime;
                     long wait = 20000 - duration;  // target is 20 seconds between starts
-                    if (wait > 1000) sleep (wait);
+                    if (wait > 1000) waitForEvents (wait);
                 }
             }
             catch (InterruptedException e)
             {
             }
+            finally
+            {
+                if (watcher != null)
+                {
+                    try {watcher.close ();}
+                    catch (IOException e) {}
+                }
+            }
+        }
+
+        public void watch (NodeJob job)
+        {
+            if (watcher == null  ||  watched.containsValue (job)) return;
+            try
+            {
+                Path localJobDir = getJobDir (getLocalResourceDir (), job.getSource ());
+                WatchKey key = localJobDir.register (watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watched.put (key, job);
+            }
+            catch (IOException e) {}
+        }
+
+        public void unwatch (NodeJob job)
+        {
+            if (watcher == null) return;
+            Iterator<Entry<WatchKey,NodeJob>> it = watched.entrySet ().iterator ();
+            while (it.hasNext ())
+            {
+                Entry<WatchKey,NodeJob> e = it.next ();
+                if (e.getValue () != job) continue;
+                e.getKey ().cancel ();
+                it.remove ();
+            }
+        }
+
+        /**
+            Sleeps for the given time, unless one of the watched jobs changes state first.
+            Only the state files are of interest. Output files change constantly during a run,
+            and the focused job is already refreshed at a faster rate by PanelRun.
+        **/
+        public void waitForEvents (long wait) throws InterruptedException
+        {
+            if (watcher == null)
+            {
+                sleep (wait);
+                return;
+            }
+
+            long deadline = System.currentTimeMillis () + wait;
+            while (! stop)
+            {
+                long remaining = deadline - System.currentTimeMillis ();
+                if (remaining <= 0) break;
+                WatchKey key = watcher.poll (remaining, TimeUnit.MILLISECONDS);
+                if (key == null) break;
+
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents ())
+                {
+                    Object context = event.context ();
+                    if (context == null) continue;
+                    String fileName = context.toString ();
+                    if (fileName.equals ("started")  ||  fileName.equals ("finished")) changed = true;
+                }
+                key.reset ();
+
+                NodeJob job = watched.get (key);
+                if (! changed  ||  job == null) continue;
+                job.monitorProgress ();
+                if (job.isDone ()  ||  job.deleted)
+                {
+                    synchronized (running) {running.remove (job);}
+                    unwatch (job);
+                    if (job.deleted) jobFinished (job.getSource ());
+                }
+            }
         }
     }
 
@@ -334,11 +450,74 @@ public abstract class Host
         return new JPanel ();
     }
 
+    /**
+        @return The scheduler that admits jobs to this host, or null if this host does not use one.
+        Only local hosts have a scheduler. Remote hosts generally have their own queue, or are shared with
+        other users so that we cannot account for all their resources.
+    **/
+    public synchronized JobScheduler getScheduler ()
+    {
+        if (this instanceof Remote) return null;
+        if (scheduler == null) scheduler = new JobScheduler (this);
+        return scheduler;
+    }
+
+    /**
+        Notifies this host that the given job is no longer running, so any resources reserved for it can be reused.
+    **/
+    public synchronized void jobFinished (MNode job)
+    {
+        if (scheduler != null) scheduler.release (job);
+    }
+
     public abstract boolean           isActive       (MNode job)                 throws Exception;  // check if the given job is active
     public abstract List<ProcessInfo> getActiveProcs ()                          throws Exception;  // enumerate all of our active jobs
     public abstract void              submitJob      (MNode job, String command) throws Exception;
     public abstract void              killJob        (MNode job, boolean force)  throws Exception;
 
+    /**
+        Stops several jobs at once. A host that runs jobs through a scheduler can override this
+        to issue a single command for all of them.
+    **/
+    public void killJobs (List<MNode> jobs, boolean force) throws Exception
+    {
+        for (MNode job : jobs) killJob (job, force);
+    }
+
+    /**
+        Indicates that this host holds submitted jobs in its own queue until resources become available.
+        In that case there is no need to check Backend.canRunNow() before each submission.
+        Such a host may also gather jobs which share the same value in $metadata.remote.batch
+        into a single submission.
+    **/
+    public boolean queuesJobs ()
+    {
+        return false;
+    }
+
+    /**
+        Snapshot of the state files of a job, gathered along with those of many other jobs in one operation.
+        Any field that could not be determined is left at its default value.
+    **/
+    public static class JobStatus
+    {
+        public String finished;    // First line of the "finished" file, or null if the file does not exist.
+        public long   started;     // Modification time of the "started" file, in milliseconds. 0 if the file does not exist.
+        public String tail;        // Last few hundred bytes of Backend.progressFile(), or null if not available. Decompressed if necessary.
+        public byte[] binaryTail;  // If progressFile() is a compressed binary column file, its decoded tail, starting at a record boundary. Otherwise null.
+    }
+
+    /**
+        Collects the state of several jobs in one round trip.
+        This is only worthwhile where each file access is expensive, as on a remote system.
+        @return Map from job key to status. A job with no entry gets treated as if nothing changed.
+        null means that the caller should check each job individually, as done by this default implementation.
+    **/
+    public Map<String,JobStatus> getJobStatus (List<NodeJob> jobs) throws Exception
+    {
+        return null;
+    }
+
     public class ProcessInfo
     {
         public long   pid;
@@ -715,6 +894,16 @@ public abstract class Host
 
     public static void deleteTree (Path start, boolean includeStartDir)
     {
+        if (start.getFileSystem () instanceof SshFileSystem)  // One remote command, rather than a round trip for every file.
+        {
+            try
+            {
+                ((SshFileSystem) start.getFileSystem ()).deleteTree (start, includeStartDir);
+                return;
+            }
+            catch (IOException e) {}  // Fall through to the slow method below.
+        }
+
         // On Windows, the JVM sometimes holds file locks even after we close the file.
         // This can keep us from being able to delete directories.
         // Garbage collection helps reduce this problem, though it does not guarantee success.
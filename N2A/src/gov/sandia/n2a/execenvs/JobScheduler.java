@@ -0,0 +1,388 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.execenvs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import gov.sandia.n2a.db.AppData;
+import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.eqset.MPart;
+import gov.sandia.n2a.execenvs.Host.ProcessInfo;
+
+/**
+    Admits jobs to a local host according to the cores and memory they are expected to need.
+    A caller obtains a Ticket before launching a job, and the host returns the ticket's resources
+    when the job finishes. Callers wait in priority order, and are woken as soon as enough resources
+    come free. Nothing here polls. All decisions are driven by acquire() and release().
+
+    Memory needed by a job is estimated from the peak seen in earlier runs of the same model.
+    Failing that, it is estimated from the number of part instances and variables in the model.
+    Peaks are measured whenever a job is left waiting while others are running.
+
+    Estimating memory and measuring peaks are both slow, since they collate models and spawn processes.
+    They are always done without holding the scheduler's lock, and only their results are published under it.
+**/
+public class JobScheduler
+{
+    public static long   baseMemory       = 32 * 1024 * 1024;  ///< Bytes needed by a job regardless of model size, for runtime and I/O buffers.
+    public static long   instanceMemory   = 128;               ///< Bytes of overhead for each part instance.
+    public static long   variableMemory   = 16;                ///< Bytes for each variable in each part instance.
+    public static double memoryMargin     = 1.2;               ///< Multiplier applied to the peak memory of a previous run.
+    public static long   sampleInterval   = 10000;             ///< Minimum milliseconds between measurements of running jobs.
+
+    protected Host                  host;
+    protected int                   cores;        // Total available to jobs.
+    protected long                  memory;       // Total bytes available to jobs.
+    protected int                   coresUsed;
+    protected long                  memoryUsed;
+    protected PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket> ();
+    protected Map<String,Ticket>    running = new HashMap<String,Ticket> ();  // Admitted tickets which have been bound to a job, by job key.
+    protected int                   admitted;     // Total number of tickets holding resources, whether bound or not.
+    protected Map<String,Long>      history;      // Peak memory of most recent completed run of each model, by model name.
+    protected long                  sequence;     // Breaks ties in priority, so that equal jobs run in order of arrival.
+    protected long                  lastSample;
+
+    public class Ticket implements Comparable<Ticket>
+    {
+        public    int     priority;  // Larger runs sooner.
+        public    int     cores;
+        public    long    memory;
+        public    String  model;     // Name of the model being run, for looking up history.
+        protected long    order;
+        protected boolean granted;
+        protected boolean cancelled;
+        protected String  jobKey;
+        protected long    pid;
+        protected long    peak;      // Largest memory use observed for the running job.
+
+        public int compareTo (Ticket that)
+        {
+            if (priority != that.priority) return that.priority - priority;
+            return Long.compare (order, that.order);
+        }
+
+        /**
+            Associates this ticket with the job that was launched on it. The resources are then
+            held until release() is called for that job.
+        **/
+        public void bind (MNode job)
+        {
+            synchronized (JobScheduler.this)
+            {
+                jobKey = job.key ();
+                running.put (jobKey, this);
+            }
+        }
+
+        /**
+            Waits until this ticket is either granted or cancelled.
+            @return true if granted.
+        **/
+        public boolean await () throws InterruptedException
+        {
+            synchronized (JobScheduler.this)
+            {
+                while (! granted  &&  ! cancelled) JobScheduler.this.wait ();
+                return granted;
+            }
+        }
+
+        /**
+            Gives up this ticket without launching a job. Wakes any thread in await().
+            Safe to call from any thread, and more than once. Has no effect once the ticket is bound to a job.
+        **/
+        public void cancel ()
+        {
+            synchronized (JobScheduler.this)
+            {
+                if (cancelled  ||  jobKey != null) return;
+                cancelled = true;
+                if (granted) free (this);
+                else         waiting.remove (this);
+                granted = false;
+                schedule ();
+                JobScheduler.this.notifyAll ();
+            }
+        }
+    }
+
+    public JobScheduler (Host host)
+    {
+        this.host = host;
+        cores  = host.config.getOrDefault (host.getProcessorTotal (),                  "scheduler", "cores");
+        memory = host.config.getOrDefault ((long) (host.getMemoryPhysicalTotal () * 0.9), "scheduler", "memory");
+        if (cores  <= 0) cores  = 1;
+        if (memory <= 0) memory = Long.MAX_VALUE;  // Memory size is unknown, so only schedule on cores.
+
+        // Recover peak memory of earlier runs. Keys are in chronological order, so later runs replace earlier ones.
+        history = new HashMap<String,Long> ();
+        for (MNode entry : AppData.runIndex)
+        {
+            long peak = entry.getOrDefault (0l, "memory");
+            if (peak > 0) history.put (entry.get ("model"), peak);
+        }
+    }
+
+    /**
+        Places a request in line for resources. Use Ticket.await() to wait until it is granted.
+        @param model The fully-specified model that will be run. Used to estimate resources.
+        @param priority Jobs with larger values are admitted first. Equal priorities are admitted in order of arrival.
+    **/
+    public Ticket request (MNode model, int priority)
+    {
+        Ticket t = createTicket (model, priority);
+        synchronized (this)
+        {
+            t.order = sequence++;
+            waiting.add (t);
+            schedule ();
+        }
+        sample ();
+        return t;
+    }
+
+    /**
+        Waits until there are enough resources to run the given model, then reserves them.
+        @return The granted ticket, or null if it was cancelled by another thread.
+        @throws InterruptedException If the calling thread is interrupted while waiting. Nothing is reserved in that case.
+    **/
+    public Ticket acquire (MNode model, int priority) throws InterruptedException
+    {
+        Ticket t = request (model, priority);
+        try
+        {
+            if (t.await ()) return t;
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            t.cancel ();
+            throw e;
+        }
+    }
+
+    /**
+        Reserves resources for the given model only if they are available immediately and no other job is waiting.
+        @return The ticket, or null if the job would have to wait.
+    **/
+    public Ticket tryAcquire (MNode model, int priority)
+    {
+        Ticket t = createTicket (model, priority);
+        synchronized (this)
+        {
+            if (! waiting.isEmpty ()  ||  ! fits (t)) return null;
+            t.order = sequence++;
+            grant (t);
+            return t;
+        }
+    }
+
+    /**
+        Reserves resources for a job that must start right away, such as a run requested directly by the user.
+        The job is admitted even if that overcommits the host, and the ticket is bound to it.
+    **/
+    public Ticket admit (MNode job)
+    {
+        Ticket t = createTicket (job, Integer.MAX_VALUE);
+        synchronized (this)
+        {
+            t.order = sequence++;
+            grant (t);
+            t.bind (job);
+            return t;
+        }
+    }
+
+    /**
+        Returns the resources held by the given job, and admits any waiting jobs that now fit.
+        Does nothing if the job was not launched through this scheduler.
+    **/
+    public void release (MNode job)
+    {
+        release (job.key ());
+        sample ();
+    }
+
+    protected void release (String jobKey)
+    {
+        long peak;
+        synchronized (this)
+        {
+            Ticket t = running.remove (jobKey);
+            if (t == null) return;
+            peak = t.peak;
+            if (peak > 0) history.put (t.model, peak);
+            free (t);
+            schedule ();
+        }
+        if (peak > 0)
+        {
+            MNode entry = AppData.runIndex.child (jobKey);
+            if (entry != null) entry.set (peak, "memory");
+        }
+    }
+
+    /**
+        Fills in a new ticket, including its memory estimate. Called without holding our lock.
+        The caller assigns order once it holds the lock.
+    **/
+    protected Ticket createTicket (MNode model, int priority)
+    {
+        Ticket t = new Ticket ();
+        t.priority = priority;
+        t.model    = model.getOrDefault (model.key (), "$inherit").split (",", 2)[0].replace ("\"", "");
+        t.cores    = Math.max (1, model.getOrDefault (1, "$metadata", "cores"));
+        t.memory   = estimateMemory (t.model, model);
+        return t;
+    }
+
+    protected boolean fits (Ticket t)
+    {
+        if (admitted == 0) return true;  // A job that is too big for the host still gets to run, just not alongside anything else.
+        return  coresUsed + t.cores <= cores  &&  memoryUsed + t.memory <= memory;
+    }
+
+    protected void grant (Ticket t)
+    {
+        t.granted = true;
+        coresUsed  += t.cores;
+        memoryUsed += t.memory;
+        admitted++;
+    }
+
+    protected void free (Ticket t)
+    {
+        coresUsed  -= t.cores;
+        memoryUsed -= t.memory;
+        admitted--;
+    }
+
+    /**
+        Admits waiting tickets in priority order, for as long as the head of the queue fits.
+        Strict ordering ensures that a large job is not starved by a stream of small ones.
+    **/
+    protected void schedule ()
+    {
+        boolean changed = false;
+        while (! waiting.isEmpty ()  &&  fits (waiting.peek ()))
+        {
+            grant (waiting.poll ());
+            changed = true;
+        }
+        if (changed) notifyAll ();
+    }
+
+    /**
+        Measures the memory actually in use by running jobs. Each ticket's reservation is raised
+        to match, so the accounting tracks jobs that turn out to be larger than estimated.
+        The peak is kept for estimating the next run of the same model.
+        A ticket whose process is no longer listed is released.
+        Only does the work if some job is waiting and enough time has passed since the last measurement.
+        Must be called without holding our lock.
+    **/
+    protected void sample ()
+    {
+        List<Ticket> tickets;
+        synchronized (this)
+        {
+            if (running.isEmpty ()  ||  waiting.isEmpty ()  ||  fits (waiting.peek ())) return;
+            long now = System.currentTimeMillis ();
+            if (now - lastSample < sampleInterval) return;
+            lastSample = now;  // Claim this sample, so other threads don't start one too.
+            tickets = new ArrayList<Ticket> (running.values ());
+        }
+
+        // Look up any missing pids. The job records are read without our lock.
+        long[] jobPids = new long[tickets.size ()];
+        for (int i = 0; i < jobPids.length; i++)
+        {
+            Ticket t = tickets.get (i);
+            long pid;
+            synchronized (this) {pid = t.pid;}
+            if (pid == 0)
+            {
+                MNode job = AppData.runs.child (t.jobKey);
+                if (job != null) pid = job.getOrDefault (0l, "$metadata", "pid");
+            }
+            jobPids[i] = pid;
+        }
+
+        // Listed after the pids are known, so that a missing pid really means the process has exited.
+        List<ProcessInfo> procs;
+        try {procs = host.getActiveProcs ();}
+        catch (Exception e) {return;}
+        Map<Long,ProcessInfo> pids = new HashMap<Long,ProcessInfo> ();
+        for (ProcessInfo info : procs) pids.put (info.pid, info);
+
+        List<String> exited = new ArrayList<String> ();
+        synchronized (this)
+        {
+            for (int i = 0; i < jobPids.length; i++)
+            {
+                Ticket t = tickets.get (i);
+                if (running.get (t.jobKey) != t) continue;  // Released while we were measuring.
+                t.pid = jobPids[i];
+                ProcessInfo info = pids.get (t.pid);
+                if (info == null)
+                {
+                    // The process is gone, but nobody told us. This happens if the job was deleted
+                    // or its monitor missed the end. Either way, the reservation must not outlive it.
+                    if (t.pid != 0) exited.add (t.jobKey);
+                    continue;
+                }
+                t.peak = Math.max (t.peak, info.memory);
+                if (t.peak > t.memory)
+                {
+                    memoryUsed += t.peak - t.memory;
+                    t.memory = t.peak;
+                }
+            }
+        }
+        for (String jobKey : exited) release (jobKey);
+    }
+
+    /**
+        Guesses the peak memory for a run of the given model.
+        @param name Name of the model, for looking up previous runs.
+        @param model Must already be collated, as every job and study sample is. We don't expand it again here.
+    **/
+    public long estimateMemory (String name, MNode model)
+    {
+        Long peak;
+        synchronized (this) {peak = history.get (name);}
+        if (peak != null) return (long) (peak * memoryMargin);
+        return baseMemory + (long) countMemory (model, 1);
+    }
+
+    /**
+        Sums the memory for all instances of parts below the given node.
+        Population sizes are taken from $n when it is a constant. Otherwise, one instance is assumed.
+        @param n Number of instances of the given part.
+    **/
+    public static double countMemory (MNode part, double n)
+    {
+        double result = 0;
+        for (MNode c : part)
+        {
+            if (! MPart.isPart (c)) continue;
+            double count = 1;
+            try {count = Math.max (1, Double.parseDouble (c.get ("$n")));}
+            catch (NumberFormatException e) {}
+            count *= n;
+
+            int variables = 0;
+            for (MNode v : c) if (! MPart.isPart (v)) variables++;
+            result += count * (instanceMemory + variables * variableMemory);
+            result += countMemory (c, count);
+        }
+        return result;
+    }
+}
@@ -9,17 +9,49 @@ package gov.sandia.n2a.execenvs;
 import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.plugins.extpoints.Backend;
 
+import gov.sandia.n2a.ui.jobs.NodeJob;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
     Wraps access to a system that runs jobs via slurm.
+
+    Jobs that carry $metadata.remote.batch (such as the samples of a study) are not submitted
+    one at a time. Instead, they collect briefly and go out together as a single job array.
+    Each task in the array runs the n2a_job script in its own job directory, so the rest of the
+    system sees them exactly like individually submitted jobs. The array ID is stored in
+    $metadata.pid and the task index in $metadata.remote.task.
 **/
 public class RemoteSlurm extends RemoteUnix
 {
+    public static long arrayDelay     = 2000;   ///< Milliseconds without a new submission before a partial array is sent.
+    public static long arrayMaxWait   = 30000;  ///< Longest time any submission waits for its array to fill.
+    public static long queueLifetime  = 10000;  ///< Milliseconds during which a listing of the slurm queue is considered current.
+
+    protected Map<String,Batch> pending = new HashMap<String,Batch> ();  // Jobs waiting to go out in an array, grouped by the sbatch options they require.
+    protected Set<String>       submitting = new HashSet<String> ();  // Keys of jobs taken from pending but not yet given a pid by sbatch. Guarded by pending.
+    protected long              lastSubmit;  // Time of most recent addition to pending.
+    protected Thread            arrayThread;
+    protected Set<String>       queue;       // Job IDs listed by squeue, with array tasks expanded as "array_task".
+    protected long              queueTime;
+
+    protected static class Batch
+    {
+        public List<MNode> jobs = new ArrayList<MNode> ();
+        public long        first;  // Time when oldest job was added.
+    }
+
     public static Factory factory ()
     {
         return new Factory ()
@@ -43,21 +75,109 @@ public class RemoteSlurm extends RemoteUnix
 
     @Override
     public boolean isActive (MNode job) throws Exception
+    {
+        String id = getJobID (job);
+        if (id == null)
+        {
+            synchronized (pending)
+            {
+                if (submitting.contains (job.key ())) return true;
+                for (Batch b : pending.values ()) if (b.jobs.contains (job)) return true;
+            }
+            return false;
+        }
+        return getQueue ().contains (id);
+    }
+
+    /**
+        @return The slurm job ID for the given job, in the same form that squeue uses,
+        or null if the job has not been submitted yet.
+    **/
+    public static String getJobID (MNode job)
     {
         long pid = job.getOrDefault (0l, "$metadata", "pid");
-        if (pid == 0) return false;
+        if (pid == 0) return null;
+        String task = job.get ("$metadata", "remote", "task");
+        if (task.isEmpty ()) return String.valueOf (pid);
+        return pid + "_" + task;
+    }
+
+    /**
+        Lists all jobs that slurm still holds for our user, whether pending or running.
+        The listing is shared by every caller within queueLifetime, so that checking many jobs
+        costs only one call to squeue.
+    **/
+    public synchronized Set<String> getQueue () throws Exception
+    {
+        long now = System.currentTimeMillis ();
+        if (queue != null  &&  now - queueTime < queueLifetime) return queue;
+
+        Set<String> result = new HashSet<String> ();
+        try (AnyProcess proc = build ("squeue --array --noheader --format=%i -u " + connection.username).start ();
+             BufferedReader reader = new BufferedReader (new InputStreamReader (proc.getInputStream ())))
+        {
+            String line;
+            while ((line = reader.readLine ()) != null)
+            {
+                line = line.trim ();
+                if (! line.isEmpty ()) result.add (line);
+            }
+        }
+        queue     = result;
+        queueTime = now;
+        return result;
+    }
+
+    /**
+        Supplements the state files with information from slurm itself. A job that has left the queue
+        without writing its "finished" file was most likely ended by the scheduler, for example by
+        hitting its time limit. All such jobs are checked with a single call to sacct.
+    **/
+    @Override
+    public Map<String,JobStatus> getJobStatus (List<NodeJob> jobs) throws Exception
+    {
+        Map<String,JobStatus> result = super.getJobStatus (jobs);
+        if (result == null) return null;
 
-        try (AnyProcess proc = build ("squeue -O JobID --noheader -u " + connection.username).start ();
+        Map<String,JobStatus> unfinished = new HashMap<String,JobStatus> ();  // keyed by slurm job ID
+        for (NodeJob job : jobs)
+        {
+            JobStatus status = result.get (job.getKey ());
+            if (status == null  ||  status.finished != null) continue;
+            String id = getJobID (job.getSource ());
+            if (id != null) unfinished.put (id, status);
+        }
+        if (unfinished.isEmpty ()) return result;
+
+        Set<String> queue = getQueue ();
+        unfinished.keySet ().removeAll (queue);
+        if (unfinished.isEmpty ()) return result;
+
+        String ids = String.join (",", unfinished.keySet ());
+        try (AnyProcess proc = build ("sacct --noheader --parsable2 --allocations --format=JobID,State --jobs=" + ids).start ();
              BufferedReader reader = new BufferedReader (new InputStreamReader (proc.getInputStream ())))
         {
             String line;
             while ((line = reader.readLine ()) != null)
             {
-                long pidListed = Long.parseLong (line);
-                if (pidListed == pid) return true;
+                String[] pieces = line.split ("\\|");
+                if (pieces.length < 2) continue;
+                JobStatus status = unfinished.get (pieces[0].trim ());
+                if (status == null) continue;
+                String state = pieces[1].trim ();
+                if (state.startsWith ("CANCELLED")  ||  state.equals ("TIMEOUT")  ||  state.equals ("PREEMPTED")  ||  state.equals ("DEADLINE"))
+                {
+                    status.finished = "killed";
+                }
+                else if (state.equals ("FAILED")  ||  state.equals ("NODE_FAIL")  ||  state.equals ("OUT_OF_MEMORY")  ||  state.equals ("BOOT_FAIL"))
+                {
+                    status.finished = "failure";
+                }
+                // Anything else (such as COMPLETED) means the job wrote, or is about to write, its own "finished" file.
             }
         }
-        return false;
+        catch (Exception e) {}  // Accounting may be disabled on this cluster. In that case, fall back on the slower checks done by NodeJob.
+        return result;
     }
 
     @Override
@@ -82,6 +202,12 @@ public class RemoteSlurm extends RemoteUnix
         return result;
     }
 
+    @Override
+    public boolean queuesJobs ()
+    {
+        return true;
+    }
+
     @Override
     public void submitJob (MNode job, String command) throws Exception
     {
@@ -97,6 +223,31 @@ public class RemoteSlurm extends RemoteUnix
             + "mpiexec --npernode " + cores + " " + "numa_wrapper --ppn " + cores + " " + command
         );
 
+        if (job.child ("$metadata", "remote", "batch") != null)
+        {
+            // Tasks in one array share a single set of sbatch options, so group by those.
+            synchronized (pending)
+            {
+                lastSubmit = System.currentTimeMillis ();
+                Batch b = pending.get (nodes);
+                if (b == null)
+                {
+                    b = new Batch ();
+                    b.first = lastSubmit;
+                    pending.put (nodes, b);
+                }
+                b.jobs.add (job);
+
+                if (arrayThread == null)
+                {
+                    arrayThread = new ArrayThread ();
+                    arrayThread.start ();
+                }
+                pending.notifyAll ();
+            }
+            return;
+        }
+
         // Note: There may be other sbatch parameters that are worth controlling here.
         try (AnyProcess proc = build (
                 "sbatch",
@@ -130,16 +281,204 @@ public class RemoteSlurm extends RemoteUnix
         }
     }
 
+    /**
+        Collects jobs from pending and sends them as job arrays.
+        Exits once nothing is left to send. submitJob() starts a new one as needed.
+    **/
+    public class ArrayThread extends Thread
+    {
+        public ArrayThread ()
+        {
+            super ("Slurm arrays " + name);
+            setDaemon (true);
+        }
+
+        public void run ()
+        {
+            int arraySize = Math.max (1, config.getOrDefault (1000, "cluster", "arraySize"));  // Slurm's default MaxArraySize is 1001.
+            while (true)
+            {
+                List<List<MNode>> ready = new ArrayList<List<MNode>> ();
+                synchronized (pending)
+                {
+                    if (pending.isEmpty ())
+                    {
+                        arrayThread = null;
+                        return;
+                    }
+
+                    long now = System.currentTimeMillis ();
+                    boolean idle = now - lastSubmit >= arrayDelay;
+                    Iterator<Batch> it = pending.values ().iterator ();
+                    while (it.hasNext ())
+                    {
+                        Batch b = it.next ();
+                        while (b.jobs.size () >= arraySize)
+                        {
+                            List<MNode> chunk = b.jobs.subList (0, arraySize);
+                            ready.add (new ArrayList<MNode> (chunk));
+                            chunk.clear ();
+                            b.first = now;  // Remaining jobs may be a bit older, but they will go out soon enough.
+                        }
+                        if (b.jobs.isEmpty ())
+                        {
+                            it.remove ();
+                        }
+                        else if (idle  ||  now - b.first >= arrayMaxWait)
+                        {
+                            ready.add (b.jobs);
+                            it.remove ();
+                        }
+                    }
+
+                    if (ready.isEmpty ())
+                    {
+                        try {pending.wait (arrayDelay / 4);}
+                        catch (InterruptedException e) {}
+                        continue;
+                    }
+                    for (List<MNode> jobs : ready) for (MNode job : jobs) submitting.add (job.key ());
+                }
+
+                for (List<MNode> jobs : ready) submitArray (jobs);
+            }
+        }
+    }
+
+    /**
+        Sends the given jobs to slurm as one job array. All jobs must require the same sbatch options.
+        The array script is passed to sbatch on stdin, so nothing needs to be cleaned up afterward.
+        If submission fails, each job is marked as failed.
+        Either way, the jobs are removed from the submitting set once their fate is recorded.
+    **/
+    public void submitArray (List<MNode> jobs)
+    {
+        try
+        {
+            submitArrayUnguarded (jobs);
+        }
+        finally
+        {
+            synchronized (pending)
+            {
+                for (MNode job : jobs) submitting.remove (job.key ());
+            }
+        }
+    }
+
+    protected void submitArrayUnguarded (List<MNode> jobs)
+    {
+        MNode first = jobs.get (0);
+        String nodes = first.getOrDefault ("1", "$metadata", "remote", "nodes");
+        String error = null;
+        try
+        {
+            Path jobsDir = getResourceDir ().resolve ("jobs");
+
+            StringBuilder script = new StringBuilder ();
+            script.append ("#!/bin/bash\n");
+            script.append ("JOBS=(\n");
+            for (MNode job : jobs) script.append (quote (jobsDir.resolve (job.key ()))).append ("\n");
+            script.append (")\n");
+            script.append ("JOBDIR=${JOBS[$SLURM_ARRAY_TASK_ID]}\n");
+            script.append ("bash \"$JOBDIR/n2a_job\" > \"$JOBDIR/out\" 2> \"$JOBDIR/err\"\n");
+
+            String array = "--array=0-" + (jobs.size () - 1);
+            String limit = config.get ("cluster", "arrayLimit");  // Maximum number of tasks that slurm should run at the same time.
+            if (! limit.isEmpty ()) array += "%" + limit;
+
+            try (AnyProcess proc = build (
+                    "sbatch",
+                    array,
+                    "--nodes="   + nodes,
+                    "--time=24:00:00",
+                    "--account=" + config.get ("cluster", "account"),
+                    "--job-name=N2A",
+                    "--output=/dev/null").start ())  // Each task redirects its own output into its job dir.
+            {
+                try (OutputStream stdin = proc.getOutputStream ())
+                {
+                    stdin.write (script.toString ().getBytes (StandardCharsets.UTF_8));
+                }
+
+                try (BufferedReader reader = new BufferedReader (new InputStreamReader (proc.getInputStream ())))
+                {
+                    String line;
+                    while ((line = reader.readLine ()) != null)
+                    {
+                        String[] parts = line.split ("job", 2);
+                        if (parts.length != 2) continue;
+                        long pid = Long.parseLong (parts[1].trim ());
+                        for (int i = 0; i < jobs.size (); i++)
+                        {
+                            MNode job = jobs.get (i);
+                            job.set (i,   "$metadata", "remote", "task");
+                            job.set (pid, "$metadata", "pid");
+                        }
+                        synchronized (this) {queue = null;}  // Force a fresh listing, so new tasks don't look dead.
+                        return;
+                    }
+                }
+                error = streamToString (proc.getErrorStream ());
+            }
+        }
+        catch (Exception e)
+        {
+            error = e.toString ();
+        }
+
+        // Failed to enqueue the array
+        for (MNode job : jobs)
+        {
+            try
+            {
+                Path jobDir = getJobDir (getResourceDir (), job);
+                stringToFile (jobDir.resolve ("err"),      "Could not submit job array: " + error);
+                stringToFile (jobDir.resolve ("finished"), "failure");
+            }
+            catch (Exception e) {}
+        }
+    }
+
     @Override
     public void killJob (MNode job, boolean force) throws Exception
     {
-        long pid = job.getOrDefault (0l, "$metadata", "pid");
-        if (pid == 0) return;
+        List<MNode> jobs = new ArrayList<MNode> ();
+        jobs.add (job);
+        killJobs (jobs, force);
+    }
+
+    /**
+        Cancels all the given jobs with one call to scancel.
+        A job that is still waiting to go out in an array is simply dropped.
+    **/
+    @Override
+    public void killJobs (List<MNode> jobs, boolean force) throws Exception
+    {
+        List<String> command = new ArrayList<String> ();
+        command.add ("scancel");
+        if (! force) command.add ("--signal=TERM");
+        int base = command.size ();
+        for (MNode job : jobs)
+        {
+            String id = getJobID (job);
+            if (id != null)
+            {
+                command.add (id);
+                continue;
+            }
+            synchronized (pending)
+            {
+                for (Batch b : pending.values ()) b.jobs.remove (job);
+            }
+        }
+        if (command.size () == base) return;  // Nothing has been submitted yet.
 
-        try (AnyProcess proc = build ("scancel", force ? "" : "-s 15 ", String.valueOf (pid)).start ())
+        try (AnyProcess proc = build (command).start ())
         {
-            proc.wait ();  // To avoid killing the process by closing the channel.
+            proc.waitFor ();  // To avoid killing the process by closing the channel.
         }
+        synchronized (this) {queue = null;}
     }
 
     // Load management is handled by slurm, so the following functions lie about resources
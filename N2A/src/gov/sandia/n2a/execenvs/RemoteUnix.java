@@ -7,24 +7,41 @@ the U.S. Government retains certain rights in this software.
 package gov.sandia.n2a.execenvs;
 
 import java.awt.EventQueue;
+import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.swing.JButton;
 import javax.swing.JLabel;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JTextArea;
 
 import gov.sandia.n2a.db.AppData;
 import gov.sandia.n2a.db.MDoc;
 import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.language.function.ColumnCompression;
+import gov.sandia.n2a.language.function.ColumnReader;
+import gov.sandia.n2a.plugins.extpoints.Backend;
 import gov.sandia.n2a.ui.Lay;
+import gov.sandia.n2a.ui.MainFrame;
 import gov.sandia.n2a.ui.MPasswordField;
 import gov.sandia.n2a.ui.MTextField;
+import gov.sandia.n2a.ui.jobs.NodeJob;
 import gov.sandia.n2a.ui.jobs.PanelRun;
 
 /**
@@ -120,13 +137,28 @@ public class RemoteUnix extends Unix implements Remote
             }
         });
 
+        JButton buttonMetrics = new JButton ("Connection Statistics");
+        buttonMetrics.addActionListener (new ActionListener ()
+        {
+            public void actionPerformed (ActionEvent e)
+            {
+                String message = "Not connected";
+                if (connection != null) message = connection.metrics.toString ();
+                JTextArea area = new JTextArea (message);
+                area.setEditable (false);
+                area.setFont (new Font (Font.MONOSPACED, Font.PLAIN, area.getFont ().getSize ()));
+                JOptionPane.showMessageDialog (MainFrame.instance, area, name, JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+
         panel = Lay.BL ("N",
             Lay.BxL ("V",
                 Lay.BL ("W", Lay.FL ("H", new JLabel ("Address"), new MTextField (config, "address", name))),
                 Lay.BL ("W", Lay.FL ("H", new JLabel ("Username"), new MTextField (config, "username", System.getProperty ("user.name")))),
                 Lay.BL ("W", Lay.FL ("H", new JLabel ("Password"), new MPasswordField (config, "password"))),
                 Lay.BL ("W", Lay.FL ("H", new JLabel ("<html>WARNING: Passoword is stored in plain text.<br>If this is a security concern, then you can leave the field blank.<br>You will be prompted for a password once per session.<br>That password will only be held in volatile memory.</html>"))),
-                Lay.BL ("W", Lay.FL ("H", buttonRestart, buttonZombie))
+                Lay.BL ("W", Lay.FL ("H", new JLabel ("Sessions"), new MTextField (config, "maxSessions", "1"), new JLabel ("Channels per session"), new MTextField (config, "maxChannels", "8"))),
+                Lay.BL ("W", Lay.FL ("H", buttonRestart, buttonZombie, buttonMetrics))
             )
         );
         return panel;
@@ -189,6 +221,140 @@ public class RemoteUnix extends Unix implements Remote
         return connection.build (command);
     }
 
+    /**
+        Gathers the state files of all the given jobs with a single remote command.
+        The script is sent to the shell on stdin, since a command line has limited length.
+        The output consists of one record per job, each introduced by a line holding
+        a record separator character (octal 036) followed by the job key. The next line
+        is the content of "finished" prefixed by +, or empty if there is no such file.
+        The line after that is the modification time of "started" in seconds, or 0.
+        The last line of the record gives the first few bytes of the backend's progress file in hex,
+        followed by a byte count. Exactly that many bytes from the end of the file come next.
+        The count makes the framing independent of the content, which need not be text.
+    **/
+    @Override
+    public Map<String,JobStatus> getJobStatus (List<NodeJob> jobs) throws Exception
+    {
+        Map<String,JobStatus> result = new HashMap<String,JobStatus> ();
+        if (jobs.isEmpty ()) return result;
+        if (! isConnected ()  &&  ! isEnabled ()) return result;  // Don't force a connection. The jobs will simply be checked on a later sweep.
+
+        // The whole script is one compound command, so the shell reads all of stdin before producing
+        // any output. Otherwise a full stdout could stall the shell while we are still writing.
+        StringBuilder script = new StringBuilder ();
+        script.append ("{\n");
+        script.append ("cd " + quote (getResourceDir ().resolve ("jobs")) + " || exit 1\n");
+        // Function t prints a line with the first 4 bytes of the file in hex and the length of the tail that follows.
+        // A compressed file gets a longer tail, so it is likely to span a flush point, plus a third field
+        // with the first 4 bytes of the decompressed content, which reveals whether it holds binary columns.
+        // Pad with zeroes in case the file shrinks between wc and tail, so the count is always honored.
+        script.append ("t () { if [ -f \"$1\" ]; then h=$(head -c 4 \"$1\" | od -An -tx1 | tr -d ' \\n'); n=$(($(wc -c < \"$1\"))); m=1024; u=; "
+                     + "case $h in 1f8b*) m=65536; u=$(gzip -dc \"$1\" 2>/dev/null | head -c 4 | od -An -tx1 | tr -d ' \\n');; esac; "
+                     + "[ $n -gt $m ] && n=$m; echo \"$h $n $u\"; { tail -c $n \"$1\"; cat /dev/zero; } | head -c $n; else echo '- 0'; fi; }\n");
+        for (NodeJob job : jobs)
+        {
+            String key = job.getKey ();
+            if (key.contains ("'")) continue;  // Can't be safely quoted. Never happens with generated keys.
+            String dir = "'" + key + "'";
+            script.append ("printf '\\036%s\\n' " + dir + "\n");
+            script.append ("[ -f " + dir + "/finished ] && printf '+%s' \"$(head -n 1 " + dir + "/finished)\"; echo\n");
+            script.append ("stat -c %Y " + dir + "/started 2>/dev/null || stat -f %m " + dir + "/started 2>/dev/null || echo 0\n");
+
+            MNode source = job.getSource ();
+            String progress = Backend.getBackend (source.get ("$metadata", "backend")).progressFile (source);
+            if (progress == null  ||  progress.contains ("'")) script.append ("echo '- 0'\n");
+            else                                               script.append ("t " + dir + "/'" + progress + "'\n");
+        }
+        script.append ("}\n");
+
+        try (AnyProcess proc = build ("sh").start ())
+        {
+            try (OutputStream stdin = proc.getOutputStream ())
+            {
+                stdin.write (script.toString ().getBytes (StandardCharsets.UTF_8));
+            }
+
+            InputStream stream = new BufferedInputStream (proc.getInputStream ());
+            String line;
+            while ((line = readLine (stream)) != null)
+            {
+                if (! line.startsWith ("\036")) continue;  // Lost sync, so skip ahead to the next record.
+                JobStatus status = new JobStatus ();
+                result.put (line.substring (1), status);
+
+                line = readLine (stream);
+                if (line == null) break;
+                if (line.startsWith ("+")) status.finished = line.substring (1);
+
+                line = readLine (stream);
+                if (line == null) break;
+                try {status.started = Long.parseLong (line.trim ()) * 1000;}
+                catch (NumberFormatException e) {}
+
+                line = readLine (stream);
+                if (line == null) break;
+                String[] pieces = line.trim ().split (" +");
+                int count = 0;
+                if (pieces.length >= 2)
+                {
+                    try {count = Integer.parseInt (pieces[1]);}
+                    catch (NumberFormatException e) {}
+                }
+                byte[] tail = new byte[count];
+                int received = 0;
+                while (received < count)
+                {
+                    int n = stream.read (tail, received, count - received);
+                    if (n < 0) break;
+                    received += n;
+                }
+                if (received < count) break;
+                if (count == 0) continue;
+
+                if (startsWith (pieces[0], ColumnCompression.magic))
+                {
+                    byte[] decoded = ColumnCompression.tail (tail, 0, count);
+                    if (decoded == null) continue;
+                    if (pieces.length > 2  &&  startsWith (pieces[2], ColumnReader.magic)) status.binaryTail = decoded;
+                    else  // The tail starts at a row boundary. The extra newline keeps the first row from being treated as partial.
+                        status.tail = "\n" + new String (decoded, StandardCharsets.UTF_8);
+                }
+                else if (! startsWith (pieces[0], ColumnReader.magic))  // An uncompressed binary tail doesn't start at a record boundary, so it can't be used.
+                {
+                    status.tail = new String (tail, StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+        Determines whether the first few bytes of a file, given in hex as printed by od, match the given magic number.
+    **/
+    protected static boolean startsWith (String head, byte[] magic)
+    {
+        String hex = "";
+        for (byte b : magic) hex += String.format ("%02x", b);
+        return head.startsWith (hex);
+    }
+
+    /**
+        Reads bytes up to the next newline and returns them as a string, without the newline.
+        @return null at end of stream.
+    **/
+    protected static String readLine (InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream ();
+        int c;
+        while ((c = stream.read ()) >= 0)
+        {
+            if (c == '\n') return line.toString ("UTF-8");
+            line.write (c);
+        }
+        if (line.size () == 0) return null;
+        return line.toString ("UTF-8");
+    }
+
     @Override
     public Path getResourceDir () throws Exception
     {
@@ -6,35 +6,76 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.execenvs;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.URI;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.FileStoreAttributeView;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jzlib.GZIPInputStream;
+
+import gov.sandia.n2a.execenvs.Host.AnyProcess;
+import gov.sandia.n2a.execenvs.Host.CopyProgress;
+import gov.sandia.n2a.execenvs.SshFileSystemProvider.SshFileAttributes;
 
 public class SshFileSystem extends FileSystem
 {
     protected URI          uri;  // For convenience in answering Path.getURI() call.
     protected Connection   connection;
     protected ChannelSftp  sftp;
+    protected Session      sftpSession;  // Pool slot held by sftp channel.
     protected SshPath      rootDir = new SshPath (this);
     protected SshPath      defaultDir;
     protected SshFileStore fileStore;
 
+    public static long attributeLifetime = 2000;  ///< Milliseconds during which cached file attributes are trusted. Files can change on the remote side without our knowledge, so keep this short.
+    public static int  attributeLimit    = 10000; ///< Maximum number of paths in the attribute cache before it is emptied.
+    protected CacheNode cacheRoot  = new CacheNode ();
+    protected int       cacheCount;          // Number of nodes added since the cache was last emptied.
+    protected boolean   gzip       = true;   // Whether the remote system can compress data in transit. Cleared on first failure.
+
+    protected static class CachedAttributes
+    {
+        public SshFileAttributes attributes;  // null means the file does not exist
+        public long              time;
+    }
+
+    /**
+        The attribute cache is a tree which mirrors the remote directory structure, keyed by path element.
+        This lets us forget a file and everything below it by detaching a single node.
+    **/
+    protected static class CacheNode
+    {
+        public CachedAttributes      stat;   // with links followed
+        public CachedAttributes      lstat;  // of the link itself
+        public Map<String,CacheNode> children;
+    }
+
     public FileSystemProvider provider ()
     {
         return SshFileSystemProvider.instance;
@@ -276,17 +317,338 @@ public class SshFileSystem extends FileSystem
     public synchronized ChannelSftp getSftp () throws IOException
     {
         if (sftp != null) synchronized (sftp) {if (sftp.isConnected ()) return sftp;}
+        if (sftpSession != null)  // Old channel died, so give back its slot.
+        {
+            connection.release (sftpSession);
+            sftpSession = null;
+        }
         try
         {
-            connection.connect ();
-            synchronized (connection.session) {sftp = (ChannelSftp) connection.session.openChannel ("sftp");}
+            sftpSession = connection.acquire ();
+            synchronized (sftpSession) {sftp = (ChannelSftp) sftpSession.openChannel ("sftp");}
             sftp.connect ();  // No need to synchronize this, because no other thread holds a reference to it yet.
             return sftp;
         }
         catch (JSchException e)
+        {
+            if (sftpSession != null) connection.release (sftpSession);
+            sftpSession = null;
+            throw new IOException (e);
+        }
+    }
+
+    /**
+        @return The cached record for the given file, or null if there is no current record.
+        A record with null attributes indicates that the file was recently found not to exist.
+    **/
+    public synchronized CachedAttributes getCached (String name, boolean followLinks)
+    {
+        CacheNode node = findNode (name, false);
+        if (node == null) return null;
+        CachedAttributes result = followLinks ? node.stat : node.lstat;
+        if (result == null) return null;
+        if (System.currentTimeMillis () - result.time > attributeLifetime)
+        {
+            if (followLinks) node.stat  = null;
+            else             node.lstat = null;
+            return null;
+        }
+        return result;
+    }
+
+    public synchronized void cache (String name, boolean followLinks, SshFileAttributes attributes)
+    {
+        if (cacheCount > attributeLimit)  // Most entries are probably expired by now, so simply start over.
+        {
+            cacheRoot  = new CacheNode ();
+            cacheCount = 0;
+        }
+        CachedAttributes c = new CachedAttributes ();
+        c.attributes = attributes;
+        c.time       = System.currentTimeMillis ();
+        CacheNode node = findNode (name, true);
+        if (followLinks) node.stat  = c;
+        else             node.lstat = c;
+    }
+
+    /**
+        Forgets everything about the given file, anything below it if it is a directory,
+        and its parent directory (whose modification time and size have probably changed).
+        Called by the provider whenever it modifies the remote file system.
+    **/
+    public synchronized void invalidate (String name)
+    {
+        int slash = name.lastIndexOf ('/');
+        if (slash < 0) return;  // Not an absolute path, so nothing was cached under it.
+        CacheNode parent = findNode (name.substring (0, slash), false);
+        if (parent == null) return;
+        parent.stat  = null;
+        parent.lstat = null;
+        if (parent.children != null) parent.children.remove (name.substring (slash + 1));
+    }
+
+    public synchronized void invalidate (Path path)
+    {
+        invalidate (path.toAbsolutePath ().toString ());
+    }
+
+    /**
+        Walks down the attribute cache to the node for the given absolute path.
+        @param create Add any missing nodes along the way. Otherwise, return null if any are missing.
+    **/
+    protected CacheNode findNode (String name, boolean create)
+    {
+        CacheNode node = cacheRoot;
+        int start = 0;
+        int length = name.length ();
+        while (start < length)
+        {
+            int end = name.indexOf ('/', start);
+            if (end < 0) end = length;
+            if (end > start)
+            {
+                String piece = name.substring (start, end);
+                CacheNode next = null;
+                if (node.children != null) next = node.children.get (piece);
+                if (next == null)
+                {
+                    if (! create) return null;
+                    if (node.children == null) node.children = new HashMap<String,CacheNode> ();
+                    next = new CacheNode ();
+                    node.children.put (piece, next);
+                    cacheCount++;
+                }
+                node = next;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+        Retrieves attributes for several files with a single remote command, rather than one
+        round trip per file. Results are also placed in the cache, so subsequent calls to
+        Files.readAttributes() and friends can be answered locally.
+        @return Map from each requested path to its attributes. A file that does not exist maps to null.
+    **/
+    public Map<Path,PosixFileAttributes> readAttributes (List<Path> paths, boolean followLinks) throws IOException
+    {
+        Map<Path,PosixFileAttributes> result = new HashMap<Path,PosixFileAttributes> ();
+        if (paths.isEmpty ()) return result;
+
+        Map<String,Path> names = new HashMap<String,Path> ();
+        List<String> command = new ArrayList<String> ();
+        command.add ("stat");
+        if (followLinks) command.add ("-L");
+        command.add ("-c");
+        command.add (statFormat);
+        command.add ("--");
+        for (Path p : paths)
+        {
+            SshPath sp = (SshPath) p;
+            names.put (sp.toAbsolutePath ().toString (), p);
+            command.add (sp.quote ());
+            result.put (p, null);  // Any file not reported by stat does not exist (or is not accessible).
+        }
+        for (SshFileAttributes a : stat (command))
+        {
+            String name = a.path.toString ();
+            a.followLinks = followLinks;
+            cache (name, followLinks, a);
+            Path p = names.get (name);
+            if (p != null) result.put (p, a);
+        }
+        for (Entry<Path,PosixFileAttributes> e : result.entrySet ())
+        {
+            if (e.getValue () == null) cache (e.getKey ().toAbsolutePath ().toString (), followLinks, null);
+        }
+        return result;
+    }
+
+    /**
+        Finds one entry in each of the given directories, using a single remote command.
+        Each directory costs the same no matter how many files it holds, so this is much cheaper
+        than listing a directory that may contain thousands of frames just to look at one name.
+        Nothing is cached.
+        @return Map from each directory to some entry in it. An empty or missing directory has no entry.
+    **/
+    public Map<Path,Path> sampleChildren (List<Path> dirs) throws IOException
+    {
+        Map<Path,Path> result = new HashMap<Path,Path> ();
+        if (dirs.isEmpty ()) return result;
+
+        Map<String,Path> names = new HashMap<String,Path> ();
+        List<String> command = new ArrayList<String> ();
+        for (Path d : dirs)
+        {
+            SshPath sp = (SshPath) d;
+            names.put (sp.toAbsolutePath ().toString (), d);
+            if (! command.isEmpty ()) command.add (";");
+            command.add ("find " + sp.quote () + " -mindepth 1 -maxdepth 1 -print -quit 2>/dev/null");
+        }
+        try (AnyProcess proc = connection.build (command).start ();
+             BufferedReader reader = new BufferedReader (new InputStreamReader (proc.getInputStream (), "UTF-8")))
+        {
+            String line;
+            while ((line = reader.readLine ()) != null)
+            {
+                int slash = line.lastIndexOf ('/');
+                if (slash < 0) continue;
+                Path d = names.get (line.substring (0, slash));
+                if (d != null) result.put (d, getPath (line));
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException (e);
+        }
+        return result;
+    }
+
+    /**
+        Lists every file below the given directory, along with its attributes, using a single remote command.
+        Does not follow links. The directory itself is not included. Results are also placed in the cache.
+        @param maxDepth How many levels to descend. 1 gives only the immediate children of dir.
+        Use a large number for an unlimited walk.
+    **/
+    public Map<Path,PosixFileAttributes> listTree (Path dir, int maxDepth) throws IOException
+    {
+        List<String> command = new ArrayList<String> ();
+        command.add ("find");
+        command.add (((SshPath) dir).quote ());
+        command.add ("-mindepth 1");
+        command.add ("-maxdepth " + maxDepth);
+        command.add ("-exec stat -c");
+        command.add (statFormat);
+        command.add ("{} +");
+
+        Map<Path,PosixFileAttributes> result = new TreeMap<Path,PosixFileAttributes> ();
+        for (SshFileAttributes a : stat (command))
+        {
+            String name = a.path.toString ();
+            cache (name, false, a);
+            if (! a.isSymbolicLink ()) cache (name, true, a);
+            result.put (a.path, a);
+        }
+        return result;
+    }
+
+    /**
+        Removes a directory and everything in it with a single remote command.
+    **/
+    public void deleteTree (Path dir, boolean includeStartDir) throws IOException
+    {
+        SshPath sp = (SshPath) dir;
+        if (includeStartDir) SshFileSystemProvider.execute (sp, "rm", "-rf", sp.quote ());
+        else                 SshFileSystemProvider.execute (sp, "find", sp.quote (), "-mindepth", "1", "-delete");
+        invalidate (dir);
+    }
+
+    /**
+        Brings a local copy of a remote file up to date, on the assumption that the remote file only grows
+        by appending, as is the case for simulator output. Only bytes beyond the current length of the
+        local copy are transferred. If the transfer is interrupted, whatever arrived is kept, so the next
+        call resumes from there. If the remote file is shorter than the local copy, then it must have been
+        replaced, so the local copy is discarded and fetched from the start.
+        Data is compressed by gzip on the remote side and inflated locally with jzlib.
+        @return The number of bytes appended to the local file.
+    **/
+    public long fetchAppended (Path remote, Path local, CopyProgress progress) throws IOException
+    {
+        SshPath sp = (SshPath) remote;
+        IOException error = null;
+        long total = 0;
+        for (int attempt = 0; attempt < 3; attempt++)
+        {
+            invalidate (sp);  // Always get the true current size.
+            long remoteSize = Files.size (remote);
+            long position   = 0;
+            if (Files.exists (local)) position = Files.size (local);
+            if (remoteSize < position)
+            {
+                Files.delete (local);
+                position = 0;
+            }
+            long count = remoteSize - position;
+            if (count <= 0) return total;
+
+            // tail -c +N starts at byte N, counting from 1.
+            String command = "tail -c +" + (position + 1) + " " + sp.quote ();
+            boolean compress = gzip;
+            if (compress) command += " | gzip -1 -c";
+            long received = 0;
+            try (AnyProcess proc = connection.build (command).start ();
+                 OutputStream out = Files.newOutputStream (local, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+            {
+                InputStream in = proc.getInputStream ();
+                if (compress) in = new GZIPInputStream (in);
+                received = Host.copy (in, out, count, progress);
+                total += received;
+                if (received == count) return total;
+            }
+            catch (IOException e)
+            {
+                error = e;
+                if (compress  &&  received == 0  &&  Files.exists (local)  &&  Files.size (local) == position) gzip = false;  // Most likely gzip is not available. Try again without it.
+            }
+            catch (Exception e)
+            {
+                error = new IOException (e);
+            }
+        }
+        if (error != null) throw error;
+        return total;
+    }
+
+    /**
+        Format string for the stat command which produces the fields parsed by stat(List).
+        File name goes last, so that it may contain spaces.
+    **/
+    protected static final String statFormat = "'%s %Y %X %u %g %f %n'";
+
+    /**
+        Runs a command that prints lines in statFormat, and converts each line to an attribute record.
+        Lines that don't parse (for example, a file name with an embedded newline) are skipped.
+    **/
+    protected List<SshFileAttributes> stat (List<String> command) throws IOException
+    {
+        List<SshFileAttributes> result = new ArrayList<SshFileAttributes> ();
+        try (AnyProcess proc = connection.build (command).start ();
+             BufferedReader reader = new BufferedReader (new InputStreamReader (proc.getInputStream (), "UTF-8")))
+        {
+            String line;
+            while ((line = reader.readLine ()) != null)
+            {
+                String[] pieces = line.split (" ", 7);
+                if (pieces.length < 7) continue;
+                try
+                {
+                    SshFileAttributes a = new SshFileAttributes ();
+                    a.size  = Long.parseLong    (pieces[0]);
+                    a.mtime = Long.parseLong    (pieces[1]);
+                    a.atime = Long.parseLong    (pieces[2]);
+                    a.uid   = Integer.parseInt  (pieces[3]);
+                    a.gid   = Integer.parseInt  (pieces[4]);
+                    a.mode  = Integer.parseInt  (pieces[5], 16);
+                    a.path  = (SshPath) getPath (pieces[6]);
+                    result.add (a);
+                }
+                catch (NumberFormatException e) {}
+            }
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
         {
             throw new IOException (e);
         }
+        return result;
     }
 
     public synchronized SshFileStore getFileStore ()
@@ -43,7 +43,6 @@ import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.PosixFilePermissions;
 import java.nio.file.attribute.UserPrincipal;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
@@ -65,6 +64,7 @@ import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.db.MVolatile;
 import gov.sandia.n2a.execenvs.Host.AnyProcess;
 import gov.sandia.n2a.execenvs.Host.AnyProcessBuilder;
+import gov.sandia.n2a.execenvs.SshFileSystem.CachedAttributes;
 
 public class SshFileSystemProvider extends FileSystemProvider
 {
@@ -236,6 +236,7 @@ public class SshFileSystemProvider extends FileSystemProvider
             else                        args.add (">");
             args.add (A.quote ());
             AnyProcess proc = A.fileSystem.connection.build (args).start ();
+            A.fileSystem.invalidate (A);
             OutputStream stream = proc.getOutputStream ();
             return new OutputStream ()  // Wrap the stream, so that when it is closed the channel is closed as well.
             {
@@ -243,6 +244,7 @@ public class SshFileSystemProvider extends FileSystemProvider
                 {
                     stream.flush ();
                     proc.close ();
+                    A.fileSystem.invalidate (A);
                 }
 
                 public void write (int b) throws IOException
@@ -292,6 +294,7 @@ public class SshFileSystemProvider extends FileSystemProvider
         SshPath A = (SshPath) dir;
         ChannelSftp channel = A.getSftp ();
         String name = A.toAbsolutePath ().toString ();
+        A.fileSystem.invalidate (name);
         try
         {
             synchronized (channel)
@@ -311,6 +314,7 @@ public class SshFileSystemProvider extends FileSystemProvider
     PosixFileAttributes createFile (SshPath path, FileAttribute<?>... attributes) throws IOException
     {
         execute (path, "touch", path.quote ());
+        path.fileSystem.invalidate (path);
 
         SshFileAttributeView view = new SshFileAttributeView ((SshPath) path);
         for (FileAttribute<?> a : attributes)
@@ -334,6 +338,7 @@ public class SshFileSystemProvider extends FileSystemProvider
     public void delete (Path path) throws IOException
     {
         String name = path.toAbsolutePath ().toString ();
+        ((SshPath) path).fileSystem.invalidate (name);
         try
         {
             ChannelSftp channel = ((SshPath) path).getSftp ();
@@ -387,6 +392,8 @@ public class SshFileSystemProvider extends FileSystemProvider
             args.add (Astring);
             args.add (Bstring);
             execute (A, args);
+            A.fileSystem.invalidate (Astring);
+            A.fileSystem.invalidate (Bstring);
         }
         else  // Crossing between hosts. Stream A -> localhost -> B, then delete A.
         {
@@ -426,36 +433,25 @@ public class SshFileSystemProvider extends FileSystemProvider
     public void checkAccess (Path path, AccessMode... modes) throws IOException
     {
         SshPath A = (SshPath) path;
-        String name = A.toAbsolutePath ().toString ();
-        try
+        SshFileAttributes attributes = (SshFileAttributes) new SshFileAttributeView (A).readAttributes ();
+        int permissions = attributes.mode;
+        for (AccessMode mode : modes)
         {
-            ChannelSftp channel = A.getSftp ();
-            SftpATTRS attributes;
-            synchronized (channel) {attributes = channel.stat (name);}
-            int permissions = attributes.getPermissions ();
-            for (AccessMode mode : modes)
+            switch (mode)
             {
-                switch (mode)
-                {
-                    case READ:
-                        if ((permissions & 0444) == 0) throw new AccessDeniedException ("READ " + A);
-                        break;
-                    case WRITE:
-                        if ((permissions & 0222) == 0) throw new AccessDeniedException ("WRITE " + A);
-                        break;
-                    case EXECUTE:
-                        if ((permissions & 0111) == 0) throw new AccessDeniedException ("EXECUTE " + A);
-                        break;
-                    default:
-                        throw new UnsupportedOperationException ();
-                }
+                case READ:
+                    if ((permissions & 0444) == 0) throw new AccessDeniedException ("READ " + A);
+                    break;
+                case WRITE:
+                    if ((permissions & 0222) == 0) throw new AccessDeniedException ("WRITE " + A);
+                    break;
+                case EXECUTE:
+                    if ((permissions & 0111) == 0) throw new AccessDeniedException ("EXECUTE " + A);
+                    break;
+                default:
+                    throw new UnsupportedOperationException ();
             }
         }
-        catch (SftpException e)
-        {
-            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) throw new NoSuchFileException (name);
-            throw new IOException (e);
-        }
     }
 
     @SuppressWarnings("unchecked")
@@ -658,6 +654,7 @@ public class SshFileSystemProvider extends FileSystemProvider
             if (size () > newSize)
             {
                 execute (path, "truncate", "-s", String.valueOf (newSize), path.quote ());
+                path.fileSystem.invalidate (path);
                 size = newSize;
             }
             return this;
@@ -685,6 +682,7 @@ public class SshFileSystemProvider extends FileSystemProvider
                 throw new IOException (e);
             }
 
+            path.fileSystem.invalidate (path);
             position += result;
             if (position > size) size = position;
             return result;
@@ -695,7 +693,7 @@ public class SshFileSystemProvider extends FileSystemProvider
     {
         protected SshPath                     parent;
         protected Filter<? super Path>        filter;
-        protected Vector<ChannelSftp.LsEntry> entries;  // LsEntry also stat information. Sadly, we won't use it here.
+        protected Vector<ChannelSftp.LsEntry> entries;  // LsEntry also carries stat information, which goes into the attribute cache.
 
         @SuppressWarnings("unchecked")
         public SshDirectoryStream (SshPath parent, Filter<? super Path> filter) throws IOException
@@ -713,6 +711,20 @@ public class SshFileSystemProvider extends FileSystemProvider
             {
                 throw new IOException (e);
             }
+
+            // Callers almost always follow a listing by examining each entry, for example with Files.isDirectory().
+            // Caching the attributes we already have saves a round trip for each of those.
+            SshFileSystem fileSystem = parent.fileSystem;
+            for (ChannelSftp.LsEntry e : entries)
+            {
+                String fileName = e.getFilename ();
+                if (fileName.equals (".")  ||  fileName.equals ("..")) continue;
+                SshFileAttributes a = new SshFileAttributes (e.getAttrs ());
+                a.path = (SshPath) parent.resolve (fileName).toAbsolutePath ();
+                String entryName = a.path.toString ();
+                fileSystem.cache (entryName, false, a);
+                if (! a.isSymbolicLink ()) fileSystem.cache (entryName, true, a);
+            }
         }
 
         public void close () throws IOException
@@ -796,18 +808,37 @@ public class SshFileSystemProvider extends FileSystemProvider
 
     public static class SshFileAttributes implements PosixFileAttributes
     {
-        protected SftpATTRS attributes;
-        protected SshPath   path;        // In case we want to retrieve file key.
-        protected boolean   followLinks; // ditto
+        protected long    size;
+        protected int     mode;        // File type and permission bits, in the same form as st_mode.
+        protected long    mtime;       // seconds
+        protected long    atime;       // seconds
+        protected int     uid;
+        protected int     gid;
+        protected SshPath path;        // In case we want to retrieve file key.
+        protected boolean followLinks; // ditto
+
+        public SshFileAttributes ()
+        {
+        }
+
+        public SshFileAttributes (SftpATTRS attributes)
+        {
+            size  = attributes.getSize ();
+            mode  = attributes.getPermissions ();  // includes file type bits
+            mtime = attributes.getMTime () & 0xFFFFFFFFl;
+            atime = attributes.getATime () & 0xFFFFFFFFl;
+            uid   = attributes.getUId ();
+            gid   = attributes.getGId ();
+        }
 
         public FileTime lastModifiedTime ()
         {
-            return FileTime.from (attributes.getMTime (), TimeUnit.SECONDS);
+            return FileTime.from (mtime, TimeUnit.SECONDS);
         }
 
         public FileTime lastAccessTime ()
         {
-            return FileTime.from (attributes.getATime (), TimeUnit.SECONDS);
+            return FileTime.from (atime, TimeUnit.SECONDS);
         }
 
         public FileTime creationTime ()
@@ -818,27 +849,27 @@ public class SshFileSystemProvider extends FileSystemProvider
 
         public boolean isRegularFile ()
         {
-            return attributes.isReg ();
+            return (mode & 0170000) == 0100000;
         }
 
         public boolean isDirectory ()
         {
-            return attributes.isDir ();
+            return (mode & 0170000) == 0040000;
         }
 
         public boolean isSymbolicLink ()
         {
-            return attributes.isLink ();
+            return (mode & 0170000) == 0120000;
         }
 
         public boolean isOther ()
         {
-            return ! (attributes.isReg ()  ||  attributes.isDir ()  ||  attributes.isLink ());
+            return ! (isRegularFile ()  ||  isDirectory ()  ||  isSymbolicLink ());
         }
 
         public long size ()
         {
-            return attributes.getSize ();
+            return size;
         }
 
         public Object fileKey ()
@@ -860,20 +891,30 @@ public class SshFileSystemProvider extends FileSystemProvider
         public UserPrincipal owner ()
         {
             SshPrincipal result = new SshPrincipal ();
-            result.id = attributes.getUId ();
+            result.id = uid;
             return result;
         }
 
         public GroupPrincipal group ()
         {
             SshPrincipal result = new SshPrincipal ();
-            result.id = attributes.getGId ();
+            result.id = gid;
             return result;
         }
 
         public Set<PosixFilePermission> permissions ()
         {
-            return PosixFilePermissions.fromString (attributes.getPermissionsString ().substring (1).replace ("s", "x"));
+            Set<PosixFilePermission> result = new HashSet<PosixFilePermission> ();
+            if ((mode & 0400) != 0) result.add (PosixFilePermission.OWNER_READ);
+            if ((mode & 0200) != 0) result.add (PosixFilePermission.OWNER_WRITE);
+            if ((mode & 0100) != 0) result.add (PosixFilePermission.OWNER_EXECUTE);
+            if ((mode & 0040) != 0) result.add (PosixFilePermission.GROUP_READ);
+            if ((mode & 0020) != 0) result.add (PosixFilePermission.GROUP_WRITE);
+            if ((mode & 0010) != 0) result.add (PosixFilePermission.GROUP_EXECUTE);
+            if ((mode & 0004) != 0) result.add (PosixFilePermission.OTHERS_READ);
+            if ((mode & 0002) != 0) result.add (PosixFilePermission.OTHERS_WRITE);
+            if ((mode & 0001) != 0) result.add (PosixFilePermission.OTHERS_EXECUTE);
+            return result;
         }
     }
 
@@ -900,22 +941,36 @@ public class SshFileSystemProvider extends FileSystemProvider
         public PosixFileAttributes readAttributes () throws IOException
         {
             String name = path.toAbsolutePath ().toString ();
+            SshFileSystem fileSystem = path.fileSystem;
+            CachedAttributes cached = fileSystem.getCached (name, followLinks);
+            if (cached != null)
+            {
+                if (cached.attributes == null) throw new NoSuchFileException (name);
+                return cached.attributes;
+            }
+
             try
             {
-                SshFileAttributes result = new SshFileAttributes ();
+                SftpATTRS attributes;
                 ChannelSftp channel = path.getSftp ();
                 synchronized (channel)
                 {
-                    if (followLinks) result.attributes = channel. stat (name);
-                    else             result.attributes = channel.lstat (name);
+                    if (followLinks) attributes = channel. stat (name);
+                    else             attributes = channel.lstat (name);
                 }
+                SshFileAttributes result = new SshFileAttributes (attributes);
                 result.path        = path;
                 result.followLinks = followLinks;
+                fileSystem.cache (name, followLinks, result);
                 return result;
             }
             catch (SftpException e)
             {
-                if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) throw new NoSuchFileException (name);
+                if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE)
+                {
+                    fileSystem.cache (name, followLinks, null);
+                    throw new NoSuchFileException (name);
+                }
                 throw new IOException (e);
             }
         }
@@ -932,6 +987,7 @@ public class SshFileSystemProvider extends FileSystemProvider
                 int mtime =  modify == null ? attributes.getMTime () : (int) modify.to (TimeUnit.SECONDS);
                 attributes.setACMODTIME (atime, mtime);
                 synchronized (channel) {channel.setStat (name, attributes);}
+                path.fileSystem.invalidate (name);
             }
             catch (SftpException e)
             {
@@ -951,6 +1007,7 @@ public class SshFileSystemProvider extends FileSystemProvider
             {
                 ChannelSftp channel = path.getSftp ();
                 synchronized (channel) {channel.chown (((SshPrincipal) owner).id, name);}
+                path.fileSystem.invalidate (name);
             }
             catch (SftpException e)
             {
@@ -965,6 +1022,7 @@ public class SshFileSystemProvider extends FileSystemProvider
             {
                 ChannelSftp channel = path.getSftp ();
                 synchronized (channel) {channel.chgrp (((SshPrincipal) group).id, name);}
+                path.fileSystem.invalidate (name);
             }
             catch (SftpException e)
             {
@@ -979,6 +1037,7 @@ public class SshFileSystemProvider extends FileSystemProvider
             {
                 ChannelSftp channel = path.getSftp ();
                 synchronized (channel) {channel.chmod (sftpPermissions (permissions), name);}
+                path.fileSystem.invalidate (name);
             }
             catch (SftpException e)
             {
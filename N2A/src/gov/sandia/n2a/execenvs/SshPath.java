@@ -25,7 +25,6 @@ import java.util.Iterator;
 import java.util.List;
 
 import com.jcraft.jsch.ChannelSftp;
-import com.jcraft.jsch.SftpException;
 
 public class SshPath implements Path
 {
@@ -330,17 +329,14 @@ public class SshPath implements Path
     **/
     public boolean exists () throws IOException
     {
-        String name = toAbsolutePath ().toString ();
         try
         {
-            ChannelSftp channel = getSftp ();
-            synchronized (channel) {channel.lstat (name);}
+            new SshFileSystemProvider.SshFileAttributeView (this, LinkOption.NOFOLLOW_LINKS).readAttributes ();
             return true;
         }
-        catch (SftpException e)
+        catch (NoSuchFileException e)
         {
-            if (e.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) return false;
-            throw new IOException (e);
+            return false;
         }
     }
 
@@ -88,7 +88,7 @@ public class Unix extends Host
                     info.cpu = Double.valueOf (parts[0]);
 
                     parts = parts[1].trim ().split (" ", 2);
-                    info.memory = Long.valueOf (parts[0]);
+                    info.memory = Long.valueOf (parts[0]) * 1024;  // ps reports rss in KiB
 
                     result.add (info);
                 }
@@ -194,6 +194,7 @@ public class Unix extends Host
     @Override
     public long getMemoryPhysicalTotal ()
     {
+        if (! (this instanceof Remote)) return super.getMemoryPhysicalTotal ();  // JVM can answer for the local machine.
         // TODO
         return 0;
     }
@@ -201,6 +202,7 @@ public class Unix extends Host
     @Override
     public long getMemoryPhysicalFree ()
     {
+        if (! (this instanceof Remote)) return super.getMemoryPhysicalFree ();  // JVM can answer for the local machine.
         // TODO
         return 0;
     }
@@ -208,6 +210,7 @@ public class Unix extends Host
     @Override
     public int getProcessorTotal ()
     {
+        if (! (this instanceof Remote)) return super.getProcessorTotal ();  // JVM can answer for the local machine.
         // TODO
         return 0;
     }
@@ -215,6 +218,7 @@ public class Unix extends Host
     @Override
     public double getProcessorLoad ()
     {
+        if (! (this instanceof Remote)) return super.getProcessorLoad ();  // JVM can answer for the local machine.
         // TODO
         return 0;
     }
@@ -0,0 +1,209 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.language.function;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+    Support for output files written with the "gzip" mode flag.
+
+    Such a file is an ordinary gzip stream, so it can be unpacked with standard tools.
+    Writers periodically end a deflate block with a full flush, always at a row boundary.
+    This has two benefits. First, a reader can decode everything up to the most recent flush
+    while the simulation is still running. Second, decoding can begin at any flush point without
+    the rest of the file, which lets us find the current simulation time from just the tail.
+
+    Readers should open files through this class rather than directly, so that compressed and
+    uncompressed files are handled the same way. The choice is made from the first bytes of the file,
+    not its name.
+**/
+public class ColumnCompression
+{
+    public static final byte[] magic         = {0x1F, (byte) 0x8B};
+    public static final byte[] flushMarker   = {0, 0, (byte) 0xFF, (byte) 0xFF};  // Empty stored block which ends a full flush.
+    public static long         flushInterval = 1000000000l;                        // Minimum time in nanoseconds between flushes of a compressed stream.
+
+    /**
+        A gzip stream which does a full flush every time it is flushed.
+        The owner should flush only at row boundaries, and not too often, since each flush
+        costs a few bytes and resets the compression dictionary.
+    **/
+    public static class Writer extends GZIPOutputStream
+    {
+        public Writer (OutputStream out) throws IOException
+        {
+            super (out, 1 << 16);
+        }
+
+        public void flush () throws IOException
+        {
+            if (! def.finished ())
+            {
+                int length;
+                while ((length = def.deflate (buf, 0, buf.length, Deflater.FULL_FLUSH)) > 0) out.write (buf, 0, length);
+            }
+            out.flush ();
+        }
+    }
+
+    /**
+        A gzip stream which treats a truncated file as a normal end of stream.
+        This is the expected state of a file that is still being written.
+    **/
+    protected static class Reader extends GZIPInputStream
+    {
+        public Reader (InputStream in) throws IOException
+        {
+            super (in, 1 << 16);
+        }
+
+        public int read (byte[] b, int off, int len) throws IOException
+        {
+            try
+            {
+                return super.read (b, off, len);
+            }
+            catch (EOFException e)
+            {
+                return -1;
+            }
+        }
+    }
+
+    /**
+        Determines if the given file starts with the gzip magic bytes.
+    **/
+    public static boolean isCompressed (Path path)
+    {
+        try (InputStream stream = Files.newInputStream (path))
+        {
+            return stream.read () == (magic[0] & 0xFF)  &&  stream.read () == (magic[1] & 0xFF);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+        Determines if the given channel starts with the gzip magic bytes.
+        Leaves the channel position wherever the check put it.
+    **/
+    public static boolean isCompressed (SeekableByteChannel channel) throws IOException
+    {
+        if (channel.size () < magic.length) return false;
+        ByteBuffer head = ByteBuffer.allocate (magic.length);
+        channel.position (0);
+        while (head.hasRemaining ()) if (channel.read (head) < 0) return false;
+        return head.get (0) == magic[0]  &&  head.get (1) == magic[1];
+    }
+
+    /**
+        Opens the given file for reading, decompressing it if necessary.
+    **/
+    public static InputStream open (Path path) throws IOException
+    {
+        InputStream stream = new BufferedInputStream (Files.newInputStream (path), 1 << 16);
+        stream.mark (magic.length);
+        boolean compressed =  stream.read () == (magic[0] & 0xFF)  &&  stream.read () == (magic[1] & 0xFF);
+        stream.reset ();
+        if (compressed) return new Reader (stream);
+        return stream;
+    }
+
+    public static BufferedReader newBufferedReader (Path path) throws IOException
+    {
+        return new BufferedReader (new InputStreamReader (open (path), StandardCharsets.UTF_8));
+    }
+
+    /**
+        Opens the given file as a channel, decompressing it if necessary.
+        An uncompressed file is returned as a FileChannel, so it keeps all the efficiencies of direct file access.
+    **/
+    public static ReadableByteChannel newChannel (Path path) throws IOException
+    {
+        if (isCompressed (path)) return Channels.newChannel (open (path));
+        return FileChannel.open (path);
+    }
+
+    /**
+        Decodes the end of a compressed file, starting from the earliest flush point that lies within
+        the given number of bytes from the end. Starting early rather than late ensures that the result
+        contains at least one complete row, as long as the window spans two flushes.
+        @return Uncompressed bytes, beginning at a row boundary. Null if no usable flush point was found.
+    **/
+    public static byte[] tail (SeekableByteChannel channel, int length) throws IOException
+    {
+        long size = channel.size ();
+        length = (int) Math.min (length, size);
+        ByteBuffer buffer = ByteBuffer.allocate (length);
+        channel.position (size - length);
+        while (buffer.hasRemaining ()) if (channel.read (buffer) < 0) break;
+        return tail (buffer.array (), 0, buffer.position ());
+    }
+
+    /**
+        Decodes the end of a compressed file, given some bytes already taken from its end, such as by a remote host.
+        @param offset Start of the bytes within data.
+        @param limit End of the bytes within data, exclusive. Should be the end of the file as it was when read.
+        @return Uncompressed bytes, beginning at a row boundary. Null if no usable flush point was found.
+    **/
+    public static byte[] tail (byte[] data, int offset, int limit)
+    {
+        // The marker bytes can also occur by chance within compressed data. A false start almost always
+        // either fails to decode or stops decoding before the end of the data, so we check for both.
+        for (int p = offset; p <= limit - flushMarker.length; p++)
+        {
+            if (data[p] != flushMarker[0]  ||  data[p+1] != flushMarker[1]  ||  data[p+2] != flushMarker[2]  ||  data[p+3] != flushMarker[3]) continue;
+            int start = p + flushMarker.length;
+            if (start >= limit) break;
+
+            Inflater inflater = new Inflater (true);
+            try
+            {
+                inflater.setInput (data, start, limit - start);
+                byte[] result = new byte[4 * (limit - start) + 1024];
+                int count = 0;
+                while (true)
+                {
+                    if (count == result.length) result = Arrays.copyOf (result, result.length * 2);
+                    count += inflater.inflate (result, count, result.length - count);
+                    if (inflater.finished ()  ||  inflater.needsInput ()  ||  inflater.needsDictionary ()) break;
+                }
+                if (inflater.finished ()  &&  inflater.getRemaining () > 8) continue;  // More than a gzip trailer left over, so this was a false start.
+                if (count == 0) continue;
+                return Arrays.copyOf (result, count);
+            }
+            catch (DataFormatException e) {}
+            finally
+            {
+                inflater.end ();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,513 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.language.function;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+    Random access to the rows of a column file, in either of the formats read by ColumnReader.
+    The file is memory-mapped, and the byte offset of every blockSize-th row is recorded,
+    so any row can be reached by a short forward scan. Rows can also be found by time,
+    using a binary search on the time column.
+
+    Building the index requires one pass over the whole file. The result is saved beside the file
+    (with ".index" appended to the name) and reused as long as the file keeps the same size and
+    modification time. The file itself is assumed not to change while it is open.
+
+    After construction, an index is never modified, so it may be shared by any number of threads.
+**/
+public class ColumnIndex
+{
+    public static final byte[] magic       = {'N', '2', 'A', 'I'};
+    public static final int    version     = 1;
+    public static int          blockShift  = 6;  // Record the offset of every 64th row.
+    public static final int    segmentBits = 30;
+    public static final long   segmentSize = 1L << segmentBits;
+    public static final int    overlap     = 1 << 24;  // Extra bytes mapped at the end of each segment, so no row shorter than this straddles two mappings.
+
+    public Path                path;
+    public long                size;
+    public long                modified;
+    public boolean             binary;
+    public boolean             monotonic = true;  // Indicates that values in the time column never decrease.
+    public long                rows;              // Count of value rows. Header rows are not included.
+    public int                 columnCount;
+    public String[]            headers;           // Full width of the widest header row. Unnamed columns have an empty string.
+    public Map<String,Integer> columnMap = new TreeMap<String,Integer> ();
+    public int                 timeColumn;        // Chosen by name from the first header row, the same way as Input.Holder. 0 if there are no headers.
+
+    protected long[]       blocks;    // Offset of the first byte of every blockSize-th value row.
+    protected ByteBuffer[] segments;
+
+    /**
+        Loads the saved index for the given file, or builds and saves a new one.
+    **/
+    public static ColumnIndex open (Path path) throws IOException
+    {
+        ColumnIndex result = new ColumnIndex ();
+        result.path     = path;
+        result.size     = Files.size (path);
+        result.modified = Files.getLastModifiedTime (path).toMillis ();
+        result.map ();
+
+        Path indexPath = path.resolveSibling (path.getFileName () + ".index");
+        if (! result.load (indexPath))
+        {
+            result.build ();
+            result.save (indexPath);
+        }
+        return result;
+    }
+
+    /**
+        Estimated heap bytes used by this index. The mapped file is not included,
+        since the operating system pages it in and out as needed.
+    **/
+    public long heapSize ()
+    {
+        long result = 8L * blocks.length;
+        for (String h : headers) result += 40 + 2 * h.length ();
+        return result;
+    }
+
+    protected void map () throws IOException
+    {
+        try (FileChannel channel = FileChannel.open (path))
+        {
+            int count = (int) ((size + segmentSize - 1) >> segmentBits);
+            segments = new ByteBuffer[count];
+            for (int s = 0; s < count; s++)
+            {
+                long start = (long) s << segmentBits;
+                long length = Math.min (segmentSize + overlap, size - start);
+                segments[s] = channel.map (MapMode.READ_ONLY, start, length);
+            }
+        }
+    }
+
+    protected byte get (long p)
+    {
+        return segments[(int) (p >>> segmentBits)].get ((int) (p & (segmentSize - 1)));
+    }
+
+    protected int getInt (long p)
+    {
+        return   (get (p  ) & 0xFF)
+               | (get (p+1) & 0xFF) << 8
+               | (get (p+2) & 0xFF) << 16
+               | (get (p+3) & 0xFF) << 24;
+    }
+
+    /**
+        Copies a range of the file into the given array, which must be large enough.
+        Uses a private view of the mapping, so concurrent callers don't interfere with each other.
+    **/
+    protected void get (long start, long end, byte[] result)
+    {
+        int length = (int) (end - start);
+        int s = (int) (start >>> segmentBits);
+        int offset = (int) (start & (segmentSize - 1));
+        if (offset + length <= segments[s].limit ())
+        {
+            ByteBuffer view = segments[s].duplicate ();
+            view.position (offset);
+            view.get (result, 0, length);
+        }
+        else  // Row is longer than overlap. Rare, so no need to be efficient.
+        {
+            for (int i = 0; i < length; i++) result[i] = get (start + i);
+        }
+    }
+
+    /**
+        @return Position just past the end of the row or header which starts at p.
+        For text, this is the position of the newline, or the end of file.
+    **/
+    protected long end (long p)
+    {
+        if (binary)
+        {
+            int n = getInt (p);
+            if (n >= 0) return p + 4 + 4L * n;
+            n = -n;
+            p += 4;
+            for (int i = 0; i < n; i++) p += 4 + getInt (p);
+            return p;
+        }
+        while (p < size  &&  get (p) != '\n') p++;
+        return p;
+    }
+
+    /**
+        @return Position of the next record after the one that starts at p.
+    **/
+    protected long next (long p)
+    {
+        p = end (p);
+        if (! binary  &&  p < size) p++;  // Step over newline.
+        return p;
+    }
+
+    protected boolean isHeader (long p)
+    {
+        if (binary) return getInt (p) < 0;
+        byte first = get (p);
+        if (first == '\t'  ||  first == ' ') return false;
+        return first < '-'  ||  first == '/'  ||  first > '9';
+    }
+
+    protected boolean isBlank (long p)
+    {
+        if (binary) return false;
+        byte first = get (p);
+        return first == '\n'  ||  first == '\r';
+    }
+
+    /**
+        @return Position of the first value row at or after p, or size if there are none.
+    **/
+    protected long skip (long p)
+    {
+        while (p < size  &&  (isBlank (p)  ||  isHeader (p))) p = next (p);
+        return p;
+    }
+
+    /**
+        @return Position of the first byte of the given value row.
+    **/
+    public long offset (long row)
+    {
+        long p = blocks[(int) (row >> blockShift)];
+        for (long i = row & ((1 << blockShift) - 1); i > 0; i--) p = skip (next (p));
+        return p;
+    }
+
+    protected void build () throws IOException
+    {
+        binary = size >= 8;
+        for (int i = 0; binary  &&  i < ColumnReader.magic.length; i++) binary = get (i) == ColumnReader.magic[i];
+
+        long[] temp = new long[1024];
+        int count = 0;
+        boolean timeColumnSet = false;
+        double lastTime = Double.NEGATIVE_INFINITY;
+        long p = binary ? 8 : 0;
+        while (p < size)
+        {
+            if (isBlank (p))
+            {
+                p = next (p);
+                continue;
+            }
+            if (isHeader (p))
+            {
+                String[] h = readHeaders (p);
+                if (headers == null  ||  h.length > headers.length)
+                {
+                    String[] expanded = new String[h.length];
+                    Arrays.fill (expanded, "");
+                    if (headers != null) System.arraycopy (headers, 0, expanded, 0, headers.length);
+                    headers = expanded;
+                }
+                for (int i = 0; i < h.length; i++)
+                {
+                    if (h[i].isEmpty ()) continue;
+                    headers[i] = h[i];
+                    columnMap.put (h[i], i);
+                }
+                columnCount = Math.max (columnCount, h.length);
+                if (! timeColumnSet)
+                {
+                    timeColumn = selectTime (columnMap);
+                    timeColumnSet = true;
+                }
+                p = next (p);
+                continue;
+            }
+
+            if ((rows & ((1 << blockShift) - 1)) == 0)
+            {
+                if (count == temp.length) temp = Arrays.copyOf (temp, count * 2);
+                temp[count++] = p;
+            }
+            rows++;
+            if (monotonic)
+            {
+                double t = time (p);
+                if (t < lastTime) monotonic = false;
+                lastTime = t;
+            }
+            if (binary)
+            {
+                columnCount = Math.max (columnCount, getInt (p));
+                p = next (p);
+            }
+            else  // Count columns while finding the end of the line, to avoid a second scan.
+            {
+                int columns = 1;
+                for (; p < size; p++)
+                {
+                    byte b = get (p);
+                    if (b == '\n') break;
+                    if (b == '\t'  ||  b == ' ') columns++;
+                }
+                if (p < size) p++;
+                columnCount = Math.max (columnCount, columns);
+            }
+        }
+        blocks = Arrays.copyOf (temp, count);
+        if (headers == null) headers = new String[0];
+    }
+
+    /**
+        Picks the time column from the given headers, with the same preference as Input.Holder.
+    **/
+    public static int selectTime (Map<String,Integer> columnMap)
+    {
+        int result = 0;
+        int timeMatch = 0;
+        for (Map.Entry<String,Integer> e : columnMap.entrySet ())
+        {
+            int potentialMatch = 0;
+            String header = e.getKey ();
+            if      (header.equals ("t"   )) potentialMatch = 1;
+            else if (header.equals ("TIME")) potentialMatch = 2;
+            else if (header.equals ("$t"  )) potentialMatch = 3;
+            if (potentialMatch > timeMatch)
+            {
+                timeMatch = potentialMatch;
+                result = e.getValue ();
+            }
+        }
+        return result;
+    }
+
+    protected String[] readHeaders (long p)
+    {
+        long e = end (p);
+        byte[] data = new byte[(int) (e - p)];
+        get (p, e, data);
+        if (binary)
+        {
+            int n = -ColumnReader.getInt (data, 0);
+            String[] result = new String[n];
+            int q = 4;
+            for (int i = 0; i < n; i++)
+            {
+                int length = ColumnReader.getInt (data, q);
+                result[i] = new String (data, q + 4, length, StandardCharsets.UTF_8);
+                q += 4 + length;
+            }
+            return result;
+        }
+        int length = data.length;
+        if (length > 0  &&  data[length-1] == '\r') length--;
+        return new String (data, 0, length, StandardCharsets.UTF_8).split ("[ \t]", -1);
+    }
+
+    /**
+        @return Value of the time column in the row starting at p.
+    **/
+    protected double time (long p)
+    {
+        if (binary)
+        {
+            if (timeColumn >= getInt (p)) return 0;
+            float result = Float.intBitsToFloat (getInt (p + 4 + 4L * timeColumn));
+            if (Float.isNaN (result)) return 0;
+            return result;
+        }
+        for (int c = 0; c < timeColumn; c++)
+        {
+            while (p < size)
+            {
+                byte b = get (p++);
+                if (b == '\t'  ||  b == ' ') break;
+                if (b == '\n') return 0;
+            }
+        }
+        long e = p;
+        while (e < size)
+        {
+            byte b = get (e);
+            if (b == '\t'  ||  b == ' '  ||  b == '\n'  ||  b == '\r') break;
+            e++;
+        }
+        if (e == p) return 0;
+        byte[] data = new byte[(int) (e - p)];
+        get (p, e, data);
+        return ColumnReader.parse (data, 0, data.length);
+    }
+
+    /**
+        @return Value of the time column in the given row.
+    **/
+    public double getTime (long row)
+    {
+        return time (offset (row));
+    }
+
+    /**
+        Finds the last row whose time is no greater than t. Only meaningful if monotonic is true.
+        @return -1 if t is before the first row.
+    **/
+    public long find (double t)
+    {
+        if (rows == 0) return -1;
+
+        // Binary search over blocks, using the first row of each.
+        int lo = 0;
+        int hi = blocks.length - 1;
+        if (time (blocks[0]) > t) return -1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (time (blocks[mid]) <= t) lo = mid;
+            else                         hi = mid - 1;
+        }
+
+        // Linear scan within block.
+        long row = (long) lo << blockShift;
+        long last = Math.min (rows, row + (1 << blockShift)) - 1;
+        long p = blocks[lo];
+        while (row < last)
+        {
+            long q = skip (next (p));
+            if (time (q) > t) break;
+            p = q;
+            row++;
+        }
+        return row;
+    }
+
+    /**
+        Decodes the given row. Empty cells are returned as 0, and the row is padded with 0 out to columnCount.
+        @param result Array to be filled, if it is the right size. May be null.
+        @return The filled array, which may be newly allocated.
+    **/
+    public double[] getRow (long row, double[] result)
+    {
+        if (result == null  ||  result.length != columnCount) result = new double[columnCount];
+        long p = offset (row);
+        long e = end (p);
+        byte[] data = new byte[(int) (e - p)];
+        get (p, e, data);
+
+        int c = 0;
+        if (binary)
+        {
+            int n = ColumnReader.getInt (data, 0);
+            for (; c < n; c++)
+            {
+                float value = Float.intBitsToFloat (ColumnReader.getInt (data, 4 + 4 * c));
+                result[c] = Float.isNaN (value) ? 0 : value;
+            }
+        }
+        else
+        {
+            int length = data.length;
+            if (length > 0  &&  data[length-1] == '\r') length--;
+            int i = 0;
+            for (int j = 0; j <= length; j++)
+            {
+                if (j < length  &&  data[j] != '\t'  &&  data[j] != ' ') continue;
+                result[c++] = j == i ? 0 : ColumnReader.parse (data, i, j);
+                i = j + 1;
+            }
+        }
+        Arrays.fill (result, c, columnCount, 0);
+        return result;
+    }
+
+    protected boolean load (Path indexPath)
+    {
+        if (! Files.isReadable (indexPath)) return false;
+        try (DataInputStream in = new DataInputStream (new BufferedInputStream (Files.newInputStream (indexPath))))
+        {
+            byte[] m = new byte[magic.length];
+            in.readFully (m);
+            if (! Arrays.equals (m, magic)) return false;
+            if (in.readInt () != version) return false;
+            if (in.readLong () != size) return false;
+            if (in.readLong () != modified) return false;
+            if (in.readInt () != blockShift) return false;
+
+            binary      = in.readBoolean ();
+            monotonic   = in.readBoolean ();
+            rows        = in.readLong ();
+            columnCount = in.readInt ();
+            timeColumn  = in.readInt ();
+            headers     = new String[in.readInt ()];
+            for (int i = 0; i < headers.length; i++)
+            {
+                headers[i] = in.readUTF ();
+                if (! headers[i].isEmpty ()) columnMap.put (headers[i], i);
+            }
+            blocks = new long[in.readInt ()];
+            for (int i = 0; i < blocks.length; i++) blocks[i] = in.readLong ();
+            return true;
+        }
+        catch (IOException e)
+        {
+            columnMap.clear ();
+            return false;
+        }
+    }
+
+    /**
+        Writes to a temporary file first, so that a concurrent reader never sees a partial index.
+        Failure is ignored, since the index can always be rebuilt.
+    **/
+    protected void save (Path indexPath)
+    {
+        Path temp = null;
+        try
+        {
+            temp = Files.createTempFile (indexPath.getParent (), indexPath.getFileName ().toString (), ".tmp");
+            try (DataOutputStream out = new DataOutputStream (new BufferedOutputStream (Files.newOutputStream (temp))))
+            {
+                out.write (magic);
+                out.writeInt (version);
+                out.writeLong (size);
+                out.writeLong (modified);
+                out.writeInt (blockShift);
+                out.writeBoolean (binary);
+                out.writeBoolean (monotonic);
+                out.writeLong (rows);
+                out.writeInt (columnCount);
+                out.writeInt (timeColumn);
+                out.writeInt (headers.length);
+                for (String h : headers) out.writeUTF (h);
+                out.writeInt (blocks.length);
+                for (long b : blocks) out.writeLong (b);
+            }
+            Files.move (temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (Exception e)
+        {
+            if (temp != null)
+            {
+                try {Files.deleteIfExists (temp);}
+                catch (IOException e2) {}
+            }
+        }
+    }
+}
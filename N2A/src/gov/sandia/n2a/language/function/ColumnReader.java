@@ -0,0 +1,499 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.language.function;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+    Reads the column-oriented files consumed by input() and produced by output().
+    Bytes are read in large chunks, optionally by a separate thread so that I/O overlaps with
+    simulation, and numbers are parsed directly from the bytes without creating any strings.
+
+    Two formats are accepted. The choice is made automatically from the first few bytes of the stream.
+    <ul>
+    <li>Text -- Rows of numbers separated by single tabs or spaces. Every separator marks a column,
+    so two adjacent separators indicate an empty cell. A row which starts with something other than
+    a number is a list of column headers.
+    <li>Binary -- As written by output() with the "binary" mode flag. The stream starts with the 4-byte
+    magic "N2AB" followed by a 32-bit format version. After that is a sequence of records. Each record
+    starts with a 32-bit count n. If n >= 0, then n 32-bit floats follow, forming one row. If n < 0,
+    then -n column headers follow, each as a 32-bit byte count followed by UTF-8 text.
+    All numbers are little-endian. An empty cell is stored as NaN.
+    </ul>
+    Either format may also be compressed, as described in ColumnCompression. In that case, the caller
+    should supply a channel from ColumnCompression.newChannel().
+**/
+public class ColumnReader implements AutoCloseable
+{
+    public static final byte[] magic     = {'N', '2', 'A', 'B'};
+    public static final int    version   = 1;
+    public static int          chunkSize = 1 << 20;
+    public static int          headRoom  = 1 << 16;  // Space reserved at the start of each chunk to hold the unfinished end of the previous one.
+    public static int          chunks    = 4;        // Number of chunks circulating between the read-ahead thread and the consumer.
+
+    // Return values of readRow()
+    public static final int NONE   = 0;  // No row is available yet, or end of stream.
+    public static final int HEADER = 1;
+    public static final int ROW    = 2;
+
+    public boolean  binary;
+    public boolean  eof;
+    public double   empty;                    // Value substituted for an empty cell.
+    public String[] headers;                  // Valid after readRow() returns HEADER. Unnamed columns have an empty string.
+    public double[] values = new double[16];  // Valid after readRow() returns ROW. Only the first count entries belong to the row.
+    public int      count;
+
+    protected ReadableByteChannel  channel;
+    protected boolean              blocking;  // If false, readRow() only returns data which has already arrived, as for an interactive stream.
+    protected Thread               thread;
+    protected BlockingQueue<Chunk> full;
+    protected BlockingQueue<Chunk> free;
+    protected Chunk                spare;     // Recycled chunk when there is no read-ahead thread.
+    protected volatile IOException error;     // Raised on the read-ahead thread, to be reported on the consumer thread.
+    protected boolean              started;   // Indicates that the format has been determined.
+    protected boolean              last;      // Indicates that the chunk in hand is the final one.
+
+    protected Chunk  chunk;
+    protected byte[] data;      // Same as chunk.data
+    protected int    position;  // Start of unconsumed bytes in data.
+    protected int    limit;     // End of valid bytes in data.
+
+    protected static final double[] powers = new double[23];  // Powers of 10 which are exactly representable as double.
+    static
+    {
+        powers[0] = 1;
+        for (int i = 1; i < powers.length; i++) powers[i] = powers[i-1] * 10;
+    }
+
+    protected static class Chunk
+    {
+        byte[]  data = new byte[headRoom + chunkSize];
+        int     limit;
+        boolean last;
+    }
+
+    /**
+        @param blocking Indicates that readRow() may wait for data to arrive. This should be true
+        for regular files, and false for a stream fed by another process.
+        @param readAhead Start a thread to fill the next chunk while the current one is being parsed.
+    **/
+    public ColumnReader (ReadableByteChannel channel, boolean blocking, boolean readAhead)
+    {
+        this.channel  = channel;
+        this.blocking = blocking;
+        chunk = new Chunk ();
+        data  = chunk.data;
+        position = headRoom;
+        limit    = headRoom;
+
+        if (readAhead)
+        {
+            full = new ArrayBlockingQueue<Chunk> (chunks);
+            free = new ArrayBlockingQueue<Chunk> (chunks);
+            for (int i = 1; i < chunks; i++) free.add (new Chunk ());  // The chunk in hand is the remaining one.
+            thread = new Thread ("Input read-ahead")
+            {
+                public void run ()
+                {
+                    try
+                    {
+                        while (true)
+                        {
+                            Chunk c = free.take ();
+                            try
+                            {
+                                read (c);
+                            }
+                            catch (IOException e)
+                            {
+                                error  = e;
+                                c.last = true;
+                            }
+                            full.put (c);
+                            if (c.last) break;
+                        }
+                    }
+                    catch (InterruptedException e) {}
+                }
+            };
+            thread.setDaemon (true);
+            thread.start ();
+        }
+    }
+
+    /**
+        Determines if the given file is in binary format, by checking for the magic bytes.
+    A compressed file is checked after decompression.
+    **/
+    public static boolean isBinary (Path path)
+    {
+        try (InputStream stream = ColumnCompression.open (path))
+        {
+            byte[] head = new byte[magic.length];
+            int received = 0;
+            while (received < head.length)
+            {
+                int n = stream.read (head, received, head.length - received);
+                if (n < 0) return false;
+                received += n;
+            }
+            for (int i = 0; i < head.length; i++) if (head[i] != magic[i]) return false;
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    public void close ()
+    {
+        if (thread != null) thread.interrupt ();
+        try {channel.close ();}
+        catch (IOException e) {}
+    }
+
+    /**
+        Fills the given chunk from the channel. A regular file fills the whole chunk,
+        while an interactive stream returns whatever is available after the first byte arrives.
+    **/
+    protected void read (Chunk c) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap (c.data, headRoom, c.data.length - headRoom);
+        c.last = false;
+        while (buffer.hasRemaining ())
+        {
+            int n = channel.read (buffer);
+            if (n < 0)
+            {
+                c.last = true;
+                break;
+            }
+            if (! blocking  &&  buffer.position () > headRoom) break;
+        }
+        c.limit = buffer.position ();
+    }
+
+    /**
+        Moves to the next chunk, carrying along any unconsumed bytes from the current one.
+        @param wait Indicates that it is OK to wait for the read-ahead thread.
+        @return false if no more data is available, either for now or (if eof is set) forever.
+    **/
+    protected boolean nextChunk (boolean wait) throws IOException
+    {
+        if (last)
+        {
+            eof = true;
+            return false;
+        }
+
+        Chunk next;
+        if (thread == null)
+        {
+            next = spare;
+            if (next == null) next = new Chunk ();
+            spare = null;
+            read (next);
+        }
+        else
+        {
+            try
+            {
+                if (wait) next = full.take ();
+                else      next = full.poll ();
+            }
+            catch (InterruptedException e)
+            {
+                next = null;
+            }
+            if (next == null) return false;
+            if (error != null) throw error;
+        }
+
+        int leftover = limit - position;
+        int received = next.limit - headRoom;
+        if (leftover <= headRoom)
+        {
+            System.arraycopy (data, position, next.data, headRoom - leftover, leftover);
+            position = headRoom - leftover;
+        }
+        else  // Unusually long row. Make a bigger chunk.
+        {
+            byte[] bigger = new byte[Math.max (headRoom + chunkSize, leftover + received)];
+            System.arraycopy (data,      position, bigger, 0,        leftover);
+            System.arraycopy (next.data, headRoom, bigger, leftover, received);
+            next.data  = bigger;
+            next.limit = leftover + received;
+            position   = 0;
+        }
+
+        if (thread == null) spare = chunk;
+        else                free.offer (chunk);
+        chunk = next;
+        data  = next.data;
+        limit = next.limit;
+        last  = next.last;
+        return received > 0  ||  ! last;
+    }
+
+    /**
+        Ensures that at least n unconsumed bytes are available.
+    **/
+    protected boolean ensure (int n) throws IOException
+    {
+        while (limit - position < n)
+        {
+            if (! nextChunk (blocking)) return false;
+        }
+        return true;
+    }
+
+    /**
+        Advances to the next header or row.
+        @return NONE, HEADER or ROW. If NONE and eof is not set, then more data may arrive later.
+    **/
+    public int readRow () throws IOException
+    {
+        if (! started)
+        {
+            if (! ensure (magic.length)  &&  ! eof) return NONE;
+            binary = limit - position >= magic.length;
+            for (int i = 0; binary  &&  i < magic.length; i++) binary = data[position+i] == magic[i];
+            if (binary)
+            {
+                if (! ensure (8)) return NONE;
+                position += 8;  // We only know one version, so no need to check it.
+            }
+            started = true;
+        }
+        if (binary) return readBinary ();
+        return readText ();
+    }
+
+    protected int readText () throws IOException
+    {
+        while (true)
+        {
+            // Find end of line
+            int end = position;
+            while (true)
+            {
+                while (end < limit  &&  data[end] != '\n') end++;
+                if (end < limit) break;
+                int scanned = end - position;
+                if (! nextChunk (blocking))
+                {
+                    if (! eof  ||  position == limit) return NONE;
+                    end = limit;  // The final line of the file has no newline.
+                    break;
+                }
+                end = position + scanned;  // position may have changed.
+            }
+            int start = position;
+            position = Math.min (end + 1, limit);
+            if (end > start  &&  data[end-1] == '\r') end--;
+            if (end == start) continue;  // Skip blank line.
+
+            // Count columns
+            int columns = 1;
+            for (int i = start; i < end; i++)
+            {
+                byte b = data[i];
+                if (b == '\t'  ||  b == ' ') columns++;
+            }
+
+            // Decide whether this is a header row or a value row
+            byte first = data[start];
+            if (first != '\t'  &&  first != ' ')
+            {
+                if (first < '-'  ||  first == '/'  ||  first > '9')  // not a number, so must be column header
+                {
+                    headers = new String[columns];
+                    int c = 0;
+                    int i = start;
+                    for (int j = start; j <= end; j++)
+                    {
+                        if (j < end  &&  data[j] != '\t'  &&  data[j] != ' ') continue;
+                        headers[c++] = new String (data, i, j - i, StandardCharsets.UTF_8);
+                        i = j + 1;
+                    }
+                    return HEADER;
+                }
+            }
+
+            if (values.length < columns) values = new double[columns];
+            count = columns;
+            int c = 0;
+            int i = start;
+            for (int j = start; j <= end; j++)
+            {
+                if (j < end  &&  data[j] != '\t'  &&  data[j] != ' ') continue;
+                if (j == i) values[c++] = empty;
+                else        values[c++] = parse (data, i, j);
+                i = j + 1;
+            }
+            return ROW;
+        }
+    }
+
+    protected int readBinary () throws IOException
+    {
+        if (! ensure (4)) return NONE;
+        int n = getInt (position);
+        if (n >= 0)
+        {
+            if (! ensure (4 + 4 * n)) return NONE;
+            if (values.length < n) values = new double[n];
+            int p = position + 4;
+            for (int c = 0; c < n; c++, p += 4)
+            {
+                float value = Float.intBitsToFloat (getInt (p));
+                if (Float.isNaN (value)) values[c] = empty;
+                else                     values[c] = value;
+            }
+            position = p;
+            count = n;
+            return ROW;
+        }
+
+        // Headers are variable length, so make sure the whole record is present before consuming anything.
+        n = -n;
+        int length = 4;
+        for (int c = 0; c < n; c++)
+        {
+            if (! ensure (length + 4)) return NONE;
+            length += 4 + getInt (position + length);
+            if (! ensure (length)) return NONE;
+        }
+        headers = new String[n];
+        int p = position + 4;
+        for (int c = 0; c < n; c++)
+        {
+            int size = getInt (p);
+            headers[c] = new String (data, p + 4, size, StandardCharsets.UTF_8);
+            p += 4 + size;
+        }
+        position = p;
+        return HEADER;
+    }
+
+    protected int getInt (int p)
+    {
+        return getInt (data, p);
+    }
+
+    /**
+        Decodes a little-endian 32-bit integer from the given position in data.
+    **/
+    public static int getInt (byte[] data, int p)
+    {
+        return   (data[p  ] & 0xFF)
+               | (data[p+1] & 0xFF) << 8
+               | (data[p+2] & 0xFF) << 16
+               | (data[p+3] & 0xFF) << 24;
+    }
+
+    /**
+        Converts the decimal number in the given range of bytes.
+        Handles the common forms directly. Anything unusual, including numbers which can't be
+        converted exactly by the fast method, goes through Double.parseDouble().
+    **/
+    public static double parse (byte[] data, int start, int end)
+    {
+        int     i        = start;
+        boolean negative = false;
+        if      (data[i] == '-') {negative = true; i++;}
+        else if (data[i] == '+') i++;
+
+        long    mantissa = 0;
+        int     digits   = 0;  // significant digits in mantissa
+        int     exponent = 0;
+        boolean found    = false;
+        boolean exact    = true;
+        for (; i < end; i++)
+        {
+            int d = data[i] - '0';
+            if (d < 0  ||  d > 9) break;
+            found = true;
+            if (digits < 18)
+            {
+                mantissa = mantissa * 10 + d;
+                if (mantissa != 0) digits++;
+            }
+            else
+            {
+                exponent++;
+                if (d != 0) exact = false;
+            }
+        }
+        if (i < end  &&  data[i] == '.')
+        {
+            for (i++; i < end; i++)
+            {
+                int d = data[i] - '0';
+                if (d < 0  ||  d > 9) break;
+                found = true;
+                if (digits < 18)
+                {
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+                else if (d != 0) exact = false;
+            }
+        }
+        if (found  &&  i < end  &&  (data[i] == 'e'  ||  data[i] == 'E'))
+        {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end)
+            {
+                if      (data[i] == '-') {negativeExponent = true; i++;}
+                else if (data[i] == '+') i++;
+            }
+            int e = 0;
+            boolean foundExponent = false;
+            for (; i < end; i++)
+            {
+                int d = data[i] - '0';
+                if (d < 0  ||  d > 9) break;
+                foundExponent = true;
+                if (e < 100000) e = e * 10 + d;
+            }
+            if (! foundExponent) found = false;
+            if (negativeExponent) exponent -= e;
+            else                  exponent += e;
+        }
+
+        if (found  &&  i == end  &&  exact)
+        {
+            double result;
+            if (mantissa == 0)
+            {
+                result = 0;
+            }
+            else if (mantissa < 1L << 53  &&  exponent >= -22  &&  exponent <= 22)  // Both values are exact, so one operation gives a correctly rounded result.
+            {
+                if (exponent < 0) result = mantissa / powers[-exponent];
+                else              result = mantissa * powers[exponent];
+            }
+            else
+            {
+                return Double.parseDouble (new String (data, start, end - start, StandardCharsets.ISO_8859_1));
+            }
+            return negative ? -result : result;
+        }
+        return Double.parseDouble (new String (data, start, end - start, StandardCharsets.ISO_8859_1).trim ());
+    }
+}
@@ -6,10 +6,12 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.language.function;
 
+import java.util.Arrays;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
+import gov.sandia.n2a.backend.internal.EventStep;
 import gov.sandia.n2a.backend.internal.InstanceTemporaries;
 import gov.sandia.n2a.backend.internal.Simulator;
 import gov.sandia.n2a.eqset.EquationSet.ExponentContext;
@@ -84,19 +86,103 @@ public class Delay extends Function
         unit = operands[0].unit;
     }
 
+    /**
+        Holds values in flight. In the common case, where the delay is constant and a whole number of time steps,
+        values are kept in a circular buffer of primitives that holds exactly one value per step. If either
+        condition is ever violated, the buffer switches permanently to a map keyed by release time,
+        which can handle any pattern of delays and step sizes.
+    **/
     public static class DelayBuffer
     {
         double value;  // Although not strictly immutable, but generally treated that way, so we will use this repeatedly for return value.
-        NavigableMap<Double,Double> buffer = new TreeMap<Double,Double> ();
 
-        public void step (double now, double delay, double value)
+        double[] ring;                 // null if not in use
+        int      head;                 // Position of oldest value, once ring is full.
+        int      count;                // Number of values currently in ring.
+        int      steps;                // Delay as a count of time steps. Once count reaches this, ring is full.
+        double   delay;                // Value used to compute steps.
+        double   dt;                   // Step size used to compute steps.
+        double   last = Double.NaN;    // Time of most recent call.
+
+        NavigableMap<Double,Double> buffer;  // null until needed
+
+        public static double tolerance = 1e-6;  // Relative to dt, how close delay must be to a whole number of steps.
+
+        public void step (double now, double dt, double delay, double value)
+        {
+            if (buffer == null)
+            {
+                if (Double.isNaN (last))  // first call
+                {
+                    double k = Math.rint (delay / dt);
+                    if (dt > 0  &&  k >= 0  &&  k < Integer.MAX_VALUE  &&  Math.abs (k * dt - delay) <= dt * tolerance)
+                    {
+                        steps = (int) k;
+                        ring  = new double[Math.min (steps, 16)];
+                        this.delay = delay;
+                        this.dt    = dt;
+                    }
+                    else
+                    {
+                        buffer = new TreeMap<Double,Double> ();
+                    }
+                }
+                else if (delay != this.delay  ||  dt != this.dt  ||  now != last  &&  Math.abs (now - last - dt) > dt * tolerance)
+                {
+                    toMap ();
+                }
+            }
+
+            if (buffer != null)
+            {
+                buffer.put (now + delay, value);
+                while (! buffer.isEmpty ()  &&  buffer.firstKey () <= now)
+                {
+                    Entry<Double,Double> e = buffer.pollFirstEntry ();
+                    this.value = e.getValue ();
+                }
+                last = now;
+                return;
+            }
+
+            if (steps == 0)
+            {
+                this.value = value;
+            }
+            else if (now == last)  // Called again in the same cycle, so replace the newest value, the same as the map would.
+            {
+                int newest;
+                if (count < steps) newest = count - 1;
+                else               newest = (head + steps - 1) % steps;
+                ring[newest] = value;
+            }
+            else if (count < steps)  // Still filling, so values are in order from index 0.
+            {
+                if (count == ring.length) ring = Arrays.copyOf (ring, (int) Math.min ((long) ring.length * 2, steps));
+                ring[count++] = value;
+            }
+            else
+            {
+                this.value = ring[head];
+                ring[head] = value;
+                if (++head == steps) head = 0;
+            }
+            last = now;
+        }
+
+        /**
+            Moves the contents of the ring into the map, with release times computed from the step size.
+        **/
+        protected void toMap ()
         {
-            buffer.put (now + delay, value);
-            while (buffer.firstKey () <= now)
+            buffer = new TreeMap<Double,Double> ();
+            if (ring == null) return;
+            for (int i = 0; i < count; i++)
             {
-                Entry<Double,Double> e = buffer.pollFirstEntry ();
-                this.value = e.getValue ();
+                int age = count - 1 - i;  // steps since value was stored
+                buffer.put (last - age * dt + delay, ring[(head + i) % ring.length]);
             }
+            ring = null;
         }
     }
 
@@ -117,7 +203,9 @@ public class Delay extends Function
             if (operands.length > 2) buffer.value = ((Scalar) operands[2].eval (context)).value;
             else                     buffer.value = 0;
         }
-        buffer.step (simulator.currentEvent.t, delay, value);
+        double dt = 0;
+        if (simulator.currentEvent instanceof EventStep) dt = ((EventStep) simulator.currentEvent).dt;
+        buffer.step (simulator.currentEvent.t, dt, delay, value);
         return new Scalar (buffer.value);
     }
 
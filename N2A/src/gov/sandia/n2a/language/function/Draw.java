@@ -12,9 +12,23 @@ import java.awt.Graphics2D;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import javax.imageio.ImageIO;
 
 import gov.sandia.n2a.backend.internal.Simulator;
@@ -65,6 +79,23 @@ public class Draw extends Function
         return new Scalar ();
     }
 
+    /**
+        Shared by all draw() outputs in the process. Image encoding is far more expensive than drawing,
+        so it happens here rather than on the simulation thread.
+    **/
+    public static int                encoderThreads = Runtime.getRuntime ().availableProcessors ();
+    protected static ExecutorService encoders       = Executors.newFixedThreadPool (encoderThreads, new ThreadFactory ()
+    {
+        public Thread newThread (Runnable r)
+        {
+            Thread t = new Thread (r, "Draw Encoder");
+            t.setDaemon (true);
+            return t;
+        }
+    });
+
+    public static List<String> videoFormats = Arrays.asList ("mp4", "avi", "mkv", "mov", "webm");
+
     public static class Holder implements gov.sandia.n2a.backend.internal.Holder
     {
         public Path    path;
@@ -76,15 +107,27 @@ public class Draw extends Function
         public int     width      = 1024;
         public int     height     = 1024;
         public Color   clearColor = Color.BLACK;
+        public double  fps        = 24;     // For video streams.
+        public int     queueDepth = encoderThreads + 2;  // Maximum number of frames in existence, including the one being drawn. Bounds memory use.
 
-        // TODO: handle video streams. Probably use FFMPEG JNI wrapper.
         public double           t;
-        public int              frameCount; // Number of frames actually written so far.
+        public int              frameCount; // Number of frames handed off for writing so far.
         public BufferedImage    image;      // Current image being built. Null if nothing has been drawn since last write to disk.
         public Graphics2D       graphics;   // for drawing on current image
         public Line2D.Double    line;       // Re-usable Shape object
         public Ellipse2D.Double disc;       // ditto
 
+        protected BlockingQueue<BufferedImage> free = new LinkedBlockingQueue<BufferedImage> ();  // Images that encoders have finished with.
+        protected int                          allocated;      // Total images created, whether free or in use.
+        protected int                          pending;        // Frames not yet written. Guarded by this.
+        protected int                          committed = -1; // In single mode, the latest frame that has reached its file. Guarded by this.
+
+        // Video stream. Frames are piped to an external encoder (ffmpeg) in order, by a single thread.
+        protected Process         video;
+        protected OutputStream    videoStream;
+        protected ExecutorService videoWriter;
+        protected byte[]          videoBytes;
+
         public Holder (Simulator simulator, String filename)
         {
             Path file = simulator.jobDir.resolve (filename);
@@ -102,6 +145,47 @@ public class Draw extends Function
         public void close ()
         {
             writeImage ();
+            synchronized (this)
+            {
+                while (pending > 0)
+                {
+                    try {wait ();}
+                    catch (InterruptedException e) {break;}
+                }
+            }
+            if (video != null)
+            {
+                videoWriter.shutdown ();
+                try
+                {
+                    videoStream.close ();
+                    video.waitFor ();
+                }
+                catch (Exception e) {}
+            }
+        }
+
+        /**
+            @return An image ready for drawing. Reuses one that has already been written, if possible.
+            If all queueDepth images are busy, waits until an encoder finishes with one.
+        **/
+        public BufferedImage getImage ()
+        {
+            BufferedImage result = free.poll ();
+            if (result != null) return result;
+            if (allocated < queueDepth)
+            {
+                allocated++;
+                return new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+            }
+            try
+            {
+                return free.take ();
+            }
+            catch (InterruptedException e)
+            {
+                throw new Backend.AbortRun ();
+            }
         }
 
         public void next (double now)
@@ -113,7 +197,7 @@ public class Draw extends Function
             }
             if (image == null)
             {
-                image = new BufferedImage (width, height, BufferedImage.TYPE_INT_ARGB);
+                image = getImage ();
                 graphics = image.createGraphics ();
                 graphics.setColor (clearColor);
                 graphics.fillRect (0, 0, width, height);
@@ -161,30 +245,151 @@ public class Draw extends Function
             graphics.draw (line);
         }
 
+        /**
+            Hands the current image off for encoding. Returns as soon as the frame is queued.
+        **/
         public void writeImage ()
         {
             if (image == null) return;
 
-            String filename;
-            if (single)
+            final BufferedImage frame;
+            if (single)  // The image accumulates across frames, so encode a snapshot of it.
             {
-                filename = path.toString () + "." + format;
+                frame = getImage ();
+                int[] from = ((DataBufferInt) image.getRaster ().getDataBuffer ()).getData ();
+                int[] to   = ((DataBufferInt) frame.getRaster ().getDataBuffer ()).getData ();
+                System.arraycopy (from, 0, to, 0, from.length);
             }
             else
+            {
+                frame = image;
+                graphics.dispose ();
+                graphics = null;
+                image    = null;
+            }
+            final int frameNumber = frameCount++;
+
+            if (frameNumber == 0  &&  ! single  &&  videoFormats.contains (format))
+            {
+                if (! startVideo ()) format = "png";  // Fall back on an image sequence.
+            }
+
+            synchronized (this) {pending++;}
+            Runnable task = new Runnable ()
+            {
+                public void run ()
+                {
+                    try
+                    {
+                        if (video != null) writeVideo (frame);
+                        else               writeFile  (frame, frameNumber);
+                    }
+                    catch (IOException e)
+                    {
+                        e.printStackTrace ();
+                    }
+                    finally
+                    {
+                        free.offer (frame);
+                        synchronized (Holder.this)
+                        {
+                            pending--;
+                            Holder.this.notifyAll ();
+                        }
+                    }
+                }
+            };
+            if (video != null) videoWriter.execute (task);
+            else               encoders   .execute (task);
+        }
+
+        /**
+            Called on an encoder thread.
+        **/
+        public void writeFile (BufferedImage frame, int frameNumber) throws IOException
+        {
+            if (single)
+            {
+                // Frames may finish out of order, so encode to a temporary file and only keep it if nothing newer has landed.
+                File target = new File (path.toString () + "." + format).getAbsoluteFile ();
+                File temp   = new File (target.getPath () + "." + frameNumber + ".tmp");
+                ImageIO.write (frame, format, temp);
+                synchronized (this)
+                {
+                    if (frameNumber > committed)
+                    {
+                        Files.move (temp.toPath (), target.toPath (), StandardCopyOption.REPLACE_EXISTING);
+                        committed = frameNumber;
+                    }
+                    else
+                    {
+                        temp.delete ();
+                    }
+                }
+                return;
+            }
+
+            synchronized (this)
             {
                 if (! dirCreated)
                 {
                     path.toFile ().getAbsoluteFile ().mkdirs ();
                     dirCreated = true;
                 }
-                filename = path.resolve (String.format ("%d.%s", frameCount, format)).toString ();
             }
             // Path.toAbsolutePath() does not resolve against job directory the same way File.getAbsoluteFile() does.
-            try {ImageIO.write (image, format, new File (filename).getAbsoluteFile ());}
-            catch (IOException e) {e.printStackTrace ();}
+            String filename = path.resolve (String.format ("%d.%s", frameNumber, format)).toString ();
+            ImageIO.write (frame, format, new File (filename).getAbsoluteFile ());
+        }
+
+        /**
+            Launches ffmpeg to receive raw frames on its standard input.
+            @return false if ffmpeg could not be started.
+        **/
+        public boolean startVideo ()
+        {
+            String filename = new File (path.toString () + "." + format).getAbsolutePath ();
+            ProcessBuilder builder = new ProcessBuilder
+            (
+                "ffmpeg", "-y", "-loglevel", "error",
+                "-f", "rawvideo", "-pix_fmt", "bgra", "-s", width + "x" + height, "-r", String.valueOf (fps), "-i", "-",
+                "-pix_fmt", "yuv420p", filename
+            );
+            File log = new File (path.toString () + ".log").getAbsoluteFile ();
+            builder.redirectOutput (log);
+            builder.redirectErrorStream (true);
+            try
+            {
+                video = builder.start ();
+            }
+            catch (IOException e)
+            {
+                log.delete ();
+                Backend.err.get ().println ("WARNING: Could not start ffmpeg, so writing image sequence instead.");
+                return false;
+            }
+            videoStream = new BufferedOutputStream (video.getOutputStream (), 1 << 20);
+            videoBytes  = new byte[width * height * 4];
+            videoWriter = Executors.newSingleThreadExecutor (new ThreadFactory ()
+            {
+                public Thread newThread (Runnable r)
+                {
+                    Thread t = new Thread (r, "Draw Video");
+                    t.setDaemon (true);
+                    return t;
+                }
+            });
+            return true;
+        }
 
-            if (! single) image = null;
-            frameCount++;
+        /**
+            Called on the video writer thread, so frames arrive in order.
+        **/
+        public void writeVideo (BufferedImage frame) throws IOException
+        {
+            int[] pixels = ((DataBufferInt) frame.getRaster ().getDataBuffer ()).getData ();
+            ByteBuffer.wrap (videoBytes).order (ByteOrder.LITTLE_ENDIAN).asIntBuffer ().put (pixels);  // ARGB as little-endian int is BGRA bytes.
+            videoStream.write (videoBytes);
         }
     }
 
@@ -227,6 +432,10 @@ public class Draw extends Function
                             try {H.clearColor = Color.decode (pieces2[1]);}
                             catch (NumberFormatException e) {}
                             break;
+                        case "fps":
+                            try {H.fps = Double.valueOf (pieces2[1]);}
+                            catch (NumberFormatException e) {}
+                            break;
                     }
                 }
             }
@@ -6,17 +6,20 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.language.function;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
 import gov.sandia.n2a.backend.internal.EventStep;
+import gov.sandia.n2a.backend.internal.ResourceCache;
 import gov.sandia.n2a.backend.internal.Simulator;
 import gov.sandia.n2a.eqset.EquationSet.ExponentContext;
 import gov.sandia.n2a.language.Function;
@@ -116,7 +119,10 @@ public class Input extends Function
     {
         public static final double[] empty = {0};
 
-        public BufferedReader      stream;
+        public ColumnReader        reader;  // For streams which can only be read forward.
+        public ColumnIndex         index;   // For regular files. Allows rows to be visited in any order.
+        public Cursor[]            cursors = new Cursor[4];  // Recently visited rows, so that several parts reading different positions in the same file don't thrash.
+        public int                 nextCursor;
         public double              currentLine   = -1;
         public double[]            currentValues = empty;
         public double              nextLine      = -1;
@@ -129,73 +135,123 @@ public class Input extends Function
         public boolean             timeColumnSet;
         public double              epsilon;
 
+        public static class Cursor
+        {
+            public long     row;
+            public double   start;  // Time (or row number) at which this row takes effect.
+            public double   end;    // Time at which the next row takes effect.
+            public double[] values;
+        }
+
+        /**
+            Sets up random access to the given file, if possible.
+            @return false if the file can only be read sequentially, in which case the caller should open a ColumnReader instead.
+        **/
+        public boolean openIndex (Path path)
+        {
+            if (! Files.isRegularFile (path)) return false;
+            try
+            {
+                ColumnIndex i = ResourceCache.acquire (path, ColumnIndex.class, loader);
+                if (time  &&  ! i.monotonic)  // Binary search would be meaningless.
+                {
+                    ResourceCache.release (i);
+                    return false;
+                }
+                index         = i;
+                columnMap     = i.columnMap;
+                headers       = Arrays.asList (i.headers);
+                columnCount   = i.columnCount;
+                timeColumn    = i.timeColumn;
+                timeColumnSet = true;
+                return true;
+            }
+            catch (Exception e)
+            {
+                return false;
+            }
+        }
+
+        /**
+            Indices are shared between simulations in the same JVM, since they are never modified after loading.
+        **/
+        public static ResourceCache.Loader<ColumnIndex> loader = new ResourceCache.Loader<ColumnIndex> ()
+        {
+            public ColumnIndex load (Path path) throws Exception
+            {
+                return ColumnIndex.open (path);
+            }
+
+            public long size (ColumnIndex index)
+            {
+                return index.heapSize ();
+            }
+        };
+
         public void close ()
         {
-            try {stream.close ();}
-            catch (IOException e) {}
+            if (reader != null) reader.close ();
+            if (index  != null) ResourceCache.release (index);
         }
 
         public void getRow (double requested) throws IOException
         {
+            if (index != null)
+            {
+                currentValues = seek (requested);
+                return;
+            }
+
             while (true)
             {
                 // Read and process next line
-                if (nextLine < 0  &&  stream.ready ())
+                if (nextLine < 0)
                 {
-                    String line = stream.readLine ();
-                    if (line != null  &&  ! line.isEmpty ())
+                    int type = reader.readRow ();
+                    if (type == ColumnReader.HEADER)
                     {
-                        String[] columns = line.split ("\\s", -1);  // -1 means that trailing tabs/spaces will produce additional columns. We assume that every tab/space is placed intentionally to indicate a column.
+                        String[] columns = reader.headers;
                         columnCount = Math.max (columnCount, columns.length);
-
-                        // Decide whether this is a header row or a value row
-                        if (! columns[0].isEmpty ())
+                        for (int i = 0; i < columns.length; i++)
                         {
-                            char firstCharacter = columns[0].charAt (0);
-                            if (firstCharacter < '-'  ||  firstCharacter == '/'  ||  firstCharacter > '9')  // not a number, so must be column header
+                            String header = columns[i];
+                            if (! header.isEmpty ())
                             {
-                                for (int i = 0; i < columns.length; i++)
-                                {
-                                    String header = columns[i];
-                                    if (! header.isEmpty ())
-                                    {
-                                        columnMap.put (header, i);
-                                        while (headers.size () < i) headers.add ("");
-                                        headers.add (header);
-                                    }
-                                }
+                                columnMap.put (header, i);
+                                while (headers.size () < i) headers.add ("");
+                                headers.add (header);
+                            }
+                        }
 
-                                // Select time column
-                                if (time  &&  ! timeColumnSet)
+                        // Select time column
+                        if (time  &&  ! timeColumnSet)
+                        {
+                            int timeMatch = 0;
+                            for (Entry<String,Integer> e : columnMap.entrySet ())
+                            {
+                                int potentialMatch = 0;
+                                String header = e.getKey ();
+                                if      (header.equals ("t"   )) potentialMatch = 1;
+                                else if (header.equals ("TIME")) potentialMatch = 2;
+                                else if (header.equals ("$t"  )) potentialMatch = 3;
+                                if (potentialMatch > timeMatch)
                                 {
-                                    int timeMatch = 0;
-                                    for (Entry<String,Integer> e : columnMap.entrySet ())
-                                    {
-                                        int potentialMatch = 0;
-                                        String header = e.getKey ();
-                                        if      (header.equals ("t"   )) potentialMatch = 1;
-                                        else if (header.equals ("TIME")) potentialMatch = 2;
-                                        else if (header.equals ("$t"  )) potentialMatch = 3;
-                                        if (potentialMatch > timeMatch)
-                                        {
-                                            timeMatch = potentialMatch;
-                                            timeColumn = e.getValue ();
-                                        }
-                                    }
-                                    timeColumnSet = true;
+                                    timeMatch = potentialMatch;
+                                    timeColumn = e.getValue ();
                                 }
-
-                                continue;  // back to top of outer while loop, skipping any other processing below
                             }
+                            timeColumnSet = true;
                         }
 
-                        nextValues = new double[columnCount];
-                        for (int i = 0; i < columns.length; i++)
-                        {
-                            String c = columns[i];
-                            if (c.isEmpty ()) nextValues[i] = 0;
-                            else              nextValues[i] = Double.parseDouble (c);
-                        }
+                        continue;  // back to top of outer while loop, skipping any other processing below
+                    }
+                    if (type == ColumnReader.ROW)
+                    {
+                        int count = reader.count;
+                        columnCount = Math.max (columnCount, count);
+                        if (nextValues.length != columnCount  ||  nextValues == empty) nextValues = new double[columnCount];  // Otherwise, reuse the array which held the previous row.
+                        System.arraycopy (reader.values, 0, nextValues, 0, count);
+                        Arrays.fill (nextValues, count, columnCount, 0);
                         if (time) nextLine = nextValues[timeColumn];
                         else      nextLine = currentLine + 1;
                     }
@@ -205,11 +261,50 @@ public class Input extends Function
                 if (requested <= currentLine) break;
                 if (nextLine < 0) break;  // Return the current line, because another is not available. In general, we don't stall the simulator to wait for data.
                 if (requested < nextLine - epsilon) break;
+                double[] temp = currentValues;
                 currentLine   = nextLine;
                 currentValues = nextValues;
                 nextLine   = -1;
-                nextValues = empty;
+                nextValues = temp;
+            }
+        }
+
+        /**
+            Random-access version of getRow().
+            Finds the last row whose time (or row number) is no greater than the requested value.
+        **/
+        public double[] seek (double requested)
+        {
+            double r = requested + epsilon;
+            for (Cursor c : cursors)
+            {
+                if (c != null  &&  c.start <= r  &&  r < c.end) return c.values;
             }
+
+            long rows = index.rows;
+            long row;
+            if (time) row = index.find (r);
+            else      row = Math.min ((long) Math.floor (r), rows - 1);
+            if (row < 0) return empty;
+
+            Cursor c = cursors[nextCursor];
+            if (c == null) c = cursors[nextCursor] = new Cursor ();
+            nextCursor = (nextCursor + 1) % cursors.length;
+
+            c.row    = row;
+            c.values = index.getRow (row, c.values);
+            boolean last = row + 1 >= rows;
+            if (time)
+            {
+                c.start = index.getTime (row);
+                c.end   = last ? Double.POSITIVE_INFINITY : index.getTime (row + 1);
+            }
+            else
+            {
+                c.start = row;
+                c.end   = last ? Double.POSITIVE_INFINITY : row + 1;
+            }
+            return c.values;
         }
     }
 
@@ -228,10 +323,18 @@ public class Input extends Function
             {
                 H = new Holder ();
 
-                if (path.isEmpty ()) H.stream = new BufferedReader (new InputStreamReader (System.in));  // not ideal; reading stdin should be reserved for headless operation
-                else                 H.stream = Files.newBufferedReader (simulator.jobDir.resolve (path));
-
                 H.time = time;
+                if (path.isEmpty ())
+                {
+                    H.reader = new ColumnReader (Channels.newChannel (System.in), false, true);  // not ideal; reading stdin should be reserved for headless operation
+                }
+                else
+                {
+                    Path file = simulator.jobDir.resolve (path);
+                    if      (ColumnCompression.isCompressed (file)) H.reader = new ColumnReader (ColumnCompression.newChannel (file), true, true);  // Random access is not possible, so read sequentially.
+                    else if (! H.openIndex (file))                   H.reader = new ColumnReader (FileChannel.open (file), true, true);
+                }
+
                 H.epsilon = Math.sqrt (Math.ulp (1.0));  // sqrt (epsilon for time representation (currently double)), about 1e-8
                 if (time  &&  simulator.currentEvent instanceof EventStep) H.epsilon = Math.min (H.epsilon, ((EventStep) simulator.currentEvent).dt / 1000);
 
@@ -6,10 +6,12 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.language.function;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -39,7 +41,7 @@ public class Output extends Function
     public String  variableName0; // As found in operand[0]
     public String  variableName1; // As found in operand[1]
     public boolean hasColumnName; // Indicates that column name is explicitly provided, rather than generated.
-    public int     index;         // For Internal backend, the index of generated column name in valuesObject array.
+    public int     index;         // For Internal backend, the index of the Column handle in valuesObject array.
     public String  name;          // For C backend, the name of the OutputHolder object.
     public String  fileName;      // For C backend, the name of the string variable holding the file name, if any.
     public String  columnName;    // For C backend, the name of the string variable holding the generated column name, if any.
@@ -108,26 +110,49 @@ public class Output extends Function
     {
         public Map<String,Integer> columnMap    = new HashMap<String,Integer> ();  // Maps from column name to column position.
         public MDoc                columnMode;                                     // Maps from column name to a set of mode flags.
-        public List<Float>         columnValues = new ArrayList<Float> ();         // Holds current value for each column.
+        public float[]             columnValues = new float[16];                   // Holds current value for each column. Length may exceed columnCount.
+        public int                 columnCount;                                    // Number of columns in use.
         public int                 columnsPrevious;                                // Number of columns written in previous cycle.
         public boolean             traceReceived;                                  // Indicates that at least one column was touched during the current cycle.
         public double              t;
+        public String              path;
         public PrintStream         out;
+        public OutputWriter        writer;                                         // Formats and writes rows on a separate thread. Created at first write.
         public boolean             raw;                                            // Indicates that column is an exact index.
+        public boolean             binary;                                         // Write rows in the binary format described in ColumnReader.
+        public boolean             gzip;                                           // Compress the file. See ColumnCompression.
 
-        public Holder (Simulator simulator, String path)
+        public Holder (Simulator simulator, String path, String mode)
         {
-            if (path.isEmpty ())
+            this.path = path;
+            Arrays.fill (columnValues, Float.NaN);
+            if (mode != null)
+            {
+                raw    = mode.contains ("raw");
+                binary = mode.contains ("binary");
+                gzip   = mode.contains ("gzip");
+            }
+
+            if (path.isEmpty ()  &&  ! gzip)
             {
                 out = simulator.out;
                 columnMode = new MDoc (simulator.jobDir.resolve ("out.columns"));
             }
             else
             {
+                String fileName = path;
+                if (path.isEmpty ()) fileName = "out";
                 try
                 {
-                    out = new PrintStream (simulator.jobDir.resolve (path).toFile (), "UTF-8");
-                    columnMode = new MDoc (simulator.jobDir.resolve (path + ".columns"));
+                    OutputStream stream = new FileOutputStream (simulator.jobDir.resolve (fileName).toFile ());
+                    if (gzip) stream = new ColumnCompression.Writer (stream);
+                    out = new PrintStream (new BufferedOutputStream (stream, 1 << 16), false, "UTF-8");
+                    columnMode = new MDoc (simulator.jobDir.resolve (fileName + ".columns"));
+                    if (path.isEmpty ())  // Take over the stdout file, which has not been written yet.
+                    {
+                        if (simulator.out != System.out) simulator.out.close ();
+                        simulator.out = out;
+                    }
                 }
                 catch (Exception e)
                 {
@@ -140,11 +165,23 @@ public class Output extends Function
         public void close ()
         {
             writeTrace ();
-            out.close ();
+            if (writer == null) out.close ();
+            else                writer.finish ();  // Drains the backlog, then closes out.
             columnMode.save ();
         }
 
         public void trace (double now, String column, float value, String mode)
+        {
+            advance (now);
+            int index = column (column, mode);
+            columnValues[index] = value;
+        }
+
+        /**
+            Prepares the row buffer to receive values for the given time.
+            Must be called before setting any value in columnValues.
+        **/
+        public void advance (double now)
         {
             // Detect when time changes and dump any previously traced values.
             if (now > t)
@@ -156,75 +193,76 @@ public class Output extends Function
             if (! traceReceived)  // First trace for this cycle
             {
                 traceReceived = true;
-                if (columnValues.isEmpty ())  // slip $t into first column 
+                if (columnCount == 0)  // slip $t into first column
                 {
                     columnMap.put ("$t", 0);
-                    columnValues.add ((float) t);
+                    columnCount = 1;
                     columnMode.set ("$t", 0);
                 }
-                else
-                {
-                    columnValues.set (0, (float) t);
-                }
+                columnValues[0] = (float) t;
             }
+        }
 
+        /**
+            Finds the position of the named column in columnValues, adding it if needed.
+            The result remains valid for the life of this holder, so callers may keep it.
+            However, adding a column may replace the columnValues array.
+        **/
+        public int column (String column, String mode)
+        {
             Integer index = columnMap.get (column);
-            if (index == null)  // Add new column
+            if (index != null) return index;
+
+            // Add new column
+            int i;
+            if (raw) i = Integer.valueOf (column) + 1;  // 1 is offset for time in first column
+            else     i = columnCount;
+            if (i >= columnValues.length)
             {
-                if (raw)
-                {
-                    int i = Integer.valueOf (column) + 1;  // 1 is offset for time in first column
-                    while (columnValues.size () < i) columnValues.add (Float.NaN);
-                    index = i;
-                }
-                else
-                {
-                    index = columnValues.size ();
-                }
-                columnMap.put (column, index);
-                columnValues.add (value);
+                int oldLength = columnValues.length;
+                columnValues = Arrays.copyOf (columnValues, Math.max (i + 1, oldLength * 2));
+                Arrays.fill (columnValues, oldLength, columnValues.length, Float.NaN);
+            }
+            columnCount = Math.max (columnCount, i + 1);
+            columnMap.put (column, i);
 
-                columnMode.set (column, index);  // Report all column names, regardless of whether they have any mode flags.
-                if (mode != null)
+            columnMode.set (column, i);  // Report all column names, regardless of whether they have any mode flags.
+            if (mode != null)
+            {
+                String[] hints = mode.split (",");
+                for (String h : hints)
                 {
-                    String[] hints = mode.split (",");
-                    for (String h : hints)
+                    h = h.trim ();
+                    if (h.isEmpty ()  ||  h.equals ("raw")  ||  h.equals ("binary")  ||  h.equals ("gzip")) continue;
+                    String[] pieces = h.split ("=", 2);
+                    String key = pieces[0].trim ();
+                    String val = "";
+                    if (pieces.length > 1) val = pieces[1].trim ();
+                    switch (key)
                     {
-                        h = h.trim ();
-                        if (h.isEmpty ()  ||  h.equals ("raw")) continue;
-                        String[] pieces = h.split ("=", 2);
-                        String key = pieces[0].trim ();
-                        String val = "";
-                        if (pieces.length > 1) val = pieces[1].trim ();
-                        switch (key)
-                        {
-                            case "timeScale":
-                                columnMode.set (val, 0, "scale");  // Set on time column.
-                                break;
-                            case "xmax":
-                            case "xmin":
-                            case "ymax":
-                            case "ymin":
-                                columnMode.set (val, 0, key);  // All chart-wide parameters go on time column.
-                                break;
-                            default:
-                                columnMode.set (val, index, key);
-                        }
+                        case "timeScale":
+                            columnMode.set (val, 0, "scale");  // Set on time column.
+                            break;
+                        case "xmax":
+                        case "xmin":
+                        case "ymax":
+                        case "ymin":
+                            columnMode.set (val, 0, key);  // All chart-wide parameters go on time column.
+                            break;
+                        default:
+                            columnMode.set (val, i, key);
                     }
                 }
             }
-            else  // Existing column
-            {
-                columnValues.set (index, value);
-            }
+            return i;
         }
 
         public void writeTrace ()
         {
             if (! traceReceived) return;  // Don't output anything unless at least one value was set.
 
-            int count = columnValues.size ();
-            int last  = count - 1;
+            if (writer == null) writer = new OutputWriter (path, out, binary, raw, gzip);
+            int count = columnCount;
 
             // Write headers if new columns have been added.
             if (count > columnsPrevious)
@@ -236,37 +274,50 @@ public class Output extends Function
                     {
                         headers[i.getValue ()] = i.getKey ();
                     }
-                    out.print (headers[0]);  // Should be $t
-                    int i = 1;
-                    for (; i < columnsPrevious; i++)
-                    {
-                        out.print ("\t");
-                    }
-                    for (; i < count; i++)
-                    {
-                        out.print ("\t");
-                        out.print (headers[i].replaceAll (" ", "_"));
-                    }
-                    out.println ();
+                    writer.put (headers);
                 }
                 columnsPrevious = count;
                 columnMode.save ();
             }
 
             // Write values
-            for (int i = 0; i <= last; i++)
-            {
-                Float c = columnValues.get (i);
-                if (! c.isNaN ()) out.print (c);
-                if (i < last) out.print ("\t");
-                columnValues.set (i, Float.NaN);
-            }
-            out.println ();
+            float[] row = writer.row (count);
+            System.arraycopy (columnValues, 0, row, 0, count);
+            Arrays.fill (columnValues, 0, count, Float.NaN);
+            writer.put (row);
 
             traceReceived = false;
         }
     }
 
+    /**
+        Remembers which columns of a holder receive the values from one output() call in one instance.
+        This avoids looking up the column name on every cycle.
+    **/
+    public static class Column
+    {
+        public String name;     // Column name from which indices were determined. For a matrix, this is the prefix of all the element names.
+        public Holder holder;   // Holder in which indices were determined.
+        public int    rows;     // Shape of the value for which indices were determined. A scalar is 1x1.
+        public int    columns;  // Shape matters, not just count, because a 2x3 and a 3x2 matrix have different element names.
+        public int[]  indices;  // Position of each value in Holder.columnValues. For a matrix, elements are in row-major order.
+
+        /**
+            @return The previously-determined column indices, if they still apply. Otherwise null, in which case
+            the caller must fill in indices.
+        **/
+        public int[] resolve (Holder H, String name, int rows, int columns)
+        {
+            if (H == holder  &&  rows == this.rows  &&  columns == this.columns  &&  name.equals (this.name)) return indices;
+            holder       = H;
+            this.name    = name;
+            this.rows    = rows;
+            this.columns = columns;
+            indices      = new int[rows * columns];
+            return null;
+        }
+    }
+
     public Type getType ()
     {
         return operands[1].getType ();
@@ -286,8 +337,7 @@ public class Output extends Function
         Object o = simulator.holders.get (path);
         if (o == null)
         {
-            H = new Holder (simulator, path);
-            if (mode != null) H.raw = mode.contains ("raw");
+            H = new Holder (simulator, path, mode);
             simulator.holders.put (path, H);
         }
         else if (! (o instanceof Holder))
@@ -298,6 +348,14 @@ public class Output extends Function
         else H = (Holder) o;
 
         // Determine column name
+        Instance instance = context;
+        if (instance instanceof InstanceTemporaries) instance = ((InstanceTemporaries) instance).wrapped;
+        Column handle = (Column) instance.valuesObject[index];
+        if (handle == null)
+        {
+            handle = new Column ();
+            instance.valuesObject[index] = handle;
+        }
         String column;
         if (hasColumnName)  // column name is specified
         {
@@ -305,14 +363,12 @@ public class Output extends Function
         }
         else  // auto-generate column name
         {
-            if (context instanceof InstanceTemporaries) context = ((InstanceTemporaries) context).wrapped;
-            column = (String) context.valuesObject[index];
+            column = handle.name;
             if (column == null)
             {
-                String prefix = context.path ();
+                String prefix = instance.path ();
                 if (prefix.isEmpty ()) column =                variableName;
                 else                   column = prefix + "." + variableName;
-                context.valuesObject[index] = column;
             }
         }
 
@@ -320,33 +376,56 @@ public class Output extends Function
         if (simulator.currentEvent == null) now = 0;
         else                                now = (float) simulator.currentEvent.t;
 
+        H.advance (now);
         if (result instanceof Matrix)
         {
             Matrix A = (Matrix) result;
             int rows = A.rows ();
             int cols = A.columns ();
-            if (rows == 1)
-            {
-                for (int c = 0; c < cols; c++) H.trace (now, column + "(" + c + ")", (float) A.get (0, c), mode);
-            }
-            else if (cols == 1)
-            {
-                for (int r = 0; r < rows; r++) H.trace (now, column + "(" + r + ")", (float) A.get (r, 0), mode);
-            }
-            else
+            int[] indices = handle.resolve (H, column, rows, cols);
+            if (indices == null)  // Need to look up columns
             {
-                for (int r = 0; r < rows; r++)
+                if (rows == 1)
                 {
-                    for (int c = 0; c < cols; c++)
+                    for (int c = 0; c < cols; c++) handle.indices[c] = H.column (column + "(" + c + ")", mode);
+                }
+                else if (cols == 1)
+                {
+                    for (int r = 0; r < rows; r++) handle.indices[r] = H.column (column + "(" + r + ")", mode);
+                }
+                else
+                {
+                    int i = 0;
+                    for (int r = 0; r < rows; r++)
                     {
-                        H.trace (now, column + "(" + r + "," + c + ")", (float) A.get (r, c), mode);
+                        for (int c = 0; c < cols; c++)
+                        {
+                            handle.indices[i++] = H.column (column + "(" + r + "," + c + ")", mode);
+                        }
                     }
                 }
+                indices = handle.indices;
+            }
+
+            float[] values = H.columnValues;  // Only fetch this after all columns are added.
+            int i = 0;
+            for (int r = 0; r < rows; r++)
+            {
+                for (int c = 0; c < cols; c++)
+                {
+                    values[indices[i++]] = (float) A.get (r, c);
+                }
             }
         }
         else
         {
-            H.trace (now, column, (float) ((Scalar) result).value, mode);
+            int[] indices = handle.resolve (H, column, 1, 1);
+            if (indices == null)
+            {
+                handle.indices[0] = H.column (column, mode);
+                indices = handle.indices;
+            }
+            H.columnValues[indices[0]] = (float) ((Scalar) result).value;
         }
 
         return result;
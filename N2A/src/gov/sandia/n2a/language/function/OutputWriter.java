@@ -0,0 +1,302 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.language.function;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+    Formats and writes the rows produced by an Output.Holder on a thread of its own, so that
+    the simulation does not wait on the disk or on stdout.
+
+    The holder (producer) and this thread (consumer) communicate through a pair of single-producer
+    single-consumer rings. The outgoing ring carries records in the order they must appear in the file:
+    either a float[] holding one complete row, or a String[] holding the full set of column headers.
+    The return ring carries spent row arrays back to the producer for reuse, so a steady-state
+    simulation allocates nothing per row. The outgoing ring has fixed capacity. When it is full the
+    producer waits, which bounds the memory used by the backlog.
+**/
+public class OutputWriter extends Thread
+{
+    public static int capacity = 256;  // Maximum number of records waiting to be written. Must be a power of 2.
+
+    protected PrintStream   out;
+    protected boolean       binary;
+    protected boolean       raw;
+    protected boolean       compressed;      // Flushing costs space in a compressed stream, so limit its frequency.
+    protected boolean       dirty;           // Something has been written since the last flush.
+    protected long          flushed;         // Time of the last flush, from System.nanoTime().
+    protected Ring          queue = new Ring (capacity);
+    protected Ring          spent = new Ring (capacity);
+    protected Thread        producer;
+    protected volatile boolean producerWaiting;
+    protected volatile boolean consumerWaiting;
+    protected int           columnsWritten;  // Number of columns named in the most recent header record.
+    protected boolean       started;
+    protected ByteBuffer    buffer;          // For assembling binary records.
+    protected StringBuilder line = new StringBuilder ();
+
+    protected static final Object end = new Object ();  // Marks the last record.
+
+    /**
+        A bounded single-producer single-consumer queue.
+        head is only advanced by the consumer and tail only by the producer, so no locks or CAS are needed.
+    **/
+    public static class Ring
+    {
+        protected Object[]      slots;
+        protected int           mask;
+        protected volatile long head;  // Next slot to read.
+        protected volatile long tail;  // Next slot to write.
+
+        public Ring (int capacity)
+        {
+            slots = new Object[capacity];
+            mask  = capacity - 1;
+        }
+
+        /**
+            @return true if the item was added, or false if the ring is full.
+        **/
+        public boolean offer (Object item)
+        {
+            long t = tail;
+            if (t - head > mask) return false;
+            slots[(int) t & mask] = item;
+            tail = t + 1;  // Volatile write publishes the slot.
+            return true;
+        }
+
+        /**
+            @return The oldest item, or null if the ring is empty.
+        **/
+        public Object poll ()
+        {
+            long h = head;
+            if (h == tail) return null;
+            int i = (int) h & mask;
+            Object result = slots[i];
+            slots[i] = null;
+            head = h + 1;
+            return result;
+        }
+
+        public boolean isEmpty ()
+        {
+            return head == tail;
+        }
+    }
+
+    public OutputWriter (String name, PrintStream out, boolean binary, boolean raw, boolean compressed)
+    {
+        super ("Output " + name);
+        this.out        = out;
+        this.binary     = binary;
+        this.raw        = raw;
+        this.compressed = compressed;
+        producer        = Thread.currentThread ();
+        flushed         = System.nanoTime () - ColumnCompression.flushInterval;  // Flush right after the first record, so even a short run leaves a flush point in a compressed file.
+        setDaemon (true);
+        start ();
+    }
+
+    /**
+        Retrieves a row array for the producer to fill, reusing one already written if possible.
+        Called only by the producer.
+    **/
+    public float[] row (int count)
+    {
+        while (true)
+        {
+            float[] result = (float[]) spent.poll ();
+            if (result == null) return new float[count];
+            if (result.length == count) return result;
+            // Otherwise the row has grown since this array was used, so drop it.
+        }
+    }
+
+    /**
+        Queues a row or header record for writing. Waits if the backlog is full.
+        Called only by the producer.
+    **/
+    public void put (Object record)
+    {
+        while (! queue.offer (record))
+        {
+            producerWaiting = true;
+            if (queue.offer (record))
+            {
+                producerWaiting = false;
+                break;
+            }
+            LockSupport.park (this);
+            producerWaiting = false;
+        }
+        if (consumerWaiting) LockSupport.unpark (this);
+    }
+
+    /**
+        Writes out all queued records, then closes the stream.
+        Called only by the producer.
+    **/
+    public void finish ()
+    {
+        put (end);
+        boolean interrupted = false;
+        while (isAlive ())
+        {
+            try {join ();}
+            catch (InterruptedException e) {interrupted = true;}
+        }
+        if (interrupted) Thread.currentThread ().interrupt ();
+        out.close ();
+    }
+
+    public void run ()
+    {
+        while (true)
+        {
+            Object record = queue.poll ();
+            if (record == null)
+            {
+                // Idle, so push out whatever is pending. This lets a viewer follow the run.
+                long wait = 0;
+                if (dirty)
+                {
+                    long now = System.nanoTime ();
+                    if (compressed) wait = ColumnCompression.flushInterval - (now - flushed);
+                    if (wait <= 0)
+                    {
+                        out.flush ();
+                        dirty   = false;
+                        flushed = now;
+                        wait    = 0;
+                    }
+                }
+                consumerWaiting = true;
+                record = queue.poll ();
+                if (record == null)
+                {
+                    if (wait > 0) LockSupport.parkNanos (this, wait);  // Come back to flush even if no more records arrive.
+                    else          LockSupport.park (this);
+                    consumerWaiting = false;
+                    continue;
+                }
+                consumerWaiting = false;
+            }
+            if (producerWaiting) LockSupport.unpark (producer);
+            if (record == end) break;
+
+            if (binary  &&  ! started)
+            {
+                buffer = ByteBuffer.allocate (1024).order (ByteOrder.LITTLE_ENDIAN);
+                buffer.put (ColumnReader.magic);
+                buffer.putInt (ColumnReader.version);
+                out.write (buffer.array (), 0, buffer.position ());
+            }
+            started = true;
+            dirty   = true;
+
+            if (record instanceof String[])
+            {
+                String[] headers = (String[]) record;
+                if (binary) writeHeaders (headers);
+                else        writeHeadersText (headers);
+                columnsWritten = headers.length;
+            }
+            else
+            {
+                float[] values = (float[]) record;
+                if (binary) writeRow (values);
+                else        writeRowText (values);
+                spent.offer (values);  // If the return ring is full, just let the array go.
+            }
+
+            // A compressed stream only becomes readable at a flush, so don't let a busy simulation postpone it indefinitely.
+            if (compressed)
+            {
+                long now = System.nanoTime ();
+                if (now - flushed >= ColumnCompression.flushInterval)
+                {
+                    out.flush ();
+                    dirty   = false;
+                    flushed = now;
+                }
+            }
+        }
+        out.flush ();
+    }
+
+    public void writeHeadersText (String[] headers)
+    {
+        int count = headers.length;
+        line.setLength (0);
+        line.append (headers[0]);  // Should be $t
+        int i = 1;
+        for (; i < columnsWritten; i++) line.append ('\t');
+        for (; i < count; i++)
+        {
+            line.append ('\t');
+            line.append (headers[i].replaceAll (" ", "_"));
+        }
+        out.println (line);
+    }
+
+    public void writeHeaders (String[] headers)
+    {
+        byte[][] names = new byte[headers.length][];
+        int length = 4;
+        for (int i = 0; i < headers.length; i++)
+        {
+            names[i] = headers[i].replaceAll (" ", "_").getBytes (StandardCharsets.UTF_8);
+            length += 4 + names[i].length;
+        }
+        buffer = ensure (length);
+        buffer.putInt (-headers.length);
+        for (byte[] n : names)
+        {
+            buffer.putInt (n.length);
+            buffer.put (n);
+        }
+        out.write (buffer.array (), 0, buffer.position ());
+    }
+
+    public void writeRowText (float[] values)
+    {
+        int last = values.length - 1;
+        line.setLength (0);
+        for (int i = 0; i <= last; i++)
+        {
+            float c = values[i];
+            if (! Float.isNaN (c)) line.append (c);
+            if (i < last) line.append ('\t');
+        }
+        out.println (line);
+    }
+
+    public void writeRow (float[] values)
+    {
+        int count = values.length;
+        buffer = ensure (4 + 4 * count);
+        buffer.putInt (count);
+        for (int i = 0; i < count; i++) buffer.putFloat (values[i]);
+        out.write (buffer.array (), 0, buffer.position ());
+    }
+
+    /**
+        @return The binary record buffer, cleared and with at least the given capacity.
+    **/
+    public ByteBuffer ensure (int capacity)
+    {
+        if (buffer.capacity () < capacity) buffer = ByteBuffer.allocate (capacity * 2).order (ByteOrder.LITTLE_ENDIAN);
+        buffer.clear ();
+        return buffer;
+    }
+}
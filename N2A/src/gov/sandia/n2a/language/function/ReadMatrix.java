@@ -6,14 +6,21 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.n2a.language.function;
 
+import java.nio.file.Path;
+
 import gov.sandia.n2a.backend.internal.Holder;
+import gov.sandia.n2a.backend.internal.ResourceCache;
 import gov.sandia.n2a.backend.internal.Simulator;
 import gov.sandia.n2a.eqset.EquationSet.ExponentContext;
+import gov.sandia.n2a.language.EvaluationException;
 import gov.sandia.n2a.language.Function;
 import gov.sandia.n2a.language.Operator;
 import gov.sandia.n2a.language.Type;
 import gov.sandia.n2a.language.type.Instance;
 import gov.sandia.n2a.language.type.Matrix;
+import gov.sandia.n2a.language.type.Matrix.IteratorNonzero;
+import gov.sandia.n2a.language.type.MatrixDense;
+import gov.sandia.n2a.language.type.MatrixMapped;
 import gov.sandia.n2a.language.type.Scalar;
 import gov.sandia.n2a.language.type.Text;
 import gov.sandia.n2a.plugins.extpoints.Backend;
@@ -101,20 +108,58 @@ public class ReadMatrix extends Function
         if (simulator == null) return null;  // absence of simulator indicates analysis phase, so opening files is unnecessary
 
         String path = ((Text) operands[0].eval (context)).value;
-        Holder A = simulator.holders.get (path);
-        if (A == null)
+        Holder H = simulator.holders.get (path);
+        if (H == null)
         {
-            A = Matrix.factory (simulator.jobDir.resolve (path));
-            simulator.holders.put (path, A);
+            Matrix A;
+            try
+            {
+                A = ResourceCache.acquire (simulator.jobDir.resolve (path), Matrix.class, loader);
+            }
+            catch (EvaluationException e)
+            {
+                throw e;
+            }
+            catch (Exception e)
+            {
+                throw new EvaluationException ("Can't open matrix file");
+            }
+            H = new ResourceCache.Reference (A);
+            simulator.holders.put (path, H);
         }
-        else if (! (A instanceof Matrix))
+        if (! (H instanceof ResourceCache.Reference)  ||  ! (((ResourceCache.Reference) H).value instanceof Matrix))
         {
             Backend.err.get ().println ("ERROR: Reopening file as a different resource type.");
             throw new Backend.AbortRun ();
         }
-        return (Matrix) A;
+        return (Matrix) ((ResourceCache.Reference) H).value;
     }
 
+    /**
+        Matrices are shared between simulations in the same JVM, since they are never modified after loading.
+    **/
+    public static ResourceCache.Loader<Matrix> loader = new ResourceCache.Loader<Matrix> ()
+    {
+        public Matrix load (Path path) throws Exception
+        {
+            return Matrix.factory (path);
+        }
+
+        public long size (Matrix A)
+        {
+            if (A instanceof MatrixDense ) return 8L * A.rows () * A.columns ();
+            if (A instanceof MatrixMapped) return 1024;  // The file contents live outside the heap.
+            long count = 0;
+            IteratorNonzero it = A.getIteratorNonzero ();
+            while (it.hasNext ())
+            {
+                it.next ();
+                count++;
+            }
+            return 80 * count;  // Rough cost of a boxed entry in a hash map.
+        }
+    };
+
     public Type getType ()
     {
         return new Scalar ();
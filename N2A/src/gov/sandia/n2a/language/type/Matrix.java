@@ -26,6 +26,18 @@ public abstract class Matrix extends Type implements Holder
 
     public static Matrix factory (Path path) throws EvaluationException
     {
+        if (MatrixMapped.isBinary (path))
+        {
+            try
+            {
+                return new MatrixMapped (path);
+            }
+            catch (IOException exception)
+            {
+                throw new EvaluationException ("Can't open matrix file");
+            }
+        }
+
         try (BufferedReader reader = Files.newBufferedReader (path))
         {
             char buffer[] = new char[10];
@@ -0,0 +1,544 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.language.type;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import gov.sandia.n2a.language.EvaluationException;
+
+/**
+    Read-only matrix backed by a memory-mapped binary file, so its size is limited by the address space
+    rather than the heap. The operating system pages the data in as it is touched, and several simulations
+    that read the same file share a single copy.
+
+    File format (all numbers little-endian):
+    <pre>
+    0   4 bytes  magic "N2AM"
+    4   int32    version
+    8   int32    layout -- COLUMN_MAJOR, ROW_MAJOR or SPARSE
+    12  int32    rows
+    16  int32    columns
+    20  int32    reserved (0)
+    24  int64    count -- number of stored elements
+    32  data
+    </pre>
+    A dense matrix stores count = rows*columns float64 values in the given order.
+    A sparse matrix stores columns+1 int64 entry indices, where column c occupies entries [start[c], start[c+1]).
+    These are followed by count entries of 16 bytes each: int32 row, int32 reserved, float64 value.
+    Within a column, entries are sorted by row. Elements not stored are zero.
+
+    Use convert() to produce this format from the text formats read by MatrixDense and MatrixSparse.
+    Converting does not require the matrix to fit in memory.
+**/
+public class MatrixMapped extends Matrix
+{
+    public static final byte[] magic        = {'N', '2', 'A', 'M'};
+    public static final int    version      = 1;
+    public static final int    headerSize   = 32;
+    public static final int    entrySize    = 16;
+    public static final int    segmentBits  = 30;  // Every field is aligned to its own size, so no field straddles two segments.
+    public static final long   segmentSize  = 1L << segmentBits;
+
+    public static final int    COLUMN_MAJOR = 0;
+    public static final int    ROW_MAJOR    = 1;
+    public static final int    SPARSE       = 2;
+
+    protected ByteBuffer[] segments;
+    protected int          layout;
+    protected int          rows;
+    protected int          columns;
+    protected long         count;
+    protected long         entries;  // Start of sparse entries.
+
+    public MatrixMapped (Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open (path))
+        {
+            long size = channel.size ();
+            int segmentCount = (int) ((size + segmentSize - 1) >> segmentBits);
+            segments = new ByteBuffer[segmentCount];
+            for (int s = 0; s < segmentCount; s++)
+            {
+                long start = (long) s << segmentBits;
+                segments[s] = channel.map (MapMode.READ_ONLY, start, Math.min (segmentSize, size - start)).order (ByteOrder.LITTLE_ENDIAN);
+            }
+            if (size < headerSize  ||  getInt (4) != version) throw new IOException ("Unrecognized matrix file");
+
+            layout  = getInt (8);
+            rows    = getInt (12);
+            columns = getInt (16);
+            count   = getLong (24);
+            entries = headerSize + 8L * (columns + 1);
+
+            long expected;
+            if (layout == SPARSE) expected = entries + count * entrySize;
+            else                  expected = headerSize + 8L * rows * columns;
+            if (layout < COLUMN_MAJOR  ||  layout > SPARSE  ||  size < expected) throw new IOException ("Truncated or damaged matrix file");
+        }
+    }
+
+    /**
+        Determines whether the given file is in this format, based on its first few bytes.
+    **/
+    public static boolean isBinary (Path path)
+    {
+        try (InputStream stream = Files.newInputStream (path))
+        {
+            byte[] start = new byte[magic.length];
+            if (stream.read (start) < start.length) return false;
+            return Arrays.equals (start, magic);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    protected int getInt (long p)
+    {
+        return segments[(int) (p >>> segmentBits)].getInt ((int) (p & (segmentSize - 1)));
+    }
+
+    protected long getLong (long p)
+    {
+        return segments[(int) (p >>> segmentBits)].getLong ((int) (p & (segmentSize - 1)));
+    }
+
+    protected double getDouble (long p)
+    {
+        return segments[(int) (p >>> segmentBits)].getDouble ((int) (p & (segmentSize - 1)));
+    }
+
+    public boolean isSparse ()
+    {
+        return layout == SPARSE;
+    }
+
+    public int rows ()
+    {
+        return rows;
+    }
+
+    public int columns ()
+    {
+        return columns;
+    }
+
+    public double get (int row, int column)
+    {
+        if (row < 0  ||  row >= rows  ||  column < 0  ||  column >= columns) return 0;
+        switch (layout)
+        {
+            case COLUMN_MAJOR: return getDouble (headerSize + 8 * ((long) column * rows    + row));
+            case ROW_MAJOR:    return getDouble (headerSize + 8 * ((long) row    * columns + column));
+        }
+
+        // Binary search for row within column
+        long lo = getLong (headerSize + 8L * column);
+        long hi = getLong (headerSize + 8L * column + 8) - 1;
+        while (lo <= hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            long p = entries + mid * entrySize;
+            int r = getInt (p);
+            if      (r < row) lo = mid + 1;
+            else if (r > row) hi = mid - 1;
+            else              return getDouble (p + 8);
+        }
+        return 0;
+    }
+
+    public void set (int row, int column, double a)
+    {
+        throw new EvaluationException ("Memory-mapped matrix is read-only");
+    }
+
+    public Matrix clear (double initialValue)
+    {
+        if (layout == SPARSE) return new MatrixSparse (rows, columns, initialValue);
+        return new MatrixDense (rows, columns, initialValue);
+    }
+
+    public Matrix identity ()
+    {
+        if (layout == SPARSE) return new MatrixSparse (rows, columns).identity ();
+        return new MatrixDense (rows, columns).identity ();
+    }
+
+    /**
+        Walks the stored entries of a sparse file directly, in column-major order.
+    **/
+    public static class IteratorMapped implements IteratorNonzero
+    {
+        protected MatrixMapped A;
+        protected long         index;  // of next entry
+        protected long         end;    // of current column
+        protected int          column = -1;
+        protected int          nextColumn;
+        protected int          row;
+
+        public IteratorMapped (MatrixMapped A)
+        {
+            this.A = A;
+        }
+
+        public boolean hasNext ()
+        {
+            while (index >= end)
+            {
+                if (nextColumn >= A.columns) return false;
+                end = A.getLong (headerSize + 8L * nextColumn + 8);
+                nextColumn++;
+            }
+            return true;
+        }
+
+        public Double next ()
+        {
+            if (! hasNext ()) return null;
+            column = nextColumn - 1;
+            long p = A.entries + index++ * entrySize;
+            row = A.getInt (p);
+            return A.getDouble (p + 8);
+        }
+
+        public int getRow ()
+        {
+            return row;
+        }
+
+        public int getColumn ()
+        {
+            return column;
+        }
+    }
+
+    public IteratorNonzero getIteratorNonzero ()
+    {
+        if (layout == SPARSE) return new IteratorMapped (this);
+        return new IteratorSkip (this);
+    }
+
+    /**
+        Receives the elements of a dense text matrix as they are parsed.
+    **/
+    protected interface DenseVisitor
+    {
+        public void value (double v) throws IOException;
+        public void endRow () throws IOException;
+    }
+
+    /**
+        Parses a dense text matrix with the same rules as MatrixDense.load(), but without holding it in memory.
+        @return true if the text is marked as transposed.
+    **/
+    @SuppressWarnings("fallthrough")
+    protected static boolean scanDense (Path path, DenseVisitor visitor) throws IOException
+    {
+        try (BufferedReader reader = Files.newBufferedReader (path))
+        {
+            boolean transpose = false;
+            int token;
+            do
+            {
+                token = reader.read ();
+                if (token == '~') transpose = true;
+            }
+            while (token != '['  &&  token >= 0);
+
+            StringBuilder buffer = new StringBuilder ();
+            int columns = 0;
+            boolean done = token < 0;
+            while (! done)
+            {
+                token = reader.read ();
+                switch (token)
+                {
+                    case '\r':
+                        break;
+                    case ' ':
+                    case '\t':
+                        if (buffer.length () == 0) break;
+                        // fall through
+                    case ',':
+                        if (buffer.length () == 0)
+                        {
+                            visitor.value (0);
+                        }
+                        else
+                        {
+                            visitor.value (Double.valueOf (buffer.toString ()));
+                            buffer.setLength (0);
+                        }
+                        columns++;
+                        break;
+                    case -1:
+                    case ']':
+                        done = true;
+                        // fall through
+                    case ';':
+                    case '\n':
+                        if (buffer.length () > 0)
+                        {
+                            visitor.value (Double.valueOf (buffer.toString ()));
+                            buffer.setLength (0);
+                            columns++;
+                        }
+                        if (columns > 0)
+                        {
+                            visitor.endRow ();
+                            columns = 0;
+                        }
+                        break;
+                    default:
+                        buffer.append ((char) token);
+                }
+            }
+            return transpose;
+        }
+    }
+
+    /**
+        Writes the given text matrix file in binary format.
+        Works in two passes over the source: one to determine the shape and one to copy the values.
+    **/
+    public static void convert (Path source, Path destination) throws IOException
+    {
+        String first;
+        try (BufferedReader reader = Files.newBufferedReader (source))
+        {
+            first = reader.readLine ();
+        }
+        if (first != null  &&  first.trim ().toLowerCase ().startsWith ("sparse")) convertSparse (source, destination);
+        else                                                                          convertDense  (source, destination);
+    }
+
+    protected static void convertDense (Path source, final Path destination) throws IOException
+    {
+        // Pass 1 -- shape
+        final int[] shape = new int[3];  // line count, widest line, width of current line
+        boolean transpose = scanDense (source, new DenseVisitor ()
+        {
+            public void value (double v)
+            {
+                shape[2]++;
+            }
+
+            public void endRow ()
+            {
+                shape[0]++;
+                shape[1] = Math.max (shape[1], shape[2]);
+                shape[2] = 0;
+            }
+        });
+        final int lines = shape[0];
+        final int width = shape[1];
+        if (lines == 0  ||  width == 0) throw new EvaluationException ("Empty matrix");
+
+        // Pass 2 -- values
+        // Each text line becomes one stored row (or column, if transposed), so the output is strictly sequential.
+        try (final FileChannel channel = FileChannel.open (destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate (1 << 16).order (ByteOrder.LITTLE_ENDIAN);
+            if (transpose) writeHeader (buffer, COLUMN_MAJOR, width, lines, (long) width * lines);
+            else           writeHeader (buffer, ROW_MAJOR,    lines, width, (long) width * lines);
+            scanDense (source, new DenseVisitor ()
+            {
+                int column;
+
+                public void value (double v) throws IOException
+                {
+                    if (! buffer.hasRemaining ()) flush (channel, buffer);
+                    buffer.putDouble (v);
+                    column++;
+                }
+
+                public void endRow () throws IOException
+                {
+                    while (column < width) value (0);
+                    column = 0;
+                }
+            });
+            flush (channel, buffer);
+        }
+    }
+
+    protected static void convertSparse (Path source, Path destination) throws IOException
+    {
+        // Pass 1 -- count elements in each column
+        int   rows   = 0;
+        int[] counts = new int[16];
+        int   columns = 0;
+        try (BufferedReader reader = Files.newBufferedReader (source))
+        {
+            reader.readLine ();  // Throw away "Sparse" line
+            String line;
+            while ((line = reader.readLine ()) != null)
+            {
+                String[] pieces = line.trim ().split (",");
+                if (pieces.length < 3) continue;
+                int    r = Integer.valueOf (pieces[0].trim ());
+                int    c = Integer.valueOf (pieces[1].trim ());
+                double v = Double .valueOf (pieces[2].trim ());
+                columns = Math.max (columns, c + 1);
+                if (v != 0) rows = Math.max (rows, r + 1);  // Same as MatrixSparse.set()
+                if (c >= counts.length) counts = Arrays.copyOf (counts, Math.max (c + 1, counts.length * 2));
+                counts[c]++;
+            }
+        }
+
+        long[] start = new long[columns + 1];
+        for (int c = 0; c < columns; c++) start[c+1] = start[c] + counts[c];
+        long count   = start[columns];
+        long entries = headerSize + 8L * (columns + 1);
+        long size    = entries + count * entrySize;
+
+        try (RandomAccessFile file = new RandomAccessFile (destination.toFile (), "rw"))
+        {
+            file.setLength (0);
+            file.setLength (size);
+            FileChannel channel = file.getChannel ();
+            int segmentCount = (int) ((size + segmentSize - 1) >> segmentBits);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int s = 0; s < segmentCount; s++)
+            {
+                long p = (long) s << segmentBits;
+                segments[s] = channel.map (MapMode.READ_WRITE, p, Math.min (segmentSize, size - p));
+                segments[s].order (ByteOrder.LITTLE_ENDIAN);
+            }
+
+            // Pass 2 -- place each element in its column, in file order
+            long[] fill = Arrays.copyOf (start, columns);
+            try (BufferedReader reader = Files.newBufferedReader (source))
+            {
+                reader.readLine ();
+                String line;
+                while ((line = reader.readLine ()) != null)
+                {
+                    String[] pieces = line.trim ().split (",");
+                    if (pieces.length < 3) continue;
+                    int    r = Integer.valueOf (pieces[0].trim ());
+                    int    c = Integer.valueOf (pieces[1].trim ());
+                    double v = Double .valueOf (pieces[2].trim ());
+                    long p = entries + fill[c]++ * entrySize;
+                    putInt    (segments, p,     r);
+                    putDouble (segments, p + 8, v);
+                }
+            }
+
+            // Sort each column by row. When a row appears more than once, the last value wins, the same as MatrixSparse.load().
+            // A zero is kept until this point because it erases any earlier value for the same element.
+            // Removing entries only moves the rest toward the front, so it can be done in place.
+            long out = 0;
+            for (int c = 0; c < columns; c++)
+            {
+                int n = counts[c];
+                final int[] r = new int[n];
+                double[]    v = new double[n];
+                Integer[]   order = new Integer[n];
+                for (int i = 0; i < n; i++)
+                {
+                    long p = entries + (start[c] + i) * entrySize;
+                    r[i] = getInt    (segments, p);
+                    v[i] = getDouble (segments, p + 8);
+                    order[i] = i;
+                }
+                Arrays.sort (order, new Comparator<Integer> ()  // Stable, so duplicates stay in file order.
+                {
+                    public int compare (Integer a, Integer b)
+                    {
+                        return Integer.compare (r[a], r[b]);
+                    }
+                });
+                start[c] = out;
+                for (int i = 0; i < n; i++)
+                {
+                    int j = order[i];
+                    if (i + 1 < n  &&  r[order[i+1]] == r[j]) continue;
+                    if (v[j] == 0) continue;
+                    long p = entries + out++ * entrySize;
+                    putInt    (segments, p,     r[j]);
+                    putInt    (segments, p + 4, 0);
+                    putDouble (segments, p + 8, v[j]);
+                }
+            }
+            start[columns] = out;
+
+            ByteBuffer header = ByteBuffer.allocate ((int) entries).order (ByteOrder.LITTLE_ENDIAN);
+            writeHeader (header, SPARSE, rows, columns, out);
+            for (long s : start) header.putLong (s);
+            header.flip ();
+            channel.write (header, 0);
+            for (MappedByteBuffer s : segments) s.force ();
+        }
+    }
+
+    protected static void writeHeader (ByteBuffer buffer, int layout, int rows, int columns, long count)
+    {
+        buffer.put     (magic);
+        buffer.putInt  (version);
+        buffer.putInt  (layout);
+        buffer.putInt  (rows);
+        buffer.putInt  (columns);
+        buffer.putInt  (0);
+        buffer.putLong (count);
+    }
+
+    protected static void flush (FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip ();
+        while (buffer.hasRemaining ()) channel.write (buffer);
+        buffer.clear ();
+    }
+
+    protected static int getInt (ByteBuffer[] segments, long p)
+    {
+        return segments[(int) (p >>> segmentBits)].getInt ((int) (p & (segmentSize - 1)));
+    }
+
+    protected static double getDouble (ByteBuffer[] segments, long p)
+    {
+        return segments[(int) (p >>> segmentBits)].getDouble ((int) (p & (segmentSize - 1)));
+    }
+
+    protected static void putInt (ByteBuffer[] segments, long p, int value)
+    {
+        segments[(int) (p >>> segmentBits)].putInt ((int) (p & (segmentSize - 1)), value);
+    }
+
+    protected static void putDouble (ByteBuffer[] segments, long p, double value)
+    {
+        segments[(int) (p >>> segmentBits)].putDouble ((int) (p & (segmentSize - 1)), value);
+    }
+
+    /**
+        Command-line converter: MatrixMapped {text file} {binary file}
+    **/
+    public static void main (String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.err.println ("Usage: MatrixMapped {text matrix file} {binary output file}");
+            System.exit (1);
+        }
+        convert (Paths.get (args[0]), Paths.get (args[1]));
+    }
+}
@@ -10,14 +10,21 @@ import java.io.ByteArrayInputStream;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.execenvs.Host;
 import gov.sandia.n2a.execenvs.Host.ProcessInfo;
+import gov.sandia.n2a.language.function.ColumnCompression;
+import gov.sandia.n2a.language.function.ColumnReader;
 import gov.sandia.n2a.plugins.ExtensionPoint;
 import gov.sandia.n2a.plugins.PluginManager;
 
@@ -79,6 +86,36 @@ public abstract class Backend implements ExtensionPoint
     **/
     public abstract String getName ();
 
+    /**
+        Runs many samples of one model that differ only in the values of a few variables.
+        This allows a backend to share work between samples, such as digesting the model.
+    **/
+    public interface Sweep
+    {
+        /**
+            Launches one sample. The job directory and model doc must already exist, just as for start().
+            @return false if this sample can't be handled by the sweep. In that case nothing was done,
+            and the caller should use Backend.start() instead.
+        **/
+        public boolean start (MNode job);
+
+        /**
+            Called once no more samples will be launched. Samples already launched continue to run.
+        **/
+        public void finish ();
+    }
+
+    /**
+        Prepares to run a sweep.
+        @param job The first sample. It is not launched by this call.
+        @param keyPaths Addresses of the values that will differ between samples.
+        @return null if this backend does not support sweeps, or cannot handle this particular one.
+    **/
+    public Sweep prepareSweep (MNode job, List<String[]> keyPaths)
+    {
+        return null;
+    }
+
     /**
         Indicates that resources are available to execute the job.
         This requires knowledge of three things:
@@ -161,6 +198,43 @@ public abstract class Backend implements ExtensionPoint
         catch (Exception e) {}
     }
 
+    /**
+        Stop several runs at once.
+        This default implementation groups the jobs by host, so that a host with a job scheduler
+        can stop all of its jobs with a single command. A backend that overrides kill(MNode,boolean)
+        should override this as well.
+    **/
+    public void kill (List<MNode> jobs, boolean force)
+    {
+        Map<Host,List<MNode>> hosts = new HashMap<Host,List<MNode>> ();
+        for (MNode job : jobs)
+        {
+            Host h = Host.get (job);
+            List<MNode> list = hosts.get (h);
+            if (list == null)
+            {
+                list = new ArrayList<MNode> ();
+                hosts.put (h, list);
+            }
+            list.add (job);
+        }
+
+        for (Entry<Host,List<MNode>> e : hosts.entrySet ())
+        {
+            try {e.getKey ().killJobs (e.getValue (), force);}
+            catch (Exception x) {continue;}
+            for (MNode job : e.getValue ())
+            {
+                try
+                {
+                    Path localJobDir = Paths.get (job.get ()).getParent ();
+                    Files.copy (new ByteArrayInputStream ("killed" .getBytes ("UTF-8")), localJobDir.resolve ("finished"));
+                }
+                catch (Exception x) {}
+            }
+        }
+    }
+
     /**
         Return an estimate of the current $t in the active simulation.
     **/
@@ -169,6 +243,34 @@ public abstract class Backend implements ExtensionPoint
         return getSimTimeFromOutput (job, "out", 0);
     }
 
+    /**
+        Names the file, relative to the job directory, whose last lines reveal current $t.
+        This lets a host sample progress for many jobs in one operation, rather than calling
+        currentSimTime(MNode) on each. Should agree with whatever currentSimTime(MNode) reads.
+        @return null if progress is not available from a file.
+    **/
+    public String progressFile (MNode job)
+    {
+        return "out";
+    }
+
+    /**
+        Return an estimate of the current $t, given the last few hundred bytes of progressFile().
+    **/
+    public double currentSimTime (MNode job, String tail)
+    {
+        return getSimTimeFromTail (tail, 0);
+    }
+
+    /**
+        Return an estimate of the current $t, given the decoded end of a compressed binary progressFile().
+        The data starts at a record boundary.
+    **/
+    public double currentSimTime (MNode job, byte[] binaryTail)
+    {
+        return getSimTimeFromBinary (binaryTail, 0);
+    }
+
     public static double getSimTimeFromOutput (MNode job, String outFileName, int timeColumn)
     {
         Path out;
@@ -189,6 +291,15 @@ public abstract class Backend implements ExtensionPoint
 
         try (SeekableByteChannel channel = Files.newByteChannel (out, StandardOpenOption.READ))
         {
+            if (ColumnCompression.isCompressed (channel))
+            {
+                byte[] tail = ColumnCompression.tail (channel, 1024*1024);
+                if (tail == null) return 0;
+                if (ColumnReader.isBinary (out)) return getSimTimeFromBinary (tail, timeColumn);
+                // The tail starts at a row boundary. The extra newline keeps the first row from being treated as partial.
+                return getSimTimeFromTail ("\n" + new String (tail, StandardCharsets.UTF_8), timeColumn);
+            }
+
             int columnIndex = 0;
             while (lineLength <= 1024*1024)  // limit to 1MiB
             {
@@ -263,4 +374,62 @@ public abstract class Backend implements ExtensionPoint
         catch (Exception e) {}
         return 0;
     }
+
+    /**
+        Extracts the time column from the last complete row in the given fragment of a binary output file.
+        The fragment must start at a record boundary, as returned by ColumnCompression.tail().
+    **/
+    public static double getSimTimeFromBinary (byte[] data, int timeColumn)
+    {
+        double result = 0;
+        int p = 0;
+        while (p + 4 <= data.length)
+        {
+            int n = ColumnReader.getInt (data, p);
+            p += 4;
+            if (n >= 0)  // row
+            {
+                if (p + 4 * n > data.length) break;  // partial row
+                if (timeColumn < n)
+                {
+                    float t = Float.intBitsToFloat (ColumnReader.getInt (data, p + 4 * timeColumn));
+                    if (! Float.isNaN (t)) result = t;
+                }
+                p += 4 * n;
+            }
+            else  // headers
+            {
+                for (int i = 0; i < -n; i++)
+                {
+                    if (p + 4 > data.length) return result;
+                    int length = ColumnReader.getInt (data, p);
+                    if (length < 0) return result;  // Not a valid record, so stop.
+                    p += 4 + length;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+        Extracts the time column from the last complete line in the given fragment of an output file.
+        The first line is assumed to be partial, as is the last line if it lacks a newline.
+        Lines which don't parse, such as column headers, are skipped.
+    **/
+    public static double getSimTimeFromTail (String tail, int timeColumn)
+    {
+        if (tail == null) return 0;
+        String[] lines = tail.split ("\\r?\\n", -1);  // The last entry is empty if tail ends with newline. Otherwise, it is a partial line.
+        for (int i = lines.length - 2; i >= 1; i--)
+        {
+            String[] columns = lines[i].trim ().split ("[\\t ]+");
+            if (columns.length <= timeColumn) continue;
+            try
+            {
+                return Double.parseDouble (columns[timeColumn]);
+            }
+            catch (NumberFormatException e) {}
+        }
+        return 0;
+    }
 }
@@ -87,6 +87,8 @@ import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.db.MVolatile;
 import gov.sandia.n2a.db.Schema;
 import gov.sandia.n2a.eqset.MPart;
+import gov.sandia.n2a.execenvs.Host;
+import gov.sandia.n2a.execenvs.JobScheduler;
 import gov.sandia.n2a.plugins.ExtensionPoint;
 import gov.sandia.n2a.plugins.PluginManager;
 import gov.sandia.n2a.plugins.extpoints.Backend;
@@ -1022,6 +1024,8 @@ public class PanelEquations extends JPanel
                 {
                     // Simulator should record all errors/warnings to a file in the job dir.
                     // If this thread throws an untrapped exception, then there is something wrong with the implementation.
+                    JobScheduler scheduler = Host.get (job).getScheduler ();
+                    if (scheduler != null) scheduler.admit (job);  // Direct runs go ahead regardless, but sweeps on the same host must account for them.
                     simulator.start (job);
                 }
             }.start ();
@@ -12,6 +12,7 @@ import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.db.MVolatile;
 import gov.sandia.n2a.db.Schema;
 import gov.sandia.n2a.eqset.MPart;
+import gov.sandia.n2a.eqset.MPartCache;
 import gov.sandia.n2a.language.Operator;
 import gov.sandia.n2a.ui.CompoundEdit;
 import gov.sandia.n2a.ui.Lay;
@@ -110,7 +111,7 @@ public class PanelSearch extends JPanel
 
                 MNode doc = AppData.models.child (node.key);
                 if (doc == null) return null;
-                MPart source = new MPart (doc);
+                MPart source = MPartCache.get (doc);
                 String notes = source.get ("$metadata", "notes");
                 if (notes.isEmpty ()) notes = source.get ("$metadata", "note");
                 if (notes.isEmpty ()) return null;
@@ -1026,7 +1027,7 @@ public class PanelSearch extends JPanel
         {
             handles = new HashMap<String,EndpointHandles> ();
             MNode doc = AppData.models.child (key);
-            MPart part = new MPart (doc);
+            MPart part = MPartCache.get (doc);
             for (MNode c : part)
             {
                 String value = c.get ();
@@ -7,6 +7,7 @@ the U.S. Government retains certain rights in this software.
 package gov.sandia.n2a.ui.jobs;
 
 import java.awt.EventQueue;
+import java.awt.Rectangle;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -14,18 +15,24 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 import gov.sandia.n2a.db.AppData;
 import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.execenvs.Host;
+import gov.sandia.n2a.execenvs.Host.JobStatus;
 import gov.sandia.n2a.execenvs.Remote;
+import gov.sandia.n2a.execenvs.SshFileSystem;
 import gov.sandia.n2a.plugins.extpoints.Backend;
 import gov.sandia.n2a.ui.Utility;
 import gov.sandia.n2a.ui.images.ImageUtil;
@@ -50,6 +57,8 @@ public class NodeJob extends NodeBase
 
     protected String  key;
     protected String  inherit         = "";
+    protected String  host            = "";
+    protected String  backend         = "";
     public    float   complete        = -1; // A number between 0 and 1, where 0 means just started, and 1 means done. -1 means unknown. 2 means failed. 3 means terminated.
     protected Date    dateStarted     = null;
     protected Date    dateFinished    = null;
@@ -70,6 +79,25 @@ public class NodeJob extends NodeBase
         }
     }
 
+    /**
+        Restore a job from its entry in AppData.runIndex, without touching the job directory.
+        The job doc itself is not loaded until something actually needs it, such as expanding the node.
+    **/
+    public NodeJob (String key, MNode entry)
+    {
+        this.key = key;
+        inherit  = entry.get ("model");
+        host     = entry.get ("host");
+        backend  = entry.get ("backend");
+        complete = (float) entry.getOrDefault (-1.0, "status");
+        long started  = entry.getOrDefault (0l, "started");
+        long finished = entry.getOrDefault (0l, "finished");
+        if (started  > 0) dateStarted  = new Date (started);
+        if (finished > 0) dateFinished = new Date (finished);
+        if (inherit.isEmpty ()) setUserObject (key);
+        else                    setUserObject (inherit);
+    }
+
     @Override
     public boolean isLeaf ()
     {
@@ -87,11 +115,90 @@ public class NodeJob extends NodeBase
         return iconUnknown;
     }
 
+    public String getKey ()
+    {
+        return key;
+    }
+
     public MNode getSource ()
     {
         return AppData.runs.child (key);
     }
 
+    /**
+        Indicates that the job has reached a state which will never change again,
+        so it no longer needs to be monitored.
+    **/
+    public boolean isDone ()
+    {
+        return complete >= 1  &&  complete != 3;
+    }
+
+    public String getStatus ()
+    {
+        if (complete < 0)                   return "Waiting";
+        if (complete == 0)                  return "Started";
+        if (complete > 0  &&  complete < 1) return Math.round (complete * 100) + "%";
+        if (complete == 1)                  return "Success";
+        if (complete == 3)                  return "Killed (lingering)";
+        if (complete == 4)                  return "Killed";
+        return "Failed";  // complete==2, or any value not specified above
+    }
+
+    /**
+        Determines if this job should be shown for the given filter string.
+        Each space-separated term must appear in at least one of model name, job key, host, backend or status.
+        @param filter Should already be converted to lower case.
+    **/
+    public boolean matches (String filter)
+    {
+        if (filter.isEmpty ()) return true;
+        String[] fields = {inherit, key, host, backend, getStatus ()};
+        for (int i = 0; i < fields.length; i++) fields[i] = fields[i].toLowerCase ();
+        for (String term : filter.split ("\\s+"))
+        {
+            boolean found = false;
+            for (String f : fields)
+            {
+                if (f.contains (term))
+                {
+                    found = true;
+                    break;
+                }
+            }
+            if (! found) return false;
+        }
+        return true;
+    }
+
+    /**
+        Extract the summary fields we keep in AppData.runIndex from the job doc.
+    **/
+    public synchronized void readSource (MNode source)
+    {
+        inherit = source.getOrDefault (key, "$inherit").split (",", 2)[0].replace ("\"", "");
+        host    = source.getOrDefault ("localhost", "$metadata", "host");
+        backend = source.get ("$metadata", "backend");
+        setUserObject (inherit);
+    }
+
+    /**
+        Record the current state of this job in AppData.runIndex.
+        Called whenever the status changes, so the next startup can skip loading jobs that are done.
+    **/
+    public synchronized void updateIndex ()
+    {
+        if (deleted) return;
+        MNode entry = AppData.runIndex.childOrCreate (key);
+        entry.set (inherit,  "model");
+        entry.set (host,     "host");
+        entry.set (backend,  "backend");
+        entry.set (complete, "status");
+        if (dateStarted  != null) entry.set (dateStarted .getTime (), "started");
+        if (dateFinished != null) entry.set (dateFinished.getTime (), "finished");
+        if (dateStarted != null  &&  dateFinished != null) entry.set (dateFinished.getTime () - dateStarted.getTime (), "duration");  // wall-clock milliseconds
+    }
+
     /**
         @return Path to the source file (not the containing directory).
     **/
@@ -106,15 +213,15 @@ public class NodeJob extends NodeBase
     public synchronized void distribute ()
     {
         MNode source = getSource ();
-        inherit = source.getOrDefault (key, "$inherit").split (",", 2)[0].replace ("\"", "");
-        setUserObject (inherit);
+        readSource (source);
         EventQueue.invokeLater (new Runnable ()
         {
             public void run ()
             {
                 PanelRun panel = PanelRun.instance;
                 panel.model.nodeChanged (NodeJob.this);
-                panel.tree.paintImmediately (panel.tree.getPathBounds (new TreePath (NodeJob.this.getPath ())));
+                Rectangle bounds = panel.tree.getPathBounds (new TreePath (NodeJob.this.getPath ()));
+                if (bounds != null) panel.tree.paintImmediately (bounds);  // null if this job is not on the current page
             }
         });
 
@@ -123,7 +230,13 @@ public class NodeJob extends NodeBase
         // as soon as possible on the first screenful of the Runs tab.
         Path localJobDir = Host.getJobDir (Host.getLocalResourceDir (), source);
         Path finished = localJobDir.resolve ("finished");
-        if (Files.exists (finished)) checkFinished (finished);
+        if (Files.exists (finished))
+        {
+            checkFinished (finished);
+            Path started = localJobDir.resolve ("started");
+            if (dateStarted == null  &&  Files.exists (started)) dateStarted = new Date (Host.lastModified (started));
+        }
+        updateIndex ();
 
         Host env = Host.get (source);
         synchronized (env.running) {env.running.add (this);};
@@ -149,7 +262,17 @@ public class NodeJob extends NodeBase
         }
     }
 
-    public synchronized void monitorProgress ()
+    public void monitorProgress ()
+    {
+        monitorProgress (null);
+    }
+
+    /**
+        Update status of this job.
+        @param status Remote state files gathered in bulk by the host monitor thread.
+        If null, then this function fetches whatever it needs directly.
+    **/
+    public synchronized void monitorProgress (JobStatus status)
     {
         if (deleted) return;
         if (complete >= 1  &&  complete != 3) return;
@@ -161,7 +284,15 @@ public class NodeJob extends NodeBase
         // If job is remote, attempt to grab its state files.
         // TODO: handle remote jobs waiting in queue. Plan is to update "started" file with queue status.
         Path finished = localJobDir.resolve ("finished");
-        if (! Files.exists (finished)  &&  env instanceof Remote)
+        if (status != null)
+        {
+            if (status.finished != null  &&  ! Files.exists (finished))
+            {
+                try {Host.stringToFile (finished, status.finished);}
+                catch (IOException e) {}
+            }
+        }
+        else if (! Files.exists (finished)  &&  env instanceof Remote)
         {
             @SuppressWarnings("resource")
             Remote remote = (Remote) env;
@@ -186,6 +317,11 @@ public class NodeJob extends NodeBase
                 complete = 0;
                 dateStarted = new Date (started.toFile ().lastModified ());
             }
+            else if (status != null  &&  status.started > 0)
+            {
+                complete = 0;
+                dateStarted = new Date (status.started);
+            }
         }
         if (complete < 1)
         {
@@ -218,7 +354,10 @@ public class NodeJob extends NodeBase
             if (expectedSimTime > 0)
             {
                 Backend simulator = Backend.getBackend (source.get ("$metadata", "backend"));
-                double t = simulator.currentSimTime (source);
+                double t = 0;
+                if      (status == null)            t = simulator.currentSimTime (source);
+                else if (status.tail       != null) t = simulator.currentSimTime (source, status.tail);
+                else if (status.binaryTail != null) t = simulator.currentSimTime (source, status.binaryTail);
                 if (t != 0) complete = Math.min (0.99999f, (float) (t / expectedSimTime));
             }
         }
@@ -236,6 +375,8 @@ public class NodeJob extends NodeBase
         PanelRun panel = PanelRun.instance;
         if (complete != oldComplete)
         {
+            if (complete >= 1  &&  complete != 3) env.jobFinished (source);
+            updateIndex ();
             EventQueue.invokeLater (new Runnable ()
             {
                 public void run ()
@@ -271,6 +412,38 @@ public class NodeJob extends NodeBase
         MNode source = getSource ();
         Backend.getBackend (source.get ("$metadata", "backend")).kill (source, complete >= 3);
         if (complete < 3) complete = 3;
+        updateIndex ();
+    }
+
+    /**
+        Stops several jobs together, so that a host with a job scheduler can handle them in one command.
+    **/
+    public static void stop (List<NodeJob> jobs)
+    {
+        // Group by backend and by whether the kill is forced.
+        Map<String,List<MNode>> groups = new HashMap<String,List<MNode>> ();
+        for (NodeJob job : jobs)
+        {
+            MNode source = job.getSource ();
+            String key = (job.complete >= 3 ? "1" : "0") + source.get ("$metadata", "backend");
+            List<MNode> group = groups.get (key);
+            if (group == null)
+            {
+                group = new ArrayList<MNode> ();
+                groups.put (key, group);
+            }
+            group.add (source);
+        }
+        for (Entry<String,List<MNode>> e : groups.entrySet ())
+        {
+            String key = e.getKey ();
+            Backend.getBackend (key.substring (1)).kill (e.getValue (), key.startsWith ("1"));
+        }
+        for (NodeJob job : jobs)
+        {
+            if (job.complete < 3) job.complete = 3;
+            job.updateIndex ();
+        }
     }
 
     /**
@@ -316,9 +489,30 @@ public class NodeJob extends NodeBase
                 ((Remote) env).enable ();  // To get here, the use had to expand the node. This implies permission to prompt for login.
                 Path resourceDir  = env.getResourceDir ();
                 Path remoteJobDir = Host.getJobDir (resourceDir, source);
-                try (DirectoryStream<Path> dirStream = Files.newDirectoryStream (remoteJobDir))
+                boolean listed = false;
+                if (remoteJobDir.getFileSystem () instanceof SshFileSystem)
                 {
-                    for (Path file : dirStream) if (buildChild (file, existing)) changed = true;
+                    // List the job dir in a single remote command. This also caches the attributes of every entry,
+                    // so buildChild() needs no further round trips. A subdirectory such as an image sequence
+                    // can hold thousands of files, so rather than list it we fetch just one name from it.
+                    SshFileSystem fs = (SshFileSystem) remoteJobDir.getFileSystem ();
+                    Map<Path,PosixFileAttributes> listing = fs.listTree (remoteJobDir, 1);
+                    listed = ! listing.isEmpty ();  // Empty could also mean the remote stat lacks our options, so fall back on sftp below.
+                    List<Path> dirs = new ArrayList<Path> ();
+                    for (Entry<Path,PosixFileAttributes> e : listing.entrySet ())
+                    {
+                        if (e.getValue ().isDirectory ()  &&  ! existing.containsKey (e.getKey ().getFileName ().toString ())) dirs.add (e.getKey ());
+                    }
+                    Map<String,Path> samples = new HashMap<String,Path> ();  // One file from each subdirectory.
+                    for (Entry<Path,Path> e : fs.sampleChildren (dirs).entrySet ()) samples.put (e.getKey ().getFileName ().toString (), e.getValue ());
+                    for (Path file : listing.keySet ()) if (buildChild (file, samples, existing)) changed = true;
+                }
+                if (! listed)
+                {
+                    try (DirectoryStream<Path> dirStream = Files.newDirectoryStream (remoteJobDir))
+                    {
+                        for (Path file : dirStream) if (buildChild (file, existing)) changed = true;
+                    }
                 }
             }
             catch (Exception e) {}
@@ -392,6 +586,15 @@ public class NodeJob extends NodeBase
         actually want to show to the user.
     **/
     public synchronized boolean buildChild (Path file, Map<String,NodeFile> existing)
+    {
+        return buildChild (file, null, existing);
+    }
+
+    /**
+        @param samples Maps the name of each subdirectory to some file it contains. A subdirectory with no entry
+        is empty. If samples is null, then subdirectories are listed to find out.
+    **/
+    public synchronized boolean buildChild (Path file, Map<String,Path> samples, Map<String,NodeFile> existing)
     {
         String fileName = file.getFileName ().toString ();
         NodeFile oldNode = existing.get (fileName);
@@ -406,23 +609,31 @@ public class NodeJob extends NodeBase
         {
             // Check for image sequence.
             // It's an image sequence if a random file from the dir has the right form: an integer with an standard image-file suffix.
-            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream (file))
+            Path p = null;
+            if (samples != null)
             {
-                Iterator<Path> it = dirStream.iterator ();
-                if (! it.hasNext ()) return false;
-                Path p = it.next ();
-                String[] pieces = p.getFileName ().toString ().split ("\\.");
-                if (pieces.length != 2) return false;
-                try {Integer.valueOf (pieces[0]);}
-                catch (NumberFormatException e) {return false;}
-                String suffix = pieces[1].toLowerCase ();
-                if (imageFileSuffixes.indexOf (suffix) < 0) return false;
-                newNode = new NodeFile (NodeFile.Type.Video, file);
+                p = samples.get (fileName);
             }
-            catch (Exception e)
+            else
             {
-                return false;
+                try (DirectoryStream<Path> dirStream = Files.newDirectoryStream (file))
+                {
+                    Iterator<Path> it = dirStream.iterator ();
+                    if (it.hasNext ()) p = it.next ();
+                }
+                catch (Exception e)
+                {
+                    return false;
+                }
             }
+            if (p == null) return false;
+            String[] pieces = p.getFileName ().toString ().split ("\\.");
+            if (pieces.length != 2) return false;
+            try {Integer.valueOf (pieces[0]);}
+            catch (NumberFormatException e) {return false;}
+            String suffix = pieces[1].toLowerCase ();
+            if (imageFileSuffixes.indexOf (suffix) < 0) return false;
+            newNode = new NodeFile (NodeFile.Type.Video, file);
         }
         else
         {
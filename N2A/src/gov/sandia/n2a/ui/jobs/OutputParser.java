@@ -18,6 +18,8 @@ import java.util.List;
 import gov.sandia.n2a.db.MDoc;
 import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.language.UnitValue;
+import gov.sandia.n2a.language.function.ColumnCompression;
+import gov.sandia.n2a.language.function.ColumnReader;
 import tech.units.indriya.AbstractUnit;
 
 public class OutputParser
@@ -50,7 +52,8 @@ public class OutputParser
         ymin              = Double.NaN;
         ymax              = Double.NaN;
 
-        try (BufferedReader br = Files.newBufferedReader (f))
+        if (ColumnReader.isBinary (f)) parseBinary (f);
+        else try (BufferedReader br = ColumnCompression.newBufferedReader (f))
         {
             int row = 0;
             while (true)
@@ -171,6 +174,57 @@ public class OutputParser
         }
     }
 
+    /**
+        Fills columns from a file written by output() in binary mode.
+    **/
+    public void parseBinary (Path f)
+    {
+        try (ColumnReader reader = new ColumnReader (ColumnCompression.newChannel (f), true, true))
+        {
+            reader.empty = defaultValue;
+            int row = 0;
+            while (true)
+            {
+                int type = reader.readRow ();
+                if (type == ColumnReader.NONE) break;
+
+                int count = type == ColumnReader.HEADER ? reader.headers.length : reader.count;
+                while (columns.size () < count)
+                {
+                    Column c = new Column ();
+                    c.startRow = row;
+                    columns.add (c);
+                }
+
+                if (type == ColumnReader.HEADER)
+                {
+                    raw = false;
+                    for (int p = 0; p < count; p++)
+                    {
+                        String header = reader.headers[p];
+                        if (! header.isEmpty ()) columns.get (p).header = header;
+                    }
+                }
+                else
+                {
+                    int p = 0;
+                    for (; p < count; p++)
+                    {
+                        Column c = columns.get (p);
+                        float value = (float) reader.values[p];
+                        c.values.add (value);
+                        if (value != defaultValue) c.textWidth = Math.max (c.textWidth, Float.toString (value).length ());
+                    }
+                    for (; p < columns.size (); p++) columns.get (p).values.add (defaultValue);
+                    row++;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
     public Column getColumn (String columnName)
     {
         for (Column c : columns) if (c.header.equals (columnName)) return c;
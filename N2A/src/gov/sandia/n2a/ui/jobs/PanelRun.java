@@ -13,7 +13,9 @@ import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.execenvs.Host;
 import gov.sandia.n2a.execenvs.Host.CopyProgress;
 import gov.sandia.n2a.execenvs.Remote;
+import gov.sandia.n2a.execenvs.SshFileSystem;
 import gov.sandia.n2a.execenvs.SshFileSystemProvider.SshDirectoryStream;
+import gov.sandia.n2a.language.function.ColumnCompression;
 import gov.sandia.n2a.ui.Lay;
 import gov.sandia.n2a.ui.eq.PanelModel;
 import gov.sandia.n2a.ui.images.ImageUtil;
@@ -30,11 +32,9 @@ import java.beans.PropertyChangeListener;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -53,9 +53,12 @@ import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextArea;
+import javax.swing.JTextField;
 import javax.swing.JToggleButton;
 import javax.swing.JTree;
 import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.PopupMenuEvent;
 import javax.swing.event.PopupMenuListener;
 import javax.swing.event.TreeExpansionEvent;
@@ -90,6 +93,11 @@ public class PanelRun extends JPanel
     public DisplayThread      displayThread = null;
     public NodeBase           displayNode = null;
     public MDir               runs;  // Copied from AppData for convenience
+    public JTextField         fieldFilter;
+    public List<NodeJob>      jobs      = new ArrayList<NodeJob> ();  // All known jobs, newest first. Only the current page of those that match fieldFilter is in the tree. Access only on EDT.
+    public NodeMore           nodeMore  = new NodeMore ();
+    public int                pageSize  = 1000;
+    public int                pageLimit = pageSize;  // Maximum number of matching jobs to show in the tree. Grows as the user asks for more.
 
     public static ImageIcon iconConnect    = ImageUtil.getImage ("connect.gif");
     public static ImageIcon iconPause      = ImageUtil.getImage ("pause-16.png");
@@ -137,6 +145,26 @@ public class PanelRun extends JPanel
                 NodeBase newNode = (NodeBase) newPath.getLastPathComponent ();
                 if (newNode == null) return;
                 if (newNode == displayNode) return;
+                if (newNode == nodeMore)
+                {
+                    // Don't change the tree structure while it is still dispatching this event.
+                    EventQueue.invokeLater (new Runnable ()
+                    {
+                        public void run ()
+                        {
+                            int first = root.getIndex (nodeMore);
+                            pageLimit += pageSize;
+                            rebuild ();
+                            if (first >= 0  &&  first < root.getChildCount ())
+                            {
+                                TreePath path = new TreePath (((NodeBase) root.getChildAt (first)).getPath ());
+                                tree.setSelectionPath (path);
+                                tree.scrollPathToVisible (path);
+                            }
+                        }
+                    });
+                    return;
+                }
                 displayNode = newNode;
 
                 NodeJob job = null;
@@ -150,7 +178,7 @@ public class PanelRun extends JPanel
                     viewJob ();
                     job = (NodeJob) displayNode;
                 }
-                buttonStop.setEnabled (job.complete < 1  ||  job.complete == 3);
+                if (job != null) buttonStop.setEnabled (! job.isDone ());
             }
         });
 
@@ -203,15 +231,36 @@ public class PanelRun extends JPanel
                 // This also means that we don't really need to synchronize on
                 // "running", because no other thread will try to access it until we give
                 // the go-ahead.
+                // Jobs that the index says are done get restored directly from it, so neither
+                // their docs nor their directories are touched until the user asks for them.
                 List<NodeJob> reverse = new ArrayList<NodeJob> (AppData.runs.size ());
-                for (MNode n : AppData.runs) reverse.add (new NodeJob (n, false));
-                for (int i = reverse.size () - 1; i >= 0; i--) root.add (reverse.get (i));  // Reverse the order, so later dates come first.
+                List<NodeJob> active  = new ArrayList<NodeJob> ();
+                Set<String>   keys    = new HashSet<String> ();
+                for (MNode n : AppData.runs)
+                {
+                    String key = n.key ();
+                    keys.add (key);
+                    MNode entry = AppData.runIndex.child (key);
+                    NodeJob job;
+                    if (entry == null) job = new NodeJob (n, false);
+                    else               job = new NodeJob (key, entry);
+                    reverse.add (job);
+                    if (! job.isDone ()) active.add (job);
+                }
+                for (MNode entry : AppData.runIndex)  // Forget jobs that were removed from disk behind our back.
+                {
+                    String key = entry.key ();
+                    if (! keys.contains (key)) AppData.runIndex.clear (key);
+                }
+                List<NodeJob> loaded = new ArrayList<NodeJob> (reverse.size ());
+                for (int i = reverse.size () - 1; i >= 0; i--) loaded.add (reverse.get (i));  // Reverse the order, so later dates come first.
                 EventQueue.invokeLater (new Runnable ()
                 {
                     public void run ()
                     {
                         // Update display with newly loaded jobs.
-                        model.nodeStructureChanged (root);
+                        jobs.addAll (loaded);
+                        rebuild ();
                         if (model.getChildCount (root) > 0)
                         {
                             tree.setSelectionRow (0);
@@ -224,7 +273,7 @@ public class PanelRun extends JPanel
 
                 // Distribute jobs to host monitor threads.
                 // Here, order doesn't matter so much, but we sill want to examine more recent jobs first.
-                for (int i = reverse.size () - 1; i >= 0; i--) reverse.get (i).distribute ();
+                for (int i = active.size () - 1; i >= 0; i--) active.get (i).distribute ();
                 for (Host h : Host.getHosts ()) h.restartMonitorThread ();
             }
         };
@@ -243,7 +292,7 @@ public class PanelRun extends JPanel
                         if (d != null)
                         {
                             if (d instanceof NodeFile) d = (NodeBase) d.getParent ();  // parent could be null, if a sub-node was just deleted
-                            if (d != null) ((NodeJob) d).monitorProgress ();
+                            if (d instanceof NodeJob) ((NodeJob) d).monitorProgress ();
                         }
                         sleep (1000);
                     }
@@ -451,13 +500,37 @@ public class PanelRun extends JPanel
         });
         for (MNode n : AppData.state.childOrCreate ("PanelRun", "scripts")) comboScript.addItem (n.get ());
 
+        fieldFilter = new JTextField ();
+        fieldFilter.setToolTipText ("Filter by model, host, backend or status");
+        fieldFilter.getDocument ().addDocumentListener (new DocumentListener ()
+        {
+            public void insertUpdate (DocumentEvent e)
+            {
+                filter ();
+            }
+
+            public void removeUpdate (DocumentEvent e)
+            {
+                filter ();
+            }
+
+            public void changedUpdate (DocumentEvent e)
+            {
+                filter ();
+            }
+        });
+
         JSplitPane split;
         Lay.BLtg
         (
             this,
             split = Lay.SPL
             (
-                treePane = Lay.sp (tree),
+                Lay.BL
+                (
+                    "N", Lay.BL ("C", fieldFilter, "eb=2"),
+                    "C", treePane = Lay.sp (tree)
+                ),
                 Lay.BL
                 (
                     "N", Lay.BL
@@ -497,6 +570,52 @@ public class PanelRun extends JPanel
         });
     }
 
+    /**
+        A placeholder at the end of the tree which stands for all the matching jobs beyond the current page.
+        Selecting it extends the page.
+    **/
+    public static class NodeMore extends NodeBase
+    {
+        public int count;
+
+        public String toString ()
+        {
+            return count + " more ...";
+        }
+    }
+
+    public void filter ()
+    {
+        pageLimit = pageSize;
+        rebuild ();
+    }
+
+    /**
+        Refill the tree with jobs that match the filter, up to the current page limit.
+        Must be called on the EDT.
+    **/
+    public void rebuild ()
+    {
+        String filter = fieldFilter.getText ().trim ().toLowerCase ();
+        root.removeAllChildren ();
+        nodeMore.count = 0;
+        for (NodeJob job : jobs)
+        {
+            if (! job.matches (filter)) continue;
+            if (root.getChildCount () < pageLimit) root.add (job);
+            else                                   nodeMore.count++;
+        }
+        if (nodeMore.count > 0) root.add (nodeMore);
+        model.nodeStructureChanged (root);
+
+        if (displayNode != null  &&  displayNode.getRoot () == root)
+        {
+            TreePath path = new TreePath (displayNode.getPath ());
+            tree.setSelectionPath (path);
+            tree.scrollPathToVisible (path);
+        }
+    }
+
     public void saveScripts ()
     {
         MNode scripts = AppData.state.childOrCreate ("PanelRun", "scripts");
@@ -576,25 +695,16 @@ public class PanelRun extends JPanel
                             }
                             else
                             {
-                                long position = 0;
+                                // Output files only grow while the job runs, so fetch just the new bytes.
+                                // This includes compressed output, which travels in compressed form and is decoded locally when displayed.
                                 if (localAttributes == null) Files.createFile (localFile);
-                                else                         position = localAttributes.size ();
-                                long count = remoteAttributes.size () - position;
-                                if (count > 0)
+                                ((SshFileSystem) remoteFile.getFileSystem ()).fetchAppended (remoteFile, localFile, new CopyProgress ()
                                 {
-                                    try (InputStream remoteStream = Files.newInputStream (remoteFile);
-                                         OutputStream localStream = Files.newOutputStream (localFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);)
+                                    public void update (float percent)
                                     {
-                                        remoteStream.skip (position);
-                                        Host.copy (remoteStream, localStream, count, new CopyProgress ()
-                                        {
-                                            public void update (float percent)
-                                            {
-                                                synchronized (displayText) {displayText.setText (String.format ("Downloading %2.0f%%", percent * 100));}
-                                            }
-                                        });
+                                        synchronized (displayText) {displayText.setText (String.format ("Downloading %2.0f%%", percent * 100));}
                                     }
-                                }
+                                });
                             }
                             node.path = localFile;  // Force to use local copy, regardless of whether it was local or remote before.
                         }
@@ -644,7 +754,7 @@ public class PanelRun extends JPanel
                     boolean graphable = Files.exists (dir.resolve (fileName + ".columns"));  // An auxiliary column file is sufficient evidence that this is tabular data.
                     if (! graphable)
                     {
-                        BufferedReader reader = Files.newBufferedReader (node.path);
+                        BufferedReader reader = ColumnCompression.newBufferedReader (node.path);
                         String line = reader.readLine ();
                         graphable = line.startsWith ("$t")  ||  line.startsWith ("Index");
                         if (! graphable)
@@ -733,7 +843,13 @@ public class PanelRun extends JPanel
                 }
 
                 // Default is plain text
-                final String contents = Host.fileToString (node.path);
+                String text = "";
+                try (InputStream stream = ColumnCompression.open (node.path))  // Shows compressed output as the text it contains.
+                {
+                    text = Host.streamToString (stream);
+                }
+                catch (IOException e) {}
+                final String contents = text;
                 if (stop)
                 {
                     signalDone ();
@@ -809,15 +925,7 @@ public class PanelRun extends JPanel
         MNode doc = job.getSource ();
 
         StringBuilder contents = new StringBuilder ();
-        contents.append ("Status:");
-        if      (job.complete < 0)                       contents.append (" Waiting");
-        else if (job.complete == 0)                      contents.append (" Started");
-        else if (job.complete > 0  &&  job.complete < 1) contents.append (" " + Math.round (job.complete * 100) + "%");
-        else if (job.complete == 1)                      contents.append (" Success");
-        else if (job.complete == 3)                      contents.append (" Killed (lingering)");
-        else if (job.complete == 4)                      contents.append (" Killed");
-        else                                             contents.append (" Failed");  // complete==2, or any value not specified above
-        contents.append ("\n");
+        contents.append ("Status: " + job.getStatus () + "\n");
         if (job.dateStarted  != null) contents.append ("  started:  " + job.dateStarted  + "\n");
         if (job.dateFinished != null) contents.append ("  finished: " + job.dateFinished + "\n");
         contents.append ("\n");
@@ -857,6 +965,7 @@ public class PanelRun extends JPanel
         NodeBase firstSelection = (NodeBase) paths[0             ].getLastPathComponent ();
         NodeBase lastSelection  = (NodeBase) paths[paths.length-1].getLastPathComponent ();
         NodeBase                   nextSelection = (NodeBase) lastSelection .getNextSibling ();
+        if (nextSelection == nodeMore) nextSelection = null;
         if (nextSelection == null) nextSelection = (NodeBase) firstSelection.getPreviousSibling ();
         if (nextSelection == null)
         {
@@ -878,9 +987,11 @@ public class PanelRun extends JPanel
         if (displayPane.getViewport ().getView () != displayText) displayPane.setViewportView (displayText);
 
         Set<NodeJob> parents = new HashSet<NodeJob> ();
+        final List<NodeJob> stopping = new ArrayList<NodeJob> ();
         for (TreePath path : paths)
         {
             final NodeBase node = (NodeBase) path.getLastPathComponent ();
+            if (node == nodeMore) continue;
             if (node instanceof NodeJob)
             {
                 NodeJob job = (NodeJob) node;
@@ -892,7 +1003,7 @@ public class PanelRun extends JPanel
                         // It's important that the job not have resources locked in the directory when we try to delete it.
                         // If the job is still running, downgrade the delete request to a kill request.
                         // The user will have to hit delete again, once the job dies.
-                        job.stop ();
+                        stopping.add (job);
                         continue;
                     }
                 }
@@ -902,6 +1013,7 @@ public class PanelRun extends JPanel
                 if (parents.contains ((NodeJob) node.getParent ())) continue;
             }
             model.removeNodeFromParent (node);
+            if (node instanceof NodeJob) jobs.remove (node);
 
             // It may seem insane to start a separate thread for each path, but it actually makes sense
             // to do all this work in parallel. In particular, if there are remote jobs, there may be
@@ -926,6 +1038,7 @@ public class PanelRun extends JPanel
                             return;
                         }
                         doc.delete ();  // deletes local job directory
+                        AppData.runIndex.clear (job.key);
                         Host env = Host.get (doc);
                         if (env instanceof Remote)
                         {
@@ -954,6 +1067,18 @@ public class PanelRun extends JPanel
             }.start ();
         }
 
+        if (! stopping.isEmpty ())
+        {
+            // Stop all running jobs together, so that hosts with a job scheduler can handle them in one command.
+            new Thread ("PanelRun Stop")
+            {
+                public void run ()
+                {
+                    NodeJob.stop (stopping);
+                }
+            }.start ();
+        }
+
         if (nextSelectionIsParent  &&  nextSelection.getChildCount () > 0)
         {
             nextSelection = (NodeBase) nextSelection.getChildAt (0);
@@ -970,13 +1095,27 @@ public class PanelRun extends JPanel
 
     /**
         Add a newly-created job to the list, and do all remaining setup to monitor it.
-        This must be called on the EDT.
+        May be called from any thread. The work itself is always done on the EDT, since it changes jobs and the tree model.
     **/
-    public void addNewRun (MNode run)
+    public void addNewRun (final MNode run)
     {
+        if (! EventQueue.isDispatchThread ())
+        {
+            EventQueue.invokeLater (new Runnable ()
+            {
+                public void run ()
+                {
+                    addNewRun (run);
+                }
+            });
+            return;
+        }
+
         NodeJob node = new NodeJob (run, true);
-        node.setUserObject (run.getOrDefault (node.key, "$inherit").split (",", 2)[0].replace ("\"", ""));
+        node.readSource (run);
+        node.updateIndex ();
 
+        jobs.add (0, node);
         model.insertNodeInto (node, root, 0);  // Since this always executes on event dispatch thread, it will not conflict with other code that accesses model.
         if (root.getChildCount () == 1) model.nodeStructureChanged (root);  // If the list was empty, we need to give the JTree a little extra kick to get started.
         tree.expandRow (0);
@@ -1,5 +1,5 @@
 /*
-Copyright 2019 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Copyright 2019-2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
 Under the terms of Contract DE-NA0003525 with NTESS,
 the U.S. Government retains certain rights in this software.
 */
@@ -8,8 +8,12 @@ package gov.sandia.n2a.ui.jobs;
 
 import java.awt.EventQueue;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.event.AdjustmentEvent;
 import java.awt.event.AdjustmentListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
@@ -17,8 +21,18 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
@@ -27,9 +41,28 @@ import javax.swing.JScrollBar;
 
 import gov.sandia.n2a.ui.Lay;
 
+/**
+    Plays an image sequence, such as the output of draw().
+    Frames are decoded by a pool of threads, scaled down to the size of the panel, and held in a cache
+    bounded by memory. While playing, frames ahead of the cursor are decoded in advance.
+**/
 @SuppressWarnings("serial")
 public class Video extends JPanel
 {
+    public static long cacheLimit = Runtime.getRuntime ().maxMemory () / 8;  // Bytes of decoded frames to hold.
+    public static int  prefetch   = 16;                                      // Number of frames to decode ahead of the cursor.
+
+    protected static ExecutorService decoders = Executors.newFixedThreadPool (Math.max (1, Runtime.getRuntime ().availableProcessors () - 1), new ThreadFactory ()
+    {
+        public Thread newThread (Runnable r)
+        {
+            Thread t = new Thread (r, "Video Decoder");
+            t.setDaemon (true);
+            t.setPriority (Thread.MIN_PRIORITY);  // Keep the UI responsive.
+            return t;
+        }
+    });
+
     protected NodeJob       job;
     protected Path          dir;
     protected String        suffix;
@@ -38,6 +71,15 @@ public class Video extends JPanel
     protected BufferedImage image;
     protected PlayThread    thread;
 
+    // The following are guarded by cache.
+    protected Map<Integer,BufferedImage>         cache    = new LinkedHashMap<Integer,BufferedImage> (16, 0.75f, true);  // Access order, so the first entry is least recently used.
+    protected Map<Integer,Future<BufferedImage>> decoding = new HashMap<Integer,Future<BufferedImage>> ();
+    protected long                               cacheSize;     // Total bytes of images in cache.
+    protected int                                targetWidth;   // Size to decode frames for. 0 means full size.
+    protected int                                targetHeight;
+    protected int                                generation;    // Incremented whenever target size changes, so decodes for the old size can be discarded.
+    protected int                                showIndex = -1; // Frame to put on display as soon as it is decoded. -1 means none.
+
     protected JPanel     panelImage;
     protected JScrollBar scrollbar;
 
@@ -97,6 +139,13 @@ public class Video extends JPanel
         panelImage.addMouseListener (adapter);
         panelImage.addMouseMotionListener (adapter);
         panelImage.addMouseWheelListener (adapter);
+        panelImage.addComponentListener (new ComponentAdapter ()
+        {
+            public void componentResized (ComponentEvent e)
+            {
+                setTargetSize (panelImage.getWidth (), panelImage.getHeight ());
+            }
+        });
 
         scrollbar = new JScrollBar (JScrollBar.HORIZONTAL, 0, 1, 0, last + 1);
         scrollbar.addAdjustmentListener (new AdjustmentListener ()
@@ -119,48 +168,238 @@ public class Video extends JPanel
         );
     }
 
-    public void nextImage ()
+    public Path frameFile (int i)
     {
-        if (suffix == null) return;
-        int nextIndex = index + 1;
+        return dir.resolve (i + "." + suffix);
+    }
+
+    /**
+        Returns the given frame, waiting for it to be decoded if necessary.
+        @return null if the frame does not exist or can't be read.
+    **/
+    public BufferedImage getFrame (int i)
+    {
+        Future<BufferedImage> f;
+        synchronized (cache)
+        {
+            BufferedImage result = cache.get (i);
+            if (result != null) return result;
+            f = request (i);
+        }
         try
         {
-            image = ImageIO.read (dir.resolve (nextIndex + "." + suffix).toFile ());
-            if (nextIndex > last)
+            return f.get ();
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+        Starts decoding the given frame, unless that is already in progress.
+        Caller must hold the lock on cache.
+    **/
+    protected Future<BufferedImage> request (final int i)
+    {
+        Future<BufferedImage> result = decoding.get (i);
+        if (result != null) return result;
+
+        final int w   = targetWidth;
+        final int h   = targetHeight;
+        final int gen = generation;
+        result = decoders.submit (new Callable<BufferedImage> ()
+        {
+            public BufferedImage call () throws Exception
             {
-                last = nextIndex;
-                scrollbar.setMaximum (last + 1);
+                BufferedImage frame = null;
+                try {frame = decode (frameFile (i), w, h);}
+                catch (Exception e) {}  // Possibly a frame that is still being written. It will be requested again later.
+                boolean show = false;
+                synchronized (cache)
+                {
+                    if (gen == generation)
+                    {
+                        decoding.remove (i);
+                        if (frame != null)
+                        {
+                            BufferedImage old = cache.put (i, frame);
+                            if (old != null) cacheSize -= bytes (old);
+                            cacheSize += bytes (frame);
+                            trim ();
+                            if (i == showIndex)
+                            {
+                                showIndex = -1;
+                                show = true;
+                            }
+                        }
+                    }
+                }
+                if (show)
+                {
+                    final BufferedImage result = frame;
+                    EventQueue.invokeLater (new Runnable ()
+                    {
+                        public void run ()
+                        {
+                            if (index != i) return;  // User has moved on.
+                            image = result;
+                            panelImage.repaint ();
+                        }
+                    });
+                }
+                return frame;
+            }
+        });
+        decoding.put (i, result);
+        return result;
+    }
+
+    /**
+        Queues decoding for frames just ahead of the given position, and cancels queued work that is no longer near it.
+        The window is limited so that prefetched frames won't push each other out of the cache.
+    **/
+    public void prefetch (int center)
+    {
+        synchronized (cache)
+        {
+            int window = prefetch;
+            BufferedImage sample = cache.get (center);
+            if (sample != null) window = (int) Math.max (1, Math.min (window, cacheLimit / bytes (sample) / 2));
+
+            int first = center - 1;  // Also keep one frame behind, for stepping backward.
+            int end   = center + window;
+            Iterator<Entry<Integer,Future<BufferedImage>>> it = decoding.entrySet ().iterator ();
+            while (it.hasNext ())
+            {
+                Entry<Integer,Future<BufferedImage>> e = it.next ();
+                int i = e.getKey ();
+                if (i >= first  &&  i <= end) continue;
+                if (e.getValue ().cancel (false)) it.remove ();  // Only stops work that hasn't started yet.
+            }
+            for (int i = Math.max (0, first); i <= end  &&  i <= last; i++)
+            {
+                if (! cache.containsKey (i)) request (i);
             }
-            index = nextIndex;
-            scrollbar.setValue (index);
         }
-        catch (Exception e) {}
     }
 
-    public void previousImage ()
+    /**
+        Drops least-recently used frames until the cache is within its limit.
+        Caller must hold the lock on cache.
+    **/
+    protected void trim ()
     {
-        if (suffix == null) return;
-        int nextIndex = index - 1;
-        if (nextIndex < 0) return;
-        try
+        Iterator<BufferedImage> it = cache.values ().iterator ();
+        while (cacheSize > cacheLimit  &&  cache.size () > 1  &&  it.hasNext ())
         {
-            image = ImageIO.read (dir.resolve (nextIndex + "." + suffix).toFile ());
-            index = nextIndex;
-            scrollbar.setValue (index);
+            cacheSize -= bytes (it.next ());
+            it.remove ();
         }
-        catch (IOException e) {}
     }
 
-    public void scratch (float position)
+    public static long bytes (BufferedImage image)
     {
-        if (suffix == null  ||  last < 0) return;
-        int nextIndex = (int) Math.round (position * last);
-        try
+        return 4L * image.getWidth () * image.getHeight ();
+    }
+
+    /**
+        Called when the panel changes size. Decoded frames are discarded, since they were scaled for the old size.
+        The current frame is decoded again at the new size, and shown when ready.
+    **/
+    public void setTargetSize (int width, int height)
+    {
+        synchronized (cache)
+        {
+            if (width == targetWidth  &&  height == targetHeight) return;
+            targetWidth  = width;
+            targetHeight = height;
+            generation++;
+            for (Future<BufferedImage> f : decoding.values ()) f.cancel (false);
+            decoding.clear ();
+            cache.clear ();
+            cacheSize = 0;
+            showIndex = -1;
+            if (index < 0) return;
+            if (thread == null  ||  ! thread.playing) showIndex = index;  // Otherwise, the play thread will pick up frames at the new size.
+            request (index);
+        }
+    }
+
+    /**
+        Reads an image file and scales it to fit within the given size, preserving aspect ratio.
+        The image is never enlarged. If width or height is 0, the image is returned at full size.
+        Large reductions are done in steps of one half, which averages pixels rather than skipping them,
+        so small features such as single-pixel spikes don't vanish.
+    **/
+    public static BufferedImage decode (Path file, int width, int height) throws IOException
+    {
+        BufferedImage full = ImageIO.read (file.toFile ());
+        if (full == null) return null;
+
+        int iw = full.getWidth ();
+        int ih = full.getHeight ();
+        if (width <= 0  ||  height <= 0) return full;
+        double scale = Math.min ((double) width / iw, (double) height / ih);
+        if (scale >= 1) return full;
+        int w = Math.max (1, (int) Math.round (iw * scale));
+        int h = Math.max (1, (int) Math.round (ih * scale));
+
+        BufferedImage result = full;
+        int cw = iw;
+        int ch = ih;
+        do
+        {
+            cw = Math.max (w, cw / 2);
+            ch = Math.max (h, ch / 2);
+            BufferedImage next = new BufferedImage (cw, ch, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = next.createGraphics ();
+            g.setRenderingHint (RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage (result, 0, 0, cw, ch, null);
+            g.dispose ();
+            result = next;
+        }
+        while (cw > w  ||  ch > h);
+        return result;
+    }
+
+    /**
+        Moves to the given frame, if it exists.
+        @return true if the frame was loaded.
+    **/
+    public boolean showImage (int nextIndex)
+    {
+        if (suffix == null  ||  nextIndex < 0) return false;
+        if (nextIndex > last  &&  ! Files.exists (frameFile (nextIndex))) return false;
+        BufferedImage frame = getFrame (nextIndex);
+        if (frame == null) return false;
+        image = frame;
+        index = nextIndex;
+        prefetch (index);
+        return true;
+    }
+
+    public void nextImage ()
+    {
+        int nextIndex = index + 1;
+        if (! showImage (nextIndex)) return;
+        if (nextIndex > last)
         {
-            image = ImageIO.read (dir.resolve (nextIndex + "." + suffix).toFile ());
-            index = nextIndex;
+            last = nextIndex;
+            scrollbar.setMaximum (last + 1);
         }
-        catch (IOException e) {}
+        scrollbar.setValue (index);
+    }
+
+    public void previousImage ()
+    {
+        if (showImage (index - 1)) scrollbar.setValue (index);
+    }
+
+    public void scratch (float position)
+    {
+        if (suffix == null  ||  last < 0) return;
+        showImage ((int) Math.round (position * last));
     }
 
     public class PlayThread extends Thread
@@ -230,6 +469,14 @@ public class Video extends JPanel
     {
         super.removeNotify ();
         pause ();
+        synchronized (cache)
+        {
+            for (Future<BufferedImage> f : decoding.values ()) f.cancel (false);
+            decoding.clear ();
+            cache.clear ();
+            cacheSize = 0;
+            generation++;
+        }
     }
 
     public class PanelImage extends JPanel
@@ -237,7 +484,7 @@ public class Video extends JPanel
         public void paintComponent (Graphics g)
         {
             super.paintComponent (g);
-            if (index < 0) return;
+            if (index < 0  ||  image == null) return;
 
             int pw = getWidth ();
             int ph = getHeight ();
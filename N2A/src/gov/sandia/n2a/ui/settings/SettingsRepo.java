@@ -697,6 +697,7 @@ public class SettingsRepo extends JScrollPane implements Settings
         if (result == null)
         {
             result = new MDir (repoName, reposDir.resolve (repoName).resolve ("models"));
+            result.watch ();
             existingModels.put (repoName, result);
         }
         return result;
@@ -708,6 +709,7 @@ public class SettingsRepo extends JScrollPane implements Settings
         if (result == null)
         {
             result = new MDir (repoName, reposDir.resolve (repoName).resolve ("references"));
+            result.watch ();
             existingReferences.put (repoName, result);
         }
         return result;
@@ -765,8 +767,11 @@ public class SettingsRepo extends JScrollPane implements Settings
             {
                 // TODO: Prevent repo rename while pull is in progress. Simple approach is to add check to TextCellEditor.isCellEditable()
                 gitRepo.pull ();
-                getModels     (key).reload ();
-                getReferences (key).reload ();
+                // A watched dir receives the changes file by file as git writes them.
+                MDir models     = getModels     (key);
+                MDir references = getReferences (key);
+                if (! models    .isWatched ()) models    .reload ();
+                if (! references.isWatched ()) references.reload ();
                 if (needRebuild)  // UI focus is still on settings panel.
                 {
                     if (gitRepo == gitModel.current)
@@ -1011,6 +1016,8 @@ public class SettingsRepo extends JScrollPane implements Settings
                     models    .set (repoDir.resolve ("models"));  // Flushes write queue, so save thread won't interfere with the move.
                     references.set (repoDir.resolve ("references"));
                     AppData.repos.move (oldName, newName);
+                    models    .watch ();
+                    references.watch ();
                     gitRepos.set (row, new GitWrapper (repoDir.resolve (".git")));
 
                     String primary = AppData.state.get ("Repos", "primary");
@@ -1070,8 +1077,12 @@ public class SettingsRepo extends JScrollPane implements Settings
             GitWrapper gitRepo = new GitWrapper (baseDir.resolve (".git"));
             gitRepo.setURL (URL);
             AppData.repos.set (1, name, "visible");  // Implicitly creates the repo node.
-            existingModels    .put (name, new MDir (name, baseDir.resolve ("models")));
-            existingReferences.put (name, new MDir (name, baseDir.resolve ("references")));
+            MDir models     = new MDir (name, baseDir.resolve ("models"));
+            MDir references = new MDir (name, baseDir.resolve ("references"));
+            models    .watch ();
+            references.watch ();
+            existingModels    .put (name, models);
+            existingReferences.put (name, references);
             needRebuild = true;
 
             repoModel.repos   .add (row, AppData.repos.child (name));
@@ -1091,8 +1102,10 @@ public class SettingsRepo extends JScrollPane implements Settings
 
             String name = repos.get (row).key ();
             AppData.repos.clear (name);
-            existingModels    .remove (name);
-            existingReferences.remove (name);
+            MDir models     = (MDir) existingModels    .remove (name);
+            MDir references = (MDir) existingReferences.remove (name);
+            if (models     != null) models    .unwatch ();
+            if (references != null) references.unwatch ();
 
             needRebuild = true;
             gitRepos.remove (row);
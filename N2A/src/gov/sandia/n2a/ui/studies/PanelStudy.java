@@ -10,8 +10,10 @@ import gov.sandia.n2a.db.AppData;
 import gov.sandia.n2a.db.MDoc;
 import gov.sandia.n2a.db.MNode;
 import gov.sandia.n2a.db.MNode.Visitor;
-import gov.sandia.n2a.db.MVolatile;
+import gov.sandia.n2a.eqset.MPartCache;
 import gov.sandia.n2a.execenvs.Host;
+import gov.sandia.n2a.execenvs.JobScheduler;
+import gov.sandia.n2a.execenvs.Remote;
 import gov.sandia.n2a.plugins.extpoints.Backend;
 import gov.sandia.n2a.ui.Lay;
 import gov.sandia.n2a.ui.Utility;
@@ -28,12 +30,14 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
@@ -51,6 +55,8 @@ import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTable;
 import javax.swing.ListSelectionModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.AbstractTableModel;
@@ -66,12 +72,17 @@ public class PanelStudy extends JPanel
     public    JList<Study>            list  = new JList<Study> (model);
     protected JScrollPane             listPane;
 
-    protected Study       displayStudy;                // The study currently in focus.
-    protected JTabbedPane displayPane;
-    protected JPanel      panelSamples;
-    protected JButton     buttonPause;
-    protected JLabel      labelStatus = new JLabel (); // Gives brief summary of remaining work and time.
-    protected JTable      tableSamples;
+    protected volatile Study displayStudy;                // The study currently in focus. Only written on the EDT, but also read by ResultThread.
+    protected JTabbedPane    displayPane;
+    protected JPanel         panelSamples;
+    protected JButton        buttonPause;
+    protected JLabel         labelStatus = new JLabel (); // Gives brief summary of remaining work and time.
+    protected JTable         tableSamples;
+
+    protected JTable           tableResults;
+    protected ResultTableModel modelResults = new ResultTableModel ();
+    protected ResultThread     threadResults;
+    protected volatile boolean resultsShowing;
 
     protected static ImageIcon iconPause    = ImageUtil.getImage ("pause-16.png");
     protected static ImageIcon iconStop     = ImageUtil.getImage ("stop.gif");
@@ -108,6 +119,7 @@ public class PanelStudy extends JPanel
 
                 displayStudy = study;
                 tableSamples.repaint ();
+                threadResults.wake ();
                 buttonPause.setEnabled (study.complete () < 1);
             }
         });
@@ -177,6 +189,27 @@ public class PanelStudy extends JPanel
             "C", Lay.sp (tableSamples)
         );
 
+        tableResults = new JTable (modelResults);
+        tableResults.setAutoCreateRowSorter (true);
+        tableResults.setAutoResizeMode (JTable.AUTO_RESIZE_OFF);
+        ((DefaultTableCellRenderer) tableResults.getTableHeader ().getDefaultRenderer ()).setHorizontalAlignment (JLabel.LEFT);
+
+        displayPane = new JTabbedPane ();
+        displayPane.addTab ("Samples", panelSamples);
+        displayPane.addTab ("Results", Lay.sp (tableResults));
+        displayPane.addChangeListener (new ChangeListener ()
+        {
+            public void stateChanged (ChangeEvent e)
+            {
+                resultsShowing = displayPane.getSelectedIndex () == 1;
+                if (resultsShowing) threadResults.wake ();
+            }
+        });
+
+        threadResults = new ResultThread ();
+        threadResults.setDaemon (true);
+        threadResults.start ();
+
         JSplitPane split;
         Lay.BLtg
         (
@@ -235,7 +268,6 @@ public class PanelStudy extends JPanel
             AppData.studies.clear (study.source.key ());
         }
 
-        displayPane.removeAll ();
         int count = model.getSize ();
         if (nextSelection < 0) nextSelection = 0;
         if (nextSelection >= count) nextSelection = count - 1;
@@ -245,6 +277,7 @@ public class PanelStudy extends JPanel
             displayStudy = list.getSelectedValue ();
             tableSamples.repaint ();
         }
+        threadResults.wake ();
     }
 
     /**
@@ -262,18 +295,25 @@ public class PanelStudy extends JPanel
 
     public class Study
     {
-        protected MNode         source;
-        protected StudyThread   thread;
-        protected StudyIterator iterator;
-        protected int           count;                  // total number of samples that will be generated
-        protected int           index;                  // of next sample that should be created
-        protected Random        random = new Random (); // random number generator used by iterator
+        protected MNode           source;
+        protected StudyThread     thread;
+        protected StudyIterator   iterator;
+        protected int             count;                  // total number of samples that will be generated
+        protected int             index;                  // of next sample that should be created
+        protected Random          random = new Random (); // random number generator used by iterator
+        protected StudyAggregator aggregator;             // created on first use
 
         public Study (MNode source)
         {
             this.source = source;
         }
 
+        public synchronized StudyAggregator getAggregator ()
+        {
+            if (aggregator == null) aggregator = new StudyAggregator (source);
+            return aggregator;
+        }
+
         public String makePath (String[] keyPath)
         {
             String result = keyPath[0];
@@ -281,7 +321,12 @@ public class PanelStudy extends JPanel
             return result;
         }
 
-        public void buildVariables ()
+        /**
+            Collects the study variables from the model into the study record, if not already done.
+            Synchronized because this is called from the EDT, the study thread and the result thread.
+            Any code that reads "variables" should call this first, so it never sees a partial list.
+        **/
+        public synchronized void buildVariables ()
         {
             if (source.child ("variables") != null) return;  // already have cached values
 
@@ -311,10 +356,24 @@ public class PanelStudy extends JPanel
             });
         }
 
-        public void buildIterator ()
+        /**
+            @throws Exception if the study variables can't be iterated as requested. The message is suitable for display.
+        **/
+        public void buildIterator () throws Exception
         {
             if (iterator != null) return;
             buildVariables ();
+
+            // A sampler or optimizer handles all the variables together, rather than as a Cartesian product.
+            Path dir = Paths.get (source.get ()).getParent ();
+            MNode study = new MDoc (dir.resolve ("model")).childOrEmpty ("$metadata", "study");
+            iterator = StudySampler.create (study, source.childOrEmpty ("variables"), random, source);
+            if (iterator != null)
+            {
+                count = iterator.count ();
+                return;
+            }
+
             for (MNode v : source.childOrEmpty ("variables"))
             {
                 String value = v.get ().trim ();
@@ -371,7 +430,7 @@ public class PanelStudy extends JPanel
                 source.set ("", "pause");
                 if (thread != null)
                 {
-                    thread.stop = true;
+                    thread.halt ();
                     thread = null;
                 }
             }
@@ -382,7 +441,7 @@ public class PanelStudy extends JPanel
             source.set (System.currentTimeMillis () / 1000, "finished");
             if (thread != null)
             {
-                thread.stop = true;
+                thread.halt ();
                 thread = null;
             }
         }
@@ -406,29 +465,59 @@ public class PanelStudy extends JPanel
 
         public class StudyThread extends Thread
         {
-            public boolean stop;
+            public    boolean     stop;
+            public    int         prepareLimit = Math.max (2, Runtime.getRuntime ().availableProcessors ());
+            protected List<MNode> preparing    = new ArrayList<MNode> ();  // Jobs sent to a queuing host whose backend has not yet handed them over.
+            protected volatile JobScheduler.Ticket ticket;  // Request we are currently waiting on, if any.
 
             public StudyThread ()
             {
                 super ("Study " + source.get ("$inherit") + " " + source.key ());
             }
 
+            /**
+                Signals this thread to finish, and wakes it if it is waiting on a scheduler.
+            **/
+            public void halt ()
+            {
+                stop = true;
+                JobScheduler.Ticket t = ticket;
+                if (t != null) t.cancel ();
+                if (iterator != null) iterator.halt ();
+            }
+
             public void run ()
             {
                 Path studyDir = Paths.get (source.get ()).getParent ();
                 MNode model = new MDoc (studyDir.resolve ("model"));
-                MNode modelCopy = new MVolatile ();
-                modelCopy.merge (model);
+                MNode modelCopy = new MPartCache.View (null, model, model.key ());  // Each sample overrides the study variables, without disturbing the stored model or copying it.
 
                 // Initialize iterator and bring up to present.
                 // The M order of keys in "jobs" matches their creation order.
                 // By actually executing the iterator again, we ensure that any random
                 // draws repeat exactly the same sequence as before.
                 MNode seed = model.child ("$metadata", "study", "seed");
-                if (seed != null) random.setSeed (seed.getLong ());
-                else              random.setSeed (System.currentTimeMillis ());
-                buildIterator ();
+                if (seed != null)
+                {
+                    random.setSeed (seed.getLong ());
+                }
+                else  // Remember the seed anyway, so that a sampler which needs replay can reproduce its sequence.
+                {
+                    long s = source.getOrDefault (System.currentTimeMillis (), "seed");
+                    source.set (s, "seed");
+                    random.setSeed (s);
+                }
+                try
+                {
+                    buildIterator ();
+                }
+                catch (Exception e)
+                {
+                    showStatus (Study.this, "Error: " + e.getMessage ());
+                    return;
+                }
                 iterator.setModel (modelCopy);
+                iterator.halted = false;  // in case a previous thread was halted
                 int lastIndex = source.childOrEmpty ("jobs").size () - 1;
                 if (index <= lastIndex)
                 {
@@ -441,84 +530,162 @@ public class PanelStudy extends JPanel
                         lastRun = AppData.runs.child (lastRunKey);
                     }
 
-                    if (lastRun != null)
+                    if (lastRun != null  &&  ! iterator.needsReplay ())
                     {
                         iterator.fastForward (lastRun);
                     }
-                    else  // Either the user cares about repeatable random numbers, or we failed to retrieve the last run.
+                    else  // Either the user cares about repeatable random numbers, or we failed to retrieve the last run, or the iterator learns from its samples.
                     {
                         showStatus (Study.this, "Recapitulating samples");
-                        while (! stop  &&  index <= lastIndex)
+                        for (MNode r : source.childOrEmpty ("jobs"))
                         {
-                            iterator.next ();
+                            if (stop  ||  ! iterator.next ()) break;
+                            iterator.launched (AppData.runs.child (r.key ()));
                             index++;
                         }
                     }
                 }
 
+                // Collect the locations of study variables, in case the backend can share work between samples.
+                List<String[]> keyPaths = new ArrayList<String[]> ();
+                iterator.addKeyPaths (keyPaths);
+                Backend.Sweep sweep = null;
+                Backend sweepBackend = null;
+                boolean trySweep = true;  // Only attempt to create a sweep once.
+
                 // Get next sample, but don't advance index until it is actually launched.
                 // This ensures that we can restart at the right sample if interrupted.
                 long startTime = System.currentTimeMillis ();
-                while (! stop  &&  iterator.next ())  // Puts the next sample in modelCopy
+                try
                 {
-                    // Show status
-                    // TODO: this should be base on jobs completed rather than merely started.
-                    String status = "" + index + "/" + count + " samples; ";
-                    if (index == 0)
-                    {
-                        status += "Unknonw time remaining";
-                    }
-                    else
+                    while (! stop  &&  iterator.next ())  // Puts the next sample in modelCopy
                     {
-                        long totalTime = source.getLong ("time") + System.currentTimeMillis () - startTime;
-                        double averageTime = totalTime / (index + 1);
-                        double ETA = averageTime * (count - index) / 1000;  // ETA is in seconds rather than milliseconds
-                        if      (ETA > 4.3425e17) status += "This will take longer than the age of the universe.";  // 13.77 billion years, give or take a few
-                        else if (ETA > 2.3652e14) status += "Deep Thought got done sooner.";                        // 7.5 million years
-                        else if (ETA >  31536000) status += String.format ("%f.1", ETA / 31536000) + " years remaining";
-                        else if (ETA >   2592000) status += String.format ("%f.1", ETA /  2592000) + " months remaining";
-                        else if (ETA >    604800) status += String.format ("%f.1", ETA /   604800) + " weeks remaining";
-                        else if (ETA >     86400) status += String.format ("%f.1", ETA /    86400) + " days remaining";
-                        else if (ETA >      3600) status += String.format ("%f.1", ETA /     3600) + " hours remaining";
-                        else if (ETA >        60) status += String.format ("%f.1", ETA /       60) + " minutes remaining";
-                        else                      status += ETA                                    + " seconds remaining";
-                    }
-                    showStatus (Study.this, status);
+                        // Show status
+                        // TODO: this should be base on jobs completed rather than merely started.
+                        String status = "" + index + "/" + count + " samples; ";
+                        if (index == 0)
+                        {
+                            status += "Unknonw time remaining";
+                        }
+                        else
+                        {
+                            long totalTime = source.getLong ("time") + System.currentTimeMillis () - startTime;
+                            double averageTime = totalTime / (index + 1);
+                            double ETA = averageTime * (count - index) / 1000;  // ETA is in seconds rather than milliseconds
+                            if      (ETA > 4.3425e17) status += "This will take longer than the age of the universe.";  // 13.77 billion years, give or take a few
+                            else if (ETA > 2.3652e14) status += "Deep Thought got done sooner.";                        // 7.5 million years
+                            else if (ETA >  31536000) status += String.format ("%f.1", ETA / 31536000) + " years remaining";
+                            else if (ETA >   2592000) status += String.format ("%f.1", ETA /  2592000) + " months remaining";
+                            else if (ETA >    604800) status += String.format ("%f.1", ETA /   604800) + " weeks remaining";
+                            else if (ETA >     86400) status += String.format ("%f.1", ETA /    86400) + " days remaining";
+                            else if (ETA >      3600) status += String.format ("%f.1", ETA /     3600) + " hours remaining";
+                            else if (ETA >        60) status += String.format ("%f.1", ETA /       60) + " minutes remaining";
+                            else                      status += ETA                                    + " seconds remaining";
+                        }
+                        showStatus (Study.this, status);
 
-                    // Use the model to guide host selection.
-                    // This allows host itself to be a study variable.
-                    List<Host> hosts = new ArrayList<Host> ();
-                    for (String hostname : modelCopy.get ("$metadata", "host").split (","))
-                    {
-                        Host h = Host.get (hostname.trim ());
-                        if (h != null) hosts.add (h);
-                    }
-                    if (hosts.isEmpty ()) hosts.add (Host.get ("localhost"));
+                        // Use the model to guide host selection.
+                        // This allows host itself to be a study variable.
+                        List<Host> hosts = new ArrayList<Host> ();
+                        for (String hostname : modelCopy.get ("$metadata", "host").split (","))
+                        {
+                            Host h = Host.get (hostname.trim ());
+                            if (h != null) hosts.add (h);
+                        }
+                        if (hosts.isEmpty ()) hosts.add (Host.get ("localhost"));
 
-                    // Likewise for backend
-                    Backend backend = Backend.getBackend (modelCopy.get ("$metada", "backend"));
+                        // Likewise for backend
+                        Backend backend = Backend.getBackend (modelCopy.get ("$metada", "backend"));
 
-                    // Wait until a host becomes available.
-                    while (! stop)
-                    {
+                        // Wait until a host becomes available.
+                        // A local host admits jobs through its scheduler, which wakes us as soon as resources free up.
+                        // A host that queues jobs itself is always available, but we limit how many jobs
+                        // can be in preparation at the same time.
+                        // Any other host is checked periodically.
+                        int priority = modelCopy.getOrDefault (0, "$metadata", "study", "priority");
                         Host chosenHost = null;
-                        for (Host h : hosts)
+                        ticket = null;
+                        while (! stop)
                         {
-                            if (backend.canRunNow (h, modelCopy))
+                            for (Host h : hosts)
                             {
+                                JobScheduler scheduler = h.getScheduler ();
+                                if (scheduler != null)
+                                {
+                                    // With only one host, simply wait in line. Otherwise, don't block the other hosts.
+                                    if (hosts.size () == 1)
+                                    {
+                                        ticket = scheduler.request (modelCopy, priority);
+                                        if (stop) ticket.cancel ();  // halt() may have missed it
+                                        try
+                                        {
+                                            if (! ticket.await ()) ticket = null;  // cancelled by halt()
+                                        }
+                                        catch (InterruptedException e)
+                                        {
+                                            ticket.cancel ();
+                                            ticket = null;
+                                        }
+                                    }
+                                    else
+                                    {
+                                        ticket = scheduler.tryAcquire (modelCopy, priority);
+                                    }
+                                    if (ticket == null) continue;
+                                }
+                                else if (h.queuesJobs ())
+                                {
+                                    if (countPreparing () >= prepareLimit) continue;
+                                }
+                                else if (! backend.canRunNow (h, modelCopy))
+                                {
+                                    continue;
+                                }
                                 chosenHost = h;
                                 break;
                             }
+                            if (chosenHost != null  ||  stop) break;
+                            try {sleep (1000);}
+                            catch (InterruptedException e) {}
+                        }
+                        if (stop)
+                        {
+                            if (ticket != null) ticket.cancel ();
+                            break;
+                        }
+
+                        // Launch job and maintain all records
+                        // See PanelEquations.listenerRun for similar code.
+                        String jobKey = new SimpleDateFormat ("yyyy-MM-dd-HHmmss", Locale.ROOT).format (new Date ()) + "-" + Host.jobCount++;
+                        final MNode job = AppData.runs.childOrCreate (jobKey);  // Create the dir and model doc
+                        job.merge (modelCopy);
+                        boolean queued = chosenHost.queuesJobs ();
+                        if (queued)
+                        {
+                            job.set (source.key (), "$metadata", "remote", "batch");  // Allows host to submit samples together.
+                            preparing.add (job);
                         }
-                        if (chosenHost != null)
+                        ((MDoc) job).save ();  // Force directory (and job file) to exist, so Backends can work with the dir.
+                        if (ticket != null)
                         {
-                            // Launch job and maintain all records
-                            // See PanelEquations.listenerRun for similar code.
-                            String jobKey = new SimpleDateFormat ("yyyy-MM-dd-HHmmss", Locale.ROOT).format (new Date ()) + "-" + Host.jobCount++;
-                            final MNode job = AppData.runs.childOrCreate (jobKey);  // Create the dir and model doc
-                            job.merge (modelCopy);
-                            ((MDoc) job).save ();  // Force directory (and job file) to exist, so Backends can work with the dir.
+                            ticket.bind (job);
+                            ticket = null;
+                        }
 
+                        // A sweep only handles samples on the local machine.
+                        boolean launched = false;
+                        if (! queued  &&  ! (chosenHost instanceof Remote))
+                        {
+                            if (sweep == null  &&  trySweep)
+                            {
+                                sweep = backend.prepareSweep (job, keyPaths);
+                                sweepBackend = backend;
+                                trySweep = false;
+                            }
+                            if (sweep != null  &&  backend == sweepBackend) launched = sweep.start (job);
+                        }
+                        if (! launched)
+                        {
                             Thread thread = new Thread ()
                             {
                                 public void run ()
@@ -528,31 +695,59 @@ public class PanelStudy extends JPanel
                             };
                             thread.setDaemon (true);
                             thread.start ();
+                        }
 
-                            PanelRun.instance.addNewRun (job);  // TODO: make sure this doesn't pull focus to Runs tab
+                        PanelRun.instance.addNewRun (job);  // TODO: make sure this doesn't pull focus to Runs tab
 
-                            source.set ("", "jobs", jobKey);
-                            index++;  // If everything is done right, index should equal source "jobs" size - 1.
-                            EventQueue.invokeLater (new Runnable ()
+                        source.set ("", "jobs", jobKey);
+                        iterator.launched (job);
+                        index++;  // If everything is done right, index should equal source "jobs" size - 1.
+                        EventQueue.invokeLater (new Runnable ()
+                        {
+                            public void run ()
                             {
-                                public void run ()
-                                {
-                                    tableSamples.repaint ();  // Doesn't matter whether this study is currently showing or not.
-                                }
-                            });
-                            break;
+                                tableSamples.repaint ();  // Doesn't matter whether this study is currently showing or not.
+                            }
+                        });
+
+                        // Give an unmanaged host time to show the load of the new job before checking it again.
+                        if (chosenHost.getScheduler () == null  &&  ! queued)
+                        {
+                            try {sleep (1000);}
+                            catch (InterruptedException e) {}
                         }
-                        try {sleep (1000);}
-                        catch (InterruptedException e) {}
                     }
-
-                    try {sleep (1000);}
-                    catch (InterruptedException e) {}
+                }
+                finally  // However the loop ends, including halt or pause, let the sweep release its threads.
+                {
+                    if (sweep != null) sweep.finish ();
                 }
 
                 long elapsed = System.currentTimeMillis () - startTime;
                 source.set (source.getLong ("time") + elapsed, "time");
             }
+
+            /**
+                Determines how many jobs are still being prepared by their backends.
+                A job is done with preparation once its host reports it as active, or once it has finished
+                (typically because preparation failed).
+            **/
+            public int countPreparing ()
+            {
+                Iterator<MNode> it = preparing.iterator ();
+                while (it.hasNext ())
+                {
+                    MNode job = it.next ();
+                    boolean done = Files.exists (Host.getJobDir (Host.getLocalResourceDir (), job).resolve ("finished"));
+                    if (! done)
+                    {
+                        try {done = Host.get (job).isActive (job);}
+                        catch (Exception e) {}
+                    }
+                    if (done) it.remove ();
+                }
+                return preparing.size ();
+            }
         }
     }
 
@@ -645,12 +840,189 @@ public class PanelStudy extends JPanel
         }
     }
 
+    /**
+        Keeps the results of studies up to date as their jobs finish.
+        Every study with a running worker thread is aggregated, as is the study on display.
+        The results table is only rebuilt while it is showing.
+    **/
+    public class ResultThread extends Thread
+    {
+        public long interval = 5000;  // milliseconds between checks for newly-finished jobs
+
+        protected Study shownStudy;  // Study whose results are currently loaded in the table. null if the table is stale.
+
+        public ResultThread ()
+        {
+            super ("Study Results");
+        }
+
+        public synchronized void wake ()
+        {
+            notify ();
+        }
+
+        public void run ()
+        {
+            while (true)
+            {
+                Study current = displayStudy;
+                boolean changed = false;
+                for (Object o : model.toArray ())
+                {
+                    Study study = (Study) o;
+                    if (study.thread == null  &&  study != current) continue;
+                    try
+                    {
+                        study.buildVariables ();  // The aggregator reads "variables" when it writes the results table.
+                        if (study.getAggregator ().update ()  &&  study == current) changed = true;
+                    }
+                    catch (Exception e) {}  // for example, the study was deleted while we were working on it
+                }
+
+                if (current != shownStudy  ||  changed) shownStudy = null;
+                if (resultsShowing  &&  shownStudy == null)
+                {
+                    shownStudy = current;
+                    modelResults.load (current);
+                }
+
+                synchronized (this)
+                {
+                    try {wait (interval);}
+                    catch (InterruptedException e) {}
+                }
+            }
+        }
+    }
+
+    /**
+        Shows one row per job, with the study variables followed by the aggregated results.
+        Unlike SampleTableModel, the content is captured all at once, so that rows can be sorted.
+    **/
+    public class ResultTableModel extends AbstractTableModel
+    {
+        protected List<String>   columns = new ArrayList<String> ();
+        protected List<Class<?>> classes = new ArrayList<Class<?>> ();
+        protected List<Object[]> rows    = new ArrayList<Object[]> ();
+
+        public int getRowCount ()
+        {
+            return rows.size ();
+        }
+
+        public int getColumnCount ()
+        {
+            return columns.size ();
+        }
+
+        public String getColumnName (int column)
+        {
+            return columns.get (column);
+        }
+
+        public Class<?> getColumnClass (int column)
+        {
+            return classes.get (column);
+        }
+
+        public Object getValueAt (int row, int column)
+        {
+            return rows.get (row)[column];
+        }
+
+        /**
+            Gathers the contents of the table for the given study. Called off the EDT, because it
+            may need to load many job records. The new content is then handed over on the EDT.
+        **/
+        public void load (Study study)
+        {
+            final List<String>   newColumns = new ArrayList<String> ();
+            final List<Class<?>> newClasses = new ArrayList<Class<?>> ();
+            final List<Object[]> newRows    = new ArrayList<Object[]> ();
+            if (study != null)
+            {
+                study.buildVariables ();
+                List<String> variables = new ArrayList<String> ();
+                for (MNode v : study.source.childOrEmpty ("variables")) variables.add (v.key ());
+                StudyAggregator aggregator = study.getAggregator ();
+                List<String> measures = aggregator.getNames ();
+
+                newColumns.add ("Sample");
+                newClasses.add (Integer.class);
+                newColumns.addAll (variables);
+                newColumns.addAll (measures);
+                boolean[] numeric = new boolean[variables.size ()];
+                Arrays.fill (numeric, true);
+
+                int index = 0;
+                for (MNode j : study.source.childOrEmpty ("jobs"))
+                {
+                    Object[] row = new Object[newColumns.size ()];
+                    row[0] = index++;
+                    MNode job = AppData.runs.child (j.key ());
+                    int c = 1;
+                    for (int v = 0; v < variables.size (); v++)
+                    {
+                        String value = "";
+                        if (job != null) value = job.get (variables.get (v).split ("\\."));
+                        try
+                        {
+                            row[c] = Double.valueOf (value);
+                        }
+                        catch (NumberFormatException e)
+                        {
+                            row[c] = value;
+                            numeric[v] = false;
+                        }
+                        c++;
+                    }
+                    for (String m : measures)
+                    {
+                        double value = aggregator.get (j.key (), m);
+                        if (! Double.isNaN (value)) row[c] = value;
+                        c++;
+                    }
+                    newRows.add (row);
+                }
+
+                // A variable column sorts numerically only if every one of its values is a number.
+                for (int v = 0; v < variables.size (); v++)
+                {
+                    if (numeric[v])
+                    {
+                        newClasses.add (Double.class);
+                    }
+                    else
+                    {
+                        newClasses.add (String.class);
+                        for (Object[] row : newRows) row[v + 1] = row[v + 1].toString ();
+                    }
+                }
+                for (int m = 0; m < measures.size (); m++) newClasses.add (Double.class);
+            }
+
+            EventQueue.invokeLater (new Runnable ()
+            {
+                public void run ()
+                {
+                    boolean sameColumns = newColumns.equals (columns)  &&  newClasses.equals (classes);
+                    columns = newColumns;
+                    classes = newClasses;
+                    rows    = newRows;
+                    if (sameColumns) fireTableDataChanged ();  // Preserves the user's choice of sort order.
+                    else             fireTableStructureChanged ();
+                }
+            });
+        }
+    }
+
     public static abstract class StudyIterator
     {
-        protected StudyIterator inner;   // sub-iterator. If null, then this is the last iterator in the chain.
-        protected MNode         model;   // write the variable value directly into this structure
-        protected String        key;
-        protected String[]      keyPath; // full set of keys that address the location of the variable
+        protected StudyIterator    inner;   // sub-iterator. If null, then this is the last iterator in the chain.
+        protected MNode            model;   // write the variable value directly into this structure
+        protected String           key;
+        protected String[]         keyPath; // full set of keys that address the location of the variable
+        protected volatile boolean halted;  // Set by halt(). An iterator that waits inside next() should check this.
         // concrete classes will also include information on the specific values to iterate over
 
         public StudyIterator (String key)
@@ -659,6 +1031,10 @@ public class PanelStudy extends JPanel
             keyPath = key.split ("\\.");
         }
 
+        protected StudyIterator ()
+        {
+        }
+
         public void setModel (MNode model)
         {
             this.model = model;
@@ -669,6 +1045,41 @@ public class PanelStudy extends JPanel
         public abstract void    fastForward (MNode value);  // given a set of flattened key-value pairs, set this and each sub-iterator to the state as if it had just handed out this item in the sequence
         public abstract void    reset ();  // Restart this iterator at the beginning of its sequence. Also resets any sub-iterators.
         public abstract boolean next ();  // Steps to next value of deepest contained iterator, possibly advancing any iterator up to and including this one. Returns false if no more items are available.
+
+        /**
+            Collects the locations of all variables set by this iterator and its sub-iterators.
+        **/
+        public void addKeyPaths (List<String[]> result)
+        {
+            result.add (keyPath);
+            if (inner != null) inner.addKeyPaths (result);
+        }
+
+        /**
+            Indicates that fastForward() can't reconstruct the state of this iterator,
+            so the study must replay every sample it has already created.
+        **/
+        public boolean needsReplay ()
+        {
+            return false;
+        }
+
+        /**
+            Notifies this iterator that the sample it most recently produced has been launched as the given job.
+            Also called for each existing job during replay. The job may be null if its record has been deleted.
+        **/
+        public void launched (MNode job)
+        {
+        }
+
+        /**
+            Wakes next() if it is waiting on earlier samples, and causes it to return false.
+            Called from a thread other than the one running the study.
+        **/
+        public void halt ()
+        {
+            halted = true;
+        }
     }
 
     public static class StudyIteratorList extends StudyIterator
@@ -0,0 +1,369 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.ui.studies;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import gov.sandia.n2a.db.AppData;
+import gov.sandia.n2a.db.MDoc;
+import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.execenvs.Host;
+import gov.sandia.n2a.ui.jobs.OutputParser;
+import gov.sandia.n2a.ui.jobs.OutputParser.Column;
+
+/**
+    Reduces the output of each job in a study to a few numbers, and collects them into a single table.
+    Jobs are processed once, as they finish. Their results are cached in the study directory,
+    so later updates only need to examine new jobs. The table itself is written to the file "results"
+    in the study directory, in the same tab-delimited format as a simulation output file, so it can be
+    charted like one. The first column is the sample number, followed by the study variables and then
+    the reduced values.
+
+    Measures are listed under $metadata.study.aggregate in the model. Each child key names a column
+    of the table, and its value has the form "reduction(column)", where column is the name of a column
+    in the output file. A bare column name means "final(column)". If no measures are given, then the
+    final value of each output column (excluding time) is used, up to defaultLimit columns.
+    Further reductions may be added to the reductions collection.
+**/
+public class StudyAggregator
+{
+    public static int defaultLimit = 20;  ///< Maximum number of output columns to include when no measures are specified.
+
+    protected static ExecutorService pool = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors (), new ThreadFactory ()
+    {
+        public Thread newThread (Runnable r)
+        {
+            Thread t = new Thread (r, "Study Aggregator");
+            t.setDaemon (true);
+            return t;
+        }
+    });
+
+    protected MNode         source;    // The study record.
+    protected Path          studyDir;
+    protected MDoc          cache;     // Reduced values of each finished job, plus the list of measures.
+    protected String        output;    // Name of the output file in each job directory.
+    protected List<Measure> measures;  // null until configured, either from the model or from the first successful job.
+
+    public interface Reduction
+    {
+        public double reduce (Column column);
+    }
+
+    public static Map<String,Reduction> reductions = new HashMap<String,Reduction> ();
+    static
+    {
+        reductions.put ("final", new Reduction ()
+        {
+            public double reduce (Column c)
+            {
+                for (int i = c.values.size () - 1; i >= 0; i--)
+                {
+                    float v = c.values.get (i);
+                    if (! Float.isNaN (v)) return v;
+                }
+                return Double.NaN;
+            }
+        });
+        reductions.put ("mean", new Reduction ()
+        {
+            public double reduce (Column c)
+            {
+                double sum = 0;
+                int count = 0;
+                for (float v : c.values)
+                {
+                    if (Float.isNaN (v)) continue;
+                    sum += v;
+                    count++;
+                }
+                if (count == 0) return Double.NaN;
+                return sum / count;
+            }
+        });
+        reductions.put ("std", new Reduction ()
+        {
+            public double reduce (Column c)
+            {
+                double sum  = 0;
+                double sum2 = 0;
+                int count = 0;
+                for (float v : c.values)
+                {
+                    if (Float.isNaN (v)) continue;
+                    sum  += v;
+                    sum2 += v * v;
+                    count++;
+                }
+                if (count == 0) return Double.NaN;
+                double mean = sum / count;
+                return Math.sqrt (Math.max (0, sum2 / count - mean * mean));
+            }
+        });
+        reductions.put ("min", new Reduction ()
+        {
+            public double reduce (Column c)
+            {
+                double result = Double.NaN;
+                for (float v : c.values) if (! (v >= result)) result = v;  // Also replaces the initial NaN.
+                return result;
+            }
+        });
+        reductions.put ("max", new Reduction ()
+        {
+            public double reduce (Column c)
+            {
+                double result = Double.NaN;
+                for (float v : c.values) if (! (v <= result)) result = v;
+                return result;
+            }
+        });
+        reductions.put ("sum", new Reduction ()
+        {
+            public double reduce (Column c)
+            {
+                double result = 0;
+                for (float v : c.values) if (! Float.isNaN (v)) result += v;
+                return result;
+            }
+        });
+        reductions.put ("spikes", new Reduction ()  // Number of rows where the column has a nonzero value, as in spike raster output.
+        {
+            public double reduce (Column c)
+            {
+                int result = 0;
+                for (float v : c.values) if (v != 0  &&  ! Float.isNaN (v)) result++;
+                return result;
+            }
+        });
+    }
+
+    public static class Measure
+    {
+        public String    name;
+        public String    column;
+        public Reduction reduction;
+
+        /**
+            @return null if the expression does not name a known reduction.
+        **/
+        public static Measure parse (String name, String expression)
+        {
+            Measure result = new Measure ();
+            result.name = name;
+            expression = expression.trim ();
+            String reduction = "final";
+            int open = expression.indexOf ('(');
+            if (open > 0  &&  expression.endsWith (")"))
+            {
+                reduction  = expression.substring (0, open).trim ();
+                expression = expression.substring (open + 1, expression.length () - 1).trim ();
+            }
+            if (expression.isEmpty ()) expression = name;
+            result.column    = expression;
+            result.reduction = reductions.get (reduction);
+            if (result.reduction == null) return null;
+            return result;
+        }
+
+        /**
+            The final value of the given column. Unlike parse(), this accepts any column name verbatim.
+        **/
+        public static Measure finalValue (String column)
+        {
+            Measure result = new Measure ();
+            result.name      = column;
+            result.column    = column;
+            result.reduction = reductions.get ("final");
+            return result;
+        }
+    }
+
+    public StudyAggregator (MNode source)
+    {
+        this.source = source;
+        studyDir = Paths.get (source.get ()).getParent ();
+        cache    = new MDoc (studyDir.resolve ("aggregate"));
+
+        MNode study = new MDoc (studyDir.resolve ("model")).childOrEmpty ("$metadata", "study");
+        output = study.getOrDefault ("out", "output");
+        MNode aggregate = study.child ("aggregate");
+        if (aggregate != null)
+        {
+            measures = new ArrayList<Measure> ();
+            for (MNode m : aggregate)
+            {
+                Measure measure = Measure.parse (m.key (), m.get ());
+                if (measure != null) measures.add (measure);
+            }
+        }
+        else if (cache.child ("measures") != null)  // recover default measures chosen in an earlier session
+        {
+            measures = new ArrayList<Measure> ();
+            for (MNode m : cache.child ("measures")) measures.add (Measure.finalValue (m.get ()));
+        }
+    }
+
+    /**
+        Reads and parses the given output file of a job, whether the job ran locally or on a remote host.
+    **/
+    public static OutputParser parseOutput (MNode job, String fileName) throws Exception
+    {
+        Host host = Host.get (job);
+        Path path = Host.getJobDir (host.getResourceDir (), job).resolve (fileName);
+        OutputParser parser = new OutputParser ();
+        parser.parse (path, Float.NaN);
+        return parser;
+    }
+
+    /**
+        Names of the measures, in table order. Empty if no job has been reduced yet.
+    **/
+    public synchronized List<String> getNames ()
+    {
+        List<String> result = new ArrayList<String> ();
+        if (measures != null) for (Measure m : measures) result.add (m.name);
+        return result;
+    }
+
+    /**
+        @return The reduced value for the given job, or NaN if not available.
+    **/
+    public synchronized double get (String jobKey, String name)
+    {
+        return cache.getOrDefault (Double.NaN, "jobs", jobKey, name);
+    }
+
+    /**
+        Reduces any jobs that have finished since the last call, spreading the work across threads.
+        Rewrites the results table if anything changed.
+        @return true if new results were added.
+    **/
+    public synchronized boolean update ()
+    {
+        List<String> jobKeys = new ArrayList<String> ();
+        for (MNode j : source.childOrEmpty ("jobs")) jobKeys.add (j.key ());
+
+        List<MNode> ready = new ArrayList<MNode> ();
+        for (String key : jobKeys)
+        {
+            if (cache.child ("jobs", key) != null) continue;
+            MNode job = AppData.runs.child (key);
+            if (job == null) continue;
+            if (! Files.exists (Host.getJobDir (Host.getLocalResourceDir (), job).resolve ("finished"))) continue;
+            ready.add (job);
+        }
+        if (ready.isEmpty ()) return false;
+
+        List<Future<OutputParser>> futures = new ArrayList<Future<OutputParser>> ();
+        for (MNode job : ready)
+        {
+            futures.add (pool.submit (new Callable<OutputParser> ()
+            {
+                public OutputParser call () throws Exception
+                {
+                    return parseOutput (job, output);
+                }
+            }));
+        }
+
+        for (int i = 0; i < ready.size (); i++)
+        {
+            String key = ready.get (i).key ();
+            OutputParser parser = null;
+            try {parser = futures.get (i).get ();}
+            catch (Exception e) {}  // Treated the same as empty output. Otherwise an unreadable file would be parsed again on every update.
+
+            MNode row = cache.childOrCreate ("jobs", key);
+            if (parser == null  ||  parser.columns.isEmpty ())
+            {
+                row.set ("", "$failed");  // Marks the job as processed, so it won't be examined again.
+                continue;
+            }
+
+            if (measures == null) chooseMeasures (parser);
+            for (Measure m : measures)
+            {
+                Column c = parser.getColumn (m.column);
+                if (c == null) continue;
+                double value = m.reduction.reduce (c);
+                if (! Double.isNaN (value)) row.set (value, m.name);
+            }
+        }
+        cache.save ();
+        writeTable (jobKeys);
+        return true;
+    }
+
+    /**
+        Uses the final value of every column in the given output, up to defaultLimit columns.
+    **/
+    protected void chooseMeasures (OutputParser parser)
+    {
+        measures = new ArrayList<Measure> ();
+        MNode saved = cache.childOrCreate ("measures");
+        for (Column c : parser.columns)
+        {
+            if (measures.size () >= defaultLimit) break;
+            if (c == parser.time  &&  parser.timeFound) continue;
+            if (c.header.isEmpty ()) continue;
+            saved.set (c.header, measures.size ());
+            measures.add (Measure.finalValue (c.header));
+        }
+    }
+
+    /**
+        Writes the results file. Cells without a value are left empty.
+    **/
+    protected void writeTable (List<String> jobKeys)
+    {
+        List<String> variables = new ArrayList<String> ();
+        for (MNode v : source.childOrEmpty ("variables")) variables.add (v.key ());
+
+        try (BufferedWriter writer = Files.newBufferedWriter (studyDir.resolve ("results")))
+        {
+            writer.write ("sample");
+            for (String v : variables) writer.write ("\t" + v);
+            if (measures != null) for (Measure m : measures) writer.write ("\t" + m.name);
+            writer.newLine ();
+
+            for (int i = 0; i < jobKeys.size (); i++)
+            {
+                String key = jobKeys.get (i);
+                MNode  row = cache.child ("jobs", key);
+                if (row == null  ||  row.child ("$failed") != null) continue;  // Only finished and successfully parsed jobs appear in the table.
+
+                writer.write (String.valueOf (i));
+                MNode job = AppData.runs.child (key);
+                for (String v : variables)
+                {
+                    writer.write ("\t");
+                    if (job != null) writer.write (job.get (v.split ("\\.")));
+                }
+                for (Measure m : measures)
+                {
+                    writer.write ("\t");
+                    writer.write (row.get (m.name));
+                }
+                writer.newLine ();
+            }
+        }
+        catch (Exception e) {}
+    }
+}
@@ -0,0 +1,410 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.ui.studies;
+
+import java.io.BufferedReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import gov.sandia.n2a.db.AppData;
+import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.execenvs.Host;
+import gov.sandia.n2a.ui.jobs.OutputParser;
+
+/**
+    Searches for the parameters that minimize (or maximize) an objective, using the Covariance Matrix
+    Adaptation Evolution Strategy. The search runs in the unit hypercube spanned by the study variables.
+    Each sample is drawn from the current distribution, and the distribution is updated each time
+    another population's worth of results comes back. Up to "parallel" samples are kept in flight,
+    regardless of how far along the current population is, so hosts are never idle waiting for
+    the slowest job of a generation.
+
+    Keys under $metadata.study:
+    <ul>
+    <li>count -- Total number of samples to run.
+    <li>objective -- Column in the output file to optimize. Its last value is used. Default is the last column.
+    <li>output -- Name of the output file. Default is "out".
+    <li>goal -- "min" (default) or "max".
+    <li>population -- Number of results per update. Default is 4+3*ln(n), where n is the number of variables.
+    <li>parallel -- Number of samples in flight. Default is the population size.
+    <li>sigma -- Initial step size, as a fraction of each variable's range. Default is 0.3.
+    </ul>
+    The best job found so far is recorded in the study under "optimize".
+**/
+public class StudyOptimizer extends StudySampler
+{
+    public static long pollInterval = 1000;  ///< Milliseconds between checks on running samples.
+
+    protected String  objective;
+    protected String  output;
+    protected boolean maximize;
+    protected int     parallel;
+    protected MNode   record;
+
+    // Strategy parameters
+    protected int      n;
+    protected int      lambda;
+    protected int      mu;
+    protected double[] weights;
+    protected double   mueff;
+    protected double   cc;
+    protected double   cs;
+    protected double   c1;
+    protected double   cmu;
+    protected double   damps;
+    protected double   chiN;
+
+    // Distribution
+    protected double[]   mean;
+    protected double     sigma;
+    protected double[][] C;
+    protected double[][] B;     // eigenvectors of C, as columns
+    protected double[]   D;     // square roots of eigenvalues of C
+    protected double[]   pc;
+    protected double[]   ps;
+    protected int        generation;
+
+    protected double[]     lastSample;
+    protected List<Sample> pending   = new ArrayList<Sample> ();  // Launched but not finished.
+    protected List<Sample> completed = new ArrayList<Sample> ();  // Finished but not yet used to update the distribution.
+    protected double       bestValue = Double.POSITIVE_INFINITY;
+
+    public static class Sample
+    {
+        public MNode    job;
+        public double[] x;
+        public double   value;  // objective, always in minimizing sense. Infinite if the run failed.
+    }
+
+    public StudyOptimizer (List<Dimension> dimensions, int count, Random random, MNode study, MNode record)
+    {
+        super (dimensions, count, random);
+        this.record = record;
+        objective   = study.get ("objective");
+        output      = study.getOrDefault ("out", "output");
+        maximize    = study.get ("goal").equals ("max");
+
+        n        = dimensions.size ();
+        lambda   = Math.max (2, study.getOrDefault (4 + (int) (3 * Math.log (n)), "population"));
+        parallel = Math.max (1, study.getOrDefault (lambda, "parallel"));
+        mu       = lambda / 2;
+
+        weights = new double[mu];
+        double sum = 0;
+        for (int i = 0; i < mu; i++)
+        {
+            weights[i] = Math.log (mu + 0.5) - Math.log (i + 1);
+            sum += weights[i];
+        }
+        double sum2 = 0;
+        for (int i = 0; i < mu; i++)
+        {
+            weights[i] /= sum;
+            sum2 += weights[i] * weights[i];
+        }
+        mueff = 1 / sum2;
+
+        cc    = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+        cs    = (mueff + 2) / (n + mueff + 5);
+        c1    = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+        cmu   = Math.min (1 - c1, 2 * (mueff - 2 + 1 / mueff) / ((n + 2) * (n + 2) + mueff));
+        damps = 1 + 2 * Math.max (0, Math.sqrt ((mueff - 1) / (n + 1)) - 1) + cs;
+        chiN  = Math.sqrt (n) * (1 - 1.0 / (4 * n) + 1.0 / (21 * n * n));
+
+        sigma = study.getOrDefault (0.3, "sigma");
+        reset ();
+    }
+
+    public void reset ()
+    {
+        super.reset ();
+        mean = new double[n];
+        C    = new double[n][n];
+        B    = new double[n][n];
+        D    = new double[n];
+        pc   = new double[n];
+        ps   = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            mean[i] = 0.5;
+            C[i][i] = 1;
+            B[i][i] = 1;
+            D[i]    = 1;
+        }
+        generation = 0;
+        pending.clear ();
+        completed.clear ();
+    }
+
+    public double[] sample ()
+    {
+        double[] z = new double[n];
+        for (int i = 0; i < n; i++) z[i] = D[i] * random.nextGaussian ();
+        double[] result = new double[n];
+        for (int i = 0; i < n; i++)
+        {
+            double y = 0;
+            for (int j = 0; j < n; j++) y += B[i][j] * z[j];
+            result[i] = Math.max (0, Math.min (1, mean[i] + sigma * y));  // Samples outside the bounds are moved onto them.
+        }
+        lastSample = result;
+        return result;
+    }
+
+    /**
+        Waits until fewer than "parallel" samples are in flight, then produces the next one.
+        After the last sample is handed out, waits for all remaining results before returning false,
+        so that the best job is known when the study finishes.
+    **/
+    public boolean next ()
+    {
+        while (! halted)
+        {
+            collect ();
+            if (index < count ? pending.size () < parallel : pending.isEmpty ()) break;
+            try {Thread.sleep (pollInterval);}
+            catch (InterruptedException e) {}
+        }
+        if (halted) return false;
+        return super.next ();
+    }
+
+    public void launched (MNode job)
+    {
+        Sample s = new Sample ();
+        s.job = job;
+        s.x   = lastSample.clone ();
+        if (job != null)  // Use the values actually stored in the job, in case they differ from what was generated (for example, during replay).
+        {
+            for (int i = 0; i < n; i++)
+            {
+                Dimension d = dimensions.get (i);
+                double u = d.unit (job.get (d.keyPath));
+                if (! Double.isNaN (u)) s.x[i] = Math.max (0, Math.min (1, u));
+            }
+        }
+        pending.add (s);
+    }
+
+    /**
+        Moves finished samples from pending to completed, and updates the distribution
+        for each full population that has accumulated.
+    **/
+    public void collect ()
+    {
+        Iterator<Sample> it = pending.iterator ();
+        while (it.hasNext ())
+        {
+            Sample s = it.next ();
+            s.value = Double.POSITIVE_INFINITY;
+            if (s.job != null  &&  AppData.runs.child (s.job.key ()) != null)
+            {
+                Path finished = Host.getJobDir (Host.getLocalResourceDir (), s.job).resolve ("finished");
+                if (! Files.exists (finished)) continue;
+                s.value = evaluate (s.job, finished);
+            }
+            it.remove ();
+            completed.add (s);
+
+            if (s.value < bestValue)
+            {
+                bestValue = s.value;
+                record.set (s.job.key (),                  "optimize", "best");
+                record.set (maximize ? -s.value : s.value, "optimize", "value");
+            }
+        }
+
+        while (completed.size () >= lambda)
+        {
+            List<Sample> population = new ArrayList<Sample> (completed.subList (0, lambda));
+            completed.subList (0, lambda).clear ();
+            update (population);
+        }
+    }
+
+    /**
+        Retrieves the objective from a finished job.
+        @return The objective in minimizing sense, or positive infinity if the job failed or the value can't be found.
+    **/
+    public double evaluate (MNode job, Path finished)
+    {
+        try (BufferedReader reader = Files.newBufferedReader (finished))
+        {
+            String line = reader.readLine ();
+            if (line == null  ||  ! line.trim ().equals ("success")) return Double.POSITIVE_INFINITY;
+        }
+        catch (Exception e)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        try
+        {
+            OutputParser parser = StudyAggregator.parseOutput (job, output);
+            OutputParser.Column c;
+            if (objective.isEmpty ())
+            {
+                if (parser.columns.isEmpty ()) return Double.POSITIVE_INFINITY;
+                c = parser.columns.get (parser.columns.size () - 1);
+            }
+            else
+            {
+                c = parser.getColumn (objective);
+            }
+            if (c == null  ||  c.values.isEmpty ()) return Double.POSITIVE_INFINITY;
+            double result = c.values.get (c.values.size () - 1);
+            if (Double.isNaN (result)) return Double.POSITIVE_INFINITY;
+            return maximize ? -result : result;
+        }
+        catch (Exception e)
+        {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+        One step of CMA-ES, using the given samples as the population.
+        Samples may have been drawn from older versions of the distribution. This is the usual
+        compromise for running CMA-ES asynchronously, and does little harm as long as parallel
+        is not much larger than the population.
+    **/
+    public void update (List<Sample> population)
+    {
+        Collections.sort (population, new Comparator<Sample> ()
+        {
+            public int compare (Sample a, Sample b)
+            {
+                return Double.compare (a.value, b.value);
+            }
+        });
+        if (Double.isInfinite (population.get (0).value)) return;  // Nothing succeeded, so there's no information to learn from.
+        generation++;
+
+        double[] old = mean;
+        mean = new double[n];
+        for (int k = 0; k < mu; k++)
+        {
+            double[] x = population.get (k).x;
+            for (int i = 0; i < n; i++) mean[i] += weights[k] * x[i];
+        }
+
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) y[i] = (mean[i] - old[i]) / sigma;
+
+        // Evolution path for sigma, which needs C^(-1/2) * y
+        double[] t = new double[n];
+        for (int j = 0; j < n; j++)
+        {
+            double s = 0;
+            for (int i = 0; i < n; i++) s += B[i][j] * y[i];
+            t[j] = s / D[j];
+        }
+        double a = Math.sqrt (cs * (2 - cs) * mueff);
+        double psNorm = 0;
+        for (int i = 0; i < n; i++)
+        {
+            double s = 0;
+            for (int j = 0; j < n; j++) s += B[i][j] * t[j];
+            ps[i] = (1 - cs) * ps[i] + a * s;
+            psNorm += ps[i] * ps[i];
+        }
+        psNorm = Math.sqrt (psNorm);
+
+        // Evolution path for C
+        boolean hsig = psNorm / Math.sqrt (1 - Math.pow (1 - cs, 2 * generation)) / chiN < 1.4 + 2.0 / (n + 1);
+        a = hsig ? Math.sqrt (cc * (2 - cc) * mueff) : 0;
+        for (int i = 0; i < n; i++) pc[i] = (1 - cc) * pc[i] + a * y[i];
+
+        // Covariance
+        double[][] steps = new double[mu][n];
+        for (int k = 0; k < mu; k++)
+        {
+            double[] x = population.get (k).x;
+            for (int i = 0; i < n; i++) steps[k][i] = (x[i] - old[i]) / sigma;
+        }
+        double decay = 1 - c1 - cmu + (hsig ? 0 : c1 * cc * (2 - cc));
+        for (int i = 0; i < n; i++)
+        {
+            for (int j = 0; j <= i; j++)
+            {
+                double rankMu = 0;
+                for (int k = 0; k < mu; k++) rankMu += weights[k] * steps[k][i] * steps[k][j];
+                double value = decay * C[i][j] + c1 * pc[i] * pc[j] + cmu * rankMu;
+                C[i][j] = value;
+                C[j][i] = value;
+            }
+        }
+
+        sigma *= Math.exp ((cs / damps) * (psNorm / chiN - 1));
+        sigma = Math.min (sigma, 1);  // The search space is the unit cube, so larger steps are pointless.
+
+        decompose ();
+    }
+
+    /**
+        Computes B and D from C using cyclic Jacobi rotations.
+        The number of study variables is small, so simplicity wins over speed.
+    **/
+    public void decompose ()
+    {
+        double[][] A = new double[n][n];
+        for (int i = 0; i < n; i++)
+        {
+            System.arraycopy (C[i], 0, A[i], 0, n);
+            for (int j = 0; j < n; j++) B[i][j] = i == j ? 1 : 0;
+        }
+
+        for (int sweep = 0; sweep < 50; sweep++)
+        {
+            double off = 0;
+            for (int i = 0; i < n; i++) for (int j = i + 1; j < n; j++) off += A[i][j] * A[i][j];
+            if (off < 1e-30) break;
+
+            for (int p = 0; p < n; p++)
+            {
+                for (int q = p + 1; q < n; q++)
+                {
+                    if (A[p][q] == 0) continue;
+                    double theta = (A[q][q] - A[p][p]) / (2 * A[p][q]);
+                    double t = Math.signum (theta) / (Math.abs (theta) + Math.sqrt (theta * theta + 1));
+                    if (theta == 0) t = 1;
+                    double c = 1 / Math.sqrt (t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < n; k++)  // A = A * R
+                    {
+                        double akp = A[k][p];
+                        double akq = A[k][q];
+                        A[k][p] = c * akp - s * akq;
+                        A[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; k++)  // A = R^T * A
+                    {
+                        double apk = A[p][k];
+                        double aqk = A[q][k];
+                        A[p][k] = c * apk - s * aqk;
+                        A[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < n; k++)  // B = B * R
+                    {
+                        double bkp = B[k][p];
+                        double bkq = B[k][q];
+                        B[k][p] = c * bkp - s * bkq;
+                        B[k][q] = s * bkp + c * bkq;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) D[i] = Math.sqrt (Math.max (A[i][i], 1e-20));
+    }
+}
@@ -0,0 +1,406 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.ui.studies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.measure.Unit;
+
+import gov.sandia.n2a.db.MNode;
+import gov.sandia.n2a.language.UnitValue;
+import gov.sandia.n2a.language.type.Scalar;
+import gov.sandia.n2a.ui.studies.PanelStudy.StudyIterator;
+
+/**
+    Draws a fixed number of points from the space spanned by all the study variables together,
+    rather than stepping through their Cartesian product. Each point is generated only when it
+    is needed, so the size of a study is not limited by memory.
+
+    Selected by the key "sampler" under the top-level $metadata.study block of the model:
+    <ul>
+    <li>grid (default) -- The original nested iterators.
+    <li>lhs -- Latin hypercube.
+    <li>sobol -- Sobol low-discrepancy sequence. Falls back to lhs when there are too many variables.
+    <li>optimize -- CMA-ES. See StudyOptimizer.
+    </ul>
+    The number of samples is given by $metadata.study.count.
+    Each study variable must be either a range "[lo,hi]" or "[lo,step,hi]", or a comma-separated list of items.
+    The bounds of a range may carry units, for example "[1ms,10ms]".
+**/
+public abstract class StudySampler extends StudyIterator
+{
+    protected List<Dimension> dimensions;
+    protected int             count;
+    protected int             index;  // of next sample to be generated
+    protected Random          random;
+
+    public StudySampler (List<Dimension> dimensions, int count, Random random)
+    {
+        this.dimensions = dimensions;
+        this.count      = count;
+        this.random     = random;
+        key     = dimensions.get (0).key;
+        keyPath = dimensions.get (0).keyPath;
+    }
+
+    /**
+        Constructs the sampler requested by the given study metadata.
+        @param study The $metadata.study block of the model.
+        @param variables The collection of study variables, as assembled by Study.buildVariables().
+        @param record Study record, where an optimizer can report its progress.
+        @return null if the grid iterators should be used instead.
+        @throws Exception if a sampler was requested but some study variable can't be sampled.
+        The message is suitable for display to the user.
+    **/
+    public static StudyIterator create (MNode study, MNode variables, Random random, MNode record) throws Exception
+    {
+        String sampler = study.get ("sampler");
+        if (sampler.isEmpty ()  ||  sampler.equals ("grid")) return null;
+
+        List<Dimension> dimensions = new ArrayList<Dimension> ();
+        for (MNode v : variables)
+        {
+            Dimension d = Dimension.parse (v.key (), v.get ());
+            if (d == null) throw new Exception ("Study variable " + v.key () + " must be a range or a list: " + v.get ());
+            dimensions.add (d);
+        }
+        if (dimensions.isEmpty ()) throw new Exception ("No study variables");
+
+        int count = Math.max (1, study.getOrDefault (100, "count"));
+        switch (sampler)
+        {
+            case "lhs":
+                return new LatinHypercube (dimensions, count, random);
+            case "sobol":
+                if (dimensions.size () > Sobol.maxDimensions) return new LatinHypercube (dimensions, count, random);
+                return new Sobol (dimensions, count);
+            case "optimize":
+                return new StudyOptimizer (dimensions, count, random, study, record);
+        }
+        throw new Exception ("Unknown sampler: " + sampler);
+    }
+
+    /**
+        Maps one coordinate of the unit hypercube onto the values of a study variable.
+    **/
+    public static class Dimension
+    {
+        public String       key;
+        public String[]     keyPath;
+        public double       lo;          // Numeric fields are in SI.
+        public double       hi;
+        public double       step;        // If nonzero, values are rounded to lo plus some multiple of step.
+        public Unit<?>      unit;        // Units for writing values into the model, taken from the first bound that has them. Null means SI.
+        public String       unitString;  // unit as the user wrote it
+        public List<String> items;       // If non-null, then this is a list of discrete items and the numeric fields are ignored.
+
+        /**
+            @return null if the value does not have a recognized form, including any bound that is not a number with optional units.
+        **/
+        public static Dimension parse (String key, String value)
+        {
+            Dimension result = new Dimension ();
+            result.key     = key;
+            result.keyPath = key.split ("\\.");
+
+            value = value.trim ();
+            if (value.startsWith ("["))
+            {
+                value = value.substring (1).split ("]", 2)[0];
+                String[] pieces = value.split (",");
+                try
+                {
+                    result.lo = result.bound (pieces[0]);
+                    result.hi = result.lo;
+                    if (pieces.length == 2)
+                    {
+                        result.hi = result.bound (pieces[1]);
+                    }
+                    else if (pieces.length > 2)
+                    {
+                        result.step = Math.abs (result.bound (pieces[1]));
+                        result.hi   =           result.bound (pieces[2]);
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    return null;
+                }
+                return result;
+            }
+            if (value.contains (","))
+            {
+                result.items = Arrays.asList (value.split (","));
+                return result;
+            }
+            return null;
+        }
+
+        /**
+            Parses one number of a range, with optional units.
+            @return The value in SI.
+            @throws NumberFormatException if the text is not a number, or its units are not recognized.
+        **/
+        public double bound (String text)
+        {
+            text = text.trim ();
+            int i = UnitValue.findUnits (text);
+            Double.parseDouble (text.substring (0, i));  // UnitValue treats a bad number as 0, so check it here first.
+            UnitValue uv = new UnitValue (text);
+            String u = text.substring (i).trim ();
+            if (! u.isEmpty ())
+            {
+                if (uv.unit == null) throw new NumberFormatException ("Unrecognized units: " + u);
+                if (unit == null)
+                {
+                    unit       = uv.unit;
+                    unitString = u;
+                }
+                else if (! unit.isCompatible (uv.unit))
+                {
+                    throw new NumberFormatException ("Incompatible units: " + u);
+                }
+            }
+            return uv.get ();
+        }
+
+        /**
+            @param u Position along this dimension, in [0,1].
+        **/
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public String value (double u)
+        {
+            u = Math.max (0, Math.min (1, u));
+            if (items != null) return items.get (Math.min (items.size () - 1, (int) (u * items.size ())));
+
+            double result = lo + u * (hi - lo);
+            if (step > 0)
+            {
+                result = lo + step * Math.round ((result - lo) / step);
+                if (hi >= lo) result = Math.min (result, hi);
+                else          result = Math.max (result, hi);
+            }
+            if (unit == null) return Scalar.print (result);
+            return Scalar.print (((Unit) unit.getSystemUnit ()).getConverterTo (unit).convert (result)) + unitString;
+        }
+
+        /**
+            Inverse of value(). Returns the position of the given value along this dimension.
+            @return NaN if the value is not recognized.
+        **/
+        public double unit (String value)
+        {
+            if (items != null)
+            {
+                int i = items.indexOf (value);
+                if (i < 0) return Double.NaN;
+                return (i + 0.5) / items.size ();
+            }
+
+            if (hi == lo) return 0.5;
+            try
+            {
+                int i = UnitValue.findUnits (value);
+                Double.parseDouble (value.substring (0, i));
+                return (new UnitValue (value).get () - lo) / (hi - lo);
+            }
+            catch (NumberFormatException e)
+            {
+                return Double.NaN;
+            }
+        }
+    }
+
+    /**
+        Produces the next point in the unit hypercube.
+        The index field holds the position of this point in the sequence.
+    **/
+    public abstract double[] sample ();
+
+    public int count ()
+    {
+        return count;
+    }
+
+    /**
+        A sampler can't determine its position from the values in a single run, so this does nothing.
+        The study replays all samples instead.
+    **/
+    public void fastForward (MNode value)
+    {
+    }
+
+    public boolean needsReplay ()
+    {
+        return true;
+    }
+
+    public void reset ()
+    {
+        index = 0;
+    }
+
+    public boolean next ()
+    {
+        if (index >= count) return false;
+        double[] u = sample ();
+        for (int d = 0; d < u.length; d++)
+        {
+            Dimension dim = dimensions.get (d);
+            model.set (dim.value (u[d]), dim.keyPath);
+        }
+        index++;
+        return true;
+    }
+
+    public void addKeyPaths (List<String[]> result)
+    {
+        for (Dimension d : dimensions) result.add (d.keyPath);
+    }
+
+    /**
+        Each dimension is divided into count equal strata, and each stratum is used exactly once.
+        Points are placed at a random position within their strata.
+        Rather than storing a shuffled list of strata for each dimension, we compute a pseudo-random
+        permutation on demand, so memory does not grow with count.
+    **/
+    public static class LatinHypercube extends StudySampler
+    {
+        protected int[] seeds;  // For each dimension, selects one permutation of the stratum indices.
+
+        public LatinHypercube (List<Dimension> dimensions, int count, Random random)
+        {
+            super (dimensions, count, random);
+            seeds = new int[dimensions.size ()];
+            for (int d = 0; d < seeds.length; d++) seeds[d] = random.nextInt ();
+        }
+
+        public double[] sample ()
+        {
+            double[] result = new double[seeds.length];
+            for (int d = 0; d < result.length; d++) result[d] = (permute (index, count, seeds[d]) + random.nextDouble ()) / count;
+            return result;
+        }
+
+        /**
+            Maps i to its position in a permutation of [0,length) selected by seed.
+            Each step of the hash is invertible on the smallest power of 2 that covers length,
+            and values that land outside [0,length) are hashed again until they fall inside (cycle walking),
+            so the whole is a bijection. Adapted from Kensler, "Correlated Multi-Jittered Sampling" (2013).
+        **/
+        public static int permute (int i, int length, int seed)
+        {
+            int w = length - 1;
+            w |= w >>> 1;
+            w |= w >>> 2;
+            w |= w >>> 4;
+            w |= w >>> 8;
+            w |= w >>> 16;
+            do
+            {
+                i ^= seed;             i *= 0xe170893d;
+                i ^= seed >>> 16;
+                i ^= (i & w) >>> 4;
+                i ^= seed >>> 8;       i *= 0x0929eb3f;
+                i ^= seed >>> 23;
+                i ^= (i & w) >>> 1;    i *= 1 | seed >>> 27;
+                                       i *= 0x6935fa69;
+                i ^= (i & w) >>> 11;   i *= 0x74dcb303;
+                i ^= (i & w) >>> 2;    i *= 0x9e501cc3;
+                i ^= (i & w) >>> 2;    i *= 0xc860a3df;
+                i &= w;
+                i ^= i >>> 5;
+            }
+            while (i >= length);
+            return (int) ((i + Integer.toUnsignedLong (seed) % length) % length);
+        }
+    }
+
+    /**
+        Sobol sequence, generated in Gray-code order so each point costs one XOR per dimension.
+        Direction numbers for dimensions 2 and up are from Joe and Kuo (2008).
+        The sequence is fully deterministic, so it ignores the study's random number generator.
+    **/
+    public static class Sobol extends StudySampler
+    {
+        /**
+            Each row gives s (degree of the primitive polynomial), a (its encoded interior coefficients),
+            then the s initial direction numbers m.
+        **/
+        public static final int[][] directions =
+        {
+            {1,  0, 1},
+            {2,  1, 1, 3},
+            {3,  1, 1, 3, 1},
+            {3,  2, 1, 1, 1},
+            {4,  1, 1, 1, 3, 3},
+            {4,  4, 1, 3, 5, 13},
+            {5,  2, 1, 1, 5, 5, 17},
+            {5,  4, 1, 1, 5, 5, 5},
+            {5,  7, 1, 1, 7, 11, 19},
+            {5, 11, 1, 1, 5, 1, 1},
+            {5, 13, 1, 1, 1, 3, 11},
+            {5, 14, 1, 3, 5, 5, 31},
+            {6,  1, 1, 3, 3, 9, 7, 49},
+            {6, 13, 1, 1, 1, 15, 21, 21},
+            {6, 16, 1, 3, 1, 13, 27, 49},
+            {6, 19, 1, 1, 1, 15, 7, 5},
+            {6, 22, 1, 3, 1, 15, 13, 25},
+            {6, 25, 1, 1, 5, 5, 19, 61},
+            {7,  1, 1, 3, 7, 11, 23, 15, 103},
+            {7,  4, 1, 3, 7, 13, 13, 15, 69}
+        };
+        public static final int maxDimensions = directions.length + 1;
+
+        protected int[][] v;  // Direction numbers, scaled to fill 32 bits. Indexed by dimension, then bit.
+        protected int[]   x;  // Current point, as 32-bit fractions.
+
+        public Sobol (List<Dimension> dimensions, int count)
+        {
+            super (dimensions, count, null);
+            int n = dimensions.size ();
+            v = new int[n][32];
+            x = new int[n];
+
+            for (int k = 0; k < 32; k++) v[0][k] = 1 << (31 - k);
+            for (int d = 1; d < n; d++)
+            {
+                int[] row = directions[d - 1];
+                int   s   = row[0];
+                int   a   = row[1];
+                int[] vd  = v[d];
+                for (int k = 0; k < s  &&  k < 32; k++) vd[k] = row[k + 2] << (31 - k);
+                for (int k = s; k < 32; k++)
+                {
+                    vd[k] = vd[k - s] ^ (vd[k - s] >>> s);
+                    for (int l = 1; l < s; l++) if ((a >>> (s - 1 - l) & 1) != 0) vd[k] ^= vd[k - l];
+                }
+            }
+        }
+
+        public void reset ()
+        {
+            super.reset ();
+            Arrays.fill (x, 0);
+        }
+
+        public double[] sample ()
+        {
+            if (index > 0)  // The first point is the origin.
+            {
+                int c = Integer.numberOfTrailingZeros (~(index - 1));  // position of lowest zero bit
+                for (int d = 0; d < x.length; d++) x[d] ^= v[d][c];
+            }
+            double[] result = new double[x.length];
+            for (int d = 0; d < x.length; d++) result[d] = (x[d] & 0xFFFFFFFFL) / 4294967296.0;
+            return result;
+        }
+    }
+}
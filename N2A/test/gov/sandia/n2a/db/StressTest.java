@@ -0,0 +1,233 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.n2a.db;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.sandia.n2a.execenvs.Host;
+
+/**
+    Multi-threaded stress test and benchmark for the lock-free reads in MVolatile, MDoc and MDir.
+    Mimics the traffic on AppData.runs: several threads update their own documents, while others
+    look up documents, read values, iterate over children and call size(). A separate thread saves
+    the dir periodically, as AppData does.
+
+    Each writer sets "a" and then "b" to the same increasing count, so any reader that reads "b"
+    first must find "a" no smaller. Each writer also adds and removes scratch children, so size()
+    can be checked against iteration once the writers stop. At the end, the saved dir is reloaded
+    from disk and compared with memory.
+
+    Command line: StressTest [seconds] [readers] [writers] [documents]
+    Exits with status 1 if any check fails.
+
+    This lives outside src so it never ships in the application jar. Compile it against src
+    and the jars in lib, then run it with the same classpath.
+**/
+public class StressTest
+{
+    public static void main (String[] args) throws Exception
+    {
+        int seconds   = 5;
+        int readers   = Math.max (2, Runtime.getRuntime ().availableProcessors () - 2);
+        int writers   = 2;
+        int documents = 300;
+        if (args.length > 0) seconds   = Integer.parseInt (args[0]);
+        if (args.length > 1) readers   = Integer.parseInt (args[1]);
+        if (args.length > 2) writers   = Integer.parseInt (args[2]);
+        if (args.length > 3) documents = Integer.parseInt (args[3]);
+
+        Path root = Files.createTempDirectory ("n2a-stress");
+        try
+        {
+            boolean ok = stress (root, seconds, readers, writers, documents);
+            benchmarkSize ();
+            if (! ok) System.exit (1);
+        }
+        finally
+        {
+            Host.deleteTree (root, true);
+        }
+    }
+
+    public static boolean stress (Path root, int seconds, int readers, int writers, int documents) throws Exception
+    {
+        System.out.println ("stress: " + seconds + "s, " + readers + " readers, " + writers + " writers, " + documents + " documents");
+
+        MDir dir = new MDir (root);
+        for (int i = 0; i < documents; i++)
+        {
+            MNode doc = dir.childOrCreate (key (i));
+            doc.set (0, "a");
+            doc.set (0, "b");
+        }
+        dir.save ();
+
+        AtomicLong   reads    = new AtomicLong ();
+        AtomicLong   writes   = new AtomicLong ();
+        AtomicLong   failures = new AtomicLong ();
+        List<Thread> threads  = new ArrayList<Thread> ();
+        long[]       counts   = new long[documents];  // Final value of "a" and "b" in each doc. Each slot is only touched by the doc's writer.
+        long         stop     = System.nanoTime () + seconds * 1000000000l;
+
+        for (int w = 0; w < writers; w++)
+        {
+            final int id = w;
+            threads.add (new Thread ("writer " + w)
+            {
+                public void run ()
+                {
+                    Random random = new Random (id);
+                    try
+                    {
+                        while (System.nanoTime () < stop)
+                        {
+                            // Each writer owns the docs whose index is congruent to its id, just as each job owns its own record.
+                            int i = id + writers * random.nextInt ((documents - id + writers - 1) / writers);
+                            MNode doc = dir.child (key (i));
+                            long n = ++counts[i];
+                            doc.set (n, "a");
+                            doc.set (n, "b");
+                            String scratch = "s" + random.nextInt (8);
+                            if (doc.child (scratch) == null) doc.set (n, scratch, "value");
+                            else                             doc.clear (scratch);
+                            writes.addAndGet (3);
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.incrementAndGet ();
+                        t.printStackTrace ();
+                    }
+                }
+            });
+        }
+
+        for (int r = 0; r < readers; r++)
+        {
+            final int id = r;
+            threads.add (new Thread ("reader " + r)
+            {
+                public void run ()
+                {
+                    Random random = new Random (1000 + id);
+                    long count = 0;
+                    try
+                    {
+                        while (System.nanoTime () < stop)
+                        {
+                            MNode doc = dir.child (key (random.nextInt (documents)));
+                            long b = doc.getLong ("b");
+                            long a = doc.getLong ("a");
+                            if (a < b)
+                            {
+                                failures.incrementAndGet ();
+                                System.err.println ("read out of order in " + doc.key () + ": a=" + a + " b=" + b);
+                            }
+                            int children = 0;
+                            for (MNode c : doc)
+                            {
+                                if (c == null) continue;  // Removed after the iterator took its snapshot of keys. This is documented behavior.
+                                c.get ();
+                                children++;
+                            }
+                            if (children < 2  ||  doc.size () < 2)
+                            {
+                                failures.incrementAndGet ();
+                                System.err.println ("lost children in " + doc.key ());
+                            }
+                            if (count % 64 == 0) dir.size ();
+                            count++;
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.incrementAndGet ();
+                        t.printStackTrace ();
+                    }
+                    reads.addAndGet (count);
+                }
+            });
+        }
+
+        threads.add (new Thread ("saver")
+        {
+            public void run ()
+            {
+                try
+                {
+                    while (System.nanoTime () < stop)
+                    {
+                        sleep (200);
+                        dir.save ();
+                    }
+                }
+                catch (Throwable t)
+                {
+                    failures.incrementAndGet ();
+                    t.printStackTrace ();
+                }
+            }
+        });
+
+        for (Thread t : threads) t.start ();
+        for (Thread t : threads) t.join ();
+        dir.save ();
+
+        // Check final state in memory, then against a fresh load from disk.
+        MDir reloaded = new MDir (root);
+        if (dir.size () != documents  ||  reloaded.size () != documents)
+        {
+            failures.incrementAndGet ();
+            System.err.println ("dir size " + dir.size () + " / " + reloaded.size () + ", expected " + documents);
+        }
+        for (int i = 0; i < documents; i++)
+        {
+            MNode doc  = dir.child (key (i));
+            MNode disk = reloaded.child (key (i));
+            int iterated = 0;
+            for (@SuppressWarnings("unused") MNode c : doc) iterated++;
+            if (doc.size () != iterated  ||  doc.getLong ("a") != counts[i]  ||  doc.getLong ("b") != counts[i]  ||  ! doc.equals (disk))
+            {
+                failures.incrementAndGet ();
+                System.err.println ("bad final state in " + doc.key () + ": size=" + doc.size () + " iterated=" + iterated + " a=" + doc.get ("a") + " b=" + doc.get ("b") + " expected=" + counts[i]);
+            }
+        }
+
+        System.out.println ("  reads/s:  " + reads.get ()  / seconds);
+        System.out.println ("  writes/s: " + writes.get () / seconds);
+        System.out.println ("  failures: " + failures.get ());
+        return failures.get () == 0;
+    }
+
+    /**
+        Times size() on a node with many children, which used to cost a full walk of the skip list.
+    **/
+    public static void benchmarkSize ()
+    {
+        int children = 100000;
+        int calls    = 1000000;
+        MVolatile node = new MVolatile ();
+        for (int i = 0; i < children; i++) node.set (i, key (i));
+
+        long total = 0;
+        long start = System.nanoTime ();
+        for (int i = 0; i < calls; i++) total += node.size ();
+        long elapsed = System.nanoTime () - start;
+        if (total != (long) children * calls) System.err.println ("size() gave wrong answer");
+        System.out.println ("size() on " + children + " children: " + elapsed / calls + " ns/call");
+    }
+
+    public static String key (int i)
+    {
+        return String.format ("%06d", i);
+    }
+}
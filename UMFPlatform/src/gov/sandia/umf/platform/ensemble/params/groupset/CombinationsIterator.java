@@ -7,11 +7,10 @@ the U.S. Government retains certain rights in this software.
 
 package gov.sandia.umf.platform.ensemble.params.groupset;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  *
@@ -31,8 +30,6 @@ public class CombinationsIterator implements Iterable<int[]> {
     ////////////
 
     private int[] counts;
-    private int[] idx;
-    private List<int[]> allIdxCombos = new ArrayList<int[]>();
 
 
     /////////////////
@@ -59,22 +56,6 @@ public class CombinationsIterator implements Iterable<int[]> {
     }
     private void init(int[] c) {
         counts = c;
-        idx = new int[counts.length];
-        if(counts.length != 0) {
-            enumerateCombinations(0);
-        }
-    }
-
-    private void enumerateCombinations(int column) {
-        for(; idx[column] < counts[column]; idx[column]++) {
-            if(column + 1 < counts.length) {
-                enumerateCombinations(column + 1);
-            }
-            if(column == counts.length - 1) {
-                allIdxCombos.add(Arrays.copyOf(idx, idx.length));
-            }
-        }
-        idx[column] = 0;
     }
 
 
@@ -83,10 +64,42 @@ public class CombinationsIterator implements Iterable<int[]> {
     ///////////////
 
     public int getCombinationCount() {
-        return allIdxCombos.size();
+        if(counts.length == 0) {
+            return 0;
+        }
+        int product = 1;
+        for(int c : counts) {
+            product = Math.multiplyExact(product, c);
+        }
+        return product;
     }
+
+    // Combinations are generated one at a time, odometer style, with
+    // the last column turning fastest.  Each returned array is a fresh
+    // copy, so callers may keep it.
     public Iterator<int[]> iterator() {
-        return allIdxCombos.iterator();
+        return new Iterator<int[]>() {
+            int[] idx = new int[counts.length];
+            boolean more = getCombinationCount() > 0;
+            public boolean hasNext() {
+                return more;
+            }
+            public int[] next() {
+                if(!more) {
+                    throw new NoSuchElementException();
+                }
+                int[] result = Arrays.copyOf(idx, idx.length);
+                int column = counts.length - 1;
+                for(; column >= 0; column--) {
+                    if(++idx[column] < counts[column]) {
+                        break;
+                    }
+                    idx[column] = 0;
+                }
+                more = column >= 0;
+                return result;
+            }
+        };
     }
 
 
@@ -0,0 +1,186 @@
+/*
+Copyright 2020 National Technology & Engineering Solutions of Sandia, LLC (NTESS).
+Under the terms of Contract DE-NA0003525 with NTESS,
+the U.S. Government retains certain rights in this software.
+*/
+
+package gov.sandia.umf.platform.ensemble.params.groupset;
+
+import gov.sandia.n2a.parms.ParameterSet;
+import gov.sandia.umf.platform.ensemble.params.groups.ParameterSpecGroup;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+// Produces the parameter sets of a group set one at a time, in the
+// same order as ParameterSpecGroupSet.generateAllSetsFromSpecs, without
+// ever holding more than one of them.  Any set can be computed
+// directly from its index, so generation can resume from an arbitrary
+// point, and the index range can be split for parallel consumption.
+// Group and specification state (such as the stability cache) is
+// guarded by locking on each group.
+public class ParameterSetGenerator implements Iterable<ParameterSet> {
+
+
+    ////////////
+    // FIELDS //
+    ////////////
+
+    private ParameterSpecGroupSet groups;       // Sorted copy of the original group set.
+    private ParameterSpecGroup[] activeGroups;  // Groups which vary, in order from slowest to fastest.
+    private int[] counts;                       // Run count of each active group.
+    private long total;
+    private Set<Object> skipDVGroupParams;
+
+
+    /////////////////
+    // CONSTRUCTOR //
+    /////////////////
+
+    // Package-private.  Use ParameterSpecGroupSet.createGenerator.
+    ParameterSetGenerator(ParameterSpecGroupSet groups, boolean includeDVGroup, Set<Object> skipDVGroupParams) {
+        this.groups = groups;
+        this.skipDVGroupParams = skipDVGroupParams;
+
+        int active = 0;
+        for(ParameterSpecGroup group : groups) {
+            if(includeDVGroup || group != groups.getDefaultValueGroup()) {
+                active++;
+            }
+        }
+        activeGroups = new ParameterSpecGroup[active];
+        counts = new int[active];
+        int i = 0;
+        for(ParameterSpecGroup group : groups) {
+            if(includeDVGroup || group != groups.getDefaultValueGroup()) {
+                activeGroups[i] = group;
+                counts[i] = group.getRunCount();
+                i++;
+            }
+        }
+
+        // Special case for there being ONLY a default value group but
+        // client code has chosen not to ask for default values.  This
+        // still represents a single run, just one with no explicit
+        // parameters.  If there are no groups at all, then there are
+        // zero runs.
+        if(active == 0) {
+            total = groups.isEmpty() ? 0 : 1;
+        } else {
+            total = 1;
+            for(int c : counts) {
+                total = Math.multiplyExact(total, c);
+            }
+        }
+    }
+
+
+    ///////////////
+    // ACCESSORS //
+    ///////////////
+
+    public long getCount() {
+        return total;
+    }
+
+    // Computes the set at the given position in the sequence.  The last
+    // group varies fastest, as with CombinationsIterator.
+    public ParameterSet get(long index) {
+        if(index < 0 || index >= total) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Count: " + total);
+        }
+        int[] idxs = new int[counts.length];
+        for(int i = counts.length - 1; i >= 0; i--) {
+            idxs[i] = (int) (index % counts[i]);
+            index /= counts[i];
+        }
+        ParameterSet set = new ParameterSet();
+        for(int i = 0; i < idxs.length; i++) {
+            ParameterSpecGroup group = activeGroups[i];
+            synchronized(group) {
+                groups.addGroupParamsToParamSet(set, group, idxs[i], skipDVGroupParams);
+            }
+        }
+        return set;
+    }
+
+
+    ///////////////
+    // ITERATION //
+    ///////////////
+
+    public Iterator<ParameterSet> iterator() {
+        return iterator(0);
+    }
+
+    // Resumes the sequence at the given index.
+    public Iterator<ParameterSet> iterator(final long start) {
+        return new Iterator<ParameterSet>() {
+            long next = start;
+            public boolean hasNext() {
+                return next < total;
+            }
+            public ParameterSet next() {
+                if(next >= total) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+
+    public Spliterator<ParameterSet> spliterator() {
+        return new RangeSpliterator(0, total);
+    }
+    public Spliterator<ParameterSet> spliterator(long start) {
+        return new RangeSpliterator(Math.min(start, total), total);
+    }
+
+    public Stream<ParameterSet> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    // Covers the index range [next, end).  Splits in half, so that
+    // parallel consumers each receive a contiguous block of runs.
+    private class RangeSpliterator implements Spliterator<ParameterSet> {
+        private long next;
+        private long end;
+
+        public RangeSpliterator(long next, long end) {
+            this.next = next;
+            this.end = end;
+        }
+
+        public boolean tryAdvance(Consumer<? super ParameterSet> action) {
+            if(next >= end) {
+                return false;
+            }
+            action.accept(get(next++));
+            return true;
+        }
+
+        public Spliterator<ParameterSet> trySplit() {
+            long middle = next + (end - next) / 2;
+            if(middle <= next) {
+                return null;
+            }
+            Spliterator<ParameterSet> prefix = new RangeSpliterator(next, middle);
+            next = middle;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return end - next;
+        }
+
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+}
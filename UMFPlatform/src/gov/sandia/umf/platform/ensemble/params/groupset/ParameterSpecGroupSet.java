@@ -134,62 +134,42 @@ public class ParameterSpecGroupSet extends ArrayList<ParameterSpecGroup> {
 
     public ParameterSetList generateAllSetsFromSpecs(boolean includeDVGroup)
             throws ParameterSpecGroupSetValidationException {
+        ParameterSetList sets = new ParameterSetList();
+        for(ParameterSet set : createGenerator(includeDVGroup)) {
+            sets.add(set);
+        }
+        return sets;
+    }
+
+    // Streaming alternative to generateAllSetsFromSpecs.  The generator
+    // computes each set on demand, so the number of combinations is not
+    // limited by memory.
+    public ParameterSetGenerator createGenerator()
+            throws ParameterSpecGroupSetValidationException {
+        return createGenerator(true);
+    }
+
+    public ParameterSetGenerator createGenerator(boolean includeDVGroup)
+            throws ParameterSpecGroupSetValidationException {
 
         validate();
         Set<Object> skipDVGroupParams = findSkipDVGroupParams();
-        ParameterSetList sets = new ParameterSetList();
-
-        // Special case for there being ONLY a default value group but
-        // client code has chosen not to ask for default values.  This
-        // means that a single run has happened, but that no parameters
-        // are explicitly specified in that run.  BUT if there are
-        // no groups defined, not even a DV group, then this method
-        // does return "zero" runs.
-        if(size() == 1 && get(0) == defaultValueGroup && !includeDVGroup) {
-            sets.add(new ParameterSet());
-            return sets;
-        }
 
         // Make sure that the default value group is applied at the end for
         // this process, just to have a nicely-sorted final parameter set,
         // and use the sorted copy of this group set
-        // to access group information from this point forward in
-        // the method.  Wouldn't need this sorted copy if code
+        // to access group information from this point forward.
+        // Wouldn't need this sorted copy if code
         // were refactored to not have the DV group as part of the
         // actual group list.
         ParameterSpecGroupSet sortedCopy = new ParameterSpecGroupSet(this);
         sortedCopy.setDefaultValueGroup(defaultValueGroup, sortedCopy.size());
 
-        // Get the counts of each group.
-        Integer[] groupRunCounts = sortedCopy.getGroupRunCounts(includeDVGroup);
-
-        for(int[] idxs : new CombinationsIterator(groupRunCounts)) {
-            ParameterSet set = new ParameterSet();
-
-            for(int i = 0, g = 0; i < idxs.length; i++) {
-                ParameterSpecGroup group = sortedCopy.get(g++);
-
-                // Ignore the default values if desired.
-                if(!includeDVGroup && group == defaultValueGroup) {
-                    group = sortedCopy.get(g++);         // Just leap past this one, move to next.
-                }
-
-                int idx = idxs[i];
-                addGroupParamsToParamSet(set, group, idx, skipDVGroupParams);
-            }
-
-            //if(includeDVGroup && defaultValueGroup != null) { // If refactored to have DV group separate reference.
-            //    addGroupParamsToParamSet(skipDVGroupParams, set, idx, defaultValueGroup);
-            //}
-
-            sets.add(set);
-        }
-
-        return sets;
+        return new ParameterSetGenerator(sortedCopy, includeDVGroup, skipDVGroupParams);
     }
 
-    private void addGroupParamsToParamSet(ParameterSet set, ParameterSpecGroup group,
-                                          int idx, Set<Object> skipDVGroupParams) {
+    void addGroupParamsToParamSet(ParameterSet set, ParameterSpecGroup group,
+                                  int idx, Set<Object> skipDVGroupParams) {
         for(Object paramKey : group.keySet()) {
 
             // If DV group not being ignored, skip default value parameters that
@@ -17,6 +17,7 @@ import gov.sandia.umf.platform.ensemble.params.groupset.ParameterSpecGroupSet;
 import gov.sandia.umf.platform.plugins.PlatformRecord;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import replete.xstream.XStreamWrapper;
@@ -101,6 +102,13 @@ public class RunEnsemble
         return getGroups().generateAllSetsFromSpecs(false);
     }
 
+    // Generates parameter sets one at a time, so runs can be submitted
+    // as they are produced.  Pass the number of runs already submitted
+    // to resume an interrupted submission.
+    public Iterator<ParameterSet> iterateParameterSets(long start) {
+        return getGroups().createGenerator(false).iterator(start);
+    }
+
     public List<String> getOutputExprs ()
     {
         List<String> result = new ArrayList<String> ();
@@ -10,8 +10,8 @@ import gov.sandia.n2a.parms.Parameter;
 import gov.sandia.n2a.parms.ParameterBundle;
 import gov.sandia.n2a.parms.ParameterDomain;
 import gov.sandia.n2a.parms.ParameterKeyPath;
-import gov.sandia.umf.platform.ensemble.params.ParameterSetList;
 import gov.sandia.umf.platform.ensemble.params.groups.ConstantParameterSpecGroup;
+import gov.sandia.umf.platform.ensemble.params.groupset.ParameterSetGenerator;
 import gov.sandia.umf.platform.ensemble.params.groupset.ParameterSpecGroupSet;
 import gov.sandia.umf.platform.ui.ensemble.images.ImageUtil;
 import gov.sandia.umf.platform.ui.ensemble.run.DragCursors;
@@ -371,9 +371,9 @@ public class FixedParameterSpacePanel extends DebugPanel implements DragGestureL
             return;
         }
         groups = newGroups;
-        ParameterSetList sets = groups.generateAllSetsFromSpecs(chkDV.isSelected());
-        mdlParamSets.setParameterSetList(sets);
-        pnlParamDetails.updateRun(sets.getNumSets(), estDuration);
+        ParameterSetGenerator sets = groups.createGenerator(chkDV.isSelected());
+        mdlParamSets.setParameterSetGenerator(sets);
+        pnlParamDetails.updateRun(sets.getCount(), estDuration);
     }
     private void setError(Exception err) {
         error = err;
@@ -7,27 +7,67 @@ the U.S. Government retains certain rights in this software.
 package gov.sandia.umf.platform.ui.ensemble;
 
 import gov.sandia.n2a.parms.ParameterKeyPath;
+import gov.sandia.n2a.parms.ParameterSet;
 import gov.sandia.umf.platform.ensemble.params.ParameterSetList;
 import gov.sandia.umf.platform.ensemble.params.ParameterSetMap;
+import gov.sandia.umf.platform.ensemble.params.groupset.ParameterSetGenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+
 import replete.gui.table.MinimalAbstractTableModel;
 
 public class ParameterSetTableModel extends MinimalAbstractTableModel {
     private ParameterSetList paramsList;
     private ParameterSetMap paramsMap;
 
+    // Alternative to the list, for ensembles too large to hold in memory.
+    // Rows are generated only when the table asks for them, and the most
+    // recent one is kept since the table asks for a row one cell at a time.
+    private ParameterSetGenerator generator;
+    private List<Object> generatorParams;
+    private long cachedRow = -1;
+    private ParameterSet cachedSet;
+
     public void setParameterSetList(ParameterSetList list) {
         paramsList = list;
         paramsMap = list.transform();
+        generator = null;
+
+        fireTableStructureChanged();
+    }
+
+    public void setParameterSetGenerator(ParameterSetGenerator gen) {
+        paramsList = null;
+        paramsMap = null;
+        generator = gen;
+        generatorParams = new ArrayList<Object>();
+        cachedRow = -1;
+        cachedSet = null;
+        if(gen.getCount() > 0) {
+            generatorParams.addAll(getSet(0).keySet());
+        }
 
         fireTableStructureChanged();
     }
 
+    private ParameterSet getSet(long row) {
+        if(row != cachedRow) {
+            cachedSet = generator.get(row);
+            cachedRow = row;
+        }
+        return cachedSet;
+    }
+
     @Override
     public Class<?> getColumnClass(int columnIndex) {
         return String.class;
     }
     @Override
     public int getColumnCount() {
+        if(generator != null) {
+            return generatorParams.size() + 1;
+        }
         if(paramsList == null) {
             return 1;
         }
@@ -38,14 +78,23 @@ public class ParameterSetTableModel extends MinimalAbstractTableModel {
         if(columnIndex == 0) {
             return "Run #";
         }
-        Object paramKey = paramsMap.getParamByIndex(columnIndex - 1);
+        Object paramKey = getParam(columnIndex);
         return ((ParameterKeyPath) paramKey).toString(true);
     }
     public Object getParam(int columnIndex) {
+        if(generator != null) {
+            return generatorParams.get(columnIndex - 1);
+        }
         return paramsMap.getParamByIndex(columnIndex - 1);
     }
     @Override
     public int getRowCount() {
+        if(generator != null) {
+            if(generator.getCount() == 0) {
+                return 1;
+            }
+            return (int) Math.min(generator.getCount(), Integer.MAX_VALUE);
+        }
         if(paramsList == null || paramsList.getNumSets() == 0) {
             return 1;
         }
@@ -56,6 +105,9 @@ public class ParameterSetTableModel extends MinimalAbstractTableModel {
         if(columnIndex == 0) {
             return rowIndex + 1;
         }
+        if(generator != null) {
+            return getSet(rowIndex).get(getParam(columnIndex));
+        }
         return paramsMap.getByIndex(columnIndex - 1).get(rowIndex);
     }
 }
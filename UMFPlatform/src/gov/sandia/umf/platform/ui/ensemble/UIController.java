@@ -80,7 +80,7 @@ public class UIController
             //runQueue.submitEnsemble(model, re);
 /*            
             int runNum = 0;
-            for(ParameterSet set : groups.generateAllSetsFromSpecs(false)) {
+            for(ParameterSet set : groups.createGenerator(false)) {
                 ParameterSet modelParamSet = set.subset("Model");
                 ParameterSet simParamSet = set.subset("Simulator");
                 modelParamSet.sliceKeyPathKeys();